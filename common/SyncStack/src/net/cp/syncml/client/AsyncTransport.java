@@ -0,0 +1,39 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client;
+
+
+/**
+ * An interface defining a transport which can exchange messages with the SyncML server asynchronously. <br/><br/>
+ *
+ * A blocking {@link Transport} occupies the thread running the sync session while waiting for the server to respond
+ * to each message, so each session needs a thread of its own. If the transport implements this interface and a
+ * {@link SyncManager#setSessionExecutor(net.cp.syncml.client.util.TaskExecutor) session executor} is specified,
+ * the SyncML client instead calls {@link #exchangeMessages(TransportHandler)} once each message has been written
+ * to the output stream, and releases the thread until the transport reports the response. This allows any number
+ * of sessions to be run by a small number of shared threads. <br/><br/>
+ *
+ * Implementations must still implement {@link #getInputStream()} (typically by waiting for the result of
+ * {@link #exchangeMessages(TransportHandler)}), as the transport is used in the normal blocking way if no
+ * session executor is specified.
+ *
+ * @see TransportHandler
+ *
+ * @author Denis Evoy
+ */
+public interface AsyncTransport extends Transport
+{
+    /**
+     * Called to send the message written to the {@link #getOutputStream() output stream} to the SyncML server
+     * and receive the response asynchronously. <br/><br/>
+     *
+     * Implementations must return immediately and report the result by calling exactly one of the methods of
+     * the specified handler, from any thread. As with {@link #getInputStream()}, an <code>IOException</code>
+     * should be reported if the server couldn't be contacted, which will cause the session to be suspended.
+     * {@link #cleanup()} will be called once the response has been processed.
+     *
+     * @param handler the handler to notify of the response. Will not be null.
+     */
+    public void exchangeMessages(TransportHandler handler);
+}
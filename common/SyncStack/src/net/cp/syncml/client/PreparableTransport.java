@@ -0,0 +1,29 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client;
+
+
+/**
+ * An interface defining a transport which can prepare its connection to the SyncML server in advance. <br/><br/>
+ *
+ * The SyncML client calls {@link #prepare()} as soon as a sync session is started or resumed. This allows the
+ * transport to resolve the address of the server, select the network route and open the connection in the
+ * background while the session is still initializing (e.g. while the record stores are determining their changes).
+ * The prepared connection should then be used for the first message exchange of the session.
+ *
+ * @see SyncManager#startSync(net.cp.syncml.client.store.RecordStore[], String)
+ *
+ * @author Denis Evoy
+ */
+public interface PreparableTransport extends Transport
+{
+    /**
+     * Called to prepare the connection to the SyncML server in advance of the first message exchange. <br/><br/>
+     *
+     * Implementations must return immediately and perform any work in the background. Any errors should be
+     * ignored, as the connection will be established as normal when the first message is sent. The first
+     * call to {@link #getOutputStream()} or {@link #getInputStream()} should wait for the preparation to complete.
+     */
+    public void prepare();
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client;
+
+
+/**
+ * An interface defining a transport whose messages can be redirected to a different URI for the rest of a sync session. <br/><br/>
+ *
+ * A SyncML server may specify a response URI (<code>RespURI</code>) in the header of its messages, indicating where the
+ * client should send its subsequent messages. This is typically used by load-balanced servers to route the rest of the
+ * session directly to the server instance which holds the state of the session. If the transport implements this interface,
+ * the SyncML client redirects the transport to the response URI specified by the server. <br/><br/>
+ *
+ * Note that the target URI returned by {@link #getTargetURI()} must not be affected by the redirection, as it is still
+ * used to identify the server in the header of each message.
+ *
+ * @author Denis Evoy
+ */
+public interface RedirectableTransport extends Transport
+{
+    /**
+     * Called to redirect the messages of the rest of the sync session to the specified URI. <br/><br/>
+     *
+     * This method is called with a null URI when the session ends (or is suspended), after which messages
+     * should be sent to the target URI again.
+     *
+     * @param uri the absolute URI to which messages should be sent or null if messages should be sent to the target URI.
+     */
+    public void setResponseURI(String uri);
+}
@@ -79,6 +79,18 @@ public interface SyncListener
      */
     public void onSyncEnd(boolean success, int statusCode, String statusData);
     
+    /**
+     * Called to report the metrics collected during a sync session. <br/><br/>
+     * 
+     * This method will be called just before {@link #onSyncEnd(boolean, int, String)}, regardless of how 
+     * the end of the session was reached. The metrics cover the whole session, including any time it 
+     * spent suspended.
+     * 
+     * @param metrics the metrics of the session. Will not be null.
+     * @see SyncManager#getSyncMetrics()
+     */
+    public void onSyncMetrics(SyncMetrics metrics);
+    
     
     /** 
      * Called to indicate the SyncML server response to an intentional suspend request from the client.
@@ -179,4 +191,16 @@ public interface SyncListener
 
     /** Called to indicate that the client is about to receive a message from the SyncML server. */ 
     public void onMessageReceive();
+    
+    /** 
+     * Called to indicate that the maximum message size has been changed by the adaptive message size controller. <br/><br/>
+     * 
+     * This method is only called if an {@link SyncManager#setAdaptiveMsgSize(int, int) adaptive message size} 
+     * has been configured. The new size applies from the next message sent to the SyncML server.
+     * 
+     * @param maxMsgSize    the new maximum message size (in bytes).
+     * @param roundTripTime the round-trip time (in milliseconds) of the last message exchange.
+     * @param throughput    the throughput (in bytes per second) of the last message exchange.
+     */
+    public void onMaxMsgSizeChange(long maxMsgSize, long roundTripTime, long throughput);
 }
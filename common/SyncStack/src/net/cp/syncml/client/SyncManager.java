@@ -5,11 +5,15 @@ package net.cp.syncml.client;
 
 
 import android.util.Log;
+import net.cp.syncml.client.engine.DevInfCache;
 import net.cp.syncml.client.engine.Session;
 import net.cp.syncml.client.devinfo.Device;
 import net.cp.syncml.client.devinfo.DeviceCapabilities;
+import net.cp.syncml.client.devinfo.ServerCapabilities;
 import net.cp.syncml.client.store.RecordStore;
+import net.cp.syncml.client.util.DataSpool;
 import net.cp.syncml.client.util.Logger;
+import net.cp.syncml.client.util.TaskExecutor;
 
 
 /**
@@ -54,6 +58,19 @@ import net.cp.syncml.client.util.Logger;
  */
 public class SyncManager
 {
+    /** The default maximum number of bytes of outgoing records to prepare in advance. */
+    public static final long DEFAULT_PREFETCH_LIMIT =   256 * 1024;
+    
+    /** The default number of records that may be skipped to fill each message with client updates. */
+    public static final int DEFAULT_PACKING_WINDOW =    16;
+    
+    /** The client updates of each record store are sent in turn, in the order in which the stores were specified. */
+    public static final int SCHEDULE_SEQUENTIAL =       0;
+    
+    /** The record stores share the space in each message containing client updates, taking turns to go first. */
+    public static final int SCHEDULE_ROUND_ROBIN =      1;
+    
+    
     private Device syncDevice;                  //the device on which a sync session runs
     private Transport syncTransport;            //the transport to use during a session 
     private Logger syncLogger;                  //the logger to use when logging session activity
@@ -64,6 +81,20 @@ public class SyncManager
     
     private Session syncSession;                //the current sync session (if any)
     private Thread syncThread;                  //the current thread in which the sync session is running (if any)
+    
+    private boolean stringTableEnabled;         //indicates whether or not outgoing messages should use WBXML string tables
+    private boolean compactStatusEnabled;       //indicates whether or not Status commands should omit item references which aren't required
+    private DataSpool checkpointSpool;          //the storage in which session checkpoints are saved (if any)
+    private DataSpool devinfCacheSpool;         //the storage in which the device information exchanged with each server is cached (if any)
+    private int prefetchThreadCount;            //the number of threads used to prepare outgoing records in the background (or 0 if disabled)
+    private long prefetchLimit;                 //the maximum number of bytes of outgoing records to prepare in advance
+    private boolean earlyChangeDetection;       //indicates whether or not changes should be detected while waiting for the server's initialization package
+    private int parsePipelineSize;              //the maximum number of parsed commands waiting to be processed (or 0 if messages aren't parsed in the background)
+    private int packingWindow;                  //the maximum number of records that may be skipped to fill a message (or 0 if records are sent in order)
+    private int updateScheduling;               //the policy used to decide how the record stores share the space in each message containing client updates
+    private int adaptiveMinMsgSize;             //the smallest message size the adaptive message size controller may choose
+    private int adaptiveMaxMsgSize;             //the largest message size the adaptive message size controller may choose (or 0 if disabled)
+    private TaskExecutor sessionExecutor;       //the executor used to run sessions with an asynchronous transport (or null if each session uses its own thread)
 
     
     /**
@@ -114,6 +145,7 @@ public class SyncManager
         authPasword = password;
         
         syncSession = null;
+        prefetchLimit = DEFAULT_PREFETCH_LIMIT;
     }
 
 
@@ -178,6 +210,457 @@ public class SyncManager
         return authPasword;
     }
 
+    /**
+     * Sets whether or not outgoing messages should be encoded using WBXML string tables. <br/><br/>
+     * 
+     * When enabled, strings which are repeated from one message to the next (e.g. URIs, content types, 
+     * device IDs, etc) are sent once in the string table of each message and referred to from the 
+     * message body, which reduces the size of the messages sent. String tables are disabled by default 
+     * and the setting takes effect from the next session started.
+     * 
+     * @param enabled <code>true</code> if string tables should be used.
+     */
+    public synchronized void setStringTableEnabled(boolean enabled)
+    {
+        stringTableEnabled = enabled;
+    }
+
+    /**
+     * Returns whether or not outgoing messages are encoded using WBXML string tables.
+     * 
+     * @return <code>true</code> if string tables are used.
+     */
+    public synchronized boolean isStringTableEnabled()
+    {
+        return stringTableEnabled;
+    }
+
+    /**
+     * Sets whether or not the Status commands returned for server changes should omit item references which 
+     * aren't required. <br/><br/>
+     * 
+     * The results of the items of a server command carrying multiple items are always returned in a single 
+     * Status command for each different status code, listing the items it refers to. When enabled, the items 
+     * are also omitted if the Status refers to all items of the command (e.g. a command carrying a single 
+     * item), as allowed by SyncML. As some servers identify the item a Status refers to by its SourceRef or 
+     * TargetRef rather than by its CmdRef, compact Status commands are disabled by default. The setting 
+     * takes effect from the next session started. <br/><br/>
+     * 
+     * The number of bytes saved is reported by {@link SyncMetrics#getStatusBytesSaved()}.
+     * 
+     * @param enabled <code>true</code> if compact Status commands should be used.
+     */
+    public synchronized void setCompactStatusEnabled(boolean enabled)
+    {
+        compactStatusEnabled = enabled;
+    }
+
+    /**
+     * Returns whether or not the Status commands returned for server changes omit item references which aren't required.
+     * 
+     * @return <code>true</code> if compact Status commands are used.
+     */
+    public synchronized boolean isCompactStatusEnabled()
+    {
+        return compactStatusEnabled;
+    }
+
+    /**
+     * Returns the number of bytes saved by using WBXML string tables in the current (or last) sync session.
+     * 
+     * @return The number of bytes saved or 0 if there is no session or string tables are disabled.
+     */
+    public synchronized long getStringTableBytesSaved()
+    {
+        if (syncSession == null)
+            return 0;
+        
+        return syncSession.getStringTableBytesSaved();
+    }
+
+    /**
+     * Sets the storage in which checkpoints of the sync session state should be saved. <br/><br/>
+     * 
+     * When specified, a compact checkpoint of the session state is saved at the end of each message exchange 
+     * once the session has reached a point where it could be suspended. The checkpoint is discarded when the 
+     * session ends. If the application is terminated while a session is in progress (or suspended), the session 
+     * can be resumed from the checkpoint using {@link #resumeSync(RecordStore[], String)} after the application 
+     * is restarted. No checkpoints are saved by default and the setting takes effect from the next session started.
+     * 
+     * @param spool the storage in which checkpoints should be saved. May be null if no checkpoints should be saved.
+     */
+    public synchronized void setCheckpointSpool(DataSpool spool)
+    {
+        checkpointSpool = spool;
+    }
+
+    /**
+     * Returns the storage in which checkpoints of the sync session state are saved.
+     * 
+     * @return The checkpoint storage or null if no checkpoints are saved.
+     */
+    public synchronized DataSpool getCheckpointSpool()
+    {
+        return checkpointSpool;
+    }
+
+    /**
+     * Sets the storage in which the device information (DevInf) exchanged with each server should be cached. <br/><br/>
+     * 
+     * By default, the client sends its device information to the server at the start of every session and ignores 
+     * any device information sent by the server. When a cache is specified, the client remembers (per server URI) 
+     * the device information last acknowledged by the server and only sends it again when it has changed, when the 
+     * server asks for it or when a slow sync is performed. The client also asks for the server's device information 
+     * once and caches the server's capabilities, which are passed to any {@link net.cp.syncml.client.store.ServerAwareRecordStore} 
+     * at the start of each session (see {@link #getServerCapabilities()}). No cache is used by default and the setting 
+     * takes effect from the next session started.
+     * 
+     * @param spool the storage in which the device information should be cached. May be null if no cache should be used.
+     */
+    public synchronized void setDevInfCache(DataSpool spool)
+    {
+        devinfCacheSpool = spool;
+    }
+
+    /**
+     * Returns the storage in which the device information exchanged with each server is cached.
+     * 
+     * @return The device information cache storage or null if no cache is used.
+     */
+    public synchronized DataSpool getDevInfCache()
+    {
+        return devinfCacheSpool;
+    }
+
+    /**
+     * Returns the capabilities of the server used by the sync sessions, as far as they are known. <br/><br/>
+     * 
+     * The capabilities are taken from the current session or, if no session is running, from the device
+     * information cache (see {@link #setDevInfCache(DataSpool)}).
+     * 
+     * @return The server capabilities or null if they aren't known.
+     */
+    public synchronized ServerCapabilities getServerCapabilities()
+    {
+        if (syncSession != null)
+            return syncSession.getServerCapabilities();
+        
+        if (devinfCacheSpool == null)
+            return null;
+        
+        return new DevInfCache(devinfCacheSpool, null).getServerCapabilities(syncTransport.getTargetURI());
+    }
+
+    /**
+     * Sets the executor which should run the sync sessions if the transport is asynchronous. <br/><br/>
+     * 
+     * By default, each session runs in a thread of its own which is blocked while waiting for the server to respond. 
+     * When an executor is specified and the transport implements {@link AsyncTransport}, the session is instead run 
+     * by the threads of the executor and no thread is used while waiting for the server. This allows many concurrent 
+     * sessions (e.g. one per sync manager) to share a small number of threads. The setting takes effect from the 
+     * next session started (or resumed).
+     * 
+     * @param executor the executor to use. May be null if each session should run in a thread of its own.
+     */
+    public synchronized void setSessionExecutor(TaskExecutor executor)
+    {
+        sessionExecutor = executor;
+    }
+
+    /**
+     * Returns the executor which runs the sync sessions if the transport is asynchronous.
+     * 
+     * @return The session executor or null if each session runs in a thread of its own.
+     */
+    public synchronized TaskExecutor getSessionExecutor()
+    {
+        return sessionExecutor;
+    }
+
+    /**
+     * Sets whether or not the records to be sent to the server should be prepared in the background. <br/><br/>
+     * 
+     * When enabled, the specified number of threads retrieve the records from each store and read their data
+     * ahead of time (while the session is waiting for the server to respond), so that the records are ready to 
+     * be sent by the time the next message is built. The amount of record data prepared in advance is bounded 
+     * by the specified limit. Prefetching is disabled by default and the setting takes effect from the next 
+     * session started. <br/><br/>
+     * 
+     * Note that the {@link net.cp.syncml.client.util.ConsumableStack stack} of records returned by each store 
+     * and the records themselves are then accessed from the background threads, while other methods of the 
+     * store are still called from the session thread. Stores must be able to handle this (and must handle 
+     * concurrent access to their records if more than one thread is used).
+     * 
+     * @param threadCount   the number of threads to use or 0 if records shouldn't be prepared in the background.
+     * @param limit         the maximum number of bytes of record data to prepare in advance. Must be positive.
+     */
+    public synchronized void setRecordPrefetch(int threadCount, long limit)
+    {
+        if (threadCount < 0)
+            throw new IllegalArgumentException("invalid prefetch thread count specified: " + threadCount);
+        if (limit <= 0)
+            throw new IllegalArgumentException("invalid prefetch limit specified: " + limit);
+        
+        prefetchThreadCount = threadCount;
+        prefetchLimit = limit;
+    }
+
+    /**
+     * Returns the number of threads used to prepare the records to be sent to the server in the background.
+     * 
+     * @return The number of threads or 0 if records aren't prepared in the background.
+     */
+    public synchronized int getPrefetchThreadCount()
+    {
+        return prefetchThreadCount;
+    }
+
+    /**
+     * Returns the maximum number of bytes of record data that are prepared in advance.
+     * 
+     * @return The maximum number of bytes prepared in advance.
+     */
+    public synchronized long getPrefetchLimit()
+    {
+        return prefetchLimit;
+    }
+
+    /**
+     * Sets whether or not the records to be sent to the server should be determined while waiting for the 
+     * server's response to the initialization package. <br/><br/>
+     * 
+     * When enabled, {@link RecordStore#getChangedRecords()} or {@link RecordStore#getAllRecords()} (depending 
+     * on the sync type requested by the client) is called for each store in a background thread as soon as the 
+     * initialization package has been built, rather than once the server has responded. The result is used 
+     * when the client updates are sent, unless the server has changed the sync type in the meantime (e.g. forced 
+     * a slow sync), in which case the records are determined again. The session waits for the background thread 
+     * to finish before processing the server's response, so no other store methods are called concurrently. 
+     * Early change detection is disabled by default and the setting takes effect from the next session started.
+     * 
+     * @param enabled <code>true</code> if changes should be detected early.
+     */
+    public synchronized void setEarlyChangeDetection(boolean enabled)
+    {
+        earlyChangeDetection = enabled;
+    }
+
+    /**
+     * Returns whether or not the records to be sent to the server are determined while waiting for the 
+     * server's response to the initialization package.
+     * 
+     * @return <code>true</code> if changes are detected early.
+     */
+    public synchronized boolean isEarlyChangeDetectionEnabled()
+    {
+        return earlyChangeDetection;
+    }
+
+    /**
+     * Sets whether or not the messages received from the server should be parsed in the background. <br/><br/>
+     * 
+     * By default, each message received from the server is read, decoded and processed (e.g. server updates 
+     * applied to the local store) one command at a time on the session thread. When enabled, a background thread 
+     * reads and decodes the message while the session processes the commands already decoded, so that reading 
+     * the rest of the message overlaps with the time spent applying the updates. At most the specified number of 
+     * decoded commands are held in memory waiting to be processed. Background parsing is disabled by default and 
+     * the setting takes effect from the next session started. <br/><br/>
+     * 
+     * Commands are still processed in the order they were received and all store methods are still called from 
+     * the session thread, so the Status commands returned to the server are the same as when parsing on the session 
+     * thread. Note that only the time the session spends waiting for the background thread is then reported as the 
+     * {@link SyncMetrics#PHASE_PARSE parse} phase. 
+     * 
+     * @param commands the maximum number of decoded commands waiting to be processed or 0 if messages shouldn't be parsed in the background.
+     */
+    public synchronized void setParsePipelineSize(int commands)
+    {
+        if (commands < 0)
+            throw new IllegalArgumentException("invalid parse pipeline size specified: " + commands);
+        
+        parsePipelineSize = commands;
+    }
+
+    /**
+     * Returns the maximum number of decoded commands waiting to be processed when messages received from the 
+     * server are parsed in the background.
+     * 
+     * @return The maximum number of decoded commands or 0 if messages aren't parsed in the background.
+     */
+    public synchronized int getParsePipelineSize()
+    {
+        return parsePipelineSize;
+    }
+
+    /**
+     * Sets the number of records that may be skipped in order to fill each message containing client updates. <br/><br/>
+     * 
+     * By default, records are sent in the order in which they are returned by the store and a record which 
+     * doesn't fit in the space remaining in a message is split into chunks (each of which requires its own
+     * message exchange). When a window is specified, such a record is instead skipped (as long as it would fit 
+     * in a message of its own) and the rest of the message is filled with the records following it. Skipped 
+     * records are sent at the start of the next message. At most the specified number of records are skipped 
+     * per message, and only records larger than the maximum message size are split into chunks. <br/><br/>
+     * 
+     * Records are always sent in order for stores which support {@link net.cp.syncml.client.store.RecordStoreCapabilities#isHierarchicalSyncSupported() 
+     * hierarchical sync}, as parent records must be sent before their children. The setting takes effect from 
+     * the next session started.
+     * 
+     * @param window the maximum number of records to skip per message or 0 if records should always be sent in order.
+     */
+    public synchronized void setPackingWindow(int window)
+    {
+        if (window < 0)
+            throw new IllegalArgumentException("invalid packing window specified: " + window);
+        
+        packingWindow = window;
+    }
+
+    /**
+     * Returns the number of records that may be skipped in order to fill each message containing client updates.
+     * 
+     * @return The maximum number of records skipped per message or 0 if records are always sent in order.
+     */
+    public synchronized int getPackingWindow()
+    {
+        return packingWindow;
+    }
+
+    /**
+     * Sets the policy used to decide how the record stores being synced share the space in each message containing 
+     * client updates. <br/><br/>
+     * 
+     * By default ({@link #SCHEDULE_SEQUENTIAL}), the updates of the first store are sent before those of the second
+     * store, and so on, so a store with many changes delays the updates of the stores following it by as many message
+     * exchanges as it needs. With {@link #SCHEDULE_ROUND_ROBIN}, each message includes the updates of every store which 
+     * still has updates to send. Each store may add records until it has used an equal share of the space left by the 
+     * stores before it (space it doesn't need is left to the stores after it), and the stores take turns to go first 
+     * in each message. A store always adds at least one record to each message it is included in, and a record being 
+     * sent in chunks is always continued at the start of the next message. <br/><br/>
+     * 
+     * Each store still sends its records in the order in which they are returned by the store. When records are prepared 
+     * in the background (see {@link #setRecordPrefetch(int, long)}), the records of several stores may then be prepared 
+     * at the same time. The setting takes effect from the next session started.
+     * 
+     * @param policy the scheduling policy - one of {@link #SCHEDULE_SEQUENTIAL} or {@link #SCHEDULE_ROUND_ROBIN}.
+     */
+    public synchronized void setUpdateScheduling(int policy)
+    {
+        if ( (policy != SCHEDULE_SEQUENTIAL) && (policy != SCHEDULE_ROUND_ROBIN) )
+            throw new IllegalArgumentException("invalid update scheduling policy specified: " + policy);
+        
+        updateScheduling = policy;
+    }
+
+    /**
+     * Returns the policy used to decide how the record stores being synced share the space in each message containing 
+     * client updates.
+     * 
+     * @return The scheduling policy - one of {@link #SCHEDULE_SEQUENTIAL} or {@link #SCHEDULE_ROUND_ROBIN}.
+     */
+    public synchronized int getUpdateScheduling()
+    {
+        return updateScheduling;
+    }
+
+    /**
+     * Sets the bounds within which the maximum message size should be adapted to the performance of the network. <br/><br/>
+     * 
+     * By default, the maximum message size is taken from the {@link Transport#getMaxMsgSize() transport} and is only 
+     * reduced if the server requires smaller messages. When bounds are specified, the round-trip time and throughput
+     * of each message exchange are measured and the maximum message size advertised to the server (and used for 
+     * the messages sent by the client) is grown on fast connections and shrunk on slow ones, within the specified 
+     * bounds and any limit imposed by the server. Each change is reported to the {@link SyncListener#onMaxMsgSizeChange(long, long, long) 
+     * listener}. The setting takes effect from the next session started.
+     * 
+     * @param minSize   the smallest message size to use. Must be positive unless <code>maxSize</code> is 0.
+     * @param maxSize   the largest message size to use or 0 if the message size shouldn't be adapted. Must not be less than <code>minSize</code>.
+     */
+    public synchronized void setAdaptiveMsgSize(int minSize, int maxSize)
+    {
+        if ( (maxSize != 0) && ((minSize <= 0) || (maxSize < minSize)) )
+            throw new IllegalArgumentException("invalid message size bounds specified: " + minSize + "-" + maxSize);
+        
+        adaptiveMinMsgSize = minSize;
+        adaptiveMaxMsgSize = maxSize;
+    }
+
+    /**
+     * Returns the smallest message size the adaptive message size controller may choose.
+     * 
+     * @return The smallest message size.
+     */
+    public synchronized int getAdaptiveMinMsgSize()
+    {
+        return adaptiveMinMsgSize;
+    }
+
+    /**
+     * Returns the largest message size the adaptive message size controller may choose.
+     * 
+     * @return The largest message size or 0 if the message size isn't adapted.
+     */
+    public synchronized int getAdaptiveMaxMsgSize()
+    {
+        return adaptiveMaxMsgSize;
+    }
+
+    /**
+     * Returns the number of messages containing client updates that were sent in the current (or last) sync session.
+     * 
+     * @return The number of messages or 0 if there is no session.
+     */
+    public synchronized int getClientUpdateMessageCount()
+    {
+        if (syncSession == null)
+            return 0;
+        
+        return syncSession.getClientUpdateMessageCount();
+    }
+
+    /**
+     * Returns the number of client update chunks (i.e. parts of records which were too large to be sent in
+     * a single message) that were sent in the current (or last) sync session.
+     * 
+     * @return The number of chunks or 0 if there is no session.
+     */
+    public synchronized int getClientUpdateChunkCount()
+    {
+        if (syncSession == null)
+            return 0;
+        
+        return syncSession.getClientUpdateChunkCount();
+    }
+
+    /**
+     * Returns how full the messages containing client updates were on average in the current (or last) sync session.
+     * 
+     * @return The average size of the messages as a percentage of the maximum message size or 0 if there is no session.
+     */
+    public synchronized int getClientUpdateFillRatio()
+    {
+        if (syncSession == null)
+            return 0;
+        
+        return syncSession.getClientUpdateFillRatio();
+    }
+
+    /**
+     * Returns the timing and volume metrics of the current (or last) sync session. <br/><br/>
+     * 
+     * The metrics of a running session are updated as the session progresses. The metrics of a session 
+     * which has been {@link #stopSync() stopped} are no longer available, but are always reported to 
+     * {@link SyncListener#onSyncMetrics(SyncMetrics)} as the session ends.
+     * 
+     * @return The metrics of the session or null if there is no session.
+     */
+    public synchronized SyncMetrics getSyncMetrics()
+    {
+        if (syncSession == null)
+            return null;
+        
+        return syncSession.getMetrics();
+    }
+
 
     /**
      * Returns whether or not a sync session is currently running. <br/><br/>
@@ -202,7 +685,10 @@ public class SyncManager
     }
     
     /**
-     * Starts a new sync session with the specified unique ID for the specified record stores.
+     * Starts a new sync session with the specified unique ID for the specified record stores. <br/><br/>
+     * 
+     * If the transport implements {@link PreparableTransport}, it is asked to prepare its connection to 
+     * the server immediately, so that the connection is ready by the time the first message is sent.
      * 
      * @param stores    the local record stores to be synced. May not be null or empty.
      * @param sessionId a unique ID for the session. Must be non-zero positive.
@@ -215,10 +701,10 @@ public class SyncManager
         if (isSyncRunning())
             return false;
         
-        //create a new session and start the session thread
+        //create a new session and start running the session
+        prepareTransport();
         syncSession = new Session(this, stores, sessionId);
-        syncThread = new Thread(syncSession);
-        syncThread.start();
+        runSession();
         return true;
     }
 
@@ -295,10 +781,80 @@ public class SyncManager
         if ( (! isSyncSuspended()) || (syncSession.isResuming()) )
             return false;
         
-        //resume the existing session and start the session thread
+        //resume the existing session and start running the session
+        prepareTransport();
+        syncSession.resumeSession(sessionId);
+        runSession();
+        return true;
+    }
+    
+    /**
+     * Resumes the sync session that was in progress (or suspended) when the application was last terminated. <br/><br/>
+     * 
+     * The session is restored from the last checkpoint saved in the {@link #setCheckpointSpool(DataSpool) checkpoint spool}
+     * and is then resumed as if it had been {@link #resumeSync(String) resumed} after being suspended. The session 
+     * can only be restored if the same record stores are specified and they all implement {@link net.cp.syncml.client.store.ResumableRecordStore}. 
+     * In that case, {@link net.cp.syncml.client.store.ResumableRecordStore#onSyncRestore(int, String)} is called for each store instead of 
+     * {@link RecordStore#onSyncStart()}. <br/><br/>
+     * 
+     * If the session can't be restored (e.g. there is no valid checkpoint), the checkpoint is discarded and a new 
+     * session should be {@link #startSync(RecordStore[], String) started} instead.
+     * 
+     * @param stores    the local record stores that were being synced. May not be null or empty.
+     * @param sessionId a unique ID for the resumed session. Must be non-zero positive.
+     * @return <code>true</code> if the session will be resumed or <code>false</code> if it couldn't be restored or a session already exists.
+     * 
+     * @see net.cp.syncml.client.store.ResumableRecordStore
+     */
+    public synchronized boolean resumeSync(RecordStore[] stores, String sessionId)
+    {
+        //nothing more to do if a sync session is already running or there is no checkpoint to restore
+        if ( (isSyncRunning()) || (checkpointSpool == null) )
+            return false;
+        
+        //restore the session from the last checkpoint - the session is then suspended
+        Session session = new Session(this, stores, sessionId);
+        if (! session.restoreCheckpoint(checkpointSpool))
+            return false;
+        
+        //resume the restored session and start running the session
+        prepareTransport();
+        syncSession = session;
         syncSession.resumeSession(sessionId);
+        runSession();
+        return true;
+    }
+    
+    
+    /* Runs the current session using the session executor (if the transport supports it) or in a thread of its own. */
+    private void runSession()
+    {
+        if ( (sessionExecutor != null) && (syncTransport instanceof AsyncTransport) )
+        {
+            syncThread = null;
+            syncSession.runAsync(sessionExecutor);
+            return;
+        }
+        
         syncThread = new Thread(syncSession);
         syncThread.start();
-        return true;
+    }
+    
+    /* Asks the transport (if it supports it) to prepare its connection to the server in the background. */
+    private void prepareTransport()
+    {
+        if (! (syncTransport instanceof PreparableTransport))
+            return;
+        
+        try
+        {
+            ((PreparableTransport)syncTransport).prepare();
+        }
+        catch (Throwable e)
+        {
+            //the connection will simply be established when the first message is sent
+            if (syncLogger != null)
+                syncLogger.error("Failed to prepare the transport", e);
+        }
     }
 }
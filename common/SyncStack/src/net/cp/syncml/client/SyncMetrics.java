@@ -0,0 +1,433 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client;
+
+
+import java.util.Vector;
+
+
+/**
+ * A class encapsulating timing and volume metrics collected during a sync session. <br/><br/>
+ *
+ * The metrics of a session are made up of the wall time spent and the number of operations performed in
+ * each {@link #PHASE_CHANGE_DETECTION phase} of the session, along with the number of bytes, messages,
+ * chunks and retries. They are collected regardless of whether or not logging is enabled. <br/><br/>
+ *
+ * The metrics of the session as a whole also contain the metrics of each record store synced during
+ * the session (see {@link #getStoreMetrics()}). Only the phases involving a record store (i.e. change
+ * detection, record reads and applying server changes) and the number of chunks and retries are collected
+ * for a record store. <br/><br/>
+ *
+ * Note that the time spent in the encode and parse phases excludes the time spent reading or applying
+ * records while the message was being encoded or parsed. Phases performed by background threads (e.g.
+ * {@link SyncManager#setRecordPrefetch(int, long) record prefetching} or
+ * {@link SyncManager#setEarlyChangeDetection(boolean) early change detection}) overlap with the other phases,
+ * so the total time spent in all phases may exceed the duration of the session.
+ *
+ * @see SyncManager#getSyncMetrics()
+ * @see SyncListener#onSyncMetrics(SyncMetrics)
+ *
+ * @author Denis Evoy
+ */
+public class SyncMetrics
+{
+    /** The phase determining the records to be sent to the server. */
+    public static final int PHASE_CHANGE_DETECTION =    0;
+
+    /** The phase reading the data of the records to be sent to the server from the record store. */
+    public static final int PHASE_RECORD_READ =         1;
+
+    /** The phase encoding the messages sent to the server as WBXML. */
+    public static final int PHASE_ENCODE =              2;
+
+    /** The phase exchanging messages with the server (i.e. sending a message and waiting for the response). */
+    public static final int PHASE_NETWORK =             3;
+
+    /** The phase parsing the WBXML messages received from the server. */
+    public static final int PHASE_PARSE =               4;
+
+    /** The phase applying the changes received from the server to the record store. */
+    public static final int PHASE_APPLY =               5;
+
+    /** The number of phases for which metrics are collected. */
+    public static final int PHASE_COUNT =               6;
+
+
+    //the names of the phases (used when formatting the metrics)
+    private static final String[] PHASE_NAMES = { "changes", "read", "encode", "network", "parse", "apply" };
+
+
+    private String metricsName;                 //the name identifying what the metrics refer to (e.g. the client URI of a record store)
+    private SyncMetrics parentMetrics;          //the metrics to which all metrics are also added (if any)
+    private Vector storeMetrics;                //the metrics of each record store - a collection of SyncMetrics objects
+    private long startTime;                     //the time when collection of the metrics started
+    private long endTime;                       //the time when collection of the metrics ended (or 0 if it hasn't ended yet)
+    private long[] phaseTimes;                  //the time (in milliseconds) spent in each phase
+    private int[] phaseCounts;                  //the number of operations performed in each phase
+    private long bytesSent;                     //the number of bytes sent to the server (before any compression by the transport)
+    private long bytesReceived;                 //the number of bytes received from the server (after any decompression by the transport)
+    private int messagesSent;                   //the number of messages sent to the server
+    private int messagesReceived;               //the number of messages received from the server
+    private int chunksSent;                     //the number of record chunks sent to the server
+    private int chunksReceived;                 //the number of record chunks received from the server
+    private int retryCount;                     //the number of records that had to be sent to the server again
+    private long statusBytesSaved;              //the number of bytes saved by coalescing or compacting the Status commands sent to the server
+
+
+    /**
+     * Creates a new set of metrics with the specified name. <br/><br/>
+     *
+     * The collection of the metrics is considered to start immediately.
+     *
+     * @param name the name identifying what the metrics refer to. May be null.
+     */
+    public SyncMetrics(String name)
+    {
+        this(name, null);
+    }
+
+    /* Creates a new set of metrics whose values are also added to the specified metrics. */
+    private SyncMetrics(String name, SyncMetrics parent)
+    {
+        metricsName = name;
+        parentMetrics = parent;
+        storeMetrics = new Vector();
+        startTime = System.currentTimeMillis();
+        endTime = 0;
+        phaseTimes = new long[PHASE_COUNT];
+        phaseCounts = new int[PHASE_COUNT];
+    }
+
+
+    /**
+     * Returns the name of the specified phase.
+     *
+     * @param phase the phase (PHASE_XXX) whose name should be returned.
+     * @return The name of the phase. Will not be null.
+     */
+    public static String getPhaseName(int phase)
+    {
+        if ( (phase < 0) || (phase >= PHASE_COUNT) )
+            return "unknown";
+
+        return PHASE_NAMES[phase];
+    }
+
+
+    /**
+     * Creates and returns the metrics of the specified record store. <br/><br/>
+     *
+     * All values added to the returned metrics are also added to these metrics.
+     *
+     * @param clientUri the client URI of the record store. Must not be null or empty.
+     * @return The metrics of the record store. Will not be null.
+     */
+    public synchronized SyncMetrics addStoreMetrics(String clientUri)
+    {
+        if ( (clientUri == null) || (clientUri.length() <= 0) )
+            throw new IllegalArgumentException("no record store specified");
+
+        SyncMetrics metrics = new SyncMetrics(clientUri, this);
+        storeMetrics.addElement(metrics);
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics of each record store synced during the session.
+     *
+     * @return The metrics of each record store. Will not be null but may be empty.
+     */
+    public synchronized SyncMetrics[] getStoreMetrics()
+    {
+        SyncMetrics[] metrics = new SyncMetrics[ storeMetrics.size() ];
+        storeMetrics.copyInto(metrics);
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics of the specified record store.
+     *
+     * @param clientUri the client URI of the record store.
+     * @return The metrics of the record store or null if it wasn't synced during the session.
+     */
+    public synchronized SyncMetrics getStoreMetrics(String clientUri)
+    {
+        for (int i = 0; i < storeMetrics.size(); i++)
+        {
+            SyncMetrics metrics = (SyncMetrics)storeMetrics.elementAt(i);
+            if (metrics.metricsName.equals(clientUri))
+                return metrics;
+        }
+
+        return null;
+    }
+
+    /** Returns the name identifying what the metrics refer to (e.g. the client URI of a record store), or null if there is none. */
+    public String getName()
+    {
+        return metricsName;
+    }
+
+
+    /**
+     * Indicates that the collection of the metrics has ended. <br/><br/>
+     *
+     * The metrics of each record store are also considered to have ended.
+     */
+    public synchronized void end()
+    {
+        endTime = System.currentTimeMillis();
+        for (int i = 0; i < storeMetrics.size(); i++)
+            ((SyncMetrics)storeMetrics.elementAt(i)).end();
+    }
+
+    /** Returns the time (in milliseconds since the epoch) when the collection of the metrics started. */
+    public synchronized long getStartTime()
+    {
+        return startTime;
+    }
+
+    /** Returns the wall time (in milliseconds) covered by the metrics so far, or in total if the collection has ended. */
+    public synchronized long getDuration()
+    {
+        if (endTime <= 0)
+            return System.currentTimeMillis() - startTime;
+
+        return endTime - startTime;
+    }
+
+
+    /**
+     * Adds the specified time and number of operations to the specified phase.
+     *
+     * @param phase the phase (PHASE_XXX).
+     * @param time  the time (in milliseconds) spent in the phase.
+     * @param count the number of operations performed in that time.
+     */
+    public void addPhaseTime(int phase, long time, int count)
+    {
+        if ( (phase < 0) || (phase >= PHASE_COUNT) )
+            throw new IllegalArgumentException("invalid phase specified: " + phase);
+
+        synchronized (this)
+        {
+            phaseTimes[phase] += time;
+            phaseCounts[phase] += count;
+        }
+
+        if (parentMetrics != null)
+            parentMetrics.addPhaseTime(phase, time, count);
+    }
+
+    /**
+     * Returns the time (in milliseconds) spent in the specified phase.
+     *
+     * @param phase the phase (PHASE_XXX).
+     * @return The time spent in the phase or 0 if the phase is unknown.
+     */
+    public synchronized long getPhaseTime(int phase)
+    {
+        if ( (phase < 0) || (phase >= PHASE_COUNT) )
+            return 0;
+
+        return phaseTimes[phase];
+    }
+
+    /**
+     * Returns the number of operations performed in the specified phase. <br/><br/>
+     *
+     * Depending on the phase, this is the number of change detections, records read, messages encoded,
+     * messages exchanged, messages parsed or server changes applied.
+     *
+     * @param phase the phase (PHASE_XXX).
+     * @return The number of operations or 0 if the phase is unknown.
+     */
+    public synchronized int getPhaseCount(int phase)
+    {
+        if ( (phase < 0) || (phase >= PHASE_COUNT) )
+            return 0;
+
+        return phaseCounts[phase];
+    }
+
+
+    /**
+     * Records that a message of the specified size has been sent to the server.
+     *
+     * @param size the size (in bytes) of the message before any compression by the transport.
+     */
+    public void addMessageSent(long size)
+    {
+        synchronized (this)
+        {
+            messagesSent++;
+            bytesSent += size;
+        }
+
+        if (parentMetrics != null)
+            parentMetrics.addMessageSent(size);
+    }
+
+    /**
+     * Records that a message of the specified size has been received from the server.
+     *
+     * @param size the size (in bytes) of the message after any decompression by the transport.
+     */
+    public void addMessageReceived(long size)
+    {
+        synchronized (this)
+        {
+            messagesReceived++;
+            bytesReceived += size;
+        }
+
+        if (parentMetrics != null)
+            parentMetrics.addMessageReceived(size);
+    }
+
+    /** Records that a record chunk has been sent to the server. */
+    public void addChunkSent()
+    {
+        synchronized (this)
+        {
+            chunksSent++;
+        }
+
+        if (parentMetrics != null)
+            parentMetrics.addChunkSent();
+    }
+
+    /** Records that a record chunk has been received from the server. */
+    public void addChunkReceived()
+    {
+        synchronized (this)
+        {
+            chunksReceived++;
+        }
+
+        if (parentMetrics != null)
+            parentMetrics.addChunkReceived();
+    }
+
+    /** Records that a record has been sent to the server again (e.g. after the session was resumed). */
+    public void addRetry()
+    {
+        synchronized (this)
+        {
+            retryCount++;
+        }
+
+        if (parentMetrics != null)
+            parentMetrics.addRetry();
+    }
+
+    /**
+     * Records the number of bytes saved by coalescing or compacting a Status command sent to the server.
+     *
+     * @param size the number of bytes saved.
+     */
+    public void addStatusBytesSaved(long size)
+    {
+        synchronized (this)
+        {
+            statusBytesSaved += size;
+        }
+
+        if (parentMetrics != null)
+            parentMetrics.addStatusBytesSaved(size);
+    }
+
+    /** Returns the number of bytes sent to the server (before any compression by the transport). */
+    public synchronized long getBytesSent()
+    {
+        return bytesSent;
+    }
+
+    /** Returns the number of bytes received from the server (after any decompression by the transport). */
+    public synchronized long getBytesReceived()
+    {
+        return bytesReceived;
+    }
+
+    /** Returns the number of messages sent to the server. */
+    public synchronized int getMessagesSent()
+    {
+        return messagesSent;
+    }
+
+    /** Returns the number of messages received from the server. */
+    public synchronized int getMessagesReceived()
+    {
+        return messagesReceived;
+    }
+
+    /** Returns the number of record chunks (i.e. parts of records too large to fit in a single message) sent to the server. */
+    public synchronized int getChunksSent()
+    {
+        return chunksSent;
+    }
+
+    /** Returns the number of record chunks (i.e. parts of records too large to fit in a single message) received from the server. */
+    public synchronized int getChunksReceived()
+    {
+        return chunksReceived;
+    }
+
+    /** Returns the number of records that had to be sent to the server again (e.g. after the session was resumed). */
+    public synchronized int getRetryCount()
+    {
+        return retryCount;
+    }
+
+    /**
+     * Returns the number of bytes saved by coalescing the results of several items into a single Status command
+     * and by omitting item references which aren't required. <br/><br/>
+     *
+     * The saving is measured against sending a separate Status command with full item references for each item,
+     * before any saving made by WBXML string tables.
+     *
+     * @return The number of bytes saved.
+     * @see SyncManager#setCompactStatusEnabled(boolean)
+     */
+    public synchronized long getStatusBytesSaved()
+    {
+        return statusBytesSaved;
+    }
+
+
+    /**
+     * Returns the metrics (including those of each record store) formatted as a single line of text. <br/><br/>
+     *
+     * The time and number of operations of each phase are formatted as "name=time/count", e.g. "parse=120ms/4".
+     *
+     * @return The formatted metrics. Will not be null.
+     */
+    public synchronized String toString()
+    {
+        StringBuffer buffer = new StringBuffer();
+        if (metricsName != null)
+            buffer.append("'").append(metricsName).append("': ");
+
+        buffer.append("duration=").append(getDuration()).append("ms");
+        for (int i = 0; i < PHASE_COUNT; i++)
+        {
+            if (phaseCounts[i] > 0)
+                buffer.append(" ").append(PHASE_NAMES[i]).append("=").append(phaseTimes[i]).append("ms/").append(phaseCounts[i]);
+        }
+
+        if (parentMetrics == null)
+        {
+            buffer.append(" sent=").append(bytesSent).append("B/").append(messagesSent);
+            buffer.append(" received=").append(bytesReceived).append("B/").append(messagesReceived);
+            buffer.append(" statusSaved=").append(statusBytesSaved).append("B");
+        }
+        buffer.append(" chunks=").append(chunksSent).append("/").append(chunksReceived);
+        buffer.append(" retries=").append(retryCount);
+
+        for (int i = 0; i < storeMetrics.size(); i++)
+            buffer.append("; ").append(storeMetrics.elementAt(i).toString());
+
+        return buffer.toString();
+    }
+}
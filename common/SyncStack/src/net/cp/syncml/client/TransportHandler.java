@@ -0,0 +1,38 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client;
+
+
+import java.io.InputStream;
+
+
+/**
+ * An interface defining a handler which is notified of the result of an asynchronous message exchange. <br/><br/>
+ *
+ * The methods of the handler return quickly (the response is processed separately), so they may safely
+ * be called from the I/O thread of the transport.
+ *
+ * @see AsyncTransport#exchangeMessages(TransportHandler)
+ *
+ * @author Denis Evoy
+ */
+public interface TransportHandler
+{
+    /**
+     * Called when the response has been received from the SyncML server.
+     *
+     * @param inputStream the input stream from which the response can be read. Must not be null.
+     */
+    public void onResponse(InputStream inputStream);
+
+    /**
+     * Called when the message couldn't be exchanged with the SyncML server. <br/><br/>
+     *
+     * The error is handled in the same way as if it had been thrown by {@link Transport#getInputStream()}.
+     * In particular, an <code>IOException</code> will cause the session to be suspended.
+     *
+     * @param error the error that occurred. Must not be null.
+     */
+    public void onError(Throwable error);
+}
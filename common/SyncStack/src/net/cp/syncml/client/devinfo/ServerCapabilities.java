@@ -0,0 +1,191 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.devinfo;
+
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+
+/**
+ * A class representing the capabilities of a SyncML server. <br/><br/>
+ *
+ * These capabilities are taken from the device information (DevInf) sent by the server and from the
+ * meta information of the server's messages. They are cached between sessions so that record stores
+ * can plan how their records will be sent before the server has been contacted. Until the server's
+ * device information has been received, only the maximum object size is known and all the features
+ * are reported as unsupported.
+ *
+ * @see net.cp.syncml.client.store.ServerAwareRecordStore
+ *
+ * @author Denis Evoy
+ */
+public class ServerCapabilities
+{
+    private String manufacturer;                        //the manufacturer of the server (if known)
+    private String model;                               //the model of the server (if known)
+    private String softwareVersion;                     //the software version of the server (if known)
+    private boolean utcSupported;                       //indicates if the server supports UTC based time
+    private boolean largeObjectsSupported;              //indicates if the server supports handling large objects
+    private boolean numberOfChangesSupported;           //indicates if the server supports handling "NumberOfChanges" information
+    private long maxObjectSize;                         //the maximum size of an object that the server can receive (or 0 if unknown)
+    private Hashtable receivedContentTypes;             //the content types each server data store can receive, keyed by server URI - a collection of ContentType[] objects
+
+
+    /**
+     * Creates a new set of server capabilities.
+     *
+     * @param serverManufacturer        the manufacturer of the server. May be null or empty.
+     * @param serverModel               the model of the server. May be null or empty.
+     * @param serverSoftwareVersion     the software version of the server. May be null or empty.
+     * @param supportsUtc               indicates if the server supports UTC based time.
+     * @param supportsLargeObjects      indicates if the server supports handling large objects.
+     * @param supportsNumberOfChanges   indicates if the server supports handling "NumberOfChanges" information.
+     * @param maxObjSize                the maximum size (in bytes) of an object that the server can receive or 0 if unknown.
+     * @param contentTypes              the content types that each server data store can receive, as a collection of ContentType[] objects keyed by the server URI of the data store. May be null or empty.
+     */
+    public ServerCapabilities(String serverManufacturer, String serverModel, String serverSoftwareVersion, boolean supportsUtc, boolean supportsLargeObjects, boolean supportsNumberOfChanges, long maxObjSize, Hashtable contentTypes)
+    {
+        manufacturer = serverManufacturer;
+        model = serverModel;
+        softwareVersion = serverSoftwareVersion;
+        utcSupported = supportsUtc;
+        largeObjectsSupported = supportsLargeObjects;
+        numberOfChangesSupported = supportsNumberOfChanges;
+        maxObjectSize = (maxObjSize > 0) ? maxObjSize : 0;
+        receivedContentTypes = (contentTypes != null) ? contentTypes : new Hashtable();
+    }
+
+    /**
+     * Creates a copy of the specified server capabilities with the specified maximum object size.
+     *
+     * @param capabilities  the server capabilities to copy. Must not be null.
+     * @param maxObjSize    the maximum size (in bytes) of an object that the server can receive or 0 if unknown.
+     */
+    public ServerCapabilities(ServerCapabilities capabilities, long maxObjSize)
+    {
+        this(capabilities.manufacturer, capabilities.model, capabilities.softwareVersion, capabilities.utcSupported, capabilities.largeObjectsSupported, capabilities.numberOfChangesSupported, maxObjSize, capabilities.receivedContentTypes);
+    }
+
+
+    /**
+     * Returns the manufacturer of the server.
+     *
+     * @return The manufacturer of the server. May be null or empty.
+     */
+    public String getManufacturer()
+    {
+        return manufacturer;
+    }
+
+    /**
+     * Returns the model of the server.
+     *
+     * @return The model of the server. May be null or empty.
+     */
+    public String getModel()
+    {
+        return model;
+    }
+
+    /**
+     * Returns the software version of the server.
+     *
+     * @return The software version of the server. May be null or empty.
+     */
+    public String getSoftwareVersion()
+    {
+        return softwareVersion;
+    }
+
+    /**
+     * Returns whether or not the server supports UTC based time.
+     *
+     * @return <code>true</code> if the server supports UTC based time.
+     */
+    public boolean isUtcSupported()
+    {
+        return utcSupported;
+    }
+
+    /**
+     * Returns whether or not the server supports handling large objects (i.e. objects sent in multiple chunks).
+     *
+     * @return <code>true</code> if the server supports handling large objects.
+     */
+    public boolean isLargeObjectsSupported()
+    {
+        return largeObjectsSupported;
+    }
+
+    /**
+     * Returns whether or not the server supports handling "NumberOfChanges" information.
+     *
+     * @return <code>true</code> if the server supports handling "NumberOfChanges" information.
+     */
+    public boolean isNumberOfChangesSupported()
+    {
+        return numberOfChangesSupported;
+    }
+
+    /**
+     * Returns the maximum size of an object that the server can receive.
+     *
+     * @return The maximum object size (in bytes) or 0 if the server hasn't specified a limit.
+     */
+    public long getMaxObjectSize()
+    {
+        return maxObjectSize;
+    }
+
+    /**
+     * Returns the server URIs of the data stores described by the server.
+     *
+     * @return The server URIs of the data stores. Will not be null but may be empty.
+     */
+    public String[] getServerURIs()
+    {
+        String[] serverUris = new String[ receivedContentTypes.size() ];
+        int index = 0;
+        for (Enumeration e = receivedContentTypes.keys(); e.hasMoreElements(); )
+            serverUris[index++] = (String)e.nextElement();
+
+        return serverUris;
+    }
+
+    /**
+     * Returns the content types that the specified server data store can receive.
+     *
+     * @param serverUri the server URI of the data store. Must not be null or empty.
+     * @return The content types that the data store can receive or null if the data store wasn't described by the server.
+     */
+    public ContentType[] getContentTypes(String serverUri)
+    {
+        return (ContentType[])receivedContentTypes.get(serverUri);
+    }
+
+    /**
+     * Returns whether or not the specified server data store can receive the specified content type. <br/><br/>
+     *
+     * If the server didn't describe the data store, it is assumed that the content type is supported.
+     *
+     * @param serverUri     the server URI of the data store. Must not be null or empty.
+     * @param contentType   the content type to check. Must not be null.
+     * @return <code>true</code> if the data store can (or may be able to) receive the content type.
+     */
+    public boolean isContentTypeSupported(String serverUri, ContentType contentType)
+    {
+        ContentType[] contentTypes = getContentTypes(serverUri);
+        if (contentTypes == null)
+            return true;
+
+        for (int i = 0; i < contentTypes.length; i++)
+        {
+            if (contentTypes[i].equals(contentType))
+                return true;
+        }
+
+        return false;
+    }
+}
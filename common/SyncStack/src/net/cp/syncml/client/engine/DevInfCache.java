@@ -0,0 +1,432 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.engine;
+
+
+import java.io.*;
+import java.util.*;
+
+import net.cp.syncml.client.devinfo.ContentType;
+import net.cp.syncml.client.devinfo.ServerCapabilities;
+import net.cp.syncml.client.util.DataSpool;
+import net.cp.syncml.client.util.Logger;
+
+
+/**
+ * A class caching the device information exchanged with each server between sessions. <br/><br/>
+ *
+ * For each server (identified by its URI), the cache holds a hash of the last client device information
+ * acknowledged by the server (along with the account it was sent for, as the server may keep the device
+ * information of each account separately), whether the server's device information has been requested and the server
+ * capabilities (if known). This allows the client to skip sending its device information when the server
+ * already has it, and allows record stores to know the server capabilities before the server is contacted.
+ * <br/><br/>
+ *
+ * The cache is held in the specified {@link DataSpool} and only holds the details of the last few servers used.
+ *
+ * @author Denis Evoy
+ */
+public class DevInfCache
+{
+    //the maximum number of servers held in the cache
+    private static final int MAX_ENTRIES =      4;
+
+    //the format of the cache
+    private static final int CACHE_MAGIC =      0x44564E46;
+    private static final int CACHE_VERSION =    2;
+
+    //the parameters of the FNV-1a hash used to identify the client device information
+    private static final long FNV_OFFSET =      0xCBF29CE484222325L;
+    private static final long FNV_PRIME =       0x100000001B3L;
+
+    private static final String LOG_PREFIX =    "DevInfCache: ";
+
+
+    private DataSpool cacheSpool;               //the storage in which the cache is held
+    private Logger log;                         //the logger used to log activity (if any)
+    private Vector entries;                     //the cached details of each server, most recently used first - a collection of CacheEntry objects
+    private boolean loaded;                     //indicates whether or not the cache has been read from the storage
+    private boolean modified;                   //indicates whether or not the cache has changed since it was read or saved
+
+
+    /**
+     * Creates a new cache held in the specified storage.
+     *
+     * @param spool     the storage in which the cache is held. Must not be null.
+     * @param logger    the logger used to log activity. May be null.
+     */
+    public DevInfCache(DataSpool spool, Logger logger)
+    {
+        if (spool == null)
+            throw new IllegalArgumentException("no cache storage specified");
+
+        cacheSpool = spool;
+        log = logger;
+        entries = new Vector();
+    }
+
+
+    /**
+     * Returns the hash identifying the specified device information.
+     *
+     * @param devinfData the device information in WBXML format. Must not be null.
+     * @return The hash of the device information. Will not be 0.
+     */
+    public static long getHash(byte[] devinfData)
+    {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < devinfData.length; i++)
+        {
+            hash ^= (devinfData[i] & 0xFF);
+            hash *= FNV_PRIME;
+        }
+
+        //0 is reserved to indicate that no hash is known
+        return (hash != 0) ? hash : 1;
+    }
+
+
+    /**
+     * Returns the hash of the last client device information acknowledged by the specified server for the specified account.
+     *
+     * @param serverUri the URI of the server. Must not be null or empty.
+     * @param username  the username of the account. May be null or empty.
+     * @return The hash of the client device information or 0 if the server hasn't acknowledged any for the account.
+     */
+    public synchronized long getDevinfHash(String serverUri, String username)
+    {
+        CacheEntry entry = getEntry(serverUri, false);
+        if ( (entry == null) || (! isSameString(entry.devinfUsername, username)) )
+            return 0;
+
+        return entry.devinfHash;
+    }
+
+    /**
+     * Sets the hash of the last client device information acknowledged by the specified server for the specified account.
+     *
+     * @param serverUri the URI of the server. Must not be null or empty.
+     * @param username  the username of the account. May be null or empty.
+     * @param hash      the hash of the client device information (see {@link #getHash(byte[])}) or 0 if unknown.
+     */
+    public synchronized void setDevinfHash(String serverUri, String username, long hash)
+    {
+        CacheEntry entry = getEntry(serverUri, true);
+        if ( (entry.devinfHash == hash) && (isSameString(entry.devinfUsername, username)) )
+            return;
+
+        entry.devinfHash = hash;
+        entry.devinfUsername = ( (username != null) && (username.length() > 0) ) ? username : null;
+        modified = true;
+    }
+
+    /**
+     * Returns whether or not the device information of the specified server has already been requested.
+     *
+     * @param serverUri the URI of the server. Must not be null or empty.
+     * @return <code>true</code> if the server's device information has been requested.
+     */
+    public synchronized boolean isServerDevinfRequested(String serverUri)
+    {
+        CacheEntry entry = getEntry(serverUri, false);
+        return ( (entry != null) && (entry.serverDevinfRequested) );
+    }
+
+    /**
+     * Indicates that the device information of the specified server has been requested. <br/><br/>
+     *
+     * This prevents the device information being requested in every session from servers which don't provide it.
+     *
+     * @param serverUri the URI of the server. Must not be null or empty.
+     */
+    public synchronized void setServerDevinfRequested(String serverUri)
+    {
+        CacheEntry entry = getEntry(serverUri, true);
+        if (entry.serverDevinfRequested)
+            return;
+
+        entry.serverDevinfRequested = true;
+        modified = true;
+    }
+
+    /**
+     * Returns the capabilities of the specified server.
+     *
+     * @param serverUri the URI of the server. Must not be null or empty.
+     * @return The capabilities of the server or null if they aren't known.
+     */
+    public synchronized ServerCapabilities getServerCapabilities(String serverUri)
+    {
+        CacheEntry entry = getEntry(serverUri, false);
+        return (entry != null) ? entry.capabilities : null;
+    }
+
+    /**
+     * Sets the capabilities of the specified server.
+     *
+     * @param serverUri     the URI of the server. Must not be null or empty.
+     * @param capabilities  the capabilities of the server. Must not be null.
+     */
+    public synchronized void setServerCapabilities(String serverUri, ServerCapabilities capabilities)
+    {
+        CacheEntry entry = getEntry(serverUri, true);
+        entry.capabilities = capabilities;
+        modified = true;
+    }
+
+
+    /**
+     * Reads the cache from the storage (if it hasn't already been read). <br/><br/>
+     *
+     * The cache is empty if it can't be read (e.g. it has never been saved).
+     */
+    public synchronized void load()
+    {
+        if (loaded)
+            return;
+
+        loaded = true;
+        entries.removeAllElements();
+        DataInputStream inputStream = null;
+        try
+        {
+            inputStream = new DataInputStream( cacheSpool.openInputStream() );
+            if ( (inputStream.readInt() != CACHE_MAGIC) || (inputStream.readInt() != CACHE_VERSION) )
+                throw new IOException("unknown cache format");
+
+            for (int count = inputStream.readInt(); count > 0; count--)
+            {
+                CacheEntry entry = new CacheEntry(inputStream.readUTF());
+                entry.devinfHash = inputStream.readLong();
+                entry.devinfUsername = readString(inputStream);
+                entry.serverDevinfRequested = inputStream.readBoolean();
+                if (inputStream.readBoolean())
+                    entry.capabilities = readCapabilities(inputStream);
+                entries.addElement(entry);
+            }
+
+            if (inputStream.readInt() != CACHE_MAGIC)
+                throw new IOException("cache is incomplete");
+
+            if (log != null)
+                log.debug(LOG_PREFIX + "Read the cached device information of " + entries.size() + " servers");
+        }
+        catch (IOException e)
+        {
+            //this is expected if the cache has never been saved
+            if (log != null)
+                log.info(LOG_PREFIX + "No valid device information cache (" + e.getMessage() + ") - starting with an empty cache");
+            entries.removeAllElements();
+        }
+        finally
+        {
+            if (inputStream != null)
+            {
+                try
+                {
+                    inputStream.close();
+                }
+                catch (IOException e)
+                {
+                    //ignore
+                }
+            }
+        }
+
+        modified = false;
+    }
+
+    /**
+     * Writes the cache to the storage (if it has changed since it was read or last saved).
+     */
+    public synchronized void save()
+    {
+        if (! modified)
+            return;
+
+        DataOutputStream outputStream = null;
+        try
+        {
+            outputStream = new DataOutputStream( cacheSpool.openOutputStream() );
+            outputStream.writeInt(CACHE_MAGIC);
+            outputStream.writeInt(CACHE_VERSION);
+            outputStream.writeInt(entries.size());
+            for (int i = 0; i < entries.size(); i++)
+            {
+                CacheEntry entry = (CacheEntry)entries.elementAt(i);
+                outputStream.writeUTF(entry.serverUri);
+                outputStream.writeLong(entry.devinfHash);
+                writeString(outputStream, entry.devinfUsername);
+                outputStream.writeBoolean(entry.serverDevinfRequested);
+                outputStream.writeBoolean(entry.capabilities != null);
+                if (entry.capabilities != null)
+                    writeCapabilities(outputStream, entry.capabilities);
+            }
+
+            //finish with the magic number again so that an incomplete cache can be detected
+            outputStream.writeInt(CACHE_MAGIC);
+            outputStream.close();
+            outputStream = null;
+            modified = false;
+
+            if (log != null)
+                log.debug(LOG_PREFIX + "Saved the cached device information of " + entries.size() + " servers");
+        }
+        catch (IOException e)
+        {
+            //the cache is only an optimization - the device information will simply be exchanged again
+            if (log != null)
+                log.error(LOG_PREFIX + "Failed to save the device information cache - discarding cache", e);
+            cacheSpool.delete();
+        }
+        finally
+        {
+            if (outputStream != null)
+            {
+                try
+                {
+                    outputStream.close();
+                }
+                catch (IOException e)
+                {
+                    //ignore
+                }
+            }
+        }
+    }
+
+
+    /* Returns the cache entry of the specified server, creating it if required - the entry becomes the most recently used. */
+    private CacheEntry getEntry(String serverUri, boolean create)
+    {
+        load();
+
+        for (int i = 0; i < entries.size(); i++)
+        {
+            CacheEntry entry = (CacheEntry)entries.elementAt(i);
+            if (! entry.serverUri.equals(serverUri))
+                continue;
+
+            if (i > 0)
+            {
+                entries.removeElementAt(i);
+                entries.insertElementAt(entry, 0);
+            }
+            return entry;
+        }
+
+        if (! create)
+            return null;
+
+        //make room for the new entry by discarding the least recently used server
+        CacheEntry entry = new CacheEntry(serverUri);
+        entries.insertElementAt(entry, 0);
+        if (entries.size() > MAX_ENTRIES)
+            entries.removeElementAt(entries.size() - 1);
+        modified = true;
+        return entry;
+    }
+
+    /* Writes the specified server capabilities to the specified stream. */
+    private static void writeCapabilities(DataOutputStream outputStream, ServerCapabilities capabilities)
+        throws IOException
+    {
+        writeString(outputStream, capabilities.getManufacturer());
+        writeString(outputStream, capabilities.getModel());
+        writeString(outputStream, capabilities.getSoftwareVersion());
+        outputStream.writeBoolean(capabilities.isUtcSupported());
+        outputStream.writeBoolean(capabilities.isLargeObjectsSupported());
+        outputStream.writeBoolean(capabilities.isNumberOfChangesSupported());
+        outputStream.writeLong(capabilities.getMaxObjectSize());
+
+        //write the content types each data store can receive
+        String[] serverUris = capabilities.getServerURIs();
+        outputStream.writeInt(serverUris.length);
+        for (int i = 0; i < serverUris.length; i++)
+        {
+            ContentType[] contentTypes = capabilities.getContentTypes(serverUris[i]);
+            outputStream.writeUTF(serverUris[i]);
+            outputStream.writeInt(contentTypes.length);
+            for (int j = 0; j < contentTypes.length; j++)
+            {
+                outputStream.writeUTF(contentTypes[j].getMainType());
+                outputStream.writeUTF(contentTypes[j].getSubType());
+                writeString(outputStream, contentTypes[j].getVersion());
+            }
+        }
+    }
+
+    /* Reads server capabilities from the specified stream. */
+    private static ServerCapabilities readCapabilities(DataInputStream inputStream)
+        throws IOException
+    {
+        String manufacturer = readString(inputStream);
+        String model = readString(inputStream);
+        String softwareVersion = readString(inputStream);
+        boolean utc = inputStream.readBoolean();
+        boolean largeObjects = inputStream.readBoolean();
+        boolean numberOfChanges = inputStream.readBoolean();
+        long maxObjSize = inputStream.readLong();
+
+        //read the content types each data store can receive
+        Hashtable storeContentTypes = new Hashtable();
+        for (int count = inputStream.readInt(); count > 0; count--)
+        {
+            String serverUri = inputStream.readUTF();
+            ContentType[] contentTypes = new ContentType[ inputStream.readInt() ];
+            for (int i = 0; i < contentTypes.length; i++)
+                contentTypes[i] = new ContentType(inputStream.readUTF(), inputStream.readUTF(), readString(inputStream));
+            storeContentTypes.put(serverUri, contentTypes);
+        }
+
+        return new ServerCapabilities(manufacturer, model, softwareVersion, utc, largeObjects, numberOfChanges, maxObjSize, storeContentTypes);
+    }
+
+    /* Writes the specified string (which may be null) to the specified stream. */
+    private static void writeString(DataOutputStream outputStream, String value)
+        throws IOException
+    {
+        outputStream.writeBoolean(value != null);
+        if (value != null)
+            outputStream.writeUTF(value);
+    }
+
+    /* Reads a string (which may be null) from the specified stream. */
+    private static String readString(DataInputStream inputStream)
+        throws IOException
+    {
+        if (! inputStream.readBoolean())
+            return null;
+
+        return inputStream.readUTF();
+    }
+
+    /* Returns TRUE if the specified strings are the same, treating null and empty strings as the same. */
+    private static boolean isSameString(String value1, String value2)
+    {
+        if ( (value1 == null) || (value1.length() <= 0) )
+            return ( (value2 == null) || (value2.length() <= 0) );
+
+        return value1.equals(value2);
+    }
+
+
+    /**
+     * A class representing the cached device information of a server.
+     */
+    private static class CacheEntry
+    {
+        private String serverUri;                   //the URI of the server
+        private long devinfHash;                    //the hash of the last client device information acknowledged by the server (or 0 if none)
+        private String devinfUsername;              //the username of the account the client device information was acknowledged for (or null if none)
+        private boolean serverDevinfRequested;      //indicates whether or not the server's device information has been requested
+        private ServerCapabilities capabilities;    //the capabilities of the server (or null if unknown)
+
+
+        private CacheEntry(String uri)
+        {
+            serverUri = uri;
+        }
+    }
+}
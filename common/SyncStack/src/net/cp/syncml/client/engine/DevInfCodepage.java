@@ -5,6 +5,7 @@ package net.cp.syncml.client.engine;
 
 
 import java.io.*;
+import java.util.*;
 
 import net.cp.syncml.client.devinfo.*;
 import net.cp.syncml.client.store.*;
@@ -15,7 +16,9 @@ import net.cp.syncml.client.util.wbxml.*;
 /**
  * A class defining a WBXML codepage for SyncML DevInf.
  * 
- * This codepage conforms with SyncML DevInf versions 1.1 and 1.2.
+ * This codepage conforms with SyncML DevInf versions 1.1 and 1.2. It is used to write the device 
+ * information of the client and to read the capabilities of the server from the device information 
+ * sent by the server (see {@link #parseDevinf(byte[])}).
  *
  * @author Denis Evoy
  */
@@ -90,6 +93,18 @@ public class DevInfCodepage extends Codepage
     private static final byte TAG_FIELD_LEVEL =                0x33;
     private static final byte TAG_SUPPORT_HIERARCH_SYNC =      0x34;
 
+    //the state of the device information being parsed
+    private String inManufacturer;                              //the manufacturer of the server
+    private String inModel;                                     //the model of the server
+    private String inSoftwareVersion;                           //the software version of the server
+    private boolean inUtc;                                      //indicates if the server supports UTC based time
+    private boolean inLargeObjects;                             //indicates if the server supports handling large objects
+    private boolean inNumberOfChanges;                          //indicates if the server supports handling "NumberOfChanges" information
+    private Hashtable inContentTypes;                           //the content types each server data store can receive, keyed by server URI - a collection of ContentType[] objects
+    private String inStoreUri;                                  //the server URI of the data store being parsed
+    private Vector inStoreContentTypes;                         //the content types the data store being parsed can receive - a collection of ContentType objects
+    private int inContentTypeIndex;                             //the index in "inStoreContentTypes" of the last content type parsed (or -1 if none)
+
     private static final String[] TAG_NAMES =                  { "CTCap", "CTType", "DataStore", "DataType", "DevId", "DevInf", "DevTyp", "DisplayName", "DSMem", "Ext", "FwV", "HwV", "Man", "MaxGuidSize", "MaxId", "MaxMem", "Mod", "OEM", "ParamName", "PropName", "Rx", "Rx-Pref", "SharedMem", "Size", "SourceRef", "SwV", "SyncCap", "SyncType", "Tx", "Tx-Pref", "ValEnum", "VerCt", "VerDtd", "XNam", "XVal", "UTC", "SupportNumberOfChanges", "SupportLargeObjs", "Property", "PropParam", "MaxOccur", "NoTruncate", "Reserved", "Filter-Rx", "FilterCap", "FilterKeyword", "FieldLevel", "SupportHierarchicalSync" };
 
     
@@ -110,6 +125,127 @@ public class DevInfCodepage extends Codepage
     }
     
     
+    /**
+     * Returns the server capabilities described by the specified device information in WBXML format. <br/><br/>
+     * 
+     * Only the details relevant to the client are read (manufacturer, model, software version, supported 
+     * features and the content types each data store can receive) - everything else is ignored. The maximum 
+     * object size isn't part of the device information, so it isn't specified in the returned capabilities.
+     * 
+     * @param devinfData    the device information sent by the server. Must not be null.
+     * @return The server capabilities described by the device information. Will not be null.
+     * @throws IOException      if the device information couldn't be read.
+     * @throws WbxmlException   if the device information isn't valid WBXML.
+     */
+    public ServerCapabilities parseDevinf(byte[] devinfData)
+        throws WbxmlException, IOException
+    {
+        if (log != null)
+            log.info("Parsing server device information from WBXML opaque data");
+        
+        inManufacturer = null;
+        inModel = null;
+        inSoftwareVersion = null;
+        inUtc = false;
+        inLargeObjects = false;
+        inNumberOfChanges = false;
+        inContentTypes = new Hashtable();
+        inStoreUri = null;
+        inStoreContentTypes = new Vector();
+        inContentTypeIndex = -1;
+        
+        Wbxml.parse(new ByteArrayInputStream(devinfData), new Codepage[] { this });
+        
+        ServerCapabilities capabilities = new ServerCapabilities(inManufacturer, inModel, inSoftwareVersion, inUtc, inLargeObjects, inNumberOfChanges, 0, inContentTypes);
+        inContentTypes = null;
+        inStoreContentTypes = null;
+        return capabilities;
+    }
+    
+    public void onTagStart(int tagId, boolean hasContent) 
+        throws WbxmlException
+    {
+        super.onTagStart(tagId, hasContent);
+
+        if (tagId == TAG_DATASTORE)
+        {
+            //start a new data store
+            inStoreUri = null;
+            inStoreContentTypes.removeAllElements();
+            inContentTypeIndex = -1;
+        }
+        else if (tagId == TAG_UTC)
+        {
+            inUtc = true;
+        }
+        else if (tagId == TAG_SUPPORT_LARGE_OBJECTS)
+        {
+            inLargeObjects = true;
+        }
+        else if (tagId == TAG_SUPPORT_NUMBER_OF_CHANGES)
+        {
+            inNumberOfChanges = true;
+        }
+    }
+    
+    public void onTagEnd(int tagId)
+        throws WbxmlException
+    {
+        super.onTagEnd(tagId);
+
+        //note the content types the data store can receive
+        if ( (tagId == TAG_DATASTORE) && (inStoreUri != null) )
+        {
+            ContentType[] contentTypes = new ContentType[ inStoreContentTypes.size() ];
+            inStoreContentTypes.copyInto(contentTypes);
+            inContentTypes.put(inStoreUri, contentTypes);
+        }
+    }
+    
+    public void onStringData(int tagId, String data) 
+        throws WbxmlException
+    {
+        super.onStringData(tagId, data);
+        
+        int parentId = getParentId();
+        if (parentId == TAG_DEV_INF)
+        {
+            if (tagId == TAG_MANUFACTURER)
+                inManufacturer = data;
+            else if (tagId == TAG_MODEL)
+                inModel = data;
+            else if (tagId == TAG_SW_VERSION)
+                inSoftwareVersion = data;
+        }
+        else if ( (parentId == TAG_DATASTORE) && (tagId == TAG_SOURCE_REF) )
+        {
+            //set the server URI of the data store
+            inStoreUri = data;
+        }
+        else if ( (parentId == TAG_RX) || (parentId == TAG_RX_PREF) )
+        {
+            if ( (tagId == TAG_CT_TYPE) && (ContentType.isValidContentType(data)) )
+            {
+                //add the content type (ignoring duplicates)
+                ContentType contentType = new ContentType(data);
+                inContentTypeIndex = inStoreContentTypes.indexOf(contentType);
+                if (inContentTypeIndex < 0)
+                {
+                    inStoreContentTypes.addElement(contentType);
+                    inContentTypeIndex = inStoreContentTypes.size() - 1;
+                }
+            }
+            else if ( (tagId == TAG_VER_CT) && (inContentTypeIndex >= 0) )
+            {
+                //set the version of the last content type (if not already known)
+                ContentType contentType = (ContentType)inStoreContentTypes.elementAt(inContentTypeIndex);
+                if (contentType.getVersion() == null)
+                    inStoreContentTypes.setElementAt(new ContentType(contentType.getMainType(), contentType.getSubType(), data), inContentTypeIndex);
+            }
+        }
+    }
+    
+    
     /**
      * Returns the specified device information in WBXML format.
      * 
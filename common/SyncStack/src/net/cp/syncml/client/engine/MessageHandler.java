@@ -0,0 +1,53 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.engine;
+
+
+/**
+ * An interface defining a handler which is notified of the contents of a SyncML message as it is parsed. <br/><br/>
+ *
+ * The handler is used by the {@link SyncMLCodepage} and is normally the {@link Session} which receives the
+ * messages sent by the server.
+ *
+ * @author Denis Evoy
+ */
+public interface MessageHandler
+{
+    /**
+     * Called when the end of a SyncML package (i.e. the <code>Final</code> element) has been parsed.
+     */
+    public void onSyncPkgEnd();
+
+    /**
+     * Called when the SyncML header of the message has been parsed.
+     *
+     * @param header the header of the message. Will not be null.
+     */
+    public void onSyncHeader(SyncHdr header);
+
+    /**
+     * Called when a Status command has been parsed.
+     *
+     * @param status the Status command. Will not be null.
+     */
+    public void onSyncStatus(Status status);
+
+    /**
+     * Called when a command has been parsed. <br/><br/>
+     *
+     * In the case of commands that can contain child commands (Atomic, Sequence and Sync), this method is
+     * called before the child commands are parsed and {@link #onSyncCommandEnd(Cmd)} is called once they
+     * have all been parsed.
+     *
+     * @param command the command. Will not be null.
+     */
+    public void onSyncCommand(Cmd command);
+
+    /**
+     * Called when all the child commands of a command (Atomic, Sequence and Sync) have been parsed.
+     *
+     * @param command the command. Will not be null.
+     */
+    public void onSyncCommandEnd(Cmd command);
+}
@@ -0,0 +1,300 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.engine;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Vector;
+
+import net.cp.syncml.client.util.Logger;
+import net.cp.syncml.client.util.wbxml.Codepage;
+import net.cp.syncml.client.util.wbxml.Wbxml;
+import net.cp.syncml.client.util.wbxml.WbxmlException;
+
+
+/**
+ * A class which parses SyncML messages in the background while the parsed commands are being processed. <br/><br/>
+ *
+ * When a message is parsed using {@link #parse(InputStream, Codepage[])}, a parser thread reads and decodes the
+ * message and places each parsed element (header, status, command, etc) on a bounded queue. The calling thread
+ * takes the elements from the queue and passes them to the wrapped handler in the order in which they were parsed,
+ * so the handler is only ever called from the calling thread and sees exactly the same sequence of calls as if the
+ * message had been parsed directly. This allows the network read and decoding of the message to overlap with the
+ * (possibly expensive) processing of the commands already parsed. <br/><br/>
+ *
+ * The codepages used to parse the message must be created with the pipeline as their {@link MessageHandler}.
+ * The parser thread stops once the specified number of parsed elements are waiting to be processed and continues
+ * once the handler has caught up. If an error occurs while parsing, the elements parsed before the error are still
+ * processed before the error is thrown to the caller. If the handler throws an exception, the parser thread is
+ * stopped the next time it tries to queue an element.
+ *
+ * @author Denis Evoy
+ */
+public class MessagePipeline implements MessageHandler
+{
+    //the types of elements which can be queued
+    private static final int ELEMENT_PKG_END =          1;
+    private static final int ELEMENT_HEADER =           2;
+    private static final int ELEMENT_STATUS =           3;
+    private static final int ELEMENT_COMMAND =          4;
+    private static final int ELEMENT_COMMAND_END =      5;
+    private static final int ELEMENT_MSG_END =          6;
+
+
+    private MessageHandler msgHandler;          //the handler to notify of the contents of parsed messages (normally the session)
+    private int maxElements;                    //the maximum number of parsed elements to hold
+    private Logger log;                         //the logger to use (if any)
+
+    private Vector queue;                       //the parsed elements waiting to be processed - a collection of QueuedElement objects
+    private boolean aborted;                    //indicates whether or not the parser thread should stop
+    private Throwable parseError;               //the error that occurred while parsing the message (if any)
+    private int maxQueued;                      //the largest number of elements that were waiting to be processed at any time
+
+
+    /**
+     * Creates a new pipeline which notifies the specified handler of the contents of parsed messages.
+     *
+     * @param handler   the handler to notify of the contents of parsed messages. Must not be null.
+     * @param capacity  the maximum number of parsed elements waiting to be processed. Must be positive.
+     * @param logger    the logger to use. May be null.
+     */
+    public MessagePipeline(MessageHandler handler, int capacity, Logger logger)
+    {
+        if (handler == null)
+            throw new IllegalArgumentException("no message handler specified");
+        if (capacity <= 0)
+            throw new IllegalArgumentException("invalid pipeline capacity specified: " + capacity);
+
+        msgHandler = handler;
+        maxElements = capacity;
+        log = logger;
+        queue = new Vector();
+    }
+
+
+    /**
+     * Parses the WBXML message read from the specified input stream using a parser thread and notifies the handler
+     * of its contents from the calling thread. <br/><br/>
+     *
+     * This method doesn't return until the whole message has been parsed and processed (or an error occurs).
+     *
+     * @param inputStream   the input stream to read the message from. Must not be null.
+     * @param codepages     the codepages used to parse the message, created with this pipeline as their handler. Must not be null or empty.
+     * @throws WbxmlException if an error is found while parsing.
+     * @throws IOException  if the input stream could not be read.
+     */
+    public void parse(final InputStream inputStream, final Codepage[] codepages)
+        throws WbxmlException, IOException
+    {
+        if (inputStream == null)
+            throw new IllegalArgumentException("no input stream specified");
+        if ( (codepages == null) || (codepages.length <= 0) )
+            throw new IllegalArgumentException("no codepages specified");
+
+        synchronized (this)
+        {
+            queue.removeAllElements();
+            aborted = false;
+            parseError = null;
+            maxQueued = 0;
+        }
+
+        Thread parser = new Thread()
+        {
+            public void run()
+            {
+                parseMessage(inputStream, codepages);
+            }
+        };
+        parser.start();
+
+        boolean finished = false;
+        try
+        {
+            //process the parsed elements in order until the end of the message (or an error) is reached
+            while (true)
+            {
+                QueuedElement element = take();
+                if (element.type == ELEMENT_MSG_END)
+                    break;
+
+                dispatch(element);
+            }
+            finished = true;
+        }
+        finally
+        {
+            //make sure the parser thread stops if the message couldn't be processed
+            if (! finished)
+                abort();
+        }
+
+        //the parser thread has nothing left to do once the end of the message has been queued
+        try
+        {
+            parser.join();
+        }
+        catch (InterruptedException e)
+        {
+            //ignore
+        }
+
+        if (log != null)
+            log.debug("MessagePipeline: at most " + maxQueued + " parsed elements were waiting to be processed");
+
+        //report any parsing error once all the elements parsed before it have been processed
+        if (parseError instanceof WbxmlException)
+            throw (WbxmlException)parseError;
+        if (parseError instanceof IOException)
+            throw (IOException)parseError;
+        if (parseError instanceof RuntimeException)
+            throw (RuntimeException)parseError;
+        if (parseError instanceof Error)
+            throw (Error)parseError;
+        if (parseError != null)
+            throw new WbxmlException("failed to parse message", parseError);
+    }
+
+
+    public void onSyncPkgEnd()
+    {
+        put(ELEMENT_PKG_END, null);
+    }
+
+    public void onSyncHeader(SyncHdr header)
+    {
+        put(ELEMENT_HEADER, header);
+    }
+
+    public void onSyncStatus(Status status)
+    {
+        put(ELEMENT_STATUS, status);
+    }
+
+    public void onSyncCommand(Cmd command)
+    {
+        put(ELEMENT_COMMAND, command);
+    }
+
+    public void onSyncCommandEnd(Cmd command)
+    {
+        put(ELEMENT_COMMAND_END, command);
+    }
+
+
+    /* Parses the message from the specified input stream and queues the end of the message (called by the parser thread). */
+    private void parseMessage(InputStream inputStream, Codepage[] codepages)
+    {
+        Throwable error = null;
+        try
+        {
+            Wbxml.parse(inputStream, codepages);
+        }
+        catch (Throwable e)
+        {
+            error = e;
+        }
+
+        synchronized (this)
+        {
+            //nothing more to do if the session has stopped processing the message
+            if (aborted)
+                return;
+
+            parseError = error;
+            queue.addElement( new QueuedElement(ELEMENT_MSG_END, null) );
+            notifyAll();
+        }
+    }
+
+    /* Queues the specified parsed element, waiting until there is room in the queue if necessary (called by the parser thread). */
+    private synchronized void put(int type, Object value)
+    {
+        while ( (! aborted) && (queue.size() >= maxElements) )
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                //ignore
+            }
+        }
+
+        //stop parsing if the session has stopped processing the message
+        if (aborted)
+            throw new IllegalStateException("message processing has been aborted");
+
+        queue.addElement( new QueuedElement(type, value) );
+        if (queue.size() > maxQueued)
+            maxQueued = queue.size();
+        notifyAll();
+    }
+
+    /* Returns the next parsed element, waiting until it has been parsed if necessary. */
+    private synchronized QueuedElement take()
+    {
+        while (queue.size() <= 0)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                //ignore
+            }
+        }
+
+        QueuedElement element = (QueuedElement)queue.elementAt(0);
+        queue.removeElementAt(0);
+        notifyAll();
+        return element;
+    }
+
+    /* Stops the parser thread and discards any elements which haven't been processed. */
+    private synchronized void abort()
+    {
+        aborted = true;
+        queue.removeAllElements();
+        notifyAll();
+
+        if (log != null)
+            log.debug("MessagePipeline: message processing aborted - stopping parser");
+    }
+
+    /* Passes the specified parsed element to the handler. */
+    private void dispatch(QueuedElement element)
+    {
+        if (element.type == ELEMENT_PKG_END)
+            msgHandler.onSyncPkgEnd();
+        else if (element.type == ELEMENT_HEADER)
+            msgHandler.onSyncHeader( (SyncHdr)element.value );
+        else if (element.type == ELEMENT_STATUS)
+            msgHandler.onSyncStatus( (Status)element.value );
+        else if (element.type == ELEMENT_COMMAND)
+            msgHandler.onSyncCommand( (Cmd)element.value );
+        else if (element.type == ELEMENT_COMMAND_END)
+            msgHandler.onSyncCommandEnd( (Cmd)element.value );
+    }
+
+
+    /**
+     * A class representing a parsed element waiting to be processed.
+     */
+    private static class QueuedElement
+    {
+        private int type;                       //the type of element (one of the ELEMENT_XXX constants)
+        private Object value;                   //the parsed header, status or command (if any)
+
+
+        private QueuedElement(int elementType, Object elementValue)
+        {
+            type = elementType;
+            value = elementValue;
+        }
+    }
+}
@@ -63,7 +63,7 @@ public class MetInfCodepage extends Codepage
      * @param logger  the logger used to log activity. 
      * @param session the session in which the codepage will be used.
      */
-    public MetInfCodepage(Logger logger, Session session)
+    public MetInfCodepage(Logger logger, MessageHandler session)
     {
         super(logger);
         
@@ -198,13 +198,13 @@ public class MetInfCodepage extends Codepage
         inDataStream.reset();            
     }
     
-    public void onOpaqueData(int tagId, byte[] data, int length) 
+    public void onOpaqueData(int tagId, byte[] data, int offset, int length) 
         throws WbxmlException
     {
-        super.onOpaqueData(tagId, data, length);
+        logOpaqueData(length);
 
         //store the data of the item
-        inDataStream.write(data, 0, length);
+        inDataStream.write(data, offset, length);
     }
 
     public void onOpaqueDataEnd(int tagId, boolean commit) 
@@ -0,0 +1,172 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.engine;
+
+
+/**
+ * A class which adapts the maximum message size to the measured performance of the network. <br/><br/>
+ *
+ * After each message exchange, the round-trip time and throughput (in bytes per second) of the exchange
+ * are used to determine the message size which could be exchanged in roughly {@link #TARGET_EXCHANGE_TIME}
+ * milliseconds. The message size is grown towards that size if the exchange made use of most of the current
+ * message size, and shrunk towards it if the exchange took longer than the target time. The size changes by
+ * at most a factor of 2 per exchange and always stays within the configured bounds and the limit imposed by
+ * the server (if any).
+ *
+ * @author Denis Evoy
+ */
+public class MsgSizeController
+{
+    /** The time (in milliseconds) that each message exchange should take. */
+    public static final long TARGET_EXCHANGE_TIME = 3000;
+
+    //the percentage of the message size that must be used by an exchange before the size is grown
+    private static final int GROW_FILL_PERCENT =    75;
+
+    //the granularity of the message size
+    private static final int SIZE_GRANULARITY =     1024;
+
+
+    private long minSize;                       //the smallest allowed message size
+    private long maxSize;                       //the largest allowed message size
+    private long serverLimit;                   //the largest message size accepted by the server (or 0 if unknown)
+    private long currentSize;                   //the current message size (before the server limit is applied)
+    private long lastRoundTripTime;             //the round-trip time (in milliseconds) of the last exchange
+    private long lastThroughput;                //the throughput (in bytes per second) of the last exchange
+
+
+    /**
+     * Creates a new controller starting with the specified message size.
+     *
+     * @param initialSize   the initial message size. Must be positive.
+     * @param min           the smallest allowed message size. Must be positive.
+     * @param max           the largest allowed message size. Must not be less than <code>min</code>.
+     */
+    public MsgSizeController(long initialSize, long min, long max)
+    {
+        if (min <= 0)
+            throw new IllegalArgumentException("invalid minimum message size specified: " + min);
+        if (max < min)
+            throw new IllegalArgumentException("invalid maximum message size specified: " + max);
+
+        minSize = min;
+        maxSize = max;
+        setMsgSize(initialSize);
+    }
+
+
+    /**
+     * Returns the message size to use, taking any limit imposed by the server into account.
+     *
+     * @return The message size to use.
+     */
+    public long getMsgSize()
+    {
+        if ( (serverLimit > 0) && (serverLimit < currentSize) )
+            return serverLimit;
+
+        return currentSize;
+    }
+
+    /**
+     * Sets the message size to use (within the configured bounds).
+     *
+     * @param size the message size to use.
+     */
+    public void setMsgSize(long size)
+    {
+        currentSize = clamp(size);
+    }
+
+    /**
+     * Sets the largest message size accepted by the server.
+     *
+     * @param limit the largest message size accepted by the server or 0 if there is no limit.
+     */
+    public void setServerLimit(long limit)
+    {
+        serverLimit = limit;
+    }
+
+    /**
+     * Returns the round-trip time of the last message exchange.
+     *
+     * @return The round-trip time (in milliseconds) or 0 if no exchange has been measured.
+     */
+    public long getLastRoundTripTime()
+    {
+        return lastRoundTripTime;
+    }
+
+    /**
+     * Returns the throughput of the last message exchange.
+     *
+     * @return The throughput (in bytes per second) or 0 if no exchange has been measured.
+     */
+    public long getLastThroughput()
+    {
+        return lastThroughput;
+    }
+
+
+    /**
+     * Adapts the message size based on the specified measurements of a completed message exchange.
+     *
+     * @param bytesSent     the size of the message sent.
+     * @param bytesReceived the size of the message received.
+     * @param roundTripTime the time (in milliseconds) between starting to send the message and receiving the response.
+     * @return <code>true</code> if the message size to use has changed.
+     */
+    public boolean onExchange(long bytesSent, long bytesReceived, long roundTripTime)
+    {
+        if (roundTripTime <= 0)
+            roundTripTime = 1;
+
+        lastRoundTripTime = roundTripTime;
+        lastThroughput = ((bytesSent + bytesReceived) * 1000) / roundTripTime;
+
+        //determine the size of message which could be exchanged in the target time
+        long idealSize = (lastThroughput * TARGET_EXCHANGE_TIME) / 1000;
+        long oldSize = getMsgSize();
+        if (idealSize > currentSize)
+        {
+            //small exchanges are dominated by latency, so only grow if most of the current size was used
+            long usedSize = Math.max(bytesSent, bytesReceived);
+            if ((usedSize * 100) >= (oldSize * GROW_FILL_PERCENT))
+                currentSize = clamp(Math.min(idealSize, currentSize * 2));
+        }
+        else if ( (idealSize < currentSize) && (roundTripTime > TARGET_EXCHANGE_TIME) )
+        {
+            currentSize = clamp(Math.max(idealSize, currentSize / 2));
+        }
+
+        return (getMsgSize() != oldSize);
+    }
+
+    /**
+     * Shrinks the message size following a failed message exchange (e.g. due to a timeout).
+     *
+     * @return <code>true</code> if the message size to use has changed.
+     */
+    public boolean onExchangeFailed()
+    {
+        long oldSize = getMsgSize();
+        currentSize = clamp(currentSize / 2);
+
+        return (getMsgSize() != oldSize);
+    }
+
+
+    /* Returns the specified size rounded to the size granularity and limited to the configured bounds. */
+    private long clamp(long size)
+    {
+        size = (size / SIZE_GRANULARITY) * SIZE_GRANULARITY;
+        if (size < minSize)
+            return minSize;
+        if (size > maxSize)
+            return maxSize;
+
+        return size;
+    }
+}
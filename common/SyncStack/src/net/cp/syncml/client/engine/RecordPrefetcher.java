@@ -0,0 +1,391 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.engine;
+
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import net.cp.syncml.client.SyncMetrics;
+import net.cp.syncml.client.devinfo.ContentType;
+import net.cp.syncml.client.store.*;
+import net.cp.syncml.client.util.*;
+
+
+/**
+ * A class which prepares the records to be sent to the server in the background. <br/><br/>
+ *
+ * The specified number of producer threads consume records from the specified stack and read
+ * the data of each record (which may be expensive, e.g. when the data must be encoded) into memory,
+ * so that the records are ready to be sent by the time the session needs them. This allows the
+ * records to be prepared while the session is waiting for the server to respond. <br/><br/>
+ *
+ * The records are returned by {@link #consume()} in the order in which they were consumed from
+ * the stack. The amount of record data held in memory is bounded by the specified limit - the
+ * producers stop preparing records once the limit is reached and continue once the session has
+ * consumed enough of the prepared records. Records whose data is larger than the limit are not
+ * read in advance (only their data size is determined). <br/><br/>
+ *
+ * The time spent consuming and reading the records is added to the {@link SyncMetrics#PHASE_RECORD_READ record read}
+ * phase of the specified metrics (if any). Note that the stack is only accessed by the producer threads once the
+ * prefetcher has been created.
+ *
+ * @author Denis Evoy
+ */
+public class RecordPrefetcher
+{
+    //the number of bytes each prepared record is considered to occupy (in addition to its data)
+    private static final int RECORD_OVERHEAD =  256;
+
+
+    private ConsumableStack records;            //the stack from which records are consumed
+    private long maxBytes;                      //the maximum number of bytes of prepared records to hold
+    private SyncMetrics metrics;                //the metrics to which the time spent preparing records is added (if any)
+    private Logger log;                         //the logger to use (if any)
+
+    private Hashtable readyRecords;             //the prepared records (sequence number -> PrefetchedRecord)
+    private int consumeSeq;                     //the sequence number of the next record to be consumed from the stack
+    private int takeSeq;                        //the sequence number of the next record to be returned to the session
+    private long readyBytes;                    //the number of bytes occupied by the prepared records
+    private int preparingCount;                 //the number of records currently being prepared by the producer threads
+    private boolean exhausted;                  //indicates whether or not the stack has run out of records
+    private boolean closed;                     //indicates whether or not the prefetcher has been closed
+    private long prefetchCount;                 //the number of records whose data was read in advance
+
+
+    /**
+     * Creates a new prefetcher which consumes records from the specified stack and starts its producer threads.
+     *
+     * @param stack         the stack containing the records to prepare. Must not be null.
+     * @param threadCount   the number of producer threads to use. Must be positive.
+     * @param limit         the maximum number of bytes of prepared records to hold in memory. Must be positive.
+     * @param syncMetrics   the metrics to which the time spent preparing records should be added. May be null.
+     * @param logger        the logger to use. May be null.
+     */
+    public RecordPrefetcher(ConsumableStack stack, int threadCount, long limit, SyncMetrics syncMetrics, Logger logger)
+    {
+        if (stack == null)
+            throw new IllegalArgumentException("no record stack specified");
+        if (threadCount <= 0)
+            throw new IllegalArgumentException("invalid thread count specified: " + threadCount);
+        if (limit <= 0)
+            throw new IllegalArgumentException("invalid prefetch limit specified: " + limit);
+
+        records = stack;
+        maxBytes = limit;
+        metrics = syncMetrics;
+        log = logger;
+        readyRecords = new Hashtable();
+
+        for (int i = 0; i < threadCount; i++)
+        {
+            Thread producer = new Thread()
+            {
+                public void run()
+                {
+                    produceRecords();
+                }
+            };
+            producer.start();
+        }
+    }
+
+
+    /**
+     * Returns whether or not there are more records to be returned.
+     *
+     * @return <code>true</code> if all records have been returned (or the prefetcher has been closed).
+     */
+    public synchronized boolean empty()
+    {
+        if (closed)
+            return true;
+
+        return ( (takeSeq == consumeSeq) && ((exhausted) || (records.empty())) );
+    }
+
+    /**
+     * Returns the next record, waiting until it has been prepared if necessary. <br/><br/>
+     *
+     * If an error occurred while the record was being prepared, the error is thrown when
+     * the data size or data of the returned record is requested.
+     *
+     * @return The next record or null if there are no more records.
+     */
+    public synchronized Record consume()
+    {
+        while (! closed)
+        {
+            Integer key = new Integer(takeSeq);
+            PrefetchedRecord record = (PrefetchedRecord)readyRecords.remove(key);
+            if (record != null)
+            {
+                takeSeq++;
+                readyBytes -= record.getFootprint();
+                notifyAll();
+                return record;
+            }
+
+            if ( (takeSeq == consumeSeq) && ((exhausted) || (records.empty())) )
+                return null;
+
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                //ignore
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Stops the producer threads and releases any records which have been prepared but not returned. <br/><br/>
+     *
+     * Waits until the records which are still being prepared have been released by their producer threads,
+     * so that the record store is no longer used by the producer threads once this method returns.
+     */
+    public synchronized void close()
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        for (Enumeration e = readyRecords.elements(); e.hasMoreElements(); )
+            ((Record)e.nextElement()).close();
+        readyRecords.clear();
+        readyBytes = 0;
+        notifyAll();
+
+        while (preparingCount > 0)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                //ignore
+            }
+        }
+
+        if (log != null)
+            log.debug("RecordPrefetcher: closed after reading the data of " + prefetchCount + " records in advance");
+    }
+
+
+    /* Consumes records from the stack and prepares them until there are no more records or the prefetcher is closed. */
+    private void produceRecords()
+    {
+        while (true)
+        {
+            Record record = null;
+            int seq = 0;
+            long readStart = 0;
+            synchronized (this)
+            {
+                //wait until there is room for more prepared records
+                while ( (! closed) && (readyBytes >= maxBytes) )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        //ignore
+                    }
+                }
+
+                if ( (closed) || (exhausted) || (records.empty()) )
+                    return;
+
+                //the stack may still run out of records even though it isn't empty
+                readStart = System.currentTimeMillis();
+                try
+                {
+                    record = (Record)records.consume();
+                }
+                catch (Throwable e)
+                {
+                    if (log != null)
+                        log.error("RecordPrefetcher: failed to consume the next record - no more records will be prepared", e);
+                }
+                if (record == null)
+                {
+                    exhausted = true;
+                    notifyAll();
+                    return;
+                }
+                seq = consumeSeq++;
+                preparingCount++;
+            }
+
+            //prepare the record outside the lock so that other producers (and the session) aren't blocked
+            PrefetchedRecord prepared = prepareRecord(record);
+            if (metrics != null)
+                metrics.addPhaseTime(SyncMetrics.PHASE_RECORD_READ, System.currentTimeMillis() - readStart, 1);
+
+            synchronized (this)
+            {
+                preparingCount--;
+                if (closed)
+                {
+                    prepared.close();
+                    notifyAll();
+                    return;
+                }
+
+                readyRecords.put(new Integer(seq), prepared);
+                readyBytes += prepared.getFootprint();
+                notifyAll();
+            }
+        }
+    }
+
+    /* Reads the data size and (if it's within the limit) the data of the specified record. */
+    private PrefetchedRecord prepareRecord(Record record)
+    {
+        PrefetchedRecord prepared = new PrefetchedRecord(record);
+        try
+        {
+            //only records whose content is sent to the server need their data prepared
+            int changeType = record.getChangeType();
+            if ( (changeType > 0) && (changeType != Record.CHANGE_TYPE_ADD) && (changeType != Record.CHANGE_TYPE_REPLACE) && (! record.isFieldLevelReplace()) )
+                return prepared;
+
+            prepared.dataSize = record.getDataSize();
+            if ( (prepared.dataSize <= 0) || (prepared.dataSize > maxBytes) )
+                return prepared;
+
+            //read all the data of the record
+            byte[] data = new byte[(int)prepared.dataSize];
+            if (record.getData(data, 0, data.length) != data.length)
+                throw new StoreException("unexpected data size while reading record '" + record.getLocalId() + "'");
+            prepared.data = data;
+
+            synchronized (this)
+            {
+                prefetchCount++;
+            }
+        }
+        catch (StoreException e)
+        {
+            prepared.error = e;
+        }
+        catch (Throwable e)
+        {
+            prepared.error = new StoreException("failed to prepare record '" + record.getLocalId() + "'", e);
+        }
+
+        return prepared;
+    }
+
+
+    /**
+     * A class wrapping a record whose data has been read in advance.
+     */
+    private static class PrefetchedRecord implements Record
+    {
+        private Record record;                  //the wrapped record
+        private long dataSize;                  //the data size of the record (or -1 if not yet determined)
+        private byte[] data;                    //the data of the record (or null if it wasn't read in advance)
+        private int dataPos;                    //the position of the next byte of data to be returned
+        private StoreException error;           //the error that occurred while preparing the record (if any)
+
+
+        private PrefetchedRecord(Record wrappedRecord)
+        {
+            record = wrappedRecord;
+            dataSize = -1;
+        }
+
+
+        /* Returns the number of bytes the record is considered to occupy. */
+        private long getFootprint()
+        {
+            if (data == null)
+                return RECORD_OVERHEAD;
+
+            return RECORD_OVERHEAD + data.length;
+        }
+
+        public void close()
+        {
+            data = null;
+            record.close();
+        }
+
+        public RecordStore getRecordStore()
+        {
+            return record.getRecordStore();
+        }
+
+        public String getLocalId()
+        {
+            return record.getLocalId();
+        }
+
+        public String getParentId()
+        {
+            return record.getParentId();
+        }
+
+        public String getTargetId()
+        {
+            return record.getTargetId();
+        }
+
+        public String getTargetParentId()
+        {
+            return record.getTargetParentId();
+        }
+
+        public ContentType getContentType()
+        {
+            return record.getContentType();
+        }
+
+        public int getChangeType()
+        {
+            return record.getChangeType();
+        }
+
+        public boolean isFieldLevelReplace()
+        {
+            return record.isFieldLevelReplace();
+        }
+
+        public long getDataSize()
+            throws StoreException
+        {
+            if (error != null)
+                throw error;
+
+            if (dataSize < 0)
+                dataSize = record.getDataSize();
+
+            return dataSize;
+        }
+
+        public int getData(byte[] buffer, int offset, int length)
+            throws StoreException
+        {
+            if (error != null)
+                throw error;
+
+            //read directly from the record if its data wasn't read in advance
+            if (data == null)
+                return record.getData(buffer, offset, length);
+
+            int readCount = Math.min(length, data.length - dataPos);
+            System.arraycopy(data, dataPos, buffer, offset, readCount);
+            dataPos += readCount;
+            return readCount;
+        }
+    }
+}
@@ -11,21 +11,34 @@ import android.util.Log;
 
 import net.cp.mtk.common.CommonUtils;
 import net.cp.mtk.common.security.MD5;
+import net.cp.syncml.client.AsyncTransport;
+import net.cp.syncml.client.RedirectableTransport;
 import net.cp.syncml.client.SyncException;
 import net.cp.syncml.client.SyncManager;
+import net.cp.syncml.client.SyncMetrics;
 import net.cp.syncml.client.SyncML;
 import net.cp.syncml.client.Transport;
+import net.cp.syncml.client.TransportHandler;
 import net.cp.syncml.client.devinfo.ContentType;
+import net.cp.syncml.client.devinfo.ServerCapabilities;
 import net.cp.syncml.client.store.AlreadyExistsException;
+import net.cp.syncml.client.store.BatchRecordStore;
 import net.cp.syncml.client.store.NoSuchRecordException;
 import net.cp.syncml.client.store.Record;
 import net.cp.syncml.client.store.RecordStore;
+import net.cp.syncml.client.store.RecordUpdate;
+import net.cp.syncml.client.store.ResumableRecordStore;
+import net.cp.syncml.client.store.ServerAwareRecordStore;
 import net.cp.syncml.client.store.StoreException;
 import net.cp.syncml.client.util.ConsumableStack;
+import net.cp.syncml.client.util.CountingInputStream;
 import net.cp.syncml.client.util.CountingOutputStream;
+import net.cp.syncml.client.util.DataSpool;
 import net.cp.syncml.client.util.Logger;
+import net.cp.syncml.client.util.TaskExecutor;
 import net.cp.syncml.client.util.wbxml.Wbxml;
 import net.cp.syncml.client.util.wbxml.WbxmlException;
+import net.cp.syncml.client.util.wbxml.WbxmlWriter;
 import net.cp.syncml.client.util.wbxml.Codepage;
 
 
@@ -38,7 +51,7 @@ import net.cp.syncml.client.util.wbxml.Codepage;
  *
  * @author Denis Evoy
  */
-public class Session implements Runnable
+public class Session implements Runnable, MessageHandler
 {
     /* A class containing any session state associated with a particular record store. */
     private static class RecordStoreState
@@ -48,14 +61,24 @@ public class Session implements Runnable
         public boolean sessionSuccess;                  //indicates if the sync session was a success for the record store
         public int sessionStatusCode;                   //the status code indicating the result of the session for the record store
         public String sessionStatusData;                //any additional status data indicating the result of the session for the record store
-        public Hashtable outStatusCmds;                 //the status of commands that the client has processed for the record store - a collection of Status objects
-        public Hashtable outLocalIds;                   //the local IDs of records that the client has added - a collection of String objects
+        public Hashtable outItemResults;                //the results of the items processed by the client that the server may still resend - a collection of ItemResult objects
         public Cmd outSyncCmd;                          //the Sync command that was sent to the server
+        public ConsumableStack detectedRecords;         //the records to be sent to the server found by the early change detection (if any)
+        public ConsumableStack outRecords;              //the records to be sent to the server
+        public RecordPrefetcher outPrefetcher;          //the prefetcher preparing the records to be sent to the server in the background (if any)
+        public Vector outDeferredRecords;               //the records skipped as they didn't fit in the message being built, to be sent first in the next message - a collection of Record objects
+        public Record outRecord;                        //the record to be sent to the server (possibly in multiple chunks)
+        public long outChunkedBytesSent;                //the number of bytes of the current record that have been sent to the server
+        public long outChunkedDataHash;                 //the hash of the data of the current record that has been sent to the server
+        public boolean outUpdatesSent;                  //indicates if all the client updates of the record store have been sent
+        public boolean detectedAllRecords;              //indicates if "detectedRecords" contains all records rather than only the changed records
+        public SyncMetrics metrics;                     //the metrics collected for the record store during the session
 
         
         public RecordStoreState(RecordStore recordStore)
         {
             store = recordStore;
+            outDeferredRecords = new Vector();
             resetState();
         }
         
@@ -64,9 +87,122 @@ public class Session implements Runnable
             sessionSuccess = true;
             sessionStatusCode = 0;
             sessionStatusData = null;
-            outStatusCmds = new Hashtable();
-            outLocalIds = new Hashtable();
+            outItemResults = new Hashtable();
             outSyncCmd = null;
+            detectedRecords = null;
+            detectedAllRecords = false;
+            outUpdatesSent = false;
+        }
+    }
+    
+    /* A class containing the result of an item processed by the client (in case the server resends the item after a suspend/resume). */
+    private static class ItemResult
+    {
+        public String command;                          //the name of the command which carried the item (e.g. Add, Replace, etc)
+        public int statusCode;                          //the status code returned for the item
+        public String localId;                          //the local ID of the record that was added for the item (if any)
+        public int messageId;                           //the ID of the message carrying the status of the item to the server
+        
+        
+        public ItemResult(String cmd, int code, String id, int msgId)
+        {
+            command = cmd;
+            statusCode = code;
+            localId = ( (id != null) && (id.length() > 0) ) ? id : null;
+            messageId = msgId;
+        }
+    }
+    
+    /* A class containing an update received from the server which is waiting to be applied to the active record store as part of a batch. */
+    private static class BatchEntry
+    {
+        public Cmd command;                             //the command carrying the update
+        public SyncItem item;                           //the item of the command
+        public RecordUpdate update;                     //the update to apply to the record store
+        public Status status;                           //the status returned for the command (set once the batch has been applied)
+        public String localId;                          //the local ID of the record that was added for the update (if any)
+        
+        
+        public BatchEntry(Cmd cmd, SyncItem cmdItem, RecordUpdate recordUpdate, Status cmdStatus)
+        {
+            command = cmd;
+            item = cmdItem;
+            update = recordUpdate;
+            status = cmdStatus;
+        }
+    }
+    
+    /* A class wrapping a record which has been modified while it was being sent, so that it's sent again from the start with the original change type. */
+    private static class RestartedRecord implements Record
+    {
+        private Record record;                          //the wrapped record (retrieved from the store again)
+        private int changeType;                         //the change type of the update that was originally sent
+        private boolean fieldLevelReplace;              //indicates if the update that was originally sent replaced only part of the record
+        
+        
+        public RestartedRecord(Record wrappedRecord, int recordChangeType, boolean recordFieldLevelReplace)
+        {
+            record = wrappedRecord;
+            changeType = recordChangeType;
+            fieldLevelReplace = recordFieldLevelReplace;
+        }
+        
+        
+        public void close()
+        {
+            record.close();
+        }
+        
+        public RecordStore getRecordStore()
+        {
+            return record.getRecordStore();
+        }
+        
+        public String getLocalId()
+        {
+            return record.getLocalId();
+        }
+        
+        public String getParentId()
+        {
+            return record.getParentId();
+        }
+        
+        public String getTargetId()
+        {
+            return record.getTargetId();
+        }
+        
+        public String getTargetParentId()
+        {
+            return record.getTargetParentId();
+        }
+        
+        public ContentType getContentType()
+        {
+            return record.getContentType();
+        }
+        
+        public int getChangeType()
+        {
+            return changeType;
+        }
+        
+        public boolean isFieldLevelReplace()
+        {
+            return fieldLevelReplace;
+        }
+        
+        public long getDataSize()
+            throws StoreException
+        {
+            return record.getDataSize();
+        }
+        
+        public int getData(byte[] buffer, int offset, int length)
+            throws StoreException
+        {
+            return record.getData(buffer, offset, length);
         }
     }
     
@@ -84,17 +220,36 @@ public class Session implements Runnable
     
     //The prefix used when logging session activity
     private static final String LOG_PREFIX =         "SESSION: ";
+    
+    //The initial size of the buffer used to hold the data of outgoing items
+    private static final int DATA_BUFFER_SIZE =      4096;
+    
+    //The parameters of the FNV-1a hash used to detect records modified while being sent in chunks
+    private static final long DATA_HASH_OFFSET =     0xCBF29CE484222325L;
+    private static final long DATA_HASH_PRIME =      0x100000001B3L;
+    
+    //The possible outcomes of adding the client updates of a record store to a message
+    private static final int UPDATES_SENT =          1;
+    private static final int UPDATES_YIELDED =       2;
+    private static final int UPDATES_MSG_FULL =      3;
+    
+    //The values identifying a session checkpoint and the version of its format
+    private static final int CHECKPOINT_MAGIC =      0x53594E43;
+    private static final int CHECKPOINT_VERSION =    2;
 
     
     //data provided by the application when creating the session
     private SyncManager syncManager;            //the manager controlling the session
     private RecordStore[] syncStores;           //the collection of stores that are to be synced during the session
     private String sessionId;                   //the unique ID of the current session
+    private String responseUri;                 //the URI to which the rest of the session's messages are sent (or null if they are sent to the target URI)
     private Logger log;                         //the logger used to log activity
+    private TaskExecutor sessionExecutor;       //the executor running the session when the transport is used asynchronously (if any)
     
     //session state information
     private int sessionState;                   //the current state of the sync session
     private long maxMsgSize;                    //maximum allowed message size
+    private MsgSizeController msgSizeController; //the controller adapting the maximum message size to the network performance (if any)
     private boolean stopSession;                //indicates if the sync session should be stopped
     private boolean sessionStopped;             //indicates if the sync session is currently stopped
     private int sessionStatusCode;              //the status code indicating the result of the session
@@ -105,6 +260,14 @@ public class Session implements Runnable
     private boolean sessionResumed;             //indicates if the sync session has been resumed
     private int suspendedSessionState;          //the state of the sync session when it was suspended
     private RecordStoreState[] storeStates;     //the collection of sync session states - one for each record store 
+    private DataSpool checkpointSpool;          //the storage in which session checkpoints are saved (if any)
+    private boolean detectChangesEarly;         //indicates if the records to be sent should be determined while waiting for the server's initialization package
+    private boolean changeDetectionStarted;     //indicates if the early change detection has already been started
+    private Thread changeDetectionThread;       //the thread determining the records to be sent in the background (if any)
+    private SyncMetrics sessionMetrics;         //the timing and volume metrics collected during the session
+    private long nestedPhaseTime;               //the total time spent reading or applying records while encoding or parsing messages
+    private DevInfCache devinfCache;            //the cache of the device information exchanged with each server (if any)
+    private ServerCapabilities serverCapabilities; //the capabilities of the server (if known)
     
     //state information used when receiving messages from the server
     private SyncHdr inSyncHeader;               //the Sync header from the last message received
@@ -113,20 +276,39 @@ public class Session implements Runnable
     private Chal inServerChal;                  //the server layer authentication challenge received in the last message
     private SyncItem inChunkedItem;             //the last item chunk received
     private RecordStoreState inActiveStore;     //the record store last referred to in a Status or Sync command
+    private Vector inBatchEntries;              //the updates waiting to be applied to the active record store as a batch - a collection of BatchEntry objects
     
     //state information used when sending messages to the server
     private int outMessageId;                   //the ID of the message that is to be sent to the server
     private int outCommandId;                   //the ID of the command that is to be sent to the server
+    private long outMessageSize;                //the size of the last message sent to the server (before any compression by the transport)
     private Chal outClientChal;                 //the server layer authentication challenge sent to the server
+    private long outDevinfHash;                 //the hash of the device information sent to the server that hasn't been acknowledged yet (or 0 if none)
     private Vector outStatusCmds;               //the status of commands that the client has processed - a collection of Status objects
     private Vector outReplyCmds;                //the reply to any commands that the client has processed (only those that require a reply) - a collection of Cmd objects
-    private Vector outPendingUpdateCmds;        //the client update commands that were sent to the server and haven't been acknowledged yet - a collection of Cmd objects
+    private Hashtable outPendingUpdateCmds;     //the client update commands that were sent to the server and haven't been acknowledged yet, keyed by message/command ID - a collection of Cmd objects
+    private int outPendingDataCount;            //the number of pending client update commands that still hold their data (i.e. it can't be retrieved from the store again)
     private Cmd outMapCmd;                      //the Map command that is to be sent to the server
+    private Vector outResumedMapCmds;           //the Map commands that are to be sent to the server once the session has been resumed - a collection of Cmd objects
     private int outClientAuthCount;             //the number of times the client has attempted to authenticate with the server
-    private RecordStoreState outStoreState;     //the record store state whose changes are to be sent to the server
-    private ConsumableStack outRecords;         //the records to be sent to the server
-    private Record outRecord;                   //the record to be sent to the server (possibly in multiple chunks)
-    private long outChunkedBytesSent;           //the number of bytes of the current record that have been sent to the server
+    private int outPrefetchThreads;             //the number of threads to use when preparing records in the background (or 0 if disabled)
+    private long outPrefetchLimit;              //the maximum number of bytes of records to prepare in advance
+    private int outPackingWindow;               //the maximum number of records that may be skipped to fill a message (or 0 if records are always sent in order)
+    private int outScheduling;                  //the policy used to decide how the record stores share the space in each message containing client updates
+    private int outScheduleStart;               //the number of messages containing client updates built so far (used to rotate the store which goes first)
+    private int outUpdateMsgCount;              //the number of messages containing client updates that have been sent
+    private int outUpdateChunkCount;            //the number of client update chunks that have been sent
+    private long outUpdateMsgBytes;             //the total size of the messages containing client updates
+    private long outUpdateMsgCapacity;          //the total maximum size of the messages containing client updates
+    private byte[] outDataBuffer;               //the buffer holding the data of the client update items being sent
+    private int outDataBufferPos;               //the position in the buffer where the data of the next item will be placed
+    private WbxmlWriter outWriter;              //the writer used to encode outgoing messages
+    private boolean outCompactStatus;           //indicates if Status commands should omit item references which aren't required
+    private int inPipelineSize;                 //the maximum number of parsed commands waiting to be processed (or 0 if messages are parsed on the session thread)
+    private RecordStoreState outRestoredChunkStore; //the record store whose record was being sent in chunks when the session was restored from a checkpoint
+    private String outRestoredChunkId;          //the local ID of the record that was being sent in chunks when the session was restored
+    private long outRestoredChunkSize;          //the data size of the record that was being sent in chunks when the session was restored
+    private long outRestoredChunkBytesSent;     //the number of bytes of that record that the server had accepted
     
 
     /**
@@ -150,9 +332,15 @@ public class Session implements Runnable
         sessionId = id;
         log = manager.getSyncLogger();
         
+        sessionMetrics = new SyncMetrics(id);
         storeStates = new Session.RecordStoreState[ stores.length ];
         for (int i = 0; i < stores.length; i++)
+        {
             storeStates[i] = new Session.RecordStoreState(stores[i]);
+            storeStates[i].metrics = sessionMetrics.addStoreMetrics(stores[i].getClientURI());
+        }
+        
+        outWriter = new WbxmlWriter();
     }
 
     
@@ -165,10 +353,19 @@ public class Session implements Runnable
         
         try
         {
-            //parse the WBXML response using the SyncML codepages
-            MetInfCodepage cpMetinf = new MetInfCodepage(log, this);
-            SyncMLCodepage cpSyncml = new SyncMLCodepage(log, this, cpMetinf);
-            Wbxml.parse(inputStream, new Codepage[] { cpSyncml, cpMetinf } );
+            //parse the WBXML response using the SyncML codepages - if enabled, the response is parsed in the 
+            //background and the parsed commands are passed back to this thread in order to be processed 
+            MessagePipeline pipeline = null;
+            MessageHandler handler = this;
+            if (inPipelineSize > 0)
+                handler = pipeline = new MessagePipeline(this, inPipelineSize, log);
+            MetInfCodepage cpMetinf = new MetInfCodepage(log, handler);
+            SyncMLCodepage cpSyncml = new SyncMLCodepage(log, handler, cpMetinf);
+            Codepage[] codepages = new Codepage[] { cpSyncml, cpMetinf };
+            if (pipeline != null)
+                pipeline.parse(inputStream, codepages);
+            else
+                Wbxml.parse(inputStream, codepages);
         }
         catch (WbxmlException e)
         {
@@ -230,15 +427,34 @@ public class Session implements Runnable
             return;
         }
         
+        //send the rest of the session's messages to the response URI (if any) specified by the server
+        if ( (header.responseUri != null) && (header.responseUri.length() > 0) )
+            setResponseUri(header.responseUri);
+        
         //handle any meta information
         if (header.metinf != null)
         {
             //handle the max message size
-            if ( (header.metinf.maxMsgSize > 0) && (header.metinf.maxMsgSize < maxMsgSize) )
+            if (msgSizeController != null)
+            {
+                msgSizeController.setServerLimit(header.metinf.maxMsgSize);
+                maxMsgSize = msgSizeController.getMsgSize();
+            }
+            else if ( (header.metinf.maxMsgSize > 0) && (header.metinf.maxMsgSize < maxMsgSize) )
                 maxMsgSize = header.metinf.maxMsgSize;
             if(log!= null)
             	log.debug(LOG_PREFIX + "SyncML Maximum message size is: " + maxMsgSize);
             
+            //handle the max object size (if it has changed)
+            long maxObjSize = header.metinf.maxObjSize;
+            if ( (maxObjSize > 0) && ( (serverCapabilities == null) || (serverCapabilities.getMaxObjectSize() != maxObjSize) ) )
+            {
+                if (serverCapabilities != null)
+                    setServerCapabilities( new ServerCapabilities(serverCapabilities, maxObjSize) );
+                else
+                    setServerCapabilities( new ServerCapabilities(null, null, null, false, false, false, maxObjSize, null) );
+            }
+            
             //handle any EMI extensions
             if ( (header.metinf.emiExtensions != null) && (header.metinf.emiExtensions.size() > 0) )
             {
@@ -568,6 +784,27 @@ public class Session implements Runnable
                 return;
             }
         }
+        else if (origCmd.equals(Cmd.CMD_PUT))
+        {
+            //remember that the server has our Devinf so that it isn't sent again until it changes
+            if ( (outDevinfHash != 0) && (SyncML.isSuccessStatus(statusCode)) )
+            {
+                devinfCache.setDevinfHash(syncManager.getTransport().getTargetURI(), syncManager.getAuthUsername(), outDevinfHash);
+                devinfCache.save();
+            }
+            outDevinfHash = 0;
+        }
+        else if (origCmd.equals(Cmd.CMD_GET))
+        {
+            //the server Devinf (if any) is returned in a Results command - either way, don't ask for it again
+            if ( (devinfCache != null) && (statusCode != SyncML.STATUS_INVALID_CREDENTIALS) && (statusCode != SyncML.STATUS_MISSING_CREDENTIALS) )
+            {
+                if ( (! SyncML.isSuccessStatus(statusCode)) && (log != null) )
+                    log.warn(LOG_PREFIX + "Server rejected request for its device information");
+                devinfCache.setServerDevinfRequested(syncManager.getTransport().getTargetURI());
+                devinfCache.save();
+            }
+        }
     }    
 
     /* Processes the SyncML command received from the server. */
@@ -576,14 +813,40 @@ public class Session implements Runnable
         if (log != null)
             log.info(LOG_PREFIX + "Received '" + command.command + "' command from the server");
 
+        //commands carrying several items are processed one item at a time
+        if ( (command.items != null) && (command.items.size() > 1) && (isItemCommand(command)) )
+        {
+            doMultiItemCmd(command);
+            return;
+        }
+        
+        //set the status to return for the command
+        addOutgoingStatus(command, doCommand(command));
+    }
+    
+    /* Processes the specified SyncML command received from the server, returning its status. */
+    private Status doCommand(Cmd command)
+    {
+        //any updates waiting to be applied as a batch must be applied before other commands are processed
+        if ( (! command.command.equals(Cmd.CMD_ADD)) && (! command.command.equals(Cmd.CMD_REPLACE)) && (! command.command.equals(Cmd.CMD_DELETE)) )
+            applyBatch();
+        
         Status status = null;
         if (command.command.equals(Cmd.CMD_ADD))
         {
+            long applyStart = System.currentTimeMillis();
+            boolean chunkPending = (inChunkedItem != null);
             status = doAddCmd(command);
             
-            //do not notify intermediate chunks
-            if (status.statusCode != SyncML.STATUS_DATA_CHUNK_ACCEPTED)
-            	syncManager.getSyncListener().onAddRequest(status.statusCode);
+            //the result of an update applied as part of a batch is only known once the batch has been applied
+            if (! isBatched(status))
+            {
+                addApplyTime(status, applyStart, chunkPending);
+                
+                //do not notify intermediate chunks
+                if (status.statusCode != SyncML.STATUS_DATA_CHUNK_ACCEPTED)
+                	syncManager.getSyncListener().onAddRequest(status.statusCode);
+            }
         }
         else if (command.command.equals(Cmd.CMD_ALERT))
         {
@@ -591,13 +854,20 @@ public class Session implements Runnable
         }
         else if (command.command.equals(Cmd.CMD_COPY))
         {
+            long applyStart = System.currentTimeMillis();
             status = doCopyCmd(command);
+            addApplyTime(status, applyStart, false);
             syncManager.getSyncListener().onCopyRequest(status.statusCode);
         }
         else if (command.command.equals(Cmd.CMD_DELETE))
         {
+            long applyStart = System.currentTimeMillis();
             status = doDeleteCmd(command);
-            syncManager.getSyncListener().onDeleteRequest(status.statusCode);
+            if (! isBatched(status))
+            {
+                addApplyTime(status, applyStart, false);
+                syncManager.getSyncListener().onDeleteRequest(status.statusCode);
+            }
         }
         else if (command.command.equals(Cmd.CMD_GET))
         {
@@ -611,20 +881,32 @@ public class Session implements Runnable
         }
         else if (command.command.equals(Cmd.CMD_MOVE))
         {
+            long applyStart = System.currentTimeMillis();
             status = doMoveCmd(command);
+            addApplyTime(status, applyStart, false);
             syncManager.getSyncListener().onMoveRequest(status.statusCode);
         }
         else if (command.command.equals(Cmd.CMD_PUT))
         {
             status = doPutCmd(command);
         }
+        else if (command.command.equals(Cmd.CMD_RESULTS))
+        {
+            status = doResultsCmd(command);
+        }
         else if (command.command.equals(Cmd.CMD_REPLACE))
         {
+            long applyStart = System.currentTimeMillis();
+            boolean chunkPending = (inChunkedItem != null);
             status = doReplaceCmd(command);
-            
-            //do not notify intermediate chunks
-            if (status.statusCode != SyncML.STATUS_DATA_CHUNK_ACCEPTED)
-            	syncManager.getSyncListener().onReplaceRequest(status.statusCode);
+            if (! isBatched(status))
+            {
+                addApplyTime(status, applyStart, chunkPending);
+                
+                //do not notify intermediate chunks
+                if (status.statusCode != SyncML.STATUS_DATA_CHUNK_ACCEPTED)
+                	syncManager.getSyncListener().onReplaceRequest(status.statusCode);
+            }
         }
         else if (command.command.equals(Cmd.CMD_SYNC))
         {
@@ -637,8 +919,164 @@ public class Session implements Runnable
             status = newStatus(SyncML.STATUS_NOT_SUPPORTED);
         }
         
-        //set the status to return for the command
-        addOutgoingStatus(command, status);
+        return status;
+    }
+    
+    /* Processes a command carrying multiple items one item at a time, returning a single Status for all items with the same result. */
+    private void doMultiItemCmd(Cmd command)
+    {
+        Status[] itemStatuses = new Status[command.items.size()];
+        for (int i = 0; i < itemStatuses.length; i++)
+        {
+            //process the item as if it had been sent in a command of its own
+            SyncItem item = (SyncItem)command.items.elementAt(i);
+            Cmd itemCmd = new Cmd(command.command);
+            itemCmd.messageId = command.messageId;
+            itemCmd.commandId = command.commandId;
+            itemCmd.noResponse = command.noResponse;
+            itemCmd.credentials = command.credentials;
+            itemCmd.metinf = (item.metinf != null) ? item.metinf : command.metinf;
+            itemCmd.parentCmd = command.parentCmd;
+            itemCmd.archivedDelete = command.archivedDelete;
+            itemCmd.softDelete = command.softDelete;
+            itemCmd.items.addElement(item);
+            itemStatuses[i] = doCommand(itemCmd);
+        }
+        
+        //the results of the items are only all known once any batched updates have been applied
+        applyBatch();
+        if (! isResponseRequired(command))
+            return;
+        
+        Vector statuses = new Vector();
+        long separateSize = 0;
+        for (int i = 0; i < itemStatuses.length; i++)
+        {
+            SyncItem item = (SyncItem)command.items.elementAt(i);
+            Status itemStatus = itemStatuses[i];
+            
+            //note the size of the Status that would have been sent for the item on its own
+            itemStatus.commandId = outCommandId;
+            itemStatus.refMessageId = inSyncHeader.messageId;
+            itemStatus.refCommandId = command.commandId;
+            itemStatus.refCommand = command.command;
+            addItemRefs(itemStatus, item, false);
+            separateSize += getEncodedSize(itemStatus);
+            
+            //add the item to the Status of the other items with the same result (if any)
+            Status status = null;
+            for (int j = 0; (j < statuses.size()) && (status == null); j++)
+            {
+                Status itemsStatus = (Status)statuses.elementAt(j);
+                if ( (itemsStatus.statusCode == itemStatus.statusCode) && (isCoalescable(itemsStatus)) && (isCoalescable(itemStatus)) )
+                    status = itemsStatus;
+            }
+            if (status == null)
+            {
+                status = itemStatus;
+                status.refItemSourceUris.removeAllElements();
+                status.refItemTargetUris.removeAllElements();
+                statuses.addElement(status);
+            }
+            addItemRefs(status, item, outCompactStatus);
+        }
+        
+        //a Status without any item references refers to all items of the command
+        if ( (outCompactStatus) && (statuses.size() == 1) )
+        {
+            Status status = (Status)statuses.elementAt(0);
+            status.refItemSourceUris.removeAllElements();
+            status.refItemTargetUris.removeAllElements();
+        }
+        
+        //set the status to return for the items
+        long coalescedSize = 0;
+        for (int i = 0; i < statuses.size(); i++)
+        {
+            Status status = (Status)statuses.elementAt(i);
+            addOutgoingStatus(command, status);
+            coalescedSize += getEncodedSize(status);
+        }
+        ((Status)statuses.elementAt(0)).bytesSaved = Math.max(separateSize - coalescedSize, 0);
+        
+        if (log != null)
+            log.debug(LOG_PREFIX + "Returning " + statuses.size() + " Status commands for the " + command.items.size() + " items of the '" + command.command + "' command");
+    }
+    
+    /* Returns whether or not the specified command is one which changes the records of a store (i.e. Add, Copy, Delete, Move or Replace). */
+    private static boolean isItemCommand(Cmd command)
+    {
+        return ( (command.command.equals(Cmd.CMD_ADD)) || (command.command.equals(Cmd.CMD_COPY)) || (command.command.equals(Cmd.CMD_DELETE)) 
+                 || (command.command.equals(Cmd.CMD_MOVE)) || (command.command.equals(Cmd.CMD_REPLACE)) );
+    }
+    
+    /* Returns whether or not the specified status only carries a status code and so may refer to several items. */
+    private static boolean isCoalescable(Status status)
+    {
+        return ( (status.items.size() <= 0) && (status.credentials == null) && (status.challenge == null) );
+    }
+    
+    /* Adds the source and target URIs of the specified item to the items the specified status refers to - only the URI identifying the item is added if "compact" is set. */
+    private static void addItemRefs(Status status, SyncItem item, boolean compact)
+    {
+        boolean hasSourceUri = ( (item.sourceUri != null) && (item.sourceUri.length() > 0) );
+        if (hasSourceUri)
+            status.refItemSourceUris.addElement(item.sourceUri);
+        
+        if ( (item.targetUri != null) && (item.targetUri.length() > 0) && ((! compact) || (! hasSourceUri)) )
+            status.refItemTargetUris.addElement(item.targetUri);
+    }
+    
+    /* Returns the size of the specified status when encoded on its own (without string tables), excluding any items, credentials or challenge as coalescing/compacting never changes those. */
+    private static long getEncodedSize(Status status)
+    {
+        //the Status tag and its end tag, followed by the tags referring to the command and the status code
+        long size = 2;
+        size += getEncodedTagSize(Integer.toString(status.commandId));
+        size += getEncodedTagSize(Integer.toString(status.refMessageId));
+        size += getEncodedTagSize(Integer.toString(status.refCommandId));
+        size += getEncodedTagSize(status.refCommand);
+        size += getEncodedTagSize(Integer.toString(status.statusCode));
+        
+        //the TargetRef/SourceRef tags referring to the items
+        for (int i = 0; i < status.refItemTargetUris.size(); i++)
+            size += getEncodedTagSize((String)status.refItemTargetUris.elementAt(i));
+        for (int i = 0; i < status.refItemSourceUris.size(); i++)
+            size += getEncodedTagSize((String)status.refItemSourceUris.elementAt(i));
+        
+        return size;
+    }
+    
+    /* Returns the size of a tag with the specified string content when encoded as an in-line string (or 0 if the tag wouldn't be written). */
+    private static long getEncodedTagSize(String content)
+    {
+        if ( (content == null) || (content.length() <= 0) )
+            return 0;
+        
+        //the tag, the in-line string token, the UTF-8 string and its terminator, and the end tag
+        long size = 4;
+        for (int i = 0; i < content.length(); i++)
+        {
+            char c = content.charAt(i);
+            if (c < 0x80)
+                size += 1;
+            else if ( (c < 0x800) || ((c >= 0xD800) && (c <= 0xDFFF)) )
+                size += 2;
+            else
+                size += 3;
+        }
+        
+        return size;
+    }
+    
+    /* Adds the time spent applying a server command to the local store to the metrics of the active store (counting chunks as they are received). */
+    private void addApplyTime(Status status, long startTime, boolean chunkPending)
+    {
+        SyncMetrics metrics = (inActiveStore != null) ? inActiveStore.metrics : sessionMetrics;
+        boolean chunkAccepted = (status.statusCode == SyncML.STATUS_DATA_CHUNK_ACCEPTED);
+        addNestedPhaseTime(metrics, SyncMetrics.PHASE_APPLY, startTime, (chunkAccepted) ? 0 : 1);
+        if ( (chunkPending) || (chunkAccepted) )
+            metrics.addChunkReceived();
     }
     
     /* Processes the end of the SyncML command received from the server. */
@@ -684,8 +1122,20 @@ public class Session implements Runnable
                 return result;
             }
             
-            //get and handle the command item
+            //return the previous result if the item has already been processed (along with the previous Map, if any)
             item = (SyncItem)command.items.elementAt(0);
+            ItemResult previousResult = getResentItemResult(command, item);
+            if (previousResult != null)
+            {
+                localId = previousResult.localId;
+                if ( (localId != null) && (SyncML.isSuccessStatus(previousResult.statusCode)) )
+                    addOutgoingMap(item, localId);
+                
+                result = newStatus(previousResult.statusCode);
+                return result;
+            }
+            
+            //handle the command item
             int itemStatus = doCmdItem(command, item);
             if (itemStatus != 0)
             {
@@ -703,6 +1153,15 @@ public class Session implements Runnable
                 ContentType ctType = null;                 
                 if ( (command.metinf != null) && (command.metinf.contentType != null) )
                     ctType = new ContentType(command.metinf.contentType);
+                
+                //a complete record is added as part of a batch if supported by the store
+                if ( (! item.moreData) && (inActiveStore.store instanceof BatchRecordStore) )
+                {
+                    result = addBatchUpdate(command, item, new RecordUpdate(Record.CHANGE_TYPE_ADD, null, item.targetParentUri, item.sourceParentUri, item.sourceUri, ctType, false, item.data));
+                    return result;
+                }
+                
+                applyBatch();
                 inActiveStore.store.addRecordBegin(item.targetParentUri, item.sourceParentUri, item.sourceUri, ctType);
             }
  
@@ -756,15 +1215,11 @@ public class Session implements Runnable
         finally
         {
             //cache the result of this command in case we need resend it later (which can occur after a suspend/resume)
-            if ( (item != null) && (result != null) )
+            if ( (item != null) && (result != null) && (! isBatched(result)) )
             {
                 String itemUri = item.getUri();
                 if ( (itemUri != null) && (itemUri.length() > 0) )
-                {
-                    inActiveStore.outStatusCmds.put(itemUri, new Integer(result.statusCode));
-                    if ( (localId != null) && (localId.length() > 0) )
-                        inActiveStore.outLocalIds.put(itemUri, localId);
-                }
+                    inActiveStore.outItemResults.put(itemUri, new ItemResult(command.command, result.statusCode, localId, outMessageId));
             }
         }
     }
@@ -792,36 +1247,6 @@ public class Session implements Runnable
             return SyncML.STATUS_BAD_REQUEST;
         }
         
-        //check if this is a resent chunk - this can only occur after a suspend/resume and is indicated
-        //by a chunk with no more data to come and an explicit size specified. This situation is only 
-        //allowed (according to the sync specification) when resuming a chunked item.
-        if ( (sessionResumed) && (!item.moreData) && (cmd.metinf != null) && (cmd.metinf.size > 0) )
-        {
-            //check if we already have a status for this record
-            Integer previousStatus = (Integer)inActiveStore.outStatusCmds.get(itemUri);
-            if (previousStatus != null)
-            {
-                //indicates that we have already processed this item - return the previous status code
-                int statusCode = previousStatus.intValue();
-                if (log != null)
-                    log.debug(LOG_PREFIX + "Detected a resend of the last chunk of the already processed item '" + itemUri + "' - returning previous status code '" + statusCode + "'");
-                
-                //if we're dealing with a resent Add command, we need to also return the previous Map (if there was one)
-                if ( (cmd.command.equals(Cmd.CMD_ADD)) && (SyncML.isSuccessStatus(statusCode)) )
-                {
-                    String localId = (String)inActiveStore.outLocalIds.get(itemUri);
-                    if (localId != null)
-                    {
-                        if (log != null)
-                            log.debug(LOG_PREFIX + "Returning previous Map for local ID '" + localId + "'");
-                        addOutgoingMap(item, localId);
-                    }
-                }
-                
-                return statusCode;
-            }
-        }
-
         //process the chunk normally
         if (inChunkedItem == null)
         {
@@ -1215,6 +1640,16 @@ public class Session implements Runnable
                 return newStatus(SyncML.STATUS_BAD_REQUEST);
             }
             
+            //return the previous result if the item has already been processed
+            ItemResult previousResult = getResentItemResult(command, item);
+            if (previousResult != null)
+                return newStatus(previousResult.statusCode);
+            
+            //the record is deleted as part of a batch if supported by the store
+            if (inActiveStore.store instanceof BatchRecordStore)
+                return addBatchUpdate(command, item, new RecordUpdate(Record.CHANGE_TYPE_DELETE, item.targetUri, null, null, null, null, false, null));
+            applyBatch();
+            
             int statusCode;
             try
             {
@@ -1232,6 +1667,8 @@ public class Session implements Runnable
                 statusCode = SyncML.STATUS_ITEM_NOT_DELETED;
             }
 
+            //cache the result of this command in case we need resend it later (which can occur after a suspend/resume)
+            inActiveStore.outItemResults.put(item.getUri(), new ItemResult(command.command, statusCode, null, outMessageId));
             return newStatus(statusCode);
         }
         catch (StoreException e)
@@ -1417,15 +1854,87 @@ public class Session implements Runnable
             return newStatus(SyncML.STATUS_BAD_REQUEST);
         }
         
-        //we only support handling the device information - don't bother parsing it - just return success
+        //we only support handling the device information - note the capabilities of the server
         if ( (item.sourceUri.equals(DevInfCodepage.DOC_URI_1_1)) || (item.sourceUri.equals(DevInfCodepage.DOC_URI_1_2)) )
+        {
+            onServerDevinf(item);
             return newStatus(SyncML.STATUS_OK);
+        }
         
         if (log != null)
             log.error(LOG_PREFIX + "Put of item '" + item.sourceUri + "' is not supported", null);
         return newStatus(SyncML.STATUS_NOT_SUPPORTED);
     }
     
+    /* Processes the SyncML 'Results' command received from the server. */
+    private Status doResultsCmd(Cmd command)
+    {
+        //we only ask for the server device information - ignore anything else
+        for (int i = 0; (command.items != null) && (i < command.items.size()); i++)
+        {
+            SyncItem item = (SyncItem)command.items.elementAt(i);
+            String itemUri = item.getUri();
+            if ( (itemUri != null) && ( (itemUri.equals(DevInfCodepage.DOC_URI_1_1)) || (itemUri.equals(DevInfCodepage.DOC_URI_1_2)) ) )
+                onServerDevinf(item);
+            else if (log != null)
+                log.warn(LOG_PREFIX + "Ignoring results for item '" + itemUri + "'");
+        }
+        
+        return newStatus(SyncML.STATUS_OK);
+    }
+    
+    /* Handles the device information sent by the server in the specified item - errors are ignored as the information is optional. */
+    private void onServerDevinf(SyncItem item)
+    {
+        if ( (item.data == null) || (item.data.length <= 0) )
+            return;
+        
+        try
+        {
+            //the max object size is specified in the message header rather than the Devinf
+            ServerCapabilities capabilities = new DevInfCodepage(log).parseDevinf(item.data);
+            if (serverCapabilities != null)
+                capabilities = new ServerCapabilities(capabilities, serverCapabilities.getMaxObjectSize());
+            setServerCapabilities(capabilities);
+        }
+        catch (WbxmlException e)
+        {
+            if (log != null)
+                log.error(LOG_PREFIX + "Failed to parse server device information - ignoring it", e);
+        }
+        catch (IOException e)
+        {
+            if (log != null)
+                log.error(LOG_PREFIX + "Failed to read server device information - ignoring it", e);
+        }
+    }
+    
+    /* Sets the capabilities of the server, caching them (if required) and passing them to the interested record stores. */
+    private void setServerCapabilities(ServerCapabilities capabilities)
+    {
+        serverCapabilities = capabilities;
+        if (devinfCache != null)
+        {
+            devinfCache.setServerCapabilities(syncManager.getTransport().getTargetURI(), capabilities);
+            devinfCache.save();
+        }
+        
+        notifyServerCapabilities();
+    }
+    
+    /* Passes the capabilities of the server (if known) to the record stores which want to know them. */
+    private void notifyServerCapabilities()
+    {
+        if (serverCapabilities == null)
+            return;
+        
+        for (int i = 0; i < storeStates.length; i++)
+        {
+            if ( (storeStates[i].sessionSuccess) && (storeStates[i].store instanceof ServerAwareRecordStore) )
+                ((ServerAwareRecordStore)storeStates[i].store).onServerCapabilities(serverCapabilities);
+        }
+    }
+    
     /* Processes the SyncML 'Replace' command received from the server. */
     private Status doReplaceCmd(Cmd command)
     {
@@ -1462,6 +1971,14 @@ public class Session implements Runnable
                 return result;
             }
 
+            //return the previous result if the item has already been processed
+            ItemResult previousResult = getResentItemResult(command, item);
+            if (previousResult != null)
+            {
+                result = newStatus(previousResult.statusCode);
+                return result;
+            }
+            
             //handle the command item
             int itemStatus = doCmdItem(command, item);
             if (itemStatus != 0)
@@ -1485,7 +2002,15 @@ public class Session implements Runnable
                 if (command.metinf != null)
                     fieldReplace = command.metinf.fieldLevelReplace;
                 
+                //a complete record is replaced as part of a batch if supported by the store
+                if ( (! item.moreData) && (inActiveStore.store instanceof BatchRecordStore) )
+                {
+                    result = addBatchUpdate(command, item, new RecordUpdate(Record.CHANGE_TYPE_REPLACE, item.targetUri, null, null, null, ctType, fieldReplace, item.data));
+                    return result;
+                }
+                
                 //notify the store that we are starting to replace a record
+                applyBatch();
                 inActiveStore.store.replaceRecordBegin(item.targetUri, ctType, fieldReplace);
             }
             
@@ -1527,11 +2052,11 @@ public class Session implements Runnable
         finally
         {
             //cache the result of this command in case we need resend it later (which can occur after a suspend/resume)
-            if ( (item != null) && (result != null) )
+            if ( (item != null) && (result != null) && (! isBatched(result)) )
             {
                 String itemUri = item.getUri();
                 if ( (itemUri != null) && (itemUri.length() > 0) )
-                    inActiveStore.outStatusCmds.put(itemUri, new Integer(result.statusCode));
+                    inActiveStore.outItemResults.put(itemUri, new ItemResult(command.command, result.statusCode, null, outMessageId));
             }
         }
     }
@@ -1581,6 +2106,9 @@ public class Session implements Runnable
     /* Processes the end of the SyncML 'Sync' command received from the server. */
     private void doSyncCmdEnd(Cmd command)
     {
+        //apply any updates waiting to be applied as a batch
+        applyBatch();
+        
         //clear the command
         inSyncCmd = null;
         
@@ -1593,32 +2121,177 @@ public class Session implements Runnable
         inActiveStore = null;
     }
     
-    /* Creates a newStatus with the specified status code. */
-    private Status newStatus(int statusCode)
+    /* Adds the specified update to the batch of updates to be applied to the active record store, returning the status of the command (which is set once the batch has been applied). */
+    private Status addBatchUpdate(Cmd command, SyncItem item, RecordUpdate update)
     {
-        Status status = new Status();
-        status.statusCode = statusCode;
-        return status;
+        if (log != null)
+            log.debug(LOG_PREFIX + "Adding item '" + item.getUri() + "' to the batch of updates to apply");
+        
+        BatchEntry entry = new BatchEntry(command, item, update, newStatus(SyncML.STATUS_OK));
+        inBatchEntries.addElement(entry);
+        return entry.status;
     }
     
-    /* Creates a new Status from the specified exception. */
-    private Status newStatus(int statusCode, SyncException cause)
+    /* Returns whether or not the specified status belongs to the last update waiting to be applied as part of a batch. */
+    private boolean isBatched(Status status)
     {
-        //just use the specified status code if no exception was provided
-        if (cause == null)
-            return newStatus(statusCode);
+        return ( (inBatchEntries.size() > 0) && (((BatchEntry)inBatchEntries.lastElement()).status == status) );
+    }
+    
+    /* Applies the updates waiting to be applied as a batch (if any) to the active record store and sets the status of each update. */
+    private void applyBatch()
+    {
+        if (inBatchEntries.size() <= 0)
+            return;
         
-        //the status code in the exception always overrides the specified one
-        Status status = new Status();
-        int code = cause.getStatusCode();
-        if ( (code > 0) && (! SyncML.isSuccessStatus(code)) )
-            status.statusCode = code;
-        else
-            status.statusCode = statusCode;
+        //pass all the updates to the record store at once
+        RecordUpdate[] updates = new RecordUpdate[inBatchEntries.size()];
+        for (int i = 0; i < updates.length; i++)
+            updates[i] = ((BatchEntry)inBatchEntries.elementAt(i)).update;
         
-        //get any additional status data
-        String statusData = cause.getStatusData();
-        if ( (statusData != null) && (statusData.length() > 0) )
+        if (log != null)
+            log.info(LOG_PREFIX + "Applying a batch of " + updates.length + " updates to local record store '" + inActiveStore.store.getClientURI() + "'");
+        
+        long applyStart = System.currentTimeMillis();
+        StoreException batchError = null;
+        try
+        {
+            ((BatchRecordStore)inActiveStore.store).applyUpdates(updates);
+        }
+        catch (StoreException e)
+        {
+            //none of the updates have been applied
+            batchError = e;
+        }
+        addNestedPhaseTime(inActiveStore.metrics, SyncMetrics.PHASE_APPLY, applyStart, updates.length);
+        
+        //set the status of each command now that the result of its update is known
+        for (int i = 0; i < inBatchEntries.size(); i++)
+        {
+            BatchEntry entry = (BatchEntry)inBatchEntries.elementAt(i);
+            Status result = getBatchResult(entry, batchError);
+            entry.status.statusCode = result.statusCode;
+            entry.status.items = result.items;
+            if (log != null)
+                log.info(LOG_PREFIX + "Setting status of '" + entry.command.command + "' command to " + result.statusCode);
+            
+            //cache the result of the command in case we need resend it later (which can occur after a suspend/resume)
+            inActiveStore.outItemResults.put(entry.item.getUri(), new ItemResult(entry.command.command, result.statusCode, entry.localId, outMessageId));
+            
+            int changeType = entry.update.getChangeType();
+            if (changeType == Record.CHANGE_TYPE_DELETE)
+                syncManager.getSyncListener().onDeleteRequest(result.statusCode);
+            else if (changeType == Record.CHANGE_TYPE_ADD)
+                syncManager.getSyncListener().onAddRequest(result.statusCode);
+            else
+                syncManager.getSyncListener().onReplaceRequest(result.statusCode);
+        }
+        
+        inBatchEntries.removeAllElements();
+    }
+    
+    /* Returns the status of the command carrying the specified update once the batch has been applied, adding a Map for the record if required. */
+    private Status getBatchResult(BatchEntry entry, StoreException batchError)
+    {
+        RecordUpdate update = entry.update;
+        SyncItem item = entry.item;
+        StoreException error = (batchError != null) ? batchError : update.getError();
+        if ( (error == null) && (! update.isApplied()) )
+            error = new StoreException("No result reported for item '" + item.getUri() + "'");
+        
+        if (update.getChangeType() == Record.CHANGE_TYPE_ADD)
+        {
+            int statusCode = SyncML.STATUS_ITEM_ADDED;
+            String localId = update.getResultLocalId();
+            if (error instanceof AlreadyExistsException)
+            {
+                localId = ((AlreadyExistsException)error).getLocalId();
+                if (log != null)
+                    log.warn(LOG_PREFIX + "Record already exists in the local store: " + localId);
+                statusCode = SyncML.STATUS_ITEM_ALREADY_EXISTS;
+            }
+            else if (error != null)
+            {
+                return doBatchError("Error accessing local record store '" + inActiveStore.store.getClientURI() + "'", error);
+            }
+            
+            //make sure a local ID has been assigned to the new record
+            if ( (localId == null) || (localId.length() <= 0) )
+                return doBatchError("No local ID returned for new record item '" + item.sourceUri + "'", null);
+            
+            //add a Map for the new record (to map its global ID to the local ID)
+            addOutgoingMap(item, localId);
+            entry.localId = localId;
+            return newStatus(statusCode);
+        }
+        else if (update.getChangeType() == Record.CHANGE_TYPE_REPLACE)
+        {
+            if (error instanceof NoSuchRecordException)
+                return doBatchError("Record not found in the local store '" + inActiveStore.store.getClientURI() + "'", error);
+            else if (error != null)
+                return doBatchError("Error accessing local record store '" + inActiveStore.store.getClientURI() + "'", error);
+            
+            //add a Map for the record if its local ID has been changed (to map its global ID to the new local ID)
+            String newLocalId = update.getResultLocalId();
+            if ( (newLocalId != null) && (newLocalId.length() > 0) && (! newLocalId.equals(item.targetUri)) )
+                addOutgoingMap(item, newLocalId);
+            
+            return newStatus(SyncML.STATUS_ITEM_ADDED);
+        }
+        else
+        {
+            if (error instanceof NoSuchRecordException)
+            {
+                if (log != null)
+                    log.warn(LOG_PREFIX + "Record not found in the local store: " + item.targetUri);
+                return newStatus(SyncML.STATUS_ITEM_NOT_DELETED);
+            }
+            else if (error != null)
+            {
+                return doBatchError("Error accessing local record store '" + inActiveStore.store.getClientURI() + "'", error);
+            }
+            
+            if (entry.command.archivedDelete)
+                return newStatus(SyncML.STATUS_DELETE_WITHOUT_ARCHIVE);
+            return newStatus(SyncML.STATUS_OK);
+        }
+    }
+    
+    /* Handle an error that occurred when applying an update as part of a batch. */
+    private Status doBatchError(String errorString, StoreException cause)
+    {
+        Status status = newStatus(SyncML.STATUS_DATA_STORE_FAILURE, cause);
+        if (log != null)
+            log.error(LOG_PREFIX + errorString + " - status code '" + status.statusCode + "'", cause);
+        return status;
+    }
+    
+    /* Creates a newStatus with the specified status code. */
+    private Status newStatus(int statusCode)
+    {
+        Status status = new Status();
+        status.statusCode = statusCode;
+        return status;
+    }
+    
+    /* Creates a new Status from the specified exception. */
+    private Status newStatus(int statusCode, SyncException cause)
+    {
+        //just use the specified status code if no exception was provided
+        if (cause == null)
+            return newStatus(statusCode);
+        
+        //the status code in the exception always overrides the specified one
+        Status status = new Status();
+        int code = cause.getStatusCode();
+        if ( (code > 0) && (! SyncML.isSuccessStatus(code)) )
+            status.statusCode = code;
+        else
+            status.statusCode = statusCode;
+        
+        //get any additional status data
+        String statusData = cause.getStatusData();
+        if ( (statusData != null) && (statusData.length() > 0) )
         {
             try
             {
@@ -1639,7 +2312,7 @@ public class Session implements Runnable
     private void addOutgoingStatus(Cmd command, Status status)
     {
         //nothing more to do if no response is required
-        if ( (inSyncHeader == null) || (inSyncHeader.noResponse) || ((command != null) && (command.noResponse)) )
+        if (! isResponseRequired(command))
             return;
         
         //update the status for the specified command
@@ -1654,13 +2327,16 @@ public class Session implements Runnable
             //will imply that the status refers to all items  
             if ( (command.items != null) && (command.items.size() == 1) )
             {
-                SyncItem cmdItem = (SyncItem)command.items.elementAt(0);
+                addItemRefs(status, (SyncItem)command.items.elementAt(0), false);
                 
-                if ( (cmdItem.sourceUri != null) && (cmdItem.sourceUri.length() > 0) )
-                    status.refItemSourceUris.addElement(cmdItem.sourceUri);
-
-                if ( (cmdItem.targetUri != null) && (cmdItem.targetUri.length() > 0) )
-                    status.refItemTargetUris.addElement(cmdItem.targetUri);
+                //the URIs aren't required to identify the only item of a command which changes a record
+                if ( (outCompactStatus) && (isItemCommand(command)) )
+                {
+                    long fullSize = getEncodedSize(status);
+                    status.refItemSourceUris.removeAllElements();
+                    status.refItemTargetUris.removeAllElements();
+                    status.bytesSaved = Math.max(fullSize - getEncodedSize(status), 0);
+                }
             }
         }
         else
@@ -1688,12 +2364,18 @@ public class Session implements Runnable
             }
         }
         
-        //add the status to the list of outgoing status commands
-        if (log != null)
+        //add the status to the list of outgoing status commands (the status of a batched update is logged once it is known)
+        if ( (log != null) && (! isBatched(status)) )
             log.info(LOG_PREFIX + "Setting status of '" + status.refCommand + "' command to " + status.statusCode);
         outStatusCmds.addElement(status);
     }
     
+    /* Returns whether or not the server requires a Status for the specified command (or for the SyncML header if no command is specified). */
+    private boolean isResponseRequired(Cmd command)
+    {
+        return ( (inSyncHeader != null) && (! inSyncHeader.noResponse) && ((command == null) || (! command.noResponse)) );
+    }
+    
     /* Adds an outgoing Map command for the specified item and local ID. */
     private void addOutgoingMap(SyncItem item, String localId)
     {
@@ -1748,6 +2430,49 @@ public class Session implements Runnable
         return null;
     }
     
+    /* Returns the result of the specified item if it has already been processed (or null if it hasn't) - this can only occur after a suspend/resume when the server resends an item whose status it didn't receive. */
+    private ItemResult getResentItemResult(Cmd cmd, SyncItem item)
+    {
+        //only a complete item can be a resend - a chunk which isn't the last one is always processed normally
+        if ( (! sessionResumed) || (item.moreData) || (inChunkedItem != null) )
+            return null;
+        
+        String itemUri = item.getUri();
+        if ( (itemUri == null) || (itemUri.length() <= 0) )
+            return null;
+        
+        //the item must have been carried by the same kind of command
+        ItemResult previousResult = (ItemResult)inActiveStore.outItemResults.get(itemUri);
+        if ( (previousResult == null) || (! cmd.command.equals(previousResult.command)) )
+            return null;
+        
+        if (log != null)
+            log.debug(LOG_PREFIX + "Detected a resend of the already processed item '" + itemUri + "' - returning previous status code '" + previousResult.statusCode + "'");
+        return previousResult;
+    }
+    
+    /* Discards the results of processed items whose status has been received by the server, as the server won't resend those items. */
+    private void discardItemResults()
+    {
+        //the server has responded to the last message sent, so it has received the status of all items which were sent in that message
+        int lastMessageId = outMessageId - 1;
+        Vector itemUris = new Vector();
+        for (int i = 0; i < storeStates.length; i++)
+        {
+            Hashtable itemResults = storeStates[i].outItemResults;
+            for (Enumeration e = itemResults.keys(); e.hasMoreElements(); )
+            {
+                Object itemUri = e.nextElement();
+                if (((ItemResult)itemResults.get(itemUri)).messageId <= lastMessageId)
+                    itemUris.addElement(itemUri);
+            }
+            
+            for (int j = 0; j < itemUris.size(); j++)
+                itemResults.remove(itemUris.elementAt(j));
+            itemUris.removeAllElements();
+        }
+    }
+    
     /* Returns TRUE if the data in both arrays are the same. */
     private boolean isDataEqual(byte[] data1, int offset1, byte[] data2, int offset2, int length)
     {
@@ -1772,6 +2497,9 @@ public class Session implements Runnable
             //create the WBXML codepages 
             MetInfCodepage cpMetinf = new MetInfCodepage(log, this);
             SyncMLCodepage cpSyncml = new SyncMLCodepage(log, this, cpMetinf);
+            cpMetinf.setWriter(outWriter);
+            cpSyncml.setWriter(outWriter);
+            long bytesSaved = outWriter.getStringTableBytesSaved();
             
             //build and write the SyncML header
             SyncHdr header = new SyncHdr();
@@ -1781,6 +2509,7 @@ public class Session implements Runnable
             header.messageId = outMessageId;
             header.sourceUri = syncManager.getDevice().getDeviceID();
             header.sourceName = syncManager.getAuthUsername();
+            //the original target URI identifies the server even if the messages are sent to a response URI
             header.targetUri = syncManager.getTransport().getTargetURI();
             header.credentials = getCredentials(inServerChal, syncManager.getAuthUsername(), syncManager.getAuthPasword());
             if (header.credentials != null)
@@ -1797,23 +2526,23 @@ public class Session implements Runnable
             cpSyncml.writeHeader(outputStream, header);
             
             //write the Status for any server commands we have just processed 
-            while (outStatusCmds.size() > 0)
+            for (int i = 0; i < outStatusCmds.size(); i++)
             {
-                Status status = (Status)outStatusCmds.elementAt(0);
+                Status status = (Status)outStatusCmds.elementAt(i);
                 cpSyncml.writeStatus(outputStream, status);
-                outStatusCmds.removeElementAt(0);
+                if (status.bytesSaved > 0)
+                    sessionMetrics.addStatusBytesSaved(status.bytesSaved);
             }
+            outStatusCmds.removeAllElements();
                 
             //write any outgoing commands (e.g. Map, etc) that were the result of commands from the server
-            while (outReplyCmds.size() > 0)
-            {
-                Cmd cmd = (Cmd)outReplyCmds.elementAt(0);
-                cpSyncml.writeCommand(outputStream, cmd);
-                outReplyCmds.removeElementAt(0);
-            }
+            for (int i = 0; i < outReplyCmds.size(); i++)
+                cpSyncml.writeCommand(outputStream, (Cmd)outReplyCmds.elementAt(i));
+            outReplyCmds.removeAllElements();
             
             //write any additional SyncML commands based on the state of the session
             boolean finalMsg = true;
+            boolean clientUpdateMsg = false;
             if (stopSession)
                 finalMsg = false;
             else if (suspendSession)
@@ -1821,12 +2550,27 @@ public class Session implements Runnable
             else if (sessionState == STATE_CLIENT_INIT)
                 finalMsg = sendInitCommands(outputStream, cpSyncml);
             else if (sessionState == STATE_CLIENT_UPDATES)
+            {
                 finalMsg = sendClientUpdateCommands(outputStream, cpSyncml);
+                clientUpdateMsg = true;
+            }
 //            if(log!=null)
 //            	log.debug(LOG_PREFIX+"Output size:"+ outputStream.);
         
             //write the message footer
             cpSyncml.writeFooter(outputStream, finalMsg);
+            
+            //keep track of how well the messages carrying client updates are filled
+            if (clientUpdateMsg)
+            {
+                outUpdateMsgCount++;
+                outUpdateMsgBytes += outputStream.getByteCount();
+                if (maxMsgSize > 0)
+                    outUpdateMsgCapacity += maxMsgSize;
+            }
+            
+            if ( (log != null) && (outWriter.isStringTableEnabled()) )
+                log.debug(LOG_PREFIX + "String table saved " + (outWriter.getStringTableBytesSaved() - bytesSaved) + " bytes in message " + outMessageId + " (" + outputStream.getByteCount() + " bytes)");
         }
         catch (WbxmlException e)
         {
@@ -1844,17 +2588,49 @@ public class Session implements Runnable
         //create the WBXML codepages 
         DevInfCodepage cpDevinf = new DevInfCodepage(log);
 
-        //send a Put command containing the Devinf
-        Cmd putCmd = new Cmd(Cmd.CMD_PUT);
-        putCmd.messageId = outMessageId;
-        putCmd.commandId = outCommandId++;
-        putCmd.metinf = new Metinf();
-        putCmd.metinf.contentType = DevInfCodepage.CT_WBXML;
-        SyncItem putItem = new SyncItem();
-        putItem.sourceUri = DevInfCodepage.DOC_URI_1_2;
-        putItem.data = cpDevinf.getDevinf(syncManager.getDevice(), syncStores, DevInfCodepage.VER_DTD_1_2);
-        putCmd.items.addElement(putItem);
-        cpSyncml.writeCommand(outputStream, putCmd);
+        //send a Put command containing the Devinf - unless the server already has the same Devinf for this account 
+        //(a slow sync may indicate that the server has lost its state, so the Devinf is always sent in that case)
+        byte[] devinfData = cpDevinf.getDevinf(syncManager.getDevice(), syncStores, DevInfCodepage.VER_DTD_1_2);
+        String serverUri = syncManager.getTransport().getTargetURI();
+        long devinfHash = DevInfCache.getHash(devinfData);
+        outDevinfHash = 0;
+        if ( (devinfCache != null) && (devinfCache.getDevinfHash(serverUri, syncManager.getAuthUsername()) == devinfHash) && (! isSlowSyncRequested()) )
+        {
+            if (log != null)
+                log.info(LOG_PREFIX + "Server already has the current device information - not sending it");
+        }
+        else
+        {
+            Cmd putCmd = new Cmd(Cmd.CMD_PUT);
+            putCmd.messageId = outMessageId;
+            putCmd.commandId = outCommandId++;
+            putCmd.metinf = new Metinf();
+            putCmd.metinf.contentType = DevInfCodepage.CT_WBXML;
+            SyncItem putItem = new SyncItem();
+            putItem.sourceUri = DevInfCodepage.DOC_URI_1_2;
+            putItem.data = devinfData;
+            putCmd.items.addElement(putItem);
+            cpSyncml.writeCommand(outputStream, putCmd);
+            if (devinfCache != null)
+                outDevinfHash = devinfHash;
+        }
+        
+        //send a Get command requesting the server Devinf (if we haven't already asked for it)
+        if ( (devinfCache != null) && (! devinfCache.isServerDevinfRequested(serverUri)) )
+        {
+            Cmd getCmd = new Cmd(Cmd.CMD_GET);
+            getCmd.messageId = outMessageId;
+            getCmd.commandId = outCommandId++;
+            getCmd.metinf = new Metinf();
+            getCmd.metinf.contentType = DevInfCodepage.CT_WBXML;
+            SyncItem getItem = new SyncItem();
+            getItem.targetUri = DevInfCodepage.DOC_URI_1_2;
+            getCmd.items.addElement(getItem);
+            cpSyncml.writeCommand(outputStream, getCmd);
+        }
+        
+        //let the record stores know the server capabilities from the previous session (if any) 
+        notifyServerCapabilities();
 
         //send an Alert command for each record store
         int alertCmdCount = 0;
@@ -1908,6 +2684,10 @@ public class Session implements Runnable
         if (alertCmdCount <= 0)
             throw new SyncException("failed to initialize the sync session for even one record store");
         
+        //start determining the records to send while we wait for the server to respond (if required)
+        if ( (detectChangesEarly) && (! resumeSession) && (! changeDetectionStarted) )
+            startChangeDetection();
+        
         //client initialization package completed - expect server to send its initialization package
         sessionState = Session.STATE_SERVER_INIT;
         
@@ -1915,6 +2695,22 @@ public class Session implements Runnable
         return true;
     }
     
+    /* Returns TRUE if a slow sync (or refresh) has been requested for any of the record stores. */
+    private boolean isSlowSyncRequested()
+    {
+        for (int i = 0; i < storeStates.length; i++)
+        {
+            if (! storeStates[i].sessionSuccess)
+                continue;
+            
+            int syncType = storeStates[i].store.getSyncType();
+            if ( (syncType == SyncML.SYNC_TYPE_TWO_WAY_SLOW) || (syncType == SyncML.SYNC_TYPE_REFRESH_CLIENT) || (syncType == SyncML.SYNC_TYPE_REFRESH_SERVER) )
+                return true;
+        }
+        
+        return false;
+    }
+    
     /* Send session suspend commands to the server via the specified output stream. */
     private boolean sendSuspendCommands(CountingOutputStream outputStream, SyncMLCodepage cpSyncml)
         throws WbxmlException, IOException
@@ -1953,6 +2749,10 @@ public class Session implements Runnable
         if (storeCount <= 0)
             throw new SyncException("failed to initialize the sync session for even one record store");
         
+        //note the space already used in the message (by the header, status results, etc) - this is roughly the 
+        //space that will be used in the next message too
+        long msgBaseSize = outputStream.getByteCount();
+        
         //check if we're resuming the session
         boolean sendRemainingSize = false;
         if (sessionResumed)
@@ -1970,8 +2770,7 @@ public class Session implements Runnable
                 
                 //if we were in the middle of sending chunks (and we haven't resent a pending chunk), we need 
                 //to send the remaining size in the next chunk
-                if (outChunkedBytesSent > 0)
-                    sendRemainingSize = true;
+                sendRemainingSize = true;
             }
             else if ( (suspendedSessionState == STATE_SERVER_UPDATES) || (suspendedSessionState == STATE_CLIENT_MAPS) )
             {
@@ -1999,211 +2798,604 @@ public class Session implements Runnable
             }
         }
         
-        //send a Sync command for each record store
+        //send a Sync command for each record store which still has updates to send - depending on the scheduling
+        //policy, the stores either share the space in the message or each store's updates are sent in turn
+        RecordStoreState[] schedule = getUpdateSchedule();
+        for (int i = 0; i < schedule.length; i++)
+        {
+            //nothing more to do for this message if it is already full
+            long freeSpace = maxMsgSize - 64 - outputStream.getByteCount();
+            if (freeSpace <= 0)
+                return false;
+
+            //when sharing, each store may use an equal share of the space left by the stores before it
+            long storeLimit = maxMsgSize - 64;
+            if (outScheduling == SyncManager.SCHEDULE_ROUND_ROBIN)
+                storeLimit = outputStream.getByteCount() + (freeSpace / (schedule.length - i));
+
+            int result = sendStoreUpdates(schedule[i], outputStream, cpSyncml, storeLimit, msgBaseSize, (sendRemainingSize) && (schedule[i].outChunkedBytesSent > 0));
+            if (result == UPDATES_MSG_FULL)
+                return false;
+
+            //when sending the updates of each store in turn, the next store must wait until this one has finished
+            if ( (result == UPDATES_YIELDED) && (outScheduling != SyncManager.SCHEDULE_ROUND_ROBIN) )
+                return false;
+        }
+
+        //don't send the final message of the package if there are still updates to be sent or acknowledged by the server
         for (int i = 0; i < storeStates.length; i++)
         {
-            //get the next store to process (if we have finished with the previous one)
-            if (outStoreState == null)
-            {
-                //ignore record stores whose sync session has already failed
-                if (! storeStates[i].sessionSuccess)
-                    continue;
-                
-                outStoreState = storeStates[i];
-                outRecords = null;
-                outRecord = null;
-            }
-            
-            //send the start of the Sync command for the store
-            if (outStoreState.outSyncCmd == null)
-            {
-                //we hang on to the Sync command object as it is referenced by each client update command (see "Cmd.parentCmd")
-                outStoreState.outSyncCmd = new Cmd(Cmd.CMD_SYNC);
-                outStoreState.outSyncCmd.sourceUri = outStoreState.store.getClientURI();
-                outStoreState.outSyncCmd.targetUri = outStoreState.store.getServerURI();
-            }
-            outStoreState.outSyncCmd.messageId = outMessageId;
-            outStoreState.outSyncCmd.commandId = outCommandId++;
-            cpSyncml.writeCommand(outputStream, outStoreState.outSyncCmd);
-            
-            //get the records to send to the server (if we have finished with the previous ones)
-            if (outRecords == null)
+            if ( (storeStates[i].sessionSuccess) && (! storeStates[i].outUpdatesSent) )
+                return false;
+        }
+        if (outPendingUpdateCmds.size() > 0)
+            return false;
+
+        //client update package completed - expect server to send its update package
+        sessionState = Session.STATE_SERVER_UPDATES;
+
+        //finished the client update package
+        return true;
+    }
+
+    /* Returns the record stores whose updates are still to be sent, in the order in which they should be added to the next message. */
+    private RecordStoreState[] getUpdateSchedule()
+    {
+        //start with the store whose record is being sent in chunks (if any) as the next chunk must be sent
+        //before anything else - when sharing, the other stores take turns to go first
+        Vector schedule = new Vector();
+        int startIndex = 0;
+        if (outScheduling == SyncManager.SCHEDULE_ROUND_ROBIN)
+            startIndex = outScheduleStart++;
+        for (int i = 0; i < storeStates.length; i++)
+        {
+            RecordStoreState storeState = storeStates[(startIndex + i) % storeStates.length];
+            if ( (! storeState.sessionSuccess) || (storeState.outUpdatesSent) )
+                continue;
+
+            if ( (storeState.outRecord != null) && (storeState.outChunkedBytesSent > 0) )
+                schedule.insertElementAt(storeState, 0);
+            else
+                schedule.addElement(storeState);
+        }
+
+        RecordStoreState[] stores = new RecordStoreState[schedule.size()];
+        schedule.copyInto(stores);
+        return stores;
+    }
+
+    /* Sends the client update commands of the specified store via the specified output stream, without starting any new record beyond the specified limit. */
+    private int sendStoreUpdates(RecordStoreState storeState, CountingOutputStream outputStream, SyncMLCodepage cpSyncml, long storeLimit, long msgBaseSize, boolean sendRemainingSize)
+        throws SyncException, WbxmlException, IOException
+    {
+        //send the start of the Sync command for the store
+        if (storeState.outSyncCmd == null)
+        {
+            //we hang on to the Sync command object as it is referenced by each client update command (see "Cmd.parentCmd")
+            storeState.outSyncCmd = new Cmd(Cmd.CMD_SYNC);
+            storeState.outSyncCmd.sourceUri = storeState.store.getClientURI();
+            storeState.outSyncCmd.targetUri = storeState.store.getServerURI();
+        }
+        storeState.outSyncCmd.messageId = outMessageId;
+        storeState.outSyncCmd.commandId = outCommandId++;
+        cpSyncml.writeCommand(outputStream, storeState.outSyncCmd);
+
+        //get the records to send to the server (if we haven't already)
+        if (storeState.outRecords == null)
+        {
+            int syncType = storeState.store.getSyncType();
+            if ( (syncType == SyncML.SYNC_TYPE_TWO_WAY) || (syncType == SyncML.SYNC_TYPE_ONE_WAY_CLIENT) )
+                storeState.outRecords = getOutgoingRecords(storeState, false);
+            else if ( (syncType == SyncML.SYNC_TYPE_TWO_WAY_SLOW) || (syncType == SyncML.SYNC_TYPE_REFRESH_CLIENT) )
+                storeState.outRecords = getOutgoingRecords(storeState, true);
+            storeState.detectedRecords = null;
+
+            //start preparing the records in the background (if required)
+            if ( (storeState.outRecords != null) && (outPrefetchThreads > 0) && (! storeState.outRecords.empty()) )
             {
-                int syncType = outStoreState.store.getSyncType();
-                if ( (syncType == SyncML.SYNC_TYPE_TWO_WAY) || (syncType == SyncML.SYNC_TYPE_ONE_WAY_CLIENT) )
-                    outRecords = outStoreState.store.getChangedRecords();
-                else if ( (syncType == SyncML.SYNC_TYPE_TWO_WAY_SLOW) || (syncType == SyncML.SYNC_TYPE_REFRESH_CLIENT) ) 
-                    outRecords = outStoreState.store.getAllRecords();
+                if (log != null)
+                    log.debug(LOG_PREFIX + "Preparing records for store '" + storeState.store.getClientURI() + "' using " + outPrefetchThreads + " background threads");
+                storeState.outPrefetcher = new RecordPrefetcher(storeState.outRecords, outPrefetchThreads, outPrefetchLimit, storeState.metrics, log);
             }
+        }
+
+        //send an update command for each record
+        if (storeState.outRecords != null)
+        {
+            //records may only be sent out of order if the store isn't hierarchical (where parents must be sent before their children)
+            boolean packRecords = ( (outPackingWindow > 0) && (! storeState.store.getCapabilities().isHierarchicalSyncSupported()) );
 
-            //send an update command for each record
-            if (outRecords != null)
+            //records skipped in the previous message are sent first - they may only be skipped once
+            boolean retryDeferred = true;
+
+            boolean recordSent = false;
+            int num=0;
+            while ( (storeState.outRecord != null) || (storeState.outDeferredRecords.size() > 0) || (hasMoreRecords(storeState)) )
             {
-            	int num=0;
-                while ( (outRecord != null) || (! outRecords.empty()) )
+                //make sure the user hasn't aborted the session
+                if (isCancelled())
+                {
+                    if (log != null)
+                        log.info(LOG_PREFIX + "Session aborted by the user - skipping remaining client updates");
+                    cpSyncml.writeCommandEnd(outputStream, storeState.outSyncCmd);
+                    return UPDATES_MSG_FULL;
+                }
+
+                //trigger the packet send if we have exceeded the max message size
+                long freeSpace = maxMsgSize - 64 - outputStream.getByteCount();
+                if (freeSpace <= 0)
+                {
+                    cpSyncml.writeCommandEnd(outputStream, storeState.outSyncCmd);
+                    return UPDATES_MSG_FULL;
+                }
+
+                //get the next record to send (if we're finished with the previous one)
+                boolean canDefer = false;
+                if (storeState.outRecord == null)
                 {
-                    //make sure the user hasn't aborted the session
-                    if (isCancelled())
+                    //leave the rest of the message to the other stores once this store has used its share (having sent at least one record)
+                    if ( (outputStream.getByteCount() >= storeLimit) && (recordSent) )
                     {
-                        if (log != null)
-                            log.info(LOG_PREFIX + "Session aborted by the user - skipping remaining client updates");
-                        cpSyncml.writeCommandEnd(outputStream, outStoreState.outSyncCmd);
-                        return false;
+                        cpSyncml.writeCommandEnd(outputStream, storeState.outSyncCmd);
+                        return UPDATES_YIELDED;
                     }
 
-                    //trigger the packet send if we have exceeded the max message size
-                    long freeSpace = maxMsgSize - 64 - outputStream.getByteCount();
-                    if (freeSpace <= 0)
+                    if ( (retryDeferred) && (storeState.outDeferredRecords.size() > 0) )
                     {
-                        cpSyncml.writeCommandEnd(outputStream, outStoreState.outSyncCmd);
-                        return false;
+                        storeState.outRecord = (Record)storeState.outDeferredRecords.elementAt(0);
+                        storeState.outDeferredRecords.removeElementAt(0);
                     }
-                    
-                    //get the next record to send (if we're finished with the previous one)
-                    if (outRecord == null)
+                    else
                     {
-                        outRecord = (Record)outRecords.consume();
-                        outChunkedBytesSent = 0;
+                        storeState.outRecord = (hasMoreRecords(storeState)) ? consumeRecord(storeState) : null;
+                        if (storeState.outRecord == null)
+                        {
+                            if (storeState.outDeferredRecords.size() <= 0)
+                                break;
+
+                            //only the records skipped in this message remain - send them in the next message
+                            cpSyncml.writeCommandEnd(outputStream, storeState.outSyncCmd);
+                            return UPDATES_YIELDED;
+                        }
+                        canDefer = packRecords;
                     }
+                    storeState.outChunkedBytesSent = 0;
+                    storeState.outChunkedDataHash = DATA_HASH_OFFSET;
 
-                    //get the change type of the record
-                    int changeType = outRecord.getChangeType();
-                    if (changeType <= 0)
-                        changeType = Record.CHANGE_TYPE_ADD;
-                    
-                    //determine if the record content must be supplied
-                    boolean sendContent = false;
-                    if ( (changeType == Record.CHANGE_TYPE_ADD) || (changeType == Record.CHANGE_TYPE_REPLACE) || (outRecord.isFieldLevelReplace()) )
-                        sendContent = true;
-                    
-                    //determine if the data must be chunked
-                    long dataSize = 0;
-                    int chunkSize = 0; 
-                    boolean moreData = false;
-                    if (sendContent)
+                    //if the session was restored while this record was being sent in chunks, continue from the last chunk accepted by the server
+                    if ( (outRestoredChunkId != null) && (outRestoredChunkStore == storeState) )
                     {
-                        //get the size of the record to be sent
-                        dataSize = outRecord.getDataSize();
-                        if (dataSize <= 0)
-                            throw new SyncException("invalid data size specified for record '" + outRecord.getLocalId() + "'");
-                        
-                        //check if we need to split the record data into multiple chunks
-                        long remainingDataSize = dataSize - outChunkedBytesSent;
-                        if (remainingDataSize > freeSpace)
+                        if ( (outRestoredChunkId.equals(storeState.outRecord.getLocalId())) && (storeState.outRecord.getDataSize() == outRestoredChunkSize) )
                         {
-                            moreData = true;
-                            chunkSize = (int)freeSpace;
+                            if (log != null)
+                                log.info(LOG_PREFIX + "Continuing to send record '" + outRestoredChunkId + "' in chunks from byte " + outRestoredChunkBytesSent);
+                            long readStart = System.currentTimeMillis();
+                            storeState.outChunkedDataHash = skipRecordData(storeState.outRecord, outRestoredChunkBytesSent);
+                            addNestedPhaseTime(storeState.metrics, SyncMetrics.PHASE_RECORD_READ, readStart, 0);
+                            storeState.outChunkedBytesSent = outRestoredChunkBytesSent;
+                            sendRemainingSize = true;
                         }
                         else
-                            chunkSize = (int)remainingDataSize;
-                    }
-                    
-                    //create the appropriate update command based on the change type 
-                    Cmd updateCmd = null; 
-                    if (changeType == Record.CHANGE_TYPE_ADD)
-                        updateCmd = new Cmd(Cmd.CMD_ADD);
-                    else if (changeType == Record.CHANGE_TYPE_REPLACE)
-                        updateCmd = new Cmd(Cmd.CMD_REPLACE);
-                    else if (changeType == Record.CHANGE_TYPE_DELETE)
-                        updateCmd = new Cmd(Cmd.CMD_DELETE);
-                    else if (changeType == Record.CHANGE_TYPE_MOVE)
-                        updateCmd = new Cmd(Cmd.CMD_MOVE);
-                    else if (changeType == Record.CHANGE_TYPE_COPY)
-                        updateCmd = new Cmd(Cmd.CMD_COPY);
-                    else
-                        throw new SyncException("invalid change type '" + changeType + "' specified for record '" + outRecord.getLocalId() + "'");
-                    updateCmd.messageId = outMessageId;
-                    updateCmd.commandId = outCommandId++;
-                    updateCmd.parentCmd = outStoreState.outSyncCmd;
-                    
-                    if (sendContent)
-                    {
-                        updateCmd.metinf = new Metinf();
-                        updateCmd.metinf.contentType = outRecord.getContentType().toString();
-                        
-                        if (changeType == Record.CHANGE_TYPE_REPLACE)
-                            updateCmd.metinf.fieldLevelReplace = outRecord.isFieldLevelReplace();
-                        
-                        if ( (moreData) && (outChunkedBytesSent <= 0) )
-                            updateCmd.metinf.size = dataSize;
-                        else if (sendRemainingSize) 
-                            updateCmd.metinf.size = dataSize - outChunkedBytesSent;
+                        {
+                            if (log != null)
+                                log.info(LOG_PREFIX + "Record '" + outRestoredChunkId + "' that was being sent in chunks will be sent again from the start");
+                        }
+                        outRestoredChunkId = null;
                     }
+                }
 
-                    SyncItem updateItem = new SyncItem();
-                    updateItem.sourceUri = outRecord.getLocalId();
-                    updateItem.sourceParentUri = outRecord.getParentId();
-                    if (changeType == Record.CHANGE_TYPE_COPY)
-                    {
-                        updateItem.targetUri = outRecord.getTargetId();
-                        updateItem.targetParentUri = outRecord.getTargetParentId();
-                    }
-                    if (sendContent)
-                    {
-                        updateItem.data = new byte[chunkSize];
-                        int readCount = outRecord.getData(updateItem.data, chunkSize);
-                        if (readCount != chunkSize)
-                            throw new SyncException("unexpected data size while reading record '" + outRecord.getLocalId() + "'");
-
-                        outChunkedBytesSent += chunkSize;
-                        updateItem.totalSize = dataSize;
-                        updateItem.chunkedBytesSent = outChunkedBytesSent; 
-                        if (outChunkedBytesSent < dataSize)
-                            updateItem.moreData = true;
-                    }
-                    updateCmd.items.addElement(updateItem);
-                    outPendingUpdateCmds.addElement(updateCmd);
-                    cpSyncml.writeCommand(outputStream, updateCmd);
-                    
-                    //nothing more to do for this message if we need to send more chunks
-                    if (updateItem.moreData)
+                //get the change type of the record
+                Record record = storeState.outRecord;
+                int changeType = record.getChangeType();
+                if (changeType <= 0)
+                    changeType = Record.CHANGE_TYPE_ADD;
+
+                //determine if the record content must be supplied
+                boolean sendContent = false;
+                if ( (changeType == Record.CHANGE_TYPE_ADD) || (changeType == Record.CHANGE_TYPE_REPLACE) || (record.isFieldLevelReplace()) )
+                    sendContent = true;
+
+                //determine if the data must be chunked
+                long dataSize = 0;
+                int chunkSize = 0;
+                boolean moreData = false;
+                if (sendContent)
+                {
+                    //get the size of the record to be sent
+                    long readStart = System.currentTimeMillis();
+                    dataSize = record.getDataSize();
+                    addNestedPhaseTime(storeState.metrics, SyncMetrics.PHASE_RECORD_READ, readStart, 0);
+                    if (dataSize <= 0)
+                        throw new SyncException("invalid data size specified for record '" + record.getLocalId() + "'");
+
+                    //check if we need to split the record data into multiple chunks
+                    long remainingDataSize = dataSize - storeState.outChunkedBytesSent;
+                    if (remainingDataSize > freeSpace)
                     {
-                        cpSyncml.writeCommandEnd(outputStream, outStoreState.outSyncCmd);
-                        return false;
+                        //rather than splitting a record which would fit in a message of its own, skip it and fill the rest
+                        //of the message with the records following it
+                        if ( (canDefer) && (storeState.outChunkedBytesSent <= 0) && (dataSize <= maxMsgSize - 64 - msgBaseSize) )
+                        {
+                            if (storeState.outDeferredRecords.size() < outPackingWindow)
+                            {
+                                storeState.outDeferredRecords.addElement(record);
+                                storeState.outRecord = null;
+                                retryDeferred = false;
+                                continue;
+                            }
+
+                            //too many records have been skipped - send this one at the start of the next message instead
+                            cpSyncml.writeCommandEnd(outputStream, storeState.outSyncCmd);
+                            return UPDATES_YIELDED;
+                        }
+
+                        moreData = true;
+                        chunkSize = (int)freeSpace;
                     }
-                    
-                    if(log!= null)
+                    else
+                        chunkSize = (int)remainingDataSize;
+                }
+
+                //create the appropriate update command based on the change type
+                Cmd updateCmd = null;
+                if (changeType == Record.CHANGE_TYPE_ADD)
+                    updateCmd = new Cmd(Cmd.CMD_ADD);
+                else if (changeType == Record.CHANGE_TYPE_REPLACE)
+                    updateCmd = new Cmd(Cmd.CMD_REPLACE);
+                else if (changeType == Record.CHANGE_TYPE_DELETE)
+                    updateCmd = new Cmd(Cmd.CMD_DELETE);
+                else if (changeType == Record.CHANGE_TYPE_MOVE)
+                    updateCmd = new Cmd(Cmd.CMD_MOVE);
+                else if (changeType == Record.CHANGE_TYPE_COPY)
+                    updateCmd = new Cmd(Cmd.CMD_COPY);
+                else
+                    throw new SyncException("invalid change type '" + changeType + "' specified for record '" + record.getLocalId() + "'");
+                updateCmd.messageId = outMessageId;
+                updateCmd.commandId = outCommandId++;
+                updateCmd.parentCmd = storeState.outSyncCmd;
+
+                if (sendContent)
+                {
+                    updateCmd.metinf = new Metinf();
+                    updateCmd.metinf.contentType = record.getContentType().toString();
+
+                    if (changeType == Record.CHANGE_TYPE_REPLACE)
+                        updateCmd.metinf.fieldLevelReplace = record.isFieldLevelReplace();
+
+                    if ( (moreData) && (storeState.outChunkedBytesSent <= 0) )
+                        updateCmd.metinf.size = dataSize;
+                    else if (sendRemainingSize)
+                        updateCmd.metinf.size = dataSize - storeState.outChunkedBytesSent;
+                }
+
+                SyncItem updateItem = new SyncItem();
+                updateItem.sourceUri = record.getLocalId();
+                updateItem.sourceParentUri = record.getParentId();
+                if (changeType == Record.CHANGE_TYPE_COPY)
+                {
+                    updateItem.targetUri = record.getTargetId();
+                    updateItem.targetParentUri = record.getTargetParentId();
+                }
+                if (sendContent)
+                {
+                    //read the data straight into the shared data buffer
+                    updateItem.data = getDataBuffer(chunkSize);
+                    updateItem.dataOffset = outDataBufferPos;
+                    updateItem.dataLength = chunkSize;
+                    long readStart = System.currentTimeMillis();
+                    int readCount = record.getData(updateItem.data, updateItem.dataOffset, chunkSize);
+                    addNestedPhaseTime(storeState.metrics, SyncMetrics.PHASE_RECORD_READ, readStart, 0);
+                    if (readCount != chunkSize)
+                        throw new SyncException("unexpected data size while reading record '" + record.getLocalId() + "'");
+                    outDataBufferPos += chunkSize;
+
+                    storeState.outChunkedBytesSent += chunkSize;
+                    storeState.outChunkedDataHash = updateDataHash(storeState.outChunkedDataHash, updateItem.data, updateItem.dataOffset, chunkSize);
+                    updateItem.totalSize = dataSize;
+                    updateItem.chunkedBytesSent = storeState.outChunkedBytesSent;
+                    updateItem.dataHash = storeState.outChunkedDataHash;
+                    if (storeState.outChunkedBytesSent < dataSize)
+                        updateItem.moreData = true;
+                    if ( (updateItem.moreData) || (storeState.outChunkedBytesSent > chunkSize) )
                     {
-                    	log.info("Current record number:"+ (++num));
+                        outUpdateChunkCount++;
+                        storeState.metrics.addChunkSent();
                     }
-                    //move on to the next record
-                    outRecord.close();
-                    outRecord = null;
                 }
+                updateCmd.items.addElement(updateItem);
+                cpSyncml.writeCommand(outputStream, updateCmd);
+                addPendingUpdate(updateCmd, storeState.store);
+                recordSent = true;
+
+                //nothing more to do for this message if we need to send more chunks
+                if (updateItem.moreData)
+                {
+                    cpSyncml.writeCommandEnd(outputStream, storeState.outSyncCmd);
+                    return UPDATES_MSG_FULL;
+                }
+
+                if(log!= null)
+                {
+                	log.info("Current record number:"+ (++num));
+                }
+                //move on to the next record
+                record.close();
+                storeState.outRecord = null;
             }
-            
-            //move on to the next store
-            cpSyncml.writeCommandEnd(outputStream, outStoreState.outSyncCmd);
-            outStoreState = null;
+        }
+
+        //all the updates of the store have been sent
+        cpSyncml.writeCommandEnd(outputStream, storeState.outSyncCmd);
+        closeRecords(storeState);
+        if (outRestoredChunkStore == storeState)
+            outRestoredChunkId = null;
+        storeState.outUpdatesSent = true;
+
+        return UPDATES_SENT;
+    }
+    
+    /* Returns the records to be sent to the server for the specified store, using the records found by the early change detection if they still apply. */
+    private ConsumableStack getOutgoingRecords(RecordStoreState storeState, boolean allRecords)
+        throws StoreException
+    {
+        ConsumableStack records = storeState.detectedRecords;
+        storeState.detectedRecords = null;
+        if (records != null)
+        {
+            if (storeState.detectedAllRecords == allRecords)
+            {
+                if (log != null)
+                    log.debug(LOG_PREFIX + "Using the records found by the early change detection for store '" + storeState.store.getClientURI() + "'");
+                return records;
+            }
+            
+            if (log != null)
+                log.info(LOG_PREFIX + "Sync type of store '" + storeState.store.getClientURI() + "' was changed by the server - determining the records to send again");
         }
         
-        //don't send the final message of the package if there are still updates to be acknowledged by the server
-        if (outPendingUpdateCmds.size() > 0)
-            return false;
+        long detectStart = System.currentTimeMillis();
+        try
+        {
+            if (allRecords)
+                return storeState.store.getAllRecords();
+            
+            return storeState.store.getChangedRecords();
+        }
+        finally
+        {
+            addNestedPhaseTime(storeState.metrics, SyncMetrics.PHASE_CHANGE_DETECTION, detectStart, 1);
+        }
+    }
+    
+    /* Starts determining the records to be sent to the server for each store in the background, based on the sync type requested by the client. */
+    private void startChangeDetection()
+    {
+        if (log != null)
+            log.info(LOG_PREFIX + "Determining the records to send while waiting for the server initialization package");
         
-        //client update package completed - expect server to send its update package
-        sessionState = Session.STATE_SERVER_UPDATES;
-
-        //finished the client update package
-        return true;
+        changeDetectionStarted = true;
+        changeDetectionThread = new Thread()
+        {
+            public void run()
+            {
+                detectChanges();
+            }
+        };
+        changeDetectionThread.start();
+    }
+    
+    /* Determines the records to be sent to the server for each store (called from the change detection thread). */
+    private void detectChanges()
+    {
+        for (int i = 0; i < storeStates.length; i++)
+        {
+            //ignore record stores whose sync session has already failed
+            RecordStoreState storeState = storeStates[i];
+            if (! storeState.sessionSuccess)
+                continue;
+            
+            long detectStart = System.currentTimeMillis();
+            try
+            {
+                //only the records of those sync types where the client sends its records are needed
+                int syncType = storeState.store.getSyncType();
+                if ( (syncType == SyncML.SYNC_TYPE_TWO_WAY) || (syncType == SyncML.SYNC_TYPE_ONE_WAY_CLIENT) )
+                {
+                    storeState.detectedRecords = storeState.store.getChangedRecords();
+                    storeState.detectedAllRecords = false;
+                }
+                else if ( (syncType == SyncML.SYNC_TYPE_TWO_WAY_SLOW) || (syncType == SyncML.SYNC_TYPE_REFRESH_CLIENT) )
+                {
+                    storeState.detectedRecords = storeState.store.getAllRecords();
+                    storeState.detectedAllRecords = true;
+                }
+            }
+            catch (Throwable e)
+            {
+                //the records will be determined again when they are needed
+                if (log != null)
+                    log.warn(LOG_PREFIX + "Failed to determine the records to send for store '" + storeState.store.getClientURI() + "' in the background - " + e);
+                storeState.detectedRecords = null;
+            }
+            
+            //the change detection runs alongside the session, so it isn't part of the message being encoded or parsed
+            if (storeState.detectedRecords != null)
+                storeState.metrics.addPhaseTime(SyncMetrics.PHASE_CHANGE_DETECTION, System.currentTimeMillis() - detectStart, 1);
+        }
+    }
+    
+    /* Waits for the background change detection (if any) to finish, so that the stores are only used from the session thread again. */
+    private void awaitChangeDetection()
+    {
+        if (changeDetectionThread == null)
+            return;
+        
+        try
+        {
+            changeDetectionThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            //ignore
+        }
+        changeDetectionThread = null;
+    }
+    
+    /* Returns whether or not there are more records to be sent to the server for the specified store. */
+    private boolean hasMoreRecords(RecordStoreState storeState)
+    {
+        if (storeState.outPrefetcher != null)
+            return (! storeState.outPrefetcher.empty());
+        
+        return (! storeState.outRecords.empty());
+    }
+    
+    /* Returns the next record to be sent to the server for the specified store, or null if there are no more records. */
+    private Record consumeRecord(RecordStoreState storeState)
+    {
+        long readStart = System.currentTimeMillis();
+        if (storeState.outPrefetcher != null)
+        {
+            //the prefetcher adds the time spent reading the records to the metrics itself - the time spent 
+            //waiting for the next record is simply excluded from the message being encoded
+            Record record = storeState.outPrefetcher.consume();
+            nestedPhaseTime += System.currentTimeMillis() - readStart;
+            return record;
+        }
+        
+        Record record = (Record)storeState.outRecords.consume();
+        addNestedPhaseTime(storeState.metrics, SyncMetrics.PHASE_RECORD_READ, readStart, (record != null) ? 1 : 0);
+        return record;
+    }
+    
+    /* Releases the records to be sent to the server for the specified store, stopping any background preparation of the records. */
+    private void closeRecords(RecordStoreState storeState)
+    {
+        for (int i = 0; i < storeState.outDeferredRecords.size(); i++)
+            ((Record)storeState.outDeferredRecords.elementAt(i)).close();
+        storeState.outDeferredRecords.removeAllElements();
+        
+        if (storeState.outPrefetcher != null)
+        {
+            storeState.outPrefetcher.close();
+            storeState.outPrefetcher = null;
+        }
+        
+        storeState.outRecords = null;
+        if (storeState.outRecord != null)
+        {
+            storeState.outRecord.close();
+            storeState.outRecord = null;
+        }
+        storeState.outChunkedBytesSent = 0;
+        storeState.outChunkedDataHash = DATA_HASH_OFFSET;
+    }
+    
+    /* Adapts the maximum message size based on the measurements of the last message exchange (if required). */
+    private void adaptMsgSize(long bytesSent, long bytesReceived, long exchangeTime)
+    {
+        if (msgSizeController == null)
+            return;
+        
+        if (msgSizeController.onExchange(bytesSent, bytesReceived, exchangeTime))
+            msgSizeChanged();
+        else if (log != null)
+            log.debug(LOG_PREFIX + "Exchanged " + bytesSent + "/" + bytesReceived + " bytes in " + exchangeTime + "ms - keeping maximum message size of " + maxMsgSize);
+    }
+    
+    /* Applies the maximum message size chosen by the message size controller and notifies the listener. */
+    private void msgSizeChanged()
+    {
+        long oldSize = maxMsgSize;
+        maxMsgSize = msgSizeController.getMsgSize();
+        if (maxMsgSize == oldSize)
+            return;
+        
+        if (log != null)
+            log.info(LOG_PREFIX + "Changed maximum message size from " + oldSize + " to " + maxMsgSize + " (last round-trip time " + msgSizeController.getLastRoundTripTime() + "ms, throughput " + msgSizeController.getLastThroughput() + " bytes/s)");
+        syncManager.getSyncListener().onMaxMsgSizeChange(maxMsgSize, msgSizeController.getLastRoundTripTime(), msgSizeController.getLastThroughput());
+    }
+    
+    /* Returns the buffer that the data of the next outgoing item should be placed in (at "outDataBufferPos"). */
+    private byte[] getDataBuffer(int size)
+    {
+        //the buffer can be reused from the start once no pending items refer to it (i.e. they have been acknowledged 
+        //by the server or their data can be retrieved from the store again)
+        if (outPendingDataCount <= 0)
+            outDataBufferPos = 0;
+        
+        if ( (outDataBuffer == null) || ((outDataBuffer.length - outDataBufferPos) < size) )
+        {
+            //allocate a bigger buffer - any pending items will continue to refer to the old one
+            int newSize = (outDataBuffer != null) ? (outDataBuffer.length * 2) : DATA_BUFFER_SIZE;
+            if (newSize > maxMsgSize)
+                newSize = (int)maxMsgSize;
+            if (newSize < size)
+                newSize = size;
+            
+            outDataBuffer = new byte[newSize];
+            outDataBufferPos = 0;
+        }
+        
+        return outDataBuffer;
+    }
+    
+    /* Reads (and discards) the specified number of bytes from the start of the data of the specified record. */
+    private long skipRecordData(Record record, long length)
+        throws SyncException
+    {
+        long hash = DATA_HASH_OFFSET;
+        byte[] buffer = new byte[ (int)Math.min(length, DATA_BUFFER_SIZE) ];
+        while (length > 0)
+        {
+            int readSize = (int)Math.min(length, buffer.length);
+            if (record.getData(buffer, 0, readSize) != readSize)
+                throw new SyncException("unexpected data size while reading record '" + record.getLocalId() + "'");
+            hash = updateDataHash(hash, buffer, 0, readSize);
+            length -= readSize;
+        }
+        
+        return hash;
+    }
+    
+    /* Returns the specified hash updated with the specified data. */
+    private static long updateDataHash(long hash, byte[] data, int offset, int length)
+    {
+        for (int i = offset; i < offset + length; i++)
+        {
+            hash ^= (data[i] & 0xFF);
+            hash *= DATA_HASH_PRIME;
+        }
+        
+        return hash;
     }
     
     /* Send any pending client update commands to the server via the specified output stream. */
     private int retryPendingClientUpdates(CountingOutputStream outputStream, SyncMLCodepage cpSyncml)
-        throws WbxmlException, IOException
+        throws SyncException, WbxmlException, IOException
     {
         if (log != null)
             log.info(LOG_PREFIX + "Resending any pending client update commands to the server");
         
-        //resend any pending update commands (i.e. commands that we didn't get a Status for)        
+        //resend any pending update commands (i.e. commands that we didn't get a Status for) in the order they were sent
+        Cmd[] pendingCmds = getPendingUpdates();
         Cmd syncCmd = null;
         int pendingUpdateCount = 0;
-        for (int i = 0; i < outPendingUpdateCmds.size(); i++)
+        for (int i = 0; i < pendingCmds.length; i++)
         {
-            Cmd cmd = (Cmd)outPendingUpdateCmds.elementAt(i);
+            Cmd cmd = pendingCmds[i];
             if ( (cmd.parentCmd == null) || (! cmd.parentCmd.command.equals(Cmd.CMD_SYNC)) )
                 continue;
             
+            //the command will be resent with a new ID
+            removePendingUpdate(cmd.messageId, cmd.commandId);
+            
+            //retrieve the data of the command from the store again if we didn't hold on to it
+            RecordStoreState storeState = getRecordStore(cmd.parentCmd.sourceUri);
+            SyncItem cmdItem = (cmd.items.size() > 0) ? (SyncItem)cmd.items.elementAt(0) : null;
+            if ( (storeState == null) || ((cmdItem != null) && (cmdItem.data == null) && (cmdItem.dataLength > 0) && (! refetchItemData(storeState, cmd, cmdItem))) )
+                continue;
+            
             //send the start of the Sync command for the current update command
             if ( (syncCmd == null) || (! syncCmd.sourceUri.equals(cmd.parentCmd.sourceUri)) )
             {
@@ -2220,14 +3412,15 @@ public class Session implements Runnable
             //send the current update command
             cmd.messageId = outMessageId;
             cmd.commandId = outCommandId++;
-            if (cmd.items.size() > 0)
+            if (cmdItem != null)
             {
                 //if sending chunked data, recalculate the remaining size
-                SyncItem cmdItem = (SyncItem)cmd.items.elementAt(0);
                 if ( (cmd.metinf != null) && (cmdItem.data != null) )
-                    cmd.metinf.size = cmdItem.totalSize - (cmdItem.chunkedBytesSent - cmdItem.data.length);
+                    cmd.metinf.size = cmdItem.totalSize - (cmdItem.chunkedBytesSent - cmdItem.getDataLength());
             }
             cpSyncml.writeCommand(outputStream, cmd);
+            addPendingUpdate(cmd, storeState.store);
+            storeState.metrics.addRetry();
             pendingUpdateCount++;
         }
 
@@ -2243,15 +3436,14 @@ public class Session implements Runnable
     /* Handles the result of a client update command that was previously sent to the server - returns TRUE if the client update is complete. */
     private boolean onClientUpdateResult(String localId, Status status)
     {
+        RecordStoreState updateStore = null;
         if (status != null)
         {
             //remove the associated pending update command (so that it won't be retried if the session is suspended/resumed)
-            int index = indexOfCommand(status.refMessageId, status.refCommandId, outPendingUpdateCmds);
-            if (index >= 0)
-            {
-                outPendingUpdateCmds.removeElementAt(index);
-            }
-            else
+            Cmd pendingCmd = removePendingUpdate(status.refMessageId, status.refCommandId);
+            if ( (pendingCmd != null) && (pendingCmd.parentCmd != null) )
+                updateStore = getRecordStore(pendingCmd.parentCmd.sourceUri);
+            if (pendingCmd == null)
             {
                 if (log != null)
                     log.warn(LOG_PREFIX + "Failed to find pending client update command with message ID '" + status.refMessageId + "' and command ID '" + status.refCommandId + "'");
@@ -2266,11 +3458,19 @@ public class Session implements Runnable
             }
         }
         
-        //clear the current record as we're done with it
-        if ( (outRecord != null) && (outRecord.getLocalId().equals(localId)) )
+        //clear the current record as we're done with it - local IDs are only unique within a store, so only the 
+        //store which sent the update is checked if it is known
+        for (int i = 0; i < storeStates.length; i++)
         {
-            outRecord.close();
-            outRecord = null;
+            Record record = storeStates[i].outRecord;
+            if ( (updateStore != null) && (updateStore != storeStates[i]) )
+                continue;
+            
+            if ( (record != null) && (record.getLocalId().equals(localId)) )
+            {
+                record.close();
+                storeStates[i].outRecord = null;
+            }
         }
         
         return true;
@@ -2363,17 +3563,153 @@ public class Session implements Runnable
         }
     }
 
-    /* Returns the index of the command with the specified message/command ID in the specified collection. */
-    private int indexOfCommand(int messageId, int commandId, Vector commands)
+    /* Adds the specified client update command (which has just been sent to the server) to the pending update commands. */
+    private void addPendingUpdate(Cmd cmd, RecordStore store)
+    {
+        //there is no need to hold on to the data of the command if it can be retrieved from the store again
+        SyncItem cmdItem = (cmd.items.size() > 0) ? (SyncItem)cmd.items.elementAt(0) : null;
+        if ( (cmdItem != null) && (cmdItem.data != null) )
+        {
+            if (store instanceof ResumableRecordStore)
+                cmdItem.data = null;
+            else
+                outPendingDataCount++;
+        }
+        
+        outPendingUpdateCmds.put(getCommandKey(cmd.messageId, cmd.commandId), cmd);
+    }
+    
+    /* Removes the pending client update command with the specified message/command ID - returns the command or null if it isn't pending. */
+    private Cmd removePendingUpdate(int messageId, int commandId)
+    {
+        Cmd cmd = (Cmd)outPendingUpdateCmds.remove( getCommandKey(messageId, commandId) );
+        if ( (cmd != null) && (cmd.items.size() > 0) && (((SyncItem)cmd.items.elementAt(0)).data != null) )
+            outPendingDataCount--;
+        
+        return cmd;
+    }
+    
+    /* Returns the pending client update commands in the order in which they were sent. */
+    private Cmd[] getPendingUpdates()
+    {
+        //insertion sort - there are never more pending commands than fit in a message or two
+        Cmd[] cmds = new Cmd[ outPendingUpdateCmds.size() ];
+        int count = 0;
+        for (Enumeration e = outPendingUpdateCmds.elements(); e.hasMoreElements(); )
+        {
+            Cmd cmd = (Cmd)e.nextElement();
+            int i = count++;
+            while ( (i > 0) && ((cmds[i - 1].messageId > cmd.messageId) || ((cmds[i - 1].messageId == cmd.messageId) && (cmds[i - 1].commandId > cmd.commandId))) )
+            {
+                cmds[i] = cmds[i - 1];
+                i--;
+            }
+            cmds[i] = cmd;
+        }
+        
+        return cmds;
+    }
+    
+    /* Returns the key identifying the command with the specified message/command ID. */
+    private static Long getCommandKey(int messageId, int commandId)
+    {
+        return new Long( (((long)messageId) << 32) | (commandId & 0xFFFFFFFFL) );
+    }
+    
+    /* Reads the data of the specified pending client update item from the record store again - returns FALSE if the update shouldn't be resent. */
+    private boolean refetchItemData(RecordStoreState storeState, Cmd cmd, SyncItem item)
+        throws SyncException
+    {
+        Record record = null;
+        long readStart = System.currentTimeMillis();
+        try
+        {
+            //the record must still exist
+            record = ((ResumableRecordStore)storeState.store).getRecord(item.sourceUri);
+            if (record == null)
+            {
+                if (log != null)
+                    log.warn(LOG_PREFIX + "Record '" + item.sourceUri + "' has been deleted - not resending client update");
+                return false;
+            }
+            
+            //read the data of the chunk that was sent (which is all the data if the record wasn't chunked) - the data 
+            //before the chunk must also be the same as the data that was sent
+            if (record.getDataSize() == item.totalSize)
+            {
+                long hash = skipRecordData(record, item.chunkedBytesSent - item.dataLength);
+                byte[] data = getDataBuffer(item.dataLength);
+                if (record.getData(data, outDataBufferPos, item.dataLength) != item.dataLength)
+                    throw new SyncException("unexpected data size while reading record '" + item.sourceUri + "'");
+                
+                //a record which wasn't chunked can simply be sent with its current data
+                if ( (item.dataLength >= item.totalSize) || (updateDataHash(hash, data, outDataBufferPos, item.dataLength) == item.dataHash) )
+                {
+                    item.data = data;
+                    item.dataOffset = outDataBufferPos;
+                    outDataBufferPos += item.dataLength;
+                    return true;
+                }
+            }
+            record.close();
+            record = null;
+            
+            //the record has been modified since it was sent - rather than mixing the data of both versions, the record 
+            //is sent again from the start
+            if (log != null)
+                log.warn(LOG_PREFIX + "Record '" + item.sourceUri + "' has been modified - sending it again from the start instead of resending client update");
+            restartRecord(storeState, cmd, item.sourceUri);
+            return false;
+        }
+        catch (StoreException e)
+        {
+            if (log != null)
+                log.error(LOG_PREFIX + "Failed to retrieve record '" + item.sourceUri + "' - not resending client update", e);
+            return false;
+        }
+        finally
+        {
+            if (record != null)
+                record.close();
+            addNestedPhaseTime(storeState.metrics, SyncMetrics.PHASE_RECORD_READ, readStart, 1);
+        }
+    }
+    
+    /* Queues the specified record to be sent to the server again from the start, instead of resending the specified client update. */
+    private void restartRecord(RecordStoreState storeState, Cmd cmd, String localId)
+        throws StoreException
     {
-        for (int i = 0; i < commands.size(); i++)
+        Record record = ((ResumableRecordStore)storeState.store).getRecord(localId);
+        if (record == null)
+            return;
+        
+        //stop sending the rest of the data of the old version of the record (if it's still being sent)
+        if ( (storeState.outRecord != null) && (localId.equals(storeState.outRecord.getLocalId())) )
         {
-            Cmd cmd = (Cmd)commands.elementAt(i);
-            if ( (cmd.messageId == messageId) && (cmd.commandId == commandId) )
-                return i;
+            storeState.outRecord.close();
+            storeState.outRecord = null;
+            storeState.outChunkedBytesSent = 0;
         }
+        if ( (outRestoredChunkStore == storeState) && (localId.equals(outRestoredChunkId)) )
+            outRestoredChunkId = null;
         
-        return -1;
+        //the record is sent before any other records of the store (or on its own if all of them have already been sent)
+        int changeType = (Cmd.CMD_REPLACE.equals(cmd.command)) ? Record.CHANGE_TYPE_REPLACE : Record.CHANGE_TYPE_ADD;
+        boolean fieldLevelReplace = ( (cmd.metinf != null) && (cmd.metinf.fieldLevelReplace) );
+        storeState.outDeferredRecords.insertElementAt(new RestartedRecord(record, changeType, fieldLevelReplace), 0);
+        if (storeState.outUpdatesSent)
+        {
+            storeState.outUpdatesSent = false;
+            storeState.outRecords = new ConsumableStack();
+        }
+    }
+    
+    /* Adds the time elapsed since the specified start time to the specified phase, as time spent within the message being encoded or parsed. */
+    private void addNestedPhaseTime(SyncMetrics metrics, int phase, long startTime, int count)
+    {
+        long time = System.currentTimeMillis() - startTime;
+        metrics.addPhaseTime(phase, time, count);
+        nestedPhaseTime += time;
     }
     
     /* Resets the state of the sync session. */
@@ -2381,6 +3717,12 @@ public class Session implements Runnable
     {
         sessionState = Session.STATE_CLIENT_INIT;
         maxMsgSize = syncManager.getTransport().getMaxMsgSize();
+        msgSizeController = null;
+        if (syncManager.getAdaptiveMaxMsgSize() > 0)
+        {
+            msgSizeController = new MsgSizeController(maxMsgSize, syncManager.getAdaptiveMinMsgSize(), syncManager.getAdaptiveMaxMsgSize());
+            maxMsgSize = msgSizeController.getMsgSize();
+        }
         stopSession = false;
         sessionStopped = false;
         sessionStatusCode = 0;
@@ -2392,6 +3734,7 @@ public class Session implements Runnable
         suspendedSessionState = 0;
         for (int i = 0; i < storeStates.length; i++)
         {
+            closeRecords(storeStates[i]);
             storeStates[i].resetState();
             storeStates[i].maxRecordSize = storeStates[i].store.getCapabilities().getMaxRecordSize();
         }
@@ -2402,23 +3745,49 @@ public class Session implements Runnable
         inServerChal = null;
         inChunkedItem = null;
         inActiveStore = null;
+        inBatchEntries = new Vector();
         
         outMessageId = 1;
         outCommandId = 1;
         outClientChal = null;
         outStatusCmds = new Vector();
         outReplyCmds = new Vector();
-        outPendingUpdateCmds = new Vector();
+        outPendingUpdateCmds = new Hashtable();
+        outPendingDataCount = 0;
         outMapCmd = null;
+        outResumedMapCmds = new Vector();
         outClientAuthCount = 0;
-        outStoreState = null;
-        outRecords = null;
-        if (outRecord != null)
+        outDataBuffer = null;
+        outDataBufferPos = 0;
+        outWriter.setStringTableEnabled(syncManager.isStringTableEnabled());
+        outCompactStatus = syncManager.isCompactStatusEnabled();
+        inPipelineSize = syncManager.getParsePipelineSize();
+        outPrefetchThreads = syncManager.getPrefetchThreadCount();
+        outPrefetchLimit = syncManager.getPrefetchLimit();
+        detectChangesEarly = syncManager.isEarlyChangeDetectionEnabled();
+        outPackingWindow = syncManager.getPackingWindow();
+        outScheduling = syncManager.getUpdateScheduling();
+        outScheduleStart = 0;
+        outUpdateMsgCount = 0;
+        outUpdateChunkCount = 0;
+        outUpdateMsgBytes = 0;
+        outUpdateMsgCapacity = 0;
+        changeDetectionStarted = false;
+        changeDetectionThread = null;
+        outRestoredChunkStore = null;
+        outRestoredChunkId = null;
+        outRestoredChunkSize = 0;
+        outRestoredChunkBytesSent = 0;
+        checkpointSpool = syncManager.getCheckpointSpool();
+        outDevinfHash = 0;
+        devinfCache = null;
+        serverCapabilities = null;
+        DataSpool devinfCacheSpool = syncManager.getDevInfCache();
+        if (devinfCacheSpool != null)
         {
-            outRecord.close();
-            outRecord = null;
+            devinfCache = new DevInfCache(devinfCacheSpool, log);
+            serverCapabilities = devinfCache.getServerCapabilities(syncManager.getTransport().getTargetURI());
         }
-        outChunkedBytesSent = 0;
         
         if(log!= null)
         	log.debug(LOG_PREFIX + "Device Maximum message size is: " + maxMsgSize);
@@ -2434,6 +3803,9 @@ public class Session implements Runnable
         
         //initialize the session state
         resetSession();
+        
+        //any checkpoint of an earlier session can no longer be resumed
+        deleteCheckpoint();
 
         //notify the listener that the session is starting
         syncManager.getSyncListener().onSyncStart();
@@ -2458,6 +3830,8 @@ public class Session implements Runnable
             for (int i = 0; i <= startedIndex; i++)
                 syncStores[i].onSyncEnd(false, sessionStatusCode, sessionStatusData);
 
+            sessionMetrics.end();
+            syncManager.getSyncListener().onSyncMetrics(sessionMetrics);
             syncManager.getSyncListener().onSyncEnd(false, sessionStatusCode, sessionStatusData);
             
             sessionStopped = true;
@@ -2515,28 +3889,15 @@ public class Session implements Runnable
         storeState.sessionStatusData = statusData;
 
         //clear any outgoing data associated with this store
-        if ( (outStoreState != null) && (outStoreState.store.getClientURI().equals(storeState.store.getClientURI())) )
-        {
-            outStoreState = null;
-            outRecords = null;
-            if (outRecord != null)
-            {
-                outRecord.close();
-                outRecord = null;
-            }
-            outChunkedBytesSent = 0;
-        }
+        closeRecords(storeState);
         
         //clear any pending client update commands for this store
-        for (int i = 0; i < outPendingUpdateCmds.size(); )
+        Cmd[] pendingCmds = getPendingUpdates();
+        for (int i = 0; i < pendingCmds.length; i++)
         {
-            Cmd cmd = (Cmd)outPendingUpdateCmds.elementAt(i);
+            Cmd cmd = pendingCmds[i];
             if ( (cmd.parentCmd != null) && (cmd.parentCmd.sourceUri != null) && (cmd.parentCmd.sourceUri.equals(storeState.store.getClientURI())) )
-            {
-                outPendingUpdateCmds.removeElementAt(i);
-                continue;
-            }
-            i++;
+                removePendingUpdate(cmd.messageId, cmd.commandId);
         }            
 
         //clear any incoming data associated with this store
@@ -2545,12 +3906,23 @@ public class Session implements Runnable
             inActiveStore = null;
             inSyncCmd = null;
             inChunkedItem = null;
+            inBatchEntries.removeAllElements();
         }
     }    
     
     /* Handles the case where the session is stopped. */
     private void sessionStopped(boolean success)
     {
+        awaitChangeDetection();
+        
+        //stop any background preparation of records before the stores are notified, so that the stores are only used 
+        //from the session thread again
+        for (int i = 0; i < storeStates.length; i++)
+            closeRecords(storeStates[i]);
+        
+        //the next session starts by sending messages to the target URI again
+        setResponseUri(null);
+        
         //notify each record store that the session is finished
         for (int i = 0; i < storeStates.length; i++)
         {
@@ -2572,14 +3944,63 @@ public class Session implements Runnable
             storeStates[i].store.onSyncEnd(sessionSuccess, statusCode, statusData);
         }
 
-        //also notify the listener that the session is finished
+        //also notify the listener that the session is finished (reporting the metrics of the session first)
+        sessionMetrics.end();
+        syncManager.getSyncListener().onSyncMetrics(sessionMetrics);
         syncManager.getSyncListener().onSyncEnd(success, sessionStatusCode, sessionStatusData);
         
+        if ( (log != null) && (outWriter.isStringTableEnabled()) )
+            log.info(LOG_PREFIX + "String tables saved " + outWriter.getStringTableBytesSaved() + " bytes using " + outWriter.getStringTableRefCount() + " references");
+        if ( (log != null) && (sessionMetrics.getStatusBytesSaved() > 0) )
+            log.info(LOG_PREFIX + "Coalesced and compact Status commands saved " + sessionMetrics.getStatusBytesSaved() + " bytes");
+        if ( (log != null) && (outUpdateMsgCount > 0) )
+            log.info(LOG_PREFIX + "Sent client updates in " + outUpdateMsgCount + " messages (" + getClientUpdateFillRatio() + "% full on average) including " + outUpdateChunkCount + " chunks");
+        
         //cleanup
+        deleteCheckpoint();
         resetSession();
         sessionStopped = true;
     }
     
+    /* Returns the timing and volume metrics collected during the session. */
+    public SyncMetrics getMetrics()
+    {
+        return sessionMetrics;
+    }
+    
+    /* Returns the capabilities of the server (if known). */
+    public ServerCapabilities getServerCapabilities()
+    {
+        return serverCapabilities;
+    }
+    
+    /* Returns the number of bytes saved by using string tables in the outgoing messages of the session. */
+    public long getStringTableBytesSaved()
+    {
+        return outWriter.getStringTableBytesSaved();
+    }
+    
+    /* Returns the number of messages containing client updates that have been sent during the session. */
+    public int getClientUpdateMessageCount()
+    {
+        return outUpdateMsgCount;
+    }
+    
+    /* Returns the number of client update chunks (i.e. parts of records too large to fit in a single message) that have been sent during the session. */
+    public int getClientUpdateChunkCount()
+    {
+        return outUpdateChunkCount;
+    }
+    
+    /* Returns how full (as a percentage of the maximum message size) the messages containing client updates were on average. */
+    public int getClientUpdateFillRatio()
+    {
+        if (outUpdateMsgCapacity <= 0)
+            return 0;
+        
+        return (int)((outUpdateMsgBytes * 100) / outUpdateMsgCapacity);
+    }
+    
     /* Requests that the sync session be suspended. */
     public synchronized boolean suspendSession()
     {
@@ -2619,9 +4040,17 @@ public class Session implements Runnable
     /* Handles the case where the session is suspended (either intentionally or unintentionally). */
     private void sessionSuspended()
     {
+        awaitChangeDetection();
+        
+        //the server will specify a new response URI (if any) when the session is resumed
+        setResponseUri(null);
+        
         suspendSession = false;
         sessionSuspended = true;
         
+        //save the state of the suspended session so that it can still be resumed if the application is terminated
+        saveCheckpoint(false);
+        
         //notify each record store that the session is suspended
         for (int i = 0; i < syncStores.length; i++)
             syncStores[i].onSyncSuspend();
@@ -2630,6 +4059,26 @@ public class Session implements Runnable
         syncManager.getSyncListener().onSyncSuspend();
     }    
     
+    /* Redirects the rest of the session's messages to the specified URI (or back to the target URI if null). */
+    private void setResponseUri(String uri)
+    {
+        if ( (uri == null) ? (responseUri == null) : (uri.equals(responseUri)) )
+            return;
+        
+        responseUri = uri;
+        Transport transport = syncManager.getTransport();
+        if (! (transport instanceof RedirectableTransport))
+        {
+            if ( (log != null) && (uri != null) )
+                log.debug(LOG_PREFIX + "Ignoring response URI '" + uri + "' as the transport can't be redirected");
+            return;
+        }
+        
+        if (log != null)
+            log.info(LOG_PREFIX + "Sending messages to " + ((uri != null) ? "response URI '" + uri + "'" : "the target URI"));
+        ((RedirectableTransport)transport).setResponseURI(uri);
+    }
+    
     /* Returns whether or not the session is currently suspended. */
     public synchronized boolean isSuspended()
     {
@@ -2669,9 +4118,26 @@ public class Session implements Runnable
         outClientAuthCount = 0;
         inServerAuthCount = 0;
 
-        //cleanup old data
+        //cleanup old data - any Maps which haven't been sent yet are kept until the server has accepted the resume
         outStatusCmds.removeAllElements();
+        for (int i = 0; i < outReplyCmds.size(); i++)
+        {
+            Cmd replyCmd = (Cmd)outReplyCmds.elementAt(i);
+            if (replyCmd.command.equals(Cmd.CMD_MAP))
+                outResumedMapCmds.addElement(replyCmd);
+        }
         outReplyCmds.removeAllElements();
+        if (outMapCmd != null)
+            outResumedMapCmds.addElement(outMapCmd);
+        outMapCmd = null;
+        
+        //the status of some processed items may never have reached the server, so their results must be kept until 
+        //the server has had the chance to resend them (the resumed session uses new message IDs)
+        for (int i = 0; i < storeStates.length; i++)
+        {
+            for (Enumeration e = storeStates[i].outItemResults.elements(); e.hasMoreElements(); )
+                ((ItemResult)e.nextElement()).messageId = Integer.MAX_VALUE;
+        }
         
         //resume the session - indicates that the next message to the server should contain a resume Alert
         resumeSession = true;
@@ -2709,129 +4175,429 @@ public class Session implements Runnable
         //notify the record store of the result of the resume request
         storeState.store.onResumeResult(statusCode, statusData);
         
+        //send any Maps for the store which the server may not have received before the session was suspended
+        for (int i = outResumedMapCmds.size() - 1; i >= 0; i--)
+        {
+            Cmd mapCmd = (Cmd)outResumedMapCmds.elementAt(i);
+            if (! clientUri.equals(mapCmd.sourceUri))
+                continue;
+            
+            outResumedMapCmds.removeElementAt(i);
+            if (SyncML.isSuccessStatus(statusCode))
+            {
+                if (log != null)
+                    log.info(LOG_PREFIX + "Resending " + mapCmd.mapItems.size() + " map(s) for record store '" + clientUri + "'");
+                mapCmd.messageId = outMessageId;
+                mapCmd.commandId = outCommandId++;
+                outReplyCmds.addElement(mapCmd);
+            }
+        }
+        
         //stop the session for the store if the the resume request has failed
         if (! SyncML.isSuccessStatus(statusCode))
             stopSession(storeState, statusCode, statusData);
     }
     
     
-    /* Runs the sync session as a separate thread. */
-    public void run()
+    /* Saves a checkpoint of the session state so that the session can be resumed after the application has been restarted. */
+    private void saveCheckpoint(boolean messagePending)
     {
-        //run the session
-        runSession();
-    }
-
-    /* Executes the sync session. */
-    private void runSession()
-    {
-        //try to start the session
-        if (! sessionStarting())
+        if (checkpointSpool == null)
             return;
-        //run the session until it is completed
-        while (sessionState != Session.STATE_COMPLETE)
+        
+        //the session can only be suspended once the client updates have started (see "suspendSession()") - there 
+        //is no point resuming a session which hasn't got that far as it can simply be started again
+        int state = (suspendedSessionState != 0) ? suspendedSessionState : sessionState;
+        if ( (state != STATE_CLIENT_UPDATES) && (state != STATE_SERVER_UPDATES) && (state != STATE_CLIENT_MAPS) )
         {
-            try
+            deleteCheckpoint();
+            return;
+        }
+        
+        boolean saved = false;
+        DataOutputStream outputStream = null;
+        try
+        {
+            outputStream = new DataOutputStream( checkpointSpool.openOutputStream() );
+            outputStream.writeInt(CHECKPOINT_MAGIC);
+            outputStream.writeInt(CHECKPOINT_VERSION);
+            outputStream.writeBoolean(messagePending);
+            outputStream.writeUTF(sessionId);
+            outputStream.writeUTF(syncManager.getTransport().getTargetURI());
+            outputStream.writeInt(state);
+            outputStream.writeLong(maxMsgSize);
+            
+            //write the state of each record store
+            outputStream.writeInt(storeStates.length);
+            for (int i = 0; i < storeStates.length; i++)
             {
-                //check if the session should be stopped due to an error - if so, there is no point trying 
-                //to send any status results back to the server
-                if ( (stopSession) && (! isCancelled()) )
+                RecordStoreState storeState = storeStates[i];
+                outputStream.writeUTF(storeState.store.getClientURI());
+                outputStream.writeInt(storeState.store.getSyncType());
+                writeString(outputStream, storeState.store.getLastAnchor());
+                outputStream.writeLong(storeState.maxRecordSize);
+                outputStream.writeBoolean(storeState.sessionSuccess);
+                outputStream.writeInt(storeState.sessionStatusCode);
+                writeString(outputStream, storeState.sessionStatusData);
+                
+                //write the results of the items already processed that the server may still resend
+                outputStream.writeInt(storeState.outItemResults.size());
+                for (Enumeration e = storeState.outItemResults.keys(); e.hasMoreElements(); )
                 {
-                    sessionStopped(false);
-                    return;
+                    String itemUri = (String)e.nextElement();
+                    ItemResult itemResult = (ItemResult)storeState.outItemResults.get(itemUri);
+                    outputStream.writeUTF(itemUri);
+                    outputStream.writeUTF(itemResult.command);
+                    outputStream.writeInt(itemResult.statusCode);
+                    writeString(outputStream, itemResult.localId);
                 }
-
-                //check if the session has been suspended (and we're not trying to resume it)
-                if ( (sessionSuspended || suspendSession) && (! resumeSession) )
+            }
+            
+            //write the Maps which haven't been sent yet - the status of the items they map is covered by the item results above
+            Vector mapCmds = new Vector();
+            for (int i = 0; i < outResumedMapCmds.size(); i++)
+                mapCmds.addElement(outResumedMapCmds.elementAt(i));
+            for (int i = 0; i < outReplyCmds.size(); i++)
+            {
+                Cmd replyCmd = (Cmd)outReplyCmds.elementAt(i);
+                if (replyCmd.command.equals(Cmd.CMD_MAP))
+                    mapCmds.addElement(replyCmd);
+            }
+            if (outMapCmd != null)
+                mapCmds.addElement(outMapCmd);
+            outputStream.writeInt(mapCmds.size());
+            for (int i = 0; i < mapCmds.size(); i++)
+            {
+                Cmd mapCmd = (Cmd)mapCmds.elementAt(i);
+                outputStream.writeUTF(mapCmd.sourceUri);
+                outputStream.writeUTF(mapCmd.targetUri);
+                outputStream.writeInt(mapCmd.mapItems.size());
+                for (int j = 0; j < mapCmd.mapItems.size(); j++)
                 {
-                    sessionSuspended();
-                    return;
+                    MapItem mapItem = (MapItem)mapCmd.mapItems.elementAt(j);
+                    outputStream.writeUTF(mapItem.sourceUri);
+                    outputStream.writeUTF(mapItem.targetUri);
                 }
+            }
+            
+            //write a reference to the record being sent in chunks (if any) - the record data itself will be retrieved from 
+            //the store again, so we only need to know how much of it the server has accepted
+            RecordStoreState chunkStore = outRestoredChunkStore;
+            String chunkId = outRestoredChunkId;
+            long chunkSize = outRestoredChunkSize;
+            long chunkBytesSent = outRestoredChunkBytesSent;
+            for (int i = 0; i < storeStates.length; i++)
+            {
+                //only one store at a time can be sending a record in chunks
+                Record record = storeStates[i].outRecord;
+                if ( (record == null) || (storeStates[i].outChunkedBytesSent <= 0) )
+                    continue;
                 
-//                //now the sync type is confirmed, prepare the contacts to sync
-//                if(sessionState == Session.STATE_CLIENT_UPDATES)
-//                {
-//                	for (int startedIndex = 0; startedIndex < syncStores.length; startedIndex++)
-//                        syncStores[startedIndex].onUpdateContacts();
-//                }
-
-                //get the output stream 
-                OutputStream outputStream = syncManager.getTransport().getOutputStream();
-                if (outputStream == null)
-                    throw new SyncException("no transport output stream specified");
-                
-                //send the next message using the output stream
-                syncManager.getSyncListener().onMessageSend();
-                sendMessage( new CountingOutputStream(outputStream) );
-                outMessageId++;
-                outCommandId = 1;
+                chunkStore = storeStates[i];
+                chunkId = record.getLocalId();
+                chunkSize = record.getDataSize();
+                chunkBytesSent = storeStates[i].outChunkedBytesSent;
                 
-                //get the input stream 
-                InputStream inputStream = syncManager.getTransport().getInputStream();
-                if (inputStream == null)
-                    throw new SyncException("no transport input stream specified");
-                String contentType = syncManager.getTransport().getContentType();
-                if ( (contentType == null) || (! contentType.equals(Transport.CONTENT_TYPE_WBXML)) )
-                    throw new SyncException("unknown or unsupported content type '" + contentType + "'");
-
-                //check if the session should be stopped due to a user request - we only check this 
-                //at this point to ensure that any status results have been returned to the server 
-                if ( (stopSession == true) && (isCancelled()) )
+                //a chunk which the server hasn't acknowledged yet must be sent again
+                for (Enumeration e = outPendingUpdateCmds.elements(); e.hasMoreElements(); )
                 {
-                    sessionStopped(false);
-                    return;
+                    Cmd cmd = (Cmd)e.nextElement();
+                    SyncItem cmdItem = (cmd.items.size() > 0) ? (SyncItem)cmd.items.elementAt(0) : null;
+                    if ( (cmdItem != null) && (cmdItem.dataLength > 0) && (chunkId.equals(cmdItem.sourceUri)) )
+                        chunkBytesSent = cmdItem.chunkedBytesSent - cmdItem.dataLength;
                 }
+            }
+            if ( (chunkStore != null) && (chunkId != null) )
+            {
+                outputStream.writeBoolean(true);
+                outputStream.writeUTF(chunkStore.store.getClientURI());
+                outputStream.writeUTF(chunkId);
+                outputStream.writeLong(chunkSize);
+                outputStream.writeLong(chunkBytesSent);
+            }
+            else
+            {
+                outputStream.writeBoolean(false);
+            }
+            
+            //finish with the magic number again so that incomplete checkpoints can be detected
+            outputStream.writeInt(CHECKPOINT_MAGIC);
+            outputStream.close();
+            outputStream = null;
+            saved = true;
+            
+            if (log != null)
+                log.debug(LOG_PREFIX + "Saved session checkpoint in state " + state);
+        }
+        catch (Throwable e)
+        {
+            if (log != null)
+                log.error(LOG_PREFIX + "Failed to save session checkpoint - discarding checkpoint", e);
+        }
+        finally
+        {
+            closeStream(outputStream);
+        }
+        
+        //an incomplete checkpoint is of no use
+        if (! saved)
+            deleteCheckpoint();
+    }
+    
+    /* Discards the last session checkpoint (if any). */
+    private void deleteCheckpoint()
+    {
+        if (checkpointSpool != null)
+            checkpointSpool.delete();
+    }
+    
+    /* Restores the state of the session from the last checkpoint saved in the specified storage - returns TRUE if the session was restored (and is now suspended). */
+    public boolean restoreCheckpoint(DataSpool spool)
+    {
+        if (log != null)
+            log.info(LOG_PREFIX + "Restoring the sync session from the last checkpoint");
+        
+        //initialize the session state
+        resetSession();
+        checkpointSpool = spool;
+        
+        //the session can only be restored if all the record stores support it
+        for (int i = 0; i < storeStates.length; i++)
+        {
+            if (! (storeStates[i].store instanceof ResumableRecordStore))
+            {
+                if (log != null)
+                    log.info(LOG_PREFIX + "Record store '" + storeStates[i].store.getClientURI() + "' can't be restored - discarding checkpoint");
+                deleteCheckpoint();
+                return false;
+            }
+        }
+        
+        int[] syncTypes = new int[storeStates.length];
+        String[] lastAnchors = new String[storeStates.length];
+        DataInputStream inputStream = null;
+        try
+        {
+            inputStream = new DataInputStream( spool.openInputStream() );
+            if ( (inputStream.readInt() != CHECKPOINT_MAGIC) || (inputStream.readInt() != CHECKPOINT_VERSION) )
+                throw new IOException("unknown checkpoint format");
+            if (inputStream.readBoolean())
+                throw new IOException("checkpoint was saved while server updates were being processed");
+            String checkpointSessionId = inputStream.readUTF();
+            if (! inputStream.readUTF().equals(syncManager.getTransport().getTargetURI()))
+                throw new IOException("checkpoint was saved for a different server");
+            int state = inputStream.readInt();
+            long checkpointMaxMsgSize = inputStream.readLong();
+            
+            //read the state of each record store - the same stores must be synced in the same order
+            int storeCount = inputStream.readInt();
+            if (storeCount != storeStates.length)
+                throw new IOException("checkpoint was saved for " + storeCount + " record stores");
+            for (int i = 0; i < storeCount; i++)
+            {
+                RecordStoreState storeState = storeStates[i];
+                String clientUri = inputStream.readUTF();
+                if (! clientUri.equals(storeState.store.getClientURI()))
+                    throw new IOException("checkpoint was saved for a different record store '" + clientUri + "'");
+                
+                syncTypes[i] = inputStream.readInt();
+                lastAnchors[i] = readString(inputStream);
+                storeState.maxRecordSize = inputStream.readLong();
+                storeState.sessionSuccess = inputStream.readBoolean();
+                storeState.sessionStatusCode = inputStream.readInt();
+                storeState.sessionStatusData = readString(inputStream);
                 
-                //read the servers response using the input stream
-                syncManager.getSyncListener().onMessageReceive();
-                readMessage(inputStream);
+                //the restored results must be kept until the server has had the chance to resend the items
+                for (int count = inputStream.readInt(); count > 0; count--)
+                    storeState.outItemResults.put(inputStream.readUTF(), new ItemResult(inputStream.readUTF(), inputStream.readInt(), readString(inputStream), Integer.MAX_VALUE));
             }
-            catch (IOException e)
+            
+            //read the Maps which haven't been sent yet - they are sent once the server has accepted the resume
+            for (int count = inputStream.readInt(); count > 0; count--)
             {
-                if (resumeSession)
-                {
-                    if (log != null)
-                        log.error(LOG_PREFIX + "Temporary error during sync session resume - session is still suspended", e);
-                    syncManager.getSyncListener().onSyncResume(false);
-                    
-                    //restore suspended state
-                    resumeSession = false;
-                    sessionResumed = false;
-                    sessionState = suspendedSessionState;
-                }
-                else if ( (sessionState == STATE_CLIENT_UPDATES) || (sessionState == STATE_SERVER_UPDATES) || (sessionState == STATE_CLIENT_MAPS) )
-                {
-                    if (log != null)
-                        log.error(LOG_PREFIX + "Temporary error during sync session - suspending the session", e);
-                    sessionSuspended();
-                }
-                else
+                Cmd mapCmd = new Cmd(Cmd.CMD_MAP);
+                mapCmd.sourceUri = inputStream.readUTF();
+                mapCmd.targetUri = inputStream.readUTF();
+                for (int itemCount = inputStream.readInt(); itemCount > 0; itemCount--)
                 {
-                    if (log != null)
-                        log.error(LOG_PREFIX + "Temporary error during sync session - ending the session", e);
-                    sessionStatusCode = SyncML.STATUS_SERVICE_UNAVAILABLE;
-                    sessionStatusData = null;
-                    sessionStopped(false);
+                    MapItem mapItem = new MapItem();
+                    mapItem.sourceUri = inputStream.readUTF();
+                    mapItem.targetUri = inputStream.readUTF();
+                    mapCmd.mapItems.addElement(mapItem);
                 }
+                outResumedMapCmds.addElement(mapCmd);
+            }
+            
+            //read the reference to the record being sent in chunks (if any)
+            if (inputStream.readBoolean())
+            {
+                outRestoredChunkStore = getRecordStore(inputStream.readUTF());
+                outRestoredChunkId = inputStream.readUTF();
+                outRestoredChunkSize = inputStream.readLong();
+                outRestoredChunkBytesSent = inputStream.readLong();
+            }
+            
+            if (inputStream.readInt() != CHECKPOINT_MAGIC)
+                throw new IOException("checkpoint is incomplete");
+            
+            sessionId = checkpointSessionId;
+            sessionState = state;
+            maxMsgSize = checkpointMaxMsgSize;
+            if (msgSizeController != null)
+            {
+                msgSizeController.setMsgSize(maxMsgSize);
+                maxMsgSize = msgSizeController.getMsgSize();
+            }
+        }
+        catch (IOException e)
+        {
+            //this is expected if there is no checkpoint or the application was terminated while it was being saved
+            if (log != null)
+                log.info(LOG_PREFIX + "No valid session checkpoint to restore (" + e.getMessage() + ") - discarding checkpoint");
+            deleteCheckpoint();
+            return false;
+        }
+        finally
+        {
+            closeStream(inputStream);
+        }
 
-                return;
+        int restoredIndex = 0;
+        try
+        {
+            //notify each record store that the session is being restored
+            for (restoredIndex = 0; restoredIndex < storeStates.length; restoredIndex++)
+                ((ResumableRecordStore)storeStates[restoredIndex].store).onSyncRestore(syncTypes[restoredIndex], lastAnchors[restoredIndex]);
+        }
+        catch (StoreException e)
+        {
+            if (log != null)
+                log.error(LOG_PREFIX + "Failed to restore the sync session for all record stores - discarding checkpoint", e);
+            
+            //shutdown any stores that have been restored
+            for (int i = 0; i <= restoredIndex; i++)
+                storeStates[i].store.onSyncEnd(false, e.getStatusCode(), e.getStatusData());
+            
+            deleteCheckpoint();
+            return false;
+        }
+        
+        if (log != null)
+            log.info(LOG_PREFIX + "Restored sync session '" + sessionId + "' in state " + sessionState);
+        
+        //the restored session is suspended until it is resumed
+        sessionSuspended = true;
+        return true;
+    }
+    
+    /* Writes the specified string (which may be null) to the specified stream. */
+    private static void writeString(DataOutputStream outputStream, String value)
+        throws IOException
+    {
+        outputStream.writeBoolean(value != null);
+        if (value != null)
+            outputStream.writeUTF(value);
+    }
+    
+    /* Reads a string (which may be null) from the specified stream. */
+    private static String readString(DataInputStream inputStream)
+        throws IOException
+    {
+        if (! inputStream.readBoolean())
+            return null;
+        
+        return inputStream.readUTF();
+    }
+    
+    /* Closes the specified input stream (if any), ignoring any errors. */
+    private static void closeStream(InputStream stream)
+    {
+        if (stream == null)
+            return;
+        
+        try
+        {
+            stream.close();
+        }
+        catch (IOException e)
+        {
+            //ignore
+        }
+    }
+    
+    /* Closes the specified output stream (if any), ignoring any errors. */
+    private static void closeStream(OutputStream stream)
+    {
+        if (stream == null)
+            return;
+        
+        try
+        {
+            stream.close();
+        }
+        catch (IOException e)
+        {
+            //ignore
+        }
+    }
+    
+    
+    /* Runs the sync session as a separate thread. */
+    public void run()
+    {
+        //run the session
+        runSession();
+    }
+
+    /**
+     * Runs the sync session using the threads of the specified executor. <br/><br/>
+     *
+     * The transport must implement {@link AsyncTransport}. No thread is used while waiting for the server to
+     * respond to each message - the session continues on a thread of the executor once the response is received.
+     *
+     * @param executor the executor to use. Must not be null.
+     */
+    public void runAsync(TaskExecutor executor)
+    {
+        sessionExecutor = executor;
+        sessionExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                //try to start the session
+                if (sessionStarting())
+                    runNextExchangeAsync();
             }
-            catch (SyncException e)
+        });
+    }
+
+    /* Executes the sync session. */
+    private void runSession()
+    {
+        //try to start the session
+        if (! sessionStarting())
+            return;
+        //run the session until it is completed
+        while (sessionState != Session.STATE_COMPLETE)
+        {
+            try
             {
-                if (log != null)
-                    log.error(LOG_PREFIX + "Sync exception during sync session - ending the session", e);
-                sessionStatusCode = e.getStatusCode();
-                sessionStatusData = e.getStatusData();
-                sessionStopped(false);
-                return;
+                //send the next message
+                if (! sendNextMessage())
+                    return;
+                
+                //get the input stream (timing the exchange with the server)
+                long exchangeStart = System.currentTimeMillis();
+                InputStream inputStream = syncManager.getTransport().getInputStream();
+                long exchangeTime = System.currentTimeMillis() - exchangeStart;
+                
+                //process the response
+                if (! receiveMessage(inputStream, exchangeTime))
+                    return;
             }
             catch (Throwable e)
             {
-                if (log != null)
-                    log.error(LOG_PREFIX + "General exception during sync session - ending the session", e);
-                sessionStatusCode = SyncML.STATUS_SYNC_FAILURE;
-                sessionStatusData = null;
-                sessionStopped(false);
+                exchangeFailed(e);
                 return;
             }
             finally
@@ -2844,4 +4610,241 @@ public class Session implements Runnable
         //session completed successfully
         sessionStopped(true);
     }
+    
+    /* Sends the next message and waits for the response without blocking the current thread (called from a thread of the session executor). */
+    private void runNextExchangeAsync()
+    {
+        //check if the session has completed successfully
+        if (sessionState == Session.STATE_COMPLETE)
+        {
+            sessionStopped(true);
+            return;
+        }
+        
+        try
+        {
+            //send the next message
+            if (! sendNextMessage())
+            {
+                syncManager.getTransport().cleanup();
+                return;
+            }
+        }
+        catch (Throwable e)
+        {
+            exchangeFailed(e);
+            syncManager.getTransport().cleanup();
+            return;
+        }
+        
+        //exchange the message with the server - the response is processed on a thread of the executor
+        final long exchangeStart = System.currentTimeMillis();
+        TransportHandler handler = new TransportHandler()
+        {
+            private boolean handled;            //indicates whether or not the result of the exchange has been reported
+            
+            public void onResponse(InputStream inputStream)
+            {
+                onExchangeComplete(inputStream, null);
+            }
+            
+            public void onError(Throwable error)
+            {
+                onExchangeComplete(null, error);
+            }
+            
+            /* Continues the session on a thread of the executor (ignoring all but the first result reported). */
+            private void onExchangeComplete(final InputStream inputStream, final Throwable error)
+            {
+                synchronized (this)
+                {
+                    if (handled)
+                        return;
+                    handled = true;
+                }
+                
+                final long exchangeTime = System.currentTimeMillis() - exchangeStart;
+                sessionExecutor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        completeExchangeAsync(inputStream, exchangeTime, error);
+                    }
+                });
+            }
+        };
+        
+        try
+        {
+            ((AsyncTransport)syncManager.getTransport()).exchangeMessages(handler);
+        }
+        catch (Throwable e)
+        {
+            handler.onError(e);
+        }
+    }
+    
+    /* Processes the result of an asynchronous message exchange and continues the session if required (called from a thread of the session executor). */
+    private void completeExchangeAsync(InputStream inputStream, long exchangeTime, Throwable error)
+    {
+        boolean proceed = false;
+        try
+        {
+            if (error != null)
+                exchangeFailed(error);
+            else
+                proceed = receiveMessage(inputStream, exchangeTime);
+        }
+        catch (Throwable e)
+        {
+            exchangeFailed(e);
+        }
+        finally
+        {
+            //cleanup the transport in all cases
+            syncManager.getTransport().cleanup();
+        }
+        
+        if (proceed)
+            runNextExchangeAsync();
+    }
+    
+    /* Sends the next message to the server - returns FALSE if the session has been stopped or suspended instead. */
+    private boolean sendNextMessage()
+        throws SyncException, IOException
+    {
+        //check if the session should be stopped due to an error - if so, there is no point trying 
+        //to send any status results back to the server
+        if ( (stopSession) && (! isCancelled()) )
+        {
+            sessionStopped(false);
+            return false;
+        }
+
+        //check if the session has been suspended (and we're not trying to resume it)
+        if ( (sessionSuspended || suspendSession) && (! resumeSession) )
+        {
+            sessionSuspended();
+            return false;
+        }
+        
+//        //now the sync type is confirmed, prepare the contacts to sync
+//        if(sessionState == Session.STATE_CLIENT_UPDATES)
+//        {
+//        	for (int startedIndex = 0; startedIndex < syncStores.length; startedIndex++)
+//                syncStores[startedIndex].onUpdateContacts();
+//        }
+
+        //get the output stream 
+        OutputStream outputStream = syncManager.getTransport().getOutputStream();
+        if (outputStream == null)
+            throw new SyncException("no transport output stream specified");
+        
+        //send the next message using the output stream - the transport may compress the message, but the 
+        //maximum message size always applies to the uncompressed message counted here
+        syncManager.getSyncListener().onMessageSend();
+        CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+        long encodeStart = System.currentTimeMillis();
+        long nestedStart = nestedPhaseTime;
+        sendMessage(countingOutputStream);
+        outMessageId++;
+        outCommandId = 1;
+        outMessageSize = countingOutputStream.getByteCount();
+        sessionMetrics.addPhaseTime(SyncMetrics.PHASE_ENCODE, System.currentTimeMillis() - encodeStart - (nestedPhaseTime - nestedStart), 1);
+        sessionMetrics.addMessageSent(outMessageSize);
+        
+        return true;
+    }
+    
+    /* Processes the server's response to the last message - returns FALSE if the session has been stopped instead. */
+    private boolean receiveMessage(InputStream inputStream, long exchangeTime)
+        throws SyncException, IOException
+    {
+        sessionMetrics.addPhaseTime(SyncMetrics.PHASE_NETWORK, exchangeTime, 1);
+        if (inputStream == null)
+            throw new SyncException("no transport input stream specified");
+        String contentType = syncManager.getTransport().getContentType();
+        if ( (contentType == null) || (! contentType.equals(Transport.CONTENT_TYPE_WBXML)) )
+            throw new SyncException("unknown or unsupported content type '" + contentType + "'");
+
+        //check if the session should be stopped due to a user request - we only check this 
+        //at this point to ensure that any status results have been returned to the server 
+        if ( (stopSession == true) && (isCancelled()) )
+        {
+            sessionStopped(false);
+            return false;
+        }
+        
+        //read the servers response using the input stream - server updates may be applied while doing so, so 
+        //the last checkpoint can't be restored if the application is terminated before the message is processed
+        if (sessionState == Session.STATE_SERVER_UPDATES)
+            saveCheckpoint(true);
+        awaitChangeDetection();
+        syncManager.getSyncListener().onMessageReceive();
+        CountingInputStream countingInputStream = new CountingInputStream(inputStream);
+        long parseStart = System.currentTimeMillis();
+        long nestedStart = nestedPhaseTime;
+        readMessage(countingInputStream);
+        sessionMetrics.addPhaseTime(SyncMetrics.PHASE_PARSE, System.currentTimeMillis() - parseStart - (nestedPhaseTime - nestedStart), 1);
+        sessionMetrics.addMessageReceived(countingInputStream.getByteCount());
+        discardItemResults();
+        adaptMsgSize(outMessageSize, countingInputStream.getByteCount(), exchangeTime);
+        saveCheckpoint(false);
+        
+        return true;
+    }
+    
+    /* Handles the specified error which occurred while exchanging a message with the server, suspending or stopping the session as appropriate. */
+    private void exchangeFailed(Throwable error)
+    {
+        if (error instanceof IOException)
+        {
+            //use smaller messages from now on in case the error was caused by a poor connection
+            if ( (msgSizeController != null) && (msgSizeController.onExchangeFailed()) )
+                msgSizeChanged();
+            
+            if (resumeSession)
+            {
+                if (log != null)
+                    log.error(LOG_PREFIX + "Temporary error during sync session resume - session is still suspended", error);
+                syncManager.getSyncListener().onSyncResume(false);
+                
+                //restore suspended state
+                resumeSession = false;
+                sessionResumed = false;
+                sessionState = suspendedSessionState;
+            }
+            else if ( (sessionState == STATE_CLIENT_UPDATES) || (sessionState == STATE_SERVER_UPDATES) || (sessionState == STATE_CLIENT_MAPS) )
+            {
+                if (log != null)
+                    log.error(LOG_PREFIX + "Temporary error during sync session - suspending the session", error);
+                sessionSuspended();
+            }
+            else
+            {
+                if (log != null)
+                    log.error(LOG_PREFIX + "Temporary error during sync session - ending the session", error);
+                sessionStatusCode = SyncML.STATUS_SERVICE_UNAVAILABLE;
+                sessionStatusData = null;
+                sessionStopped(false);
+            }
+        }
+        else if (error instanceof SyncException)
+        {
+            SyncException e = (SyncException)error;
+            if (log != null)
+                log.error(LOG_PREFIX + "Sync exception during sync session - ending the session", e);
+            sessionStatusCode = e.getStatusCode();
+            sessionStatusData = e.getStatusData();
+            sessionStopped(false);
+        }
+        else
+        {
+            if (log != null)
+                log.error(LOG_PREFIX + "General exception during sync session - ending the session", error);
+            sessionStatusCode = SyncML.STATUS_SYNC_FAILURE;
+            sessionStatusData = null;
+            sessionStopped(false);
+        }
+    }
 }
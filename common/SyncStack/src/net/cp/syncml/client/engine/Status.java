@@ -23,6 +23,7 @@ public class Status
     public Cred credentials;                    //the credentials to use
     public Chal challenge;                      //the authentication challenge
     public Vector items;                        //additional status items - a collection of SyncItem objects
+    public long bytesSaved;                     //the number of bytes saved by coalescing or compacting the status (compared to a separate status with full references for each item)
 
     
     public Status()
@@ -45,5 +46,6 @@ public class Status
         credentials = null;
         challenge = null;
         items = new Vector();
+        bytesSaved = 0;
     }
 }
@@ -17,11 +17,14 @@ public class SyncItem
     public String sourceParentUri;              //the target URI of the parent of the item
     public Metinf metinf;                       //the meta information associated with the item
     public byte[] data;                         //the item data
+    public int dataOffset;                      //the offset of the item data in "data"
+    public int dataLength;                      //the length of the item data in "data" (or -1 if all of "data" is used)
     public boolean moreData;                    //indicates if there is more data associated with the item
     
     //item state when handling chunked data
     public long totalSize;                      //the total number of bytes in the item
     public long chunkedBytesSent;               //the number of bytes of the item that have been sent to the server    
+    public long dataHash;                       //the hash of all the bytes of the item that have been sent to the server
     public long chunkedBytesReceived;           //the number of bytes of the item that have been received from the server
     public int discardCount;                    //the number of bytes of the item that should be discarded
 
@@ -43,6 +46,18 @@ public class SyncItem
     }
 
 
+    public int getDataLength()
+    {
+        if (data == null)
+            return 0;
+        
+        if (dataLength < 0)
+            return data.length;
+        
+        return dataLength;
+    }
+
+
     public void clear()
     {
         targetUri = null;
@@ -51,9 +66,12 @@ public class SyncItem
         sourceParentUri = null;
         metinf = null;
         data = null;
+        dataOffset = 0;
+        dataLength = -1;
         moreData = false;
         totalSize = 0;
         chunkedBytesSent = 0;
+        dataHash = 0;
         chunkedBytesReceived = 0;
         discardCount = 0;
     }
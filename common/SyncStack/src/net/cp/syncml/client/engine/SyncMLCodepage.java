@@ -100,8 +100,11 @@ public class SyncMLCodepage extends Codepage
     //The encoding to use when handling strings
     private static final String ENCODING_UTF8 =        "UTF-8";
     
+    //the maximum size of item data which is read directly into an array of the exact size
+    private static final int MAX_DIRECT_DATA_SIZE =    1024 * 1024;
     
-    private Session syncSession;                //the session in which the codepage is being used
+    
+    private MessageHandler syncSession;         //the handler notified of the contents of parsed messages (normally the session)
     private MetInfCodepage cpMetinf;            //the codepage used to parse <Meta> information
 
     private SyncHdr inSyncHeader;               //the sync header information being parsed
@@ -111,16 +114,18 @@ public class SyncMLCodepage extends Codepage
     private SyncItem inItem;                    //the sync item being parsed
     private MapItem inMapItem;                  //the sync map item being parsed
     private ByteArrayOutputStream inDataStream; //the opaque data being parsed
+    private byte[] inItemData;                  //the opaque data of the item being parsed (if read directly)
+    private int inItemDataPos;                  //the number of bytes of item data read so far
     
 
     /**
      * Creates a new SyncML codepage for use in the specified session.
      * 
      * @param logger            the logger used to log activity. 
-     * @param session           the session in which the codepage will be used.
+     * @param session           the handler to notify of the contents of parsed messages (normally the session in which the codepage will be used).
      * @param metinfCodepage    the codepage used to encode/decode MetInf data.
      */
-    public SyncMLCodepage(Logger logger, Session session, MetInfCodepage metinfCodepage)
+    public SyncMLCodepage(Logger logger, MessageHandler session, MetInfCodepage metinfCodepage)
     {
         super(logger);
         
@@ -452,6 +457,31 @@ public class SyncMLCodepage extends Codepage
         }
     }
     
+    public void onStringData(int tagId, WbxmlString data) 
+        throws WbxmlException
+    {
+        //command and message IDs make up most of the string data received so parse them directly from the raw data
+        if ( (tagId != TAG_CMD_ID) && (tagId != TAG_CMD_REF) && (tagId != TAG_MSG_ID) && (tagId != TAG_MSG_REF) )
+        {
+            super.onStringData(tagId, data);
+            return;
+        }
+
+        logStringData(data);
+        
+        int value;
+        try
+        {
+            value = data.parseInt();
+        }
+        catch (NumberFormatException e)
+        {
+            throw new WbxmlException("invalid '" + getTagNames()[tagId - 5] + "' value received from server: " + data, e);
+        }
+        
+        onIdData(tagId, value);
+    }
+    
     public void onStringData(int tagId, String data) 
         throws WbxmlException
     {
@@ -470,20 +500,12 @@ public class SyncMLCodepage extends Codepage
         else if (tagId == TAG_CMD_ID)
         {
             //set the ID of the command
-            int cmdId = parseInt(data, "CmdId");
-            if (parentId == TAG_STATUS)
-                inStatus.commandId = cmdId;
-            else if (isCommand(parentId))
-                inCommand.commandId = cmdId;
+            onIdData(tagId, parseInt(data, "CmdId"));
         }
         else if (tagId == TAG_CMD_REF)
         {
             //set the command ID that the status refers to
-            int refCmdId = parseInt(data, "CmdRef");
-            if (parentId == TAG_STATUS)
-                inStatus.refCommandId = refCmdId;
-            else if (parentId == TAG_RESULTS)
-                inCommand.refCommandId = refCmdId;
+            onIdData(tagId, parseInt(data, "CmdRef"));
         }
         else if (tagId == TAG_DATA)
         {
@@ -579,17 +601,12 @@ public class SyncMLCodepage extends Codepage
         else if (tagId == TAG_MSG_ID)
         {
             //set the message ID
-            int msgId = parseInt(data, "MsgId");
-            if (parentId == TAG_SYNC_HEADER)
-                inSyncHeader.messageId = msgId;
+            onIdData(tagId, parseInt(data, "MsgId"));
         }
         else if (tagId == TAG_MSG_REF)
         {
             //set the ID of the message that the status refers to 
-            if (parentId == TAG_STATUS)
-                inStatus.refMessageId = parseInt(data, "MsgRef");
-            else if (parentId == TAG_RESULTS)
-                inCommand.refMessageId = parseInt(data, "MsgRef");
+            onIdData(tagId, parseInt(data, "MsgRef"));
         }
         else if (tagId == TAG_RESP_URI)
         {
@@ -652,23 +669,43 @@ public class SyncMLCodepage extends Codepage
     {
         super.onOpaqueDataBegin(tagId, length);
 
-        //reset the stream used to store the data of the item
-        inDataStream.reset();            
+        //item data is read directly into an array of the exact size so that it can be passed to the 
+        //record store without being copied again - other data is collected using the stream
+        inItemData = null;
+        inItemDataPos = 0;
+        if ( (tagId == TAG_DATA) && (getParentId() == TAG_ITEM) && (length <= MAX_DIRECT_DATA_SIZE) )
+            inItemData = new byte[(int)length];
+        else
+            inDataStream.reset();            
     }
     
-    public void onOpaqueData(int tagId, byte[] data, int length) 
+    public void onOpaqueData(int tagId, byte[] data, int offset, int length) 
         throws WbxmlException
     {
-        super.onOpaqueData(tagId, data, length);
+        logOpaqueData(length);
 
         //store the data of the item
-        inDataStream.write(data, 0, length);
+        if (inItemData == null)
+        {
+            inDataStream.write(data, offset, length);
+            return;
+        }
+        
+        if ((inItemDataPos + length) > inItemData.length)
+            throw new WbxmlException("more opaque data received than expected: " + (inItemDataPos + length) + " bytes, expected " + inItemData.length + " bytes");
+        
+        System.arraycopy(data, offset, inItemData, inItemDataPos, length);
+        inItemDataPos += length;
     }
 
     public void onOpaqueDataEnd(int tagId, boolean commit) 
         throws WbxmlException
     {
         super.onOpaqueDataEnd(tagId, commit);
+        
+        //the item data (if read directly) is no longer needed by the codepage
+        byte[] itemData = inItemData;
+        inItemData = null;
 
         if (commit)
         {
@@ -676,7 +713,13 @@ public class SyncMLCodepage extends Codepage
             int parentId = getParentId();
             int grandParentId = getAncestorId(1);
             
-            if (tagId == TAG_DATA)
+            if ( (tagId == TAG_DATA) && (itemData != null) )
+            {
+                //data is the data of the item (read directly)
+                if (parentId == TAG_ITEM)
+                    inItem.data = itemData;
+            }
+            else if (tagId == TAG_DATA)
             {
                 byte[] dataBytes = inDataStream.toByteArray();
                 if (parentId == TAG_CRED)
@@ -725,7 +768,7 @@ public class SyncMLCodepage extends Codepage
             throw new WbxmlException("invalid DTD version specified: " + header.dtdVersion);
         
         //write WBXML header
-        Wbxml.writeHeader(outputStream, Wbxml.VERSION_1_2, Wbxml.CHARSET_UTF8, docId);
+        getWriter().writeHeader(outputStream, Wbxml.VERSION_1_2, Wbxml.CHARSET_UTF8, docId);
         
         writeTag(outputStream, TAG_SYNCML, true);
 
@@ -1057,8 +1100,9 @@ public class SyncMLCodepage extends Codepage
         if (item.metinf != null)
             writeMetinf(outputStream, item.metinf);
 
-        if ( (item.data != null) && (item.data.length > 0) )
-            writeTag(outputStream, TAG_DATA, item.data);
+        int dataLength = item.getDataLength();
+        if (dataLength > 0)
+            writeTag(outputStream, TAG_DATA, item.data, item.dataOffset, dataLength);
         
         if (item.moreData)
             writeTag(outputStream, TAG_MORE_DATA, false);
@@ -1144,6 +1188,42 @@ public class SyncMLCodepage extends Codepage
         }
     }
     
+    /* Handles the specified command or message ID value. */
+    private void onIdData(int tagId, int value)
+    {
+        int parentId = getParentId();
+        if (tagId == TAG_CMD_ID)
+        {
+            //set the ID of the command
+            if (parentId == TAG_STATUS)
+                inStatus.commandId = value;
+            else if (isCommand(parentId))
+                inCommand.commandId = value;
+        }
+        else if (tagId == TAG_CMD_REF)
+        {
+            //set the command ID that the status refers to
+            if (parentId == TAG_STATUS)
+                inStatus.refCommandId = value;
+            else if (parentId == TAG_RESULTS)
+                inCommand.refCommandId = value;
+        }
+        else if (tagId == TAG_MSG_ID)
+        {
+            //set the message ID
+            if (parentId == TAG_SYNC_HEADER)
+                inSyncHeader.messageId = value;
+        }
+        else if (tagId == TAG_MSG_REF)
+        {
+            //set the ID of the message that the status refers to 
+            if (parentId == TAG_STATUS)
+                inStatus.refMessageId = value;
+            else if (parentId == TAG_RESULTS)
+                inCommand.refMessageId = value;
+        }
+    }
+    
     /* Parses the specified data as an array of bytes. */
     private byte[] parseBytes(String data, String name)
         throws WbxmlException
@@ -0,0 +1,39 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.store;
+
+
+/**
+ * An interface defining a record store which can apply the updates received from the server in batches. <br/><br/>
+ *
+ * By default, each update received from the server is applied to the local store as soon as it has been parsed
+ * (via {@link RecordStore#addRecordEnd(boolean)}, {@link RecordStore#replaceRecordEnd(boolean)} or
+ * {@link RecordStore#deleteRecord(String)}). For stores implementing this interface, the adds, replaces and deletes
+ * of each Sync command received from the server are instead collected and passed to {@link #applyUpdates(RecordUpdate[])}
+ * once the whole command has been parsed, allowing them to be committed in a single transaction. <br/><br/>
+ *
+ * Updates which can't be collected are still applied one at a time using the methods of {@link RecordStore}.
+ * This is the case for records received in several chunks and for moves and copies. Any updates already
+ * collected are applied before such an update, so updates are always applied in the order they were received.
+ *
+ * @author Denis Evoy
+ */
+public interface BatchRecordStore extends RecordStore
+{
+    /**
+     * Called to apply the specified updates received from the server to the local store. <br/><br/>
+     *
+     * Implementations should apply the updates in the specified order and must report the outcome of each
+     * update by calling either {@link RecordUpdate#setResult(String)} or {@link RecordUpdate#setError(StoreException)}.
+     * Updates whose outcome isn't reported are considered to have failed. <br/><br/>
+     *
+     * If an exception is thrown by this method, none of the updates should have been applied and all of
+     * them are reported to the server as failed.
+     *
+     * @param updates the updates to apply. Will not be null or empty.
+     * @throws StoreException if the batch could not be applied to the local store.
+     */
+    public void applyUpdates(RecordUpdate[] updates)
+        throws StoreException;
+}
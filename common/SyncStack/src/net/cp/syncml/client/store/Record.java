@@ -173,15 +173,19 @@ public interface Record
      * Called to retrieve the data associated with the record. <br/><br/>
      * 
      * Implementations must return the specified amount of data associated with the record after placing 
-     * exactly <code>length</code> bytes of data into the specified buffer. Note that this method will only 
-     * be called where necessary. Therefore it's best to delay loading the record data into memory until the 
-     * call is actually made.
+     * exactly <code>length</code> bytes of data into the specified buffer, starting at <code>offset</code>. 
+     * Note that this method will only be called where necessary. Therefore it's best to delay loading the 
+     * record data into memory until the call is actually made. <br/><br/>
+     * 
+     * The buffer is shared with the data of other records, so implementations must not write outside
+     * of the specified range.
      *   
      * @param buffer the buffer to write the data into. Will not be null.
+     * @param offset the position in the buffer at which to place the data. Will be zero or positive.
      * @param length the number of bytes to place in the buffer. Will be non-zero and positive.
      * @return The number of bytes placed in the buffer. Must be the same as <code>length</code>.
      * @throws StoreException if the data couldn't be retrieved.
      */
-    public int getData(byte[] buffer, int length) 
+    public int getData(byte[] buffer, int offset, int length) 
         throws StoreException;    
 }
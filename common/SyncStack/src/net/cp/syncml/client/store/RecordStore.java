@@ -505,7 +505,11 @@ public interface RecordStore
      * method will be followed by a final call to {@link #addRecordEnd(boolean)}. <br/><br/>
      * 
      * Implementations must not commit any data to the local store until {@link #addRecordEnd(boolean) addRecordEnd(true)}
-     * is called.
+     * is called. <br/><br/>
+     * 
+     * The specified array is not reused by the SyncML client, so implementations may hold on to it rather 
+     * than copying the data. Implementations which need to cache large amounts of data (e.g. from several 
+     * chunks) may find {@link net.cp.syncml.client.util.SpoolBuffer} useful.
      *  
      * @param data the data of the record to be added to the local store. Will not be null or empty.
      * @throws StoreException   if the records' data couldn't be cached.
@@ -561,7 +565,11 @@ public interface RecordStore
      * method will be followed by a final call to {@link #replaceRecordEnd(boolean)}. <br/><br/>
      * 
      * Implementations must not commit any data to the local store until {@link #replaceRecordEnd(boolean) replaceRecordEnd(true)}
-     * is called.
+     * is called. <br/><br/>
+     * 
+     * The specified array is not reused by the SyncML client, so implementations may hold on to it rather 
+     * than copying the data. Implementations which need to cache large amounts of data (e.g. from several 
+     * chunks) may find {@link net.cp.syncml.client.util.SpoolBuffer} useful.
      *  
      * @param data the data of the record to be replaced in the local store. Will not be null or empty.
      * @throws StoreException   if the records' data couldn't be cached.
@@ -0,0 +1,218 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.store;
+
+
+import net.cp.syncml.client.devinfo.ContentType;
+
+
+/**
+ * A class representing a single update received from the server which is to be applied to a local store as part of a batch. <br/><br/>
+ *
+ * Once the batch has been applied, implementations must report the outcome of each update by calling either
+ * {@link #setResult(String)} or {@link #setError(StoreException)}. The SyncML client maps the outcome to the
+ * status returned to the server in the same way as for updates applied one at a time (e.g. an
+ * {@link AlreadyExistsException} for an add is reported as "already exists").
+ *
+ * @see BatchRecordStore#applyUpdates(RecordUpdate[])
+ *
+ * @author Denis Evoy
+ */
+public class RecordUpdate
+{
+    private int changeType;                     //the type of update (add, replace or delete)
+    private String localId;                     //the local ID of the record to replace or delete
+    private String parentLocalId;               //the local ID of the parent of the record to add
+    private String parentGlobalId;              //the global ID of the parent of the record to add
+    private String globalId;                    //the global ID of the record to add
+    private ContentType contentType;            //the MIME type of the data of the record
+    private boolean fieldLevelReplace;          //indicates if only the fields contained in the data should be replaced
+    private byte[] data;                        //the data of the record to add or replace
+
+    private boolean applied;                    //indicates if the update has been successfully applied
+    private String resultLocalId;               //the local ID of the record once the update has been applied
+    private StoreException error;               //the reason why the update couldn't be applied
+
+
+    /**
+     * Creates a new update to be applied to a local store.
+     *
+     * @param type              the type of update - one of {@link Record#CHANGE_TYPE_ADD}, {@link Record#CHANGE_TYPE_REPLACE} or {@link Record#CHANGE_TYPE_DELETE}.
+     * @param id                the local ID of the record to replace or delete. May be null for an add.
+     * @param parentId          the local ID of the record which should be the parent of the added record. May be null or empty.
+     * @param parentGlobal      the global ID of the record which should be the parent of the added record. May be null or empty.
+     * @param global            the global ID of the record to add. May be null or empty.
+     * @param ctType            the MIME type of the data of the record. May be null.
+     * @param fieldReplace      set to <code>true</code> if only the fields contained in the data should be replaced.
+     * @param recordData        the complete data of the record to add or replace. May be null for a delete.
+     */
+    public RecordUpdate(int type, String id, String parentId, String parentGlobal, String global, ContentType ctType, boolean fieldReplace, byte[] recordData)
+    {
+        if ( (type != Record.CHANGE_TYPE_ADD) && (type != Record.CHANGE_TYPE_REPLACE) && (type != Record.CHANGE_TYPE_DELETE) )
+            throw new IllegalArgumentException("invalid update type specified: " + type);
+
+        changeType = type;
+        localId = id;
+        parentLocalId = parentId;
+        parentGlobalId = parentGlobal;
+        globalId = global;
+        contentType = ctType;
+        fieldLevelReplace = fieldReplace;
+        data = recordData;
+    }
+
+
+    /**
+     * Returns the type of the update.
+     *
+     * @return The type of update - one of {@link Record#CHANGE_TYPE_ADD}, {@link Record#CHANGE_TYPE_REPLACE} or {@link Record#CHANGE_TYPE_DELETE}.
+     */
+    public int getChangeType()
+    {
+        return changeType;
+    }
+
+    /**
+     * Returns the local ID of the record to be replaced or deleted.
+     *
+     * @return The local ID of the record. Will be null for an add.
+     */
+    public String getLocalId()
+    {
+        return localId;
+    }
+
+    /**
+     * Returns the local ID of the record which should be the parent of the record to be added.
+     *
+     * @return The local ID of the parent record. May be null or empty.
+     *
+     * @see RecordStore#addRecordBegin(String, String, String, ContentType)
+     */
+    public String getParentLocalId()
+    {
+        return parentLocalId;
+    }
+
+    /**
+     * Returns the global ID of the record which should be the parent of the record to be added.
+     *
+     * @return The global ID of the parent record. May be null or empty.
+     *
+     * @see RecordStore#addRecordBegin(String, String, String, ContentType)
+     */
+    public String getParentGlobalId()
+    {
+        return parentGlobalId;
+    }
+
+    /**
+     * Returns the global ID of the record to be added.
+     *
+     * @return The global ID of the record. May be null or empty.
+     */
+    public String getGlobalId()
+    {
+        return globalId;
+    }
+
+    /**
+     * Returns the MIME type of the data of the record.
+     *
+     * @return The MIME type of the data. May be null.
+     */
+    public ContentType getContentType()
+    {
+        return contentType;
+    }
+
+    /**
+     * Returns whether or not only the fields contained in the data should be replaced.
+     *
+     * @return <code>true</code> if a field level replace should be performed.
+     *
+     * @see RecordStore#replaceRecordBegin(String, ContentType, boolean)
+     */
+    public boolean isFieldLevelReplace()
+    {
+        return fieldLevelReplace;
+    }
+
+    /**
+     * Returns the complete data of the record to be added or replaced. <br/><br/>
+     *
+     * The array is not reused by the SyncML client, so implementations may hold on to it rather than copying the data.
+     *
+     * @return The data of the record. Will be null for a delete.
+     */
+    public byte[] getData()
+    {
+        return data;
+    }
+
+
+    /**
+     * Reports that the update has been successfully applied. <br/><br/>
+     *
+     * For an add, the local ID that has been assigned to the new record must be specified. For a replace, the
+     * new local ID of the record should be specified if it has changed (or null otherwise). For a delete, no
+     * local ID is required.
+     *
+     * @param id the local ID of the record. May be null or empty except for an add.
+     */
+    public void setResult(String id)
+    {
+        applied = true;
+        resultLocalId = id;
+        error = null;
+    }
+
+    /**
+     * Reports that the update couldn't be applied. <br/><br/>
+     *
+     * The exception should be an {@link AlreadyExistsException} if the record to add is already present in the
+     * local store, or a {@link NoSuchRecordException} if the record to replace or delete is not present.
+     *
+     * @param cause the reason why the update couldn't be applied. Must not be null.
+     */
+    public void setError(StoreException cause)
+    {
+        if (cause == null)
+            throw new IllegalArgumentException("no error specified");
+
+        applied = false;
+        resultLocalId = null;
+        error = cause;
+    }
+
+    /**
+     * Returns whether or not the update has been successfully applied.
+     *
+     * @return <code>true</code> if {@link #setResult(String)} has been called.
+     */
+    public boolean isApplied()
+    {
+        return applied;
+    }
+
+    /**
+     * Returns the local ID of the record once the update has been applied.
+     *
+     * @return The local ID reported by {@link #setResult(String)}. May be null or empty.
+     */
+    public String getResultLocalId()
+    {
+        return resultLocalId;
+    }
+
+    /**
+     * Returns the reason why the update couldn't be applied.
+     *
+     * @return The error reported by {@link #setError(StoreException)} or null if no error was reported.
+     */
+    public StoreException getError()
+    {
+        return error;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.store;
+
+
+/**
+ * An interface defining a record store whose sync session can be resumed after the application has been restarted. <br/><br/>
+ *
+ * When a {@link net.cp.syncml.client.SyncManager#setCheckpointSpool(net.cp.syncml.client.util.DataSpool) checkpoint spool}
+ * is specified, the SyncML client saves a checkpoint of the session state at the end of each message exchange.
+ * If the application is terminated while the session is in progress (or suspended), the session can later be
+ * {@link net.cp.syncml.client.SyncManager#resumeSync(RecordStore[], String) resumed} from that checkpoint, but only
+ * if all the record stores being synced implement this interface. <br/><br/>
+ *
+ * Note that the checkpoint only refers to outgoing records by their local ID - the records which the server
+ * hadn't acknowledged are retrieved again from the store (via {@link RecordStore#getChangedRecords()} or
+ * {@link RecordStore#getAllRecords()}) when the session is resumed. Implementations should therefore persist
+ * the results of client updates (see {@link RecordStore#onAddResult(String, int, String)}, etc) as soon as
+ * they are reported, so that records which were already acknowledged are not sent again.
+ *
+ * @author Denis Evoy
+ */
+public interface ResumableRecordStore extends RecordStore
+{
+    /**
+     * Called to indicate that a sync session interrupted by the termination of the application is being restored. <br/><br/>
+     *
+     * This method is called instead of {@link RecordStore#onSyncStart()} and should perform the same initialization,
+     * except that the specified sync type and 'last' anchor (which were in use when the checkpoint was saved)
+     * must be used instead of determining new ones. In particular, implementations mustn't force a slow sync
+     * because the previous session didn't complete. A new 'next' anchor may be generated as usual. <br/><br/>
+     *
+     * Once restored, the session is resumed as normal (i.e. {@link RecordStore#onSyncResume()} will be called next).
+     * If an exception is thrown by this method, the session won't be restored for any of the record stores and
+     * {@link RecordStore#onSyncEnd(boolean, int, String)} will be called.
+     *
+     * @param syncType      the {@link net.cp.syncml.client.SyncML#SYNC_TYPE_TWO_WAY type of sync} being performed by the session.
+     * @param lastAnchor    the 'last' anchor used by the session. May be null or empty.
+     * @throws StoreException if the session could not be restored for the store.
+     */
+    public void onSyncRestore(int syncType, String lastAnchor)
+        throws StoreException;
+    
+    /**
+     * Called to retrieve the record with the specified local ID again. <br/><br/>
+     *
+     * The SyncML client doesn't hold on to the data of the records it has sent to the server for stores implementing
+     * this interface. Instead, if a client update must be sent again (e.g. because the server didn't acknowledge it
+     * before the session was suspended), this method is called to retrieve the record so that the required part of its
+     * data can be read again. The returned record will be closed once the data has been read. <br/><br/>
+     *
+     * If the record no longer exists, the client update isn't sent again. As the store won't receive a result for the
+     * update, it should still report the record as changed in the next session. If the data of the record has changed
+     * in a way that can't be sent as part of the original update (e.g. the record was sent in chunks), the record is
+     * retrieved again and sent to the server from the start instead.
+     *
+     * @param localId   the local ID of the record. Will not be null or empty.
+     * @return The record with the specified local ID or null if it no longer exists.
+     * @throws StoreException if the record couldn't be retrieved.
+     */
+    public Record getRecord(String localId)
+        throws StoreException;
+}
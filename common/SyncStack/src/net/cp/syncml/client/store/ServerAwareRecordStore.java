@@ -0,0 +1,32 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.store;
+
+
+import net.cp.syncml.client.devinfo.ServerCapabilities;
+
+
+/**
+ * An interface defining a record store which wants to know the capabilities of the server it is synced with. <br/><br/>
+ *
+ * When a DevInf cache has been configured (see {@link net.cp.syncml.client.SyncManager#setDevInfCache(net.cp.syncml.client.util.DataSpool)}),
+ * the capabilities the server reported in a previous session are passed to {@link #onServerCapabilities(ServerCapabilities)}
+ * at the start of each session, before any records are requested from the store. This allows the store to plan how its
+ * records will be sent (e.g. the content type to use or whether large records should be sent at all). The method is
+ * called again during the session if the server reports different capabilities.
+ *
+ * @author Denis Evoy
+ */
+public interface ServerAwareRecordStore extends RecordStore
+{
+    /**
+     * Called to indicate the capabilities of the server the record store is being synced with. <br/><br/>
+     *
+     * The capabilities may have been reported by the server in a previous session, so they are only a
+     * guide - the server may still reject records which the capabilities indicate that it can handle.
+     *
+     * @param capabilities the capabilities of the server. Will not be null.
+     */
+    public void onServerCapabilities(ServerCapabilities capabilities);
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.test;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Hashtable;
+
+import net.cp.syncml.client.*;
+
+
+/**
+ * A class implementing asynchronous HTTP transport for SyncML. <br/><br/>
+ *
+ * Messages are exchanged using a (possibly shared) {@link NioHttpClient}, so no thread is blocked while
+ * waiting for the server to respond when the session is run by a
+ * {@link SyncManager#setSessionExecutor(net.cp.syncml.client.util.TaskExecutor) session executor}.
+ * Only plain HTTP is supported.
+ *
+ * @author Denis Evoy
+ */
+public class AsyncHTTPTransport implements AsyncTransport, RedirectableTransport
+{
+    private NioHttpClient httpClient;
+    private String targetUri;
+    private String targetHost;
+    private int targetPort;
+    private String targetPath;
+    private String responsePath;
+    private int maxMessageSize;
+    private ByteArrayOutputStream outputStream;
+
+    private String contentType;
+    private InputStream responseStream;
+    private Throwable responseError;
+    private boolean responseReady;
+
+
+    public AsyncHTTPTransport(NioHttpClient client, String host, int port, String path, int maxMsgSize)
+    {
+        if (client == null)
+            throw new IllegalArgumentException("no HTTP client specified");
+        if ( (host == null) || (host.length() <= 0) )
+            throw new IllegalArgumentException("no host specified");
+        if ( (path == null) || (! path.startsWith("/")) )
+            throw new IllegalArgumentException("invalid path specified");
+
+        httpClient = client;
+        targetHost = host;
+        targetPort = (port > 0) ? port : 80;
+        targetPath = path;
+        targetUri = "http://" + targetHost + ":" + targetPort + targetPath;
+        maxMessageSize = maxMsgSize;
+        outputStream = new ByteArrayOutputStream(maxMessageSize);
+    }
+
+    public String getTargetURI()
+    {
+        return targetUri;
+    }
+
+    public void setResponseURI(String uri)
+    {
+        //only redirects to the same server are supported
+        String prefix = "http://" + targetHost + ":" + targetPort;
+        if ( (uri != null) && (uri.startsWith(prefix + "/")) )
+            responsePath = uri.substring(prefix.length());
+        else if ( (uri != null) && (uri.startsWith("/")) )
+            responsePath = uri;
+        else
+            responsePath = null;
+    }
+
+    public int getMaxMsgSize()
+    {
+        return maxMessageSize;
+    }
+
+    public OutputStream getOutputStream()
+        throws SyncException, IOException
+    {
+        //buffer all output until the message is exchanged
+        outputStream.reset();
+        return outputStream;
+    }
+
+    public void exchangeMessages(final TransportHandler handler)
+    {
+        Hashtable headers = new Hashtable();
+        headers.put("Content-Type", Transport.CONTENT_TYPE_WBXML);
+        headers.put("Accept", Transport.CONTENT_TYPE_WBXML);
+
+        String path = (responsePath != null) ? responsePath : targetPath;
+        httpClient.post(targetHost, targetPort, path, headers, outputStream.toByteArray(), new NioHttpClient.ResponseHandler()
+        {
+            public void onResponse(int statusCode, String statusText, Hashtable responseHeaders, byte[] body)
+            {
+                if (statusCode >= 400)
+                {
+                    handler.onError( new IllegalStateException("fatal HTTP status: " + statusCode + " (" + statusText + ")") );
+                    return;
+                }
+
+                //ignore any parameters of the content type (e.g. the character set)
+                String type = (String)responseHeaders.get("content-type");
+                if ( (type != null) && (type.indexOf(';') >= 0) )
+                    type = type.substring(0, type.indexOf(';')).trim();
+                synchronized (AsyncHTTPTransport.this)
+                {
+                    contentType = type;
+                }
+
+                handler.onResponse( new ByteArrayInputStream(body) );
+            }
+
+            public void onError(IOException error)
+            {
+                handler.onError(error);
+            }
+        });
+    }
+
+    public InputStream getInputStream()
+        throws SyncException, IOException
+    {
+        //exchange the message and wait for the result
+        synchronized (this)
+        {
+            responseReady = false;
+            responseStream = null;
+            responseError = null;
+        }
+
+        exchangeMessages(new TransportHandler()
+        {
+            public void onResponse(InputStream inputStream)
+            {
+                setResponse(inputStream, null);
+            }
+
+            public void onError(Throwable error)
+            {
+                setResponse(null, error);
+            }
+        });
+
+        synchronized (this)
+        {
+            while (! responseReady)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    //ignore
+                }
+            }
+
+            if (responseError instanceof IOException)
+                throw (IOException)responseError;
+            if (responseError instanceof RuntimeException)
+                throw (RuntimeException)responseError;
+            if (responseError != null)
+                throw new SyncException("failed to exchange message with the server", responseError);
+
+            return responseStream;
+        }
+    }
+
+    public synchronized String getContentType()
+    {
+        return contentType;
+    }
+
+    public void cleanup()
+    {
+        outputStream.reset();
+        synchronized (this)
+        {
+            responseStream = null;
+            responseError = null;
+        }
+    }
+
+
+    /* Records the result of a blocking message exchange and wakes up the waiting thread. */
+    private synchronized void setResponse(InputStream inputStream, Throwable error)
+    {
+        responseStream = inputStream;
+        responseError = error;
+        responseReady = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.test;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.TimerTask;
+
+import net.cp.syncml.client.*;
+
+
+/**
+ * A class implementing a transport which exchanges messages with a {@link ServerEmulator} in the same process. <br/><br/>
+ *
+ * The transport delays each response by the time the emulator takes to exchange the messages (based on its
+ * latency and bandwidth). When used asynchronously, the response is delivered by the timer of the emulator
+ * so that no thread is blocked while waiting. The loss of the network connection can be emulated using
+ * {@link #setConnected(boolean)}.
+ *
+ * @author Denis Evoy
+ */
+public class EmulatorTransport implements AsyncTransport
+{
+    private ServerEmulator server;
+    private int maxMessageSize;
+    private ByteArrayOutputStream outputStream;
+    private boolean connected;
+    private int exchangeCount;
+
+
+    public EmulatorTransport(ServerEmulator emulator, int maxMsgSize)
+    {
+        if (emulator == null)
+            throw new IllegalArgumentException("no server emulator specified");
+        if (maxMsgSize <= 0)
+            throw new IllegalArgumentException("invalid maximum message size specified: " + maxMsgSize);
+
+        server = emulator;
+        maxMessageSize = maxMsgSize;
+        outputStream = new ByteArrayOutputStream(maxMsgSize);
+        connected = true;
+    }
+
+    public String getTargetURI()
+    {
+        return server.getTargetURI();
+    }
+
+    public int getMaxMsgSize()
+    {
+        return maxMessageSize;
+    }
+
+    /**
+     * Sets whether or not the emulator can be reached. Messages exchanged while disconnected fail with an
+     * <code>IOException</code>, which causes the session to be suspended.
+     *
+     * @param isConnected <code>false</code> to emulate the loss of the network connection.
+     */
+    public synchronized void setConnected(boolean isConnected)
+    {
+        connected = isConnected;
+    }
+
+    public synchronized boolean isConnected()
+    {
+        return connected;
+    }
+
+    public OutputStream getOutputStream()
+        throws SyncException, IOException
+    {
+        outputStream.reset();
+        return outputStream;
+    }
+
+    public InputStream getInputStream()
+        throws SyncException, IOException
+    {
+        byte[] response = exchange();
+
+        try
+        {
+            Thread.sleep( server.getExchangeTime(outputStream.size() + response.length) );
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException("interrupted while waiting for the response");
+        }
+
+        return new ByteArrayInputStream(response);
+    }
+
+    public void exchangeMessages(final TransportHandler handler)
+    {
+        final byte[] response;
+        try
+        {
+            response = exchange();
+        }
+        catch (Throwable e)
+        {
+            handler.onError(e);
+            return;
+        }
+
+        long delay = server.getExchangeTime(outputStream.size() + response.length);
+        if (delay <= 0)
+        {
+            handler.onResponse( new ByteArrayInputStream(response) );
+            return;
+        }
+
+        server.schedule(new TimerTask()
+        {
+            public void run()
+            {
+                handler.onResponse( new ByteArrayInputStream(response) );
+            }
+        }, delay);
+    }
+
+    public String getContentType()
+    {
+        return CONTENT_TYPE_WBXML;
+    }
+
+    public void cleanup()
+    {
+        outputStream.reset();
+    }
+
+    public synchronized int getExchangeCount()
+    {
+        return exchangeCount;
+    }
+
+
+    /* Sends the message written to the output stream to the emulator and returns the response. */
+    private byte[] exchange()
+        throws SyncException, IOException
+    {
+        synchronized (this)
+        {
+            if (! connected)
+                throw new IOException("not connected to the server emulator");
+            exchangeCount++;
+        }
+
+        return server.processMessage( outputStream.toByteArray() );
+    }
+}
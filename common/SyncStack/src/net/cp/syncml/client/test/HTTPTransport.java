@@ -5,17 +5,28 @@ package net.cp.syncml.client.test;
 
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.StringTokenizer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 
 import org.apache.commons.httpclient.*;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 
 import net.cp.syncml.client.*;
@@ -24,14 +35,37 @@ import net.cp.syncml.client.*;
 /**
  * A class implementing HTTP transport for SyncML.
  * 
+ * A single persistent connection to the server is kept open and reused for all the message exchanges of
+ * the session. The connection is closed if it has been idle for longer than {@link #CONNECTION_IDLE_TIMEOUT}
+ * milliseconds and is checked for staleness before being reused.
+ * 
  * This implementation requires <a href=http://jakarta.apache.org/httpcomponents/httpclient-3.x>Jakarta Commons HTTP Client v3.1</a>
  *
  * @author Denis Evoy
  */
-public class HTTPTransport implements Transport
+public class HTTPTransport implements PreparableTransport, RedirectableTransport
 {
+    /** The time (in milliseconds) after which an idle persistent connection is closed rather than reused. */
+    public static final long CONNECTION_IDLE_TIMEOUT = 15000;
+    
+    /** The default size (in bytes) below which messages aren't compressed. */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+    
+    //the size of the buffer used when streaming messages to the server
+    private static final int STREAMING_BUFFER_SIZE = 8192;
+    
+    //the HTTP headers and content encodings used for compression
+    private static final String HEADER_CONTENT_ENCODING =   "Content-Encoding";
+    private static final String HEADER_ACCEPT_ENCODING =    "Accept-Encoding";
+    private static final String ENCODING_GZIP =             "gzip";
+    private static final String ENCODING_DEFLATE =          "deflate";
+    
+    
     private URI targetUri;
+    private URI responseUri;
+    private HostConfiguration responseHostConfiguration;
     private HttpClient httpClient;
+    private PersistentConnectionManager connectionManager;
     private ByteArrayOutputStream outputStream;
     private PostMethod postRequest;
     private int maxMessageSize;
@@ -43,6 +77,25 @@ public class HTTPTransport implements Transport
     
     private Hashtable extraHttpHeaders = null;
     
+    private long lastExchangeTime;
+    private int connectCount;
+    private int reuseCount;
+    
+    private boolean streamingEnabled;
+    private boolean streamingVerified;
+    private StreamingRequest streamingRequest;
+    
+    private Thread prepareThread;
+    
+    private boolean compressionEnabled;
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private String requestEncoding;             //the encoding used to compress requests (or null if the server isn't known to support compression)
+    private long uncompressedBytesSent;
+    private long compressedBytesSent;
+    private long uncompressedBytesReceived;
+    private long compressedBytesReceived;
+    private long compressionTime;
+    
     
     public HTTPTransport(String host, int port, String path)
     {
@@ -63,7 +116,9 @@ public class HTTPTransport implements Transport
     {
         try
         {
-            httpClient = new HttpClient();
+            connectionManager = new PersistentConnectionManager();
+            connectionManager.setConnectionStaleCheckingEnabled(true);
+            httpClient = new HttpClient(connectionManager);
             
             //set proxy details if necessary
             if ( (proxyHost != null) && (proxyHost.length() > 0) && (proxyPort > 0) )
@@ -93,42 +148,229 @@ public class HTTPTransport implements Transport
         return targetUri.toString();
     }
 
+    public void setResponseURI(String uri)
+    {
+        if (uri == null)
+        {
+            responseUri = null;
+            responseHostConfiguration = null;
+            return;
+        }
+        
+        try
+        {
+            //a relative URI refers to the same server as the target URI
+            responseUri = new URI(targetUri, uri);
+            responseHostConfiguration = new HostConfiguration( httpClient.getHostConfiguration() );
+            responseHostConfiguration.setHost(responseUri);
+        }
+        catch (URIException e)
+        {
+            //keep sending messages to the target URI
+            responseUri = null;
+            responseHostConfiguration = null;
+        }
+    }
+    
     public int getMaxMsgSize()
     {
         return maxMessageSize;
     }
     
+    /**
+     * Sets whether or not messages should be streamed to the server. <br/><br/>
+     * 
+     * When enabled, the request is started as soon as the output stream is requested and the message is sent 
+     * using chunked transfer encoding while it is being written. Until the server has accepted a chunked request, 
+     * each message is also buffered so that it can be sent again with a Content-Length if the server rejects it, 
+     * in which case streaming is disabled. Streaming is disabled by default.
+     * 
+     * @param enabled <code>true</code> if messages should be streamed to the server.
+     */
+    public void setStreamingEnabled(boolean enabled)
+    {
+        streamingEnabled = enabled;
+        streamingVerified = false;
+    }
+    
+    /**
+     * Returns whether or not messages are streamed to the server.
+     * 
+     * @return <code>true</code> if messages are streamed to the server.
+     */
+    public boolean isStreamingEnabled()
+    {
+        return streamingEnabled;
+    }
+    
+    /**
+     * Sets whether or not messages should be compressed. <br/><br/>
+     * 
+     * When enabled, the server is told that compressed (gzip or deflate) responses are accepted and compressed 
+     * responses are decompressed transparently. Once a response shows that the server supports compression, 
+     * messages larger than the {@link #setCompressionThreshold(int) threshold} are also compressed before being 
+     * sent (and are no longer streamed, as their size must be known). Request compression is disabled again if 
+     * the server rejects a compressed request. Compression is disabled by default.
+     * 
+     * @param enabled <code>true</code> if messages should be compressed.
+     */
+    public void setCompressionEnabled(boolean enabled)
+    {
+        compressionEnabled = enabled;
+        requestEncoding = null;
+    }
+    
+    /**
+     * Returns whether or not messages are compressed.
+     * 
+     * @return <code>true</code> if messages are compressed.
+     */
+    public boolean isCompressionEnabled()
+    {
+        return compressionEnabled;
+    }
+    
+    /**
+     * Sets the size below which messages aren't compressed, as compressing tiny messages costs more than it saves.
+     * 
+     * @param threshold the size (in bytes) below which messages aren't compressed.
+     */
+    public void setCompressionThreshold(int threshold)
+    {
+        compressionThreshold = threshold;
+    }
+    
+    /**
+     * Returns the size of the messages which were sent compressed, before they were compressed.
+     * 
+     * @return The number of uncompressed bytes.
+     */
+    public long getUncompressedBytesSent()
+    {
+        return uncompressedBytesSent;
+    }
+    
+    /**
+     * Returns the size of the messages which were sent compressed, after they were compressed.
+     * 
+     * @return The number of compressed bytes.
+     */
+    public long getCompressedBytesSent()
+    {
+        return compressedBytesSent;
+    }
+    
+    /**
+     * Returns the size of the compressed responses which were received, after they were decompressed.
+     * 
+     * @return The number of uncompressed bytes.
+     */
+    public long getUncompressedBytesReceived()
+    {
+        return uncompressedBytesReceived;
+    }
+    
+    /**
+     * Returns the size of the compressed responses which were received, before they were decompressed.
+     * 
+     * @return The number of compressed bytes.
+     */
+    public long getCompressedBytesReceived()
+    {
+        return compressedBytesReceived;
+    }
+    
+    /**
+     * Returns the time spent compressing messages and decompressing responses.
+     * 
+     * @return The time in milliseconds.
+     */
+    public long getCompressionTime()
+    {
+        return compressionTime / 1000000;
+    }
+    
+    /**
+     * Returns the number of message exchanges which required a new connection to the server.
+     * 
+     * @return The number of new connections.
+     */
+    public int getConnectCount()
+    {
+        return connectCount;
+    }
+    
+    /**
+     * Returns the number of message exchanges which reused the persistent connection to the server.
+     * 
+     * @return The number of reused connections.
+     */
+    public int getReuseCount()
+    {
+        return reuseCount;
+    }
+    
 
     public InputStream getInputStream() 
         throws SyncException, IOException
     {
+        //use the connection prepared in advance (if any)
+        awaitPreparation();
+        
         try
         {
-            //get whatever data we have buffered to send
-            byte[] outputData = outputStream.toByteArray();
-            if ( (outputData == null) || (outputData.length <= 0) )
-                throw new IllegalStateException("no data buffered to send");
+            //finish sending the streamed message (if any) and wait for the response
+            boolean responseReceived = false;
+            if (streamingRequest != null)
+            {
+                StreamingRequest request = streamingRequest;
+                streamingRequest = null;
+                postRequest = request.method;
+                
+                //make sure the server accepts chunked requests before relying on streaming - the buffered copy of the 
+                //message is only sent if the server can't have received the streamed message
+                responseReceived = request.finish();
+                if (responseReceived)
+                {
+                    streamingVerified = true;
+                }
+                else
+                {
+                    //send the buffered copy of the message in the normal way from now on
+                    postRequest.releaseConnection();
+                    streamingEnabled = false;
+                }
+            }
+            
+            if (! responseReceived)
+            {
+                //get whatever data we have buffered to send
+                byte[] outputData = outputStream.toByteArray();
+                if ( (outputData == null) || (outputData.length <= 0) )
+                    throw new IllegalStateException("no data buffered to send");
 
-            //send it
-            postRequest = new PostMethod( targetUri.toString() );
-            postRequest.setRequestHeader("Content-Type", Transport.CONTENT_TYPE_WBXML);
+                //compress it if the server is known to accept compressed requests
+                byte[] requestData = outputData;
+                if ( (requestEncoding != null) && (outputData.length >= compressionThreshold) )
+                    requestData = compress(outputData, requestEncoding);
 
-            if (extraHttpHeaders != null)
-            {
-            	Enumeration keys = extraHttpHeaders.keys();
-            	String key;
-            	String value;
-            	
-            	while (keys.hasMoreElements())
-            	{
-            		key = (String)keys.nextElement();
-            		value = (String)extraHttpHeaders.get(key);
-            		if (value != null)
-            			postRequest.setRequestHeader(key, value);
-            	}
+                //send it
+                postRequest = createRequest();
+                if (requestData != outputData)
+                    postRequest.setRequestHeader(HEADER_CONTENT_ENCODING, requestEncoding);
+                postRequest.setRequestBody( new ByteArrayInputStream(requestData) );
+                httpClient.executeMethod(getRequestHostConfiguration(), postRequest);
+                
+                //send the message again without compression if the server doesn't accept the compressed request after all
+                if ( (requestData != outputData) && (postRequest.getStatusCode() == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) )
+                {
+                    requestEncoding = null;
+                    postRequest.releaseConnection();
+                    postRequest = createRequest();
+                    postRequest.setRequestBody( new ByteArrayInputStream(outputData) );
+                    httpClient.executeMethod(getRequestHostConfiguration(), postRequest);
+                }
             }
-            postRequest.setRequestBody( new ByteArrayInputStream(outputData) );
-            httpClient.executeMethod(httpClient.getHostConfiguration(), postRequest);
 
             //generate an IO exception if required
             inputCount++;
@@ -144,8 +386,8 @@ public class HTTPTransport implements Transport
             if (requestStatus >= 400)
                 throw new IllegalStateException("fatal HTTP status: " + requestStatus + " (" + postRequest.getStatusText() + ")");
 
-            //return the response stream
-            return postRequest.getResponseBodyAsStream();
+            //return the (decompressed) response stream
+            return decodeResponse(postRequest.getResponseBodyAsStream());
         }
         catch (HttpException e)
         {
@@ -161,11 +403,21 @@ public class HTTPTransport implements Transport
         outputCount++;
         if (outputCount == syncErrorOutputCount)
             throw new IOException("dummy IO exception while sending data");
+        
+        //use the connection prepared in advance (if any)
+        awaitPreparation();
             
         //buffer all output until an input stream is required
         outputStream.reset();
+        if ( (! streamingEnabled) || (requestEncoding != null) )
+            return outputStream;
         
-        return outputStream;
+        //start sending the message while it's being written - the message is also buffered until the server 
+        //has been seen to accept chunked requests, so that it can be sent again in the normal way if necessary
+        streamingRequest = new StreamingRequest(streamingVerified ? null : outputStream);
+        streamingRequest.start();
+        
+        return streamingRequest.output;
     }
 
     public String getContentType()
@@ -182,13 +434,167 @@ public class HTTPTransport implements Transport
     	}
     }
 
+    public void prepare()
+    {
+        if ( (prepareThread != null) && (prepareThread.isAlive()) )
+            return;
+        
+        //resolve the address of the server and open the connection in the background while the session is initializing
+        prepareThread = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    connectionManager.openConnection(httpClient.getHostConfiguration());
+                }
+                catch (IOException e)
+                {
+                    //ignore - the connection will be opened when the first message is sent
+                }
+            }
+        };
+        prepareThread.start();
+    }
+    
     public void cleanup()
     {
+        //abandon any message which was being streamed but was never completed
+        if (streamingRequest != null)
+        {
+            streamingRequest.cancel();
+            streamingRequest = null;
+        }
+        
+        //releasing the connection reads the rest of the response so that the connection can be reused
         if (postRequest != null)
         {
             postRequest.releaseConnection();
             postRequest = null;
         }
+        
+        lastExchangeTime = System.currentTimeMillis();
+    }
+    
+    /* Returns the URI to which the next message should be sent. */
+    private URI getRequestUri()
+    {
+        if (responseUri != null)
+            return responseUri;
+        
+        return targetUri;
+    }
+    
+    /* Returns the host configuration to use when sending the next message. */
+    private HostConfiguration getRequestHostConfiguration()
+    {
+        if (responseHostConfiguration != null)
+            return responseHostConfiguration;
+        
+        return httpClient.getHostConfiguration();
+    }
+    
+    /* Waits until the connection being prepared in advance (if any) is ready. */
+    private void awaitPreparation()
+    {
+        Thread thread = prepareThread;
+        if (thread == null)
+            return;
+        
+        while (thread.isAlive())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                //ignore
+            }
+        }
+        prepareThread = null;
+    }
+    
+    /* Creates a POST request with the appropriate headers. */
+    private PostMethod createRequest()
+    {
+        PostMethod request = new PostMethod( getRequestUri().toString() );
+        request.setRequestHeader("Content-Type", Transport.CONTENT_TYPE_WBXML);
+        if (compressionEnabled)
+            request.setRequestHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP + ", " + ENCODING_DEFLATE);
+
+        if (extraHttpHeaders != null)
+        {
+        	Enumeration keys = extraHttpHeaders.keys();
+        	String key;
+        	String value;
+        	
+        	while (keys.hasMoreElements())
+        	{
+        		key = (String)keys.nextElement();
+        		value = (String)extraHttpHeaders.get(key);
+        		if (value != null)
+        			request.setRequestHeader(key, value);
+        	}
+        }
+        
+        return request;
+    }
+    
+    /* Returns the specified message compressed using the specified content encoding, or the message itself if compression doesn't make it smaller. */
+    private byte[] compress(byte[] data, String contentEncoding)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        
+        ByteArrayOutputStream compressedStream = new ByteArrayOutputStream(data.length / 2);
+        DeflaterOutputStream deflaterStream;
+        if (ENCODING_GZIP.equals(contentEncoding))
+            deflaterStream = new GZIPOutputStream(compressedStream);
+        else
+            deflaterStream = new DeflaterOutputStream(compressedStream);
+        deflaterStream.write(data);
+        deflaterStream.close();
+        byte[] compressedData = compressedStream.toByteArray();
+        
+        compressionTime += (System.nanoTime() - start);
+        if (compressedData.length >= data.length)
+            return data;
+        
+        uncompressedBytesSent += data.length;
+        compressedBytesSent += compressedData.length;
+        return compressedData;
+    }
+    
+    /* Returns a stream from which the decompressed content of the current response can be read. */
+    private InputStream decodeResponse(InputStream content)
+        throws IOException
+    {
+        if ( (! compressionEnabled) || (content == null) )
+            return content;
+        
+        String contentEncoding = null;
+        Header encodingHeader = postRequest.getResponseHeader(HEADER_CONTENT_ENCODING);
+        if (encodingHeader != null)
+            contentEncoding = encodingHeader.getValue().trim().toLowerCase();
+        
+        //the server supports compression, so compress requests from now on
+        if (requestEncoding == null)
+        {
+            Header acceptHeader = postRequest.getResponseHeader(HEADER_ACCEPT_ENCODING);
+            String acceptEncoding = (acceptHeader != null) ? acceptHeader.getValue().toLowerCase() : "";
+            if ( (ENCODING_GZIP.equals(contentEncoding)) || (acceptEncoding.indexOf(ENCODING_GZIP) >= 0) )
+                requestEncoding = ENCODING_GZIP;
+            else if ( (ENCODING_DEFLATE.equals(contentEncoding)) || (acceptEncoding.indexOf(ENCODING_DEFLATE) >= 0) )
+                requestEncoding = ENCODING_DEFLATE;
+        }
+        
+        if (ENCODING_GZIP.equals(contentEncoding))
+            return new DecompressingInputStream(content, true);
+        if (ENCODING_DEFLATE.equals(contentEncoding))
+            return new DecompressingInputStream(content, false);
+        
+        return content;
     }
     
     private Hashtable parseExtraHttpHeaders(String httpHeaders)
@@ -219,4 +625,439 @@ public class HTTPTransport implements Transport
     	
     	return hash;
     }
-}
+    
+    
+    /**
+     * A connection manager which keeps track of whether the persistent connection is reused and closes
+     * it if it has been idle for too long.
+     */
+    private class PersistentConnectionManager extends SimpleHttpConnectionManager
+    {
+        private boolean prepared;               //indicates whether or not the open connection was opened in advance and hasn't been used yet
+        
+        
+        public HttpConnection getConnection(HostConfiguration hostConfiguration, long timeout)
+        {
+            HttpConnection connection = super.getConnection(hostConfiguration, timeout);
+            
+            //the server has probably closed the connection if it has been idle for too long
+            if ( (connection.isOpen()) && (lastExchangeTime > 0) && ((System.currentTimeMillis() - lastExchangeTime) > CONNECTION_IDLE_TIMEOUT) )
+                connection.close();
+            
+            //a connection opened in advance is counted as a new connection when it is first used 
+            if ( (connection.isOpen()) && (! prepared) )
+                reuseCount++;
+            else
+                connectCount++;
+            prepared = false;
+            
+            return connection;
+        }
+        
+        /* Opens the connection in advance of the first request. */
+        private void openConnection(HostConfiguration hostConfiguration)
+            throws IOException
+        {
+            HttpConnection connection = super.getConnection(hostConfiguration, 0);
+            try
+            {
+                if (! connection.isOpen())
+                {
+                    connection.open();
+                    prepared = true;
+                }
+            }
+            finally
+            {
+                releaseConnection(connection);
+            }
+            
+            //make sure the connection isn't considered idle when the first message is sent
+            lastExchangeTime = System.currentTimeMillis();
+        }
+    }
+    
+    
+    /* Returns whether or not the specified status code indicates that the server doesn't accept chunked requests. */
+    private static boolean isStreamingRejected(int statusCode)
+    {
+        return ( (statusCode == HttpStatus.SC_LENGTH_REQUIRED) || (statusCode == HttpStatus.SC_NOT_IMPLEMENTED) || (statusCode == HttpStatus.SC_HTTP_VERSION_NOT_SUPPORTED) );
+    }
+    
+    
+    /**
+     * A thread which sends a message to the server using chunked transfer encoding while the message is being written.
+     */
+    private class StreamingRequest extends Thread
+    {
+        private PostMethod method;
+        private PipedInputStream pipeInput;
+        private OutputStream output;
+        private boolean messageRead;                //whether or not the HTTP client has read the whole message
+        private IOException error;
+        private IOException pipeError;
+        
+        
+        private StreamingRequest(final ByteArrayOutputStream copyStream)
+            throws IOException
+        {
+            pipeInput = new PipedInputStream();
+            final PipedOutputStream pipeOutput = new PipedOutputStream(pipeInput);
+            OutputStream teeOutput = new OutputStream()
+            {
+                public void write(int b)
+                    throws IOException
+                {
+                    write(new byte[] { (byte)b }, 0, 1);
+                }
+                
+                public void write(byte[] b, int off, int len)
+                    throws IOException
+                {
+                    //the copy is written first so that the whole message can still be resent if the server rejects the stream early
+                    if (copyStream != null)
+                        copyStream.write(b, off, len);
+                    if (pipeError != null)
+                        return;
+                    
+                    try
+                    {
+                        pipeOutput.write(b, off, len);
+                    }
+                    catch (IOException e)
+                    {
+                        //until streaming has been confirmed, keep buffering the copy and report the failure when the message ends
+                        if (copyStream == null)
+                            throw e;
+                        pipeError = e;
+                    }
+                }
+                
+                public void close()
+                    throws IOException
+                {
+                    try
+                    {
+                        pipeOutput.close();
+                    }
+                    catch (IOException e)
+                    {
+                        if (copyStream == null)
+                            throw e;
+                        if (pipeError == null)
+                            pipeError = e;
+                    }
+                }
+            };
+            output = new BufferedOutputStream(teeOutput, STREAMING_BUFFER_SIZE);
+            
+            method = createRequest();
+            InputStream messageInput = new FilterInputStream(pipeInput)
+            {
+                public int read()
+                    throws IOException
+                {
+                    int b = super.read();
+                    if (b < 0)
+                        messageRead = true;
+                    return b;
+                }
+                
+                public int read(byte[] b, int off, int len)
+                    throws IOException
+                {
+                    int count = super.read(b, off, len);
+                    if (count < 0)
+                        messageRead = true;
+                    return count;
+                }
+            };
+            method.setRequestBody(messageInput);
+            method.setRequestContentLength(EntityEnclosingMethod.CONTENT_LENGTH_CHUNKED);
+        }
+        
+        
+        public void run()
+        {
+            try
+            {
+                httpClient.executeMethod(getRequestHostConfiguration(), method);
+            }
+            catch (IOException e)
+            {
+                error = e;
+            }
+            finally
+            {
+                //make sure the writer doesn't block if the request failed
+                closePipe();
+            }
+        }
+        
+        /* Ends the message and waits for the response. Returns false if the buffered copy of the message should be sent instead. */
+        private boolean finish()
+            throws IOException
+        {
+            IOException closeError = null;
+            try
+            {
+                output.close();
+            }
+            catch (IOException e)
+            {
+                //the request has probably failed - the cause is reported below
+                closeError = e;
+            }
+            
+            waitForRequest();
+            if (error != null)
+            {
+                //any failure after the whole message was sent is reported as it is - the server may already have 
+                //processed the message, so it mustn't be sent again (the session is suspended and resumed instead)
+                if ( (streamingVerified) || (messageRead) )
+                    throw error;
+                return false;
+            }
+            
+            //the server may have rejected the chunked request before the whole message was written
+            if ( (! streamingVerified) && (isStreamingRejected(method.getStatusCode())) )
+                return false;
+            if (closeError != null)
+                throw closeError;
+            if (pipeError != null)
+                throw pipeError;
+            return true;
+        }
+        
+        /* Abandons the request. */
+        private void cancel()
+        {
+            closePipe();
+            waitForRequest();
+            method.releaseConnection();
+        }
+        
+        /* Waits until the request has completed. */
+        private void waitForRequest()
+        {
+            while (isAlive())
+            {
+                try
+                {
+                    join();
+                }
+                catch (InterruptedException e)
+                {
+                    //ignore
+                }
+            }
+        }
+        
+        /* Closes the pipe from which the message is read. */
+        private void closePipe()
+        {
+            try
+            {
+                pipeInput.close();
+            }
+            catch (IOException e)
+            {
+                //ignore
+            }
+        }
+    }
+    
+    
+    /**
+     * An input stream which decompresses a response and keeps track of the amount of data and time involved.
+     */
+    private class DecompressingInputStream extends InputStream
+    {
+        private InputStream compressedInput;
+        private Inflater inflater;
+        private CRC32 crc;
+        private byte[] compressedBuffer;
+        private int compressedPos;
+        private int compressedLength;
+        private boolean finished;
+        
+        
+        private DecompressingInputStream(InputStream content, boolean gzip)
+            throws IOException
+        {
+            compressedInput = content;
+            compressedBuffer = new byte[STREAMING_BUFFER_SIZE];
+            
+            //gzip wraps raw deflate data in a header and trailer, which are handled here
+            inflater = new Inflater(gzip);
+            if (gzip)
+            {
+                crc = new CRC32();
+                readGzipHeader();
+            }
+        }
+        
+        
+        public int read()
+            throws IOException
+        {
+            byte[] data = new byte[1];
+            if (read(data, 0, 1) <= 0)
+                return -1;
+            
+            return (data[0] & 0xFF);
+        }
+        
+        public int read(byte[] buffer, int offset, int length)
+            throws IOException
+        {
+            if (length <= 0)
+                return 0;
+            
+            while (! finished)
+            {
+                if (inflater.needsInput())
+                {
+                    fillBuffer();
+                    inflater.setInput(compressedBuffer, 0, compressedLength);
+                }
+                
+                //only the decompression itself is timed, not the time spent waiting for the data to arrive
+                int count;
+                long start = System.nanoTime();
+                try
+                {
+                    count = inflater.inflate(buffer, offset, length);
+                }
+                catch (DataFormatException e)
+                {
+                    throw new IOException("invalid compressed response: " + e.getMessage());
+                }
+                finally
+                {
+                    compressionTime += (System.nanoTime() - start);
+                }
+                
+                if (count > 0)
+                {
+                    if (crc != null)
+                        crc.update(buffer, offset, count);
+                    uncompressedBytesReceived += count;
+                }
+                
+                if (inflater.finished())
+                {
+                    finished = true;
+                    compressedPos = compressedLength - inflater.getRemaining();
+                    if (crc != null)
+                        readGzipTrailer();
+                }
+                else if (inflater.needsDictionary())
+                {
+                    throw new IOException("compressed response requires a preset dictionary");
+                }
+                
+                if (count > 0)
+                    return count;
+            }
+            
+            return -1;
+        }
+        
+        public int available()
+            throws IOException
+        {
+            return 0;
+        }
+        
+        public void close()
+            throws IOException
+        {
+            inflater.end();
+            compressedInput.close();
+        }
+        
+        /* Reads the next block of compressed data into the buffer. */
+        private void fillBuffer()
+            throws IOException
+        {
+            int count = compressedInput.read(compressedBuffer, 0, compressedBuffer.length);
+            if (count < 0)
+                throw new EOFException("unexpected end of compressed response");
+            
+            compressedBytesReceived += count;
+            compressedPos = 0;
+            compressedLength = count;
+        }
+        
+        /* Reads the next byte of compressed data which isn't part of the deflate data. */
+        private int readByte()
+            throws IOException
+        {
+            while (compressedPos >= compressedLength)
+                fillBuffer();
+            
+            return (compressedBuffer[compressedPos++] & 0xFF);
+        }
+        
+        /* Reads a little-endian integer of the specified number of bytes which isn't part of the deflate data. */
+        private long readNumber(int byteCount)
+            throws IOException
+        {
+            long value = 0;
+            for (int i = 0; i < byteCount; i++)
+                value |= ((long)readByte() << (i * 8));
+            
+            return value;
+        }
+        
+        /* Reads the gzip header which precedes the deflate data. */
+        private void readGzipHeader()
+            throws IOException
+        {
+            if (readNumber(2) != 0x8B1F)
+                throw new IOException("compressed response isn't in gzip format");
+            if (readByte() != 8)
+                throw new IOException("unsupported gzip compression method");
+            
+            //skip the modification time, extra flags and OS, and any optional fields
+            int flags = readByte();
+            readNumber(6);
+            if ((flags & 0x04) != 0)
+                readNumber((int)readNumber(2));
+            if ((flags & 0x08) != 0)
+                skipString();
+            if ((flags & 0x10) != 0)
+                skipString();
+            if ((flags & 0x02) != 0)
+                readNumber(2);
+            
+            //the rest of the buffer holds the start of the deflate data
+            int remaining = compressedLength - compressedPos;
+            System.arraycopy(compressedBuffer, compressedPos, compressedBuffer, 0, remaining);
+            compressedPos = 0;
+            compressedLength = remaining;
+            inflater.setInput(compressedBuffer, 0, compressedLength);
+        }
+        
+        /* Skips a zero-terminated string in the gzip header. */
+        private void skipString()
+            throws IOException
+        {
+            while (readByte() != 0)
+            {
+                //skip the character
+            }
+        }
+        
+        /* Reads and checks the gzip trailer which follows the deflate data. */
+        private void readGzipTrailer()
+            throws IOException
+        {
+            if (readNumber(4) != crc.getValue())
+                throw new IOException("corrupt gzip response (CRC mismatch)");
+            if (readNumber(4) != (inflater.getBytesWritten() & 0xFFFFFFFFL))
+                throw new IOException("corrupt gzip response (size mismatch)");
+        }
+    }
+}
\ No newline at end of file
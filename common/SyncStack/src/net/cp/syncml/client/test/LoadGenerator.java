@@ -0,0 +1,671 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.test;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+import net.cp.syncml.client.SyncML;
+import net.cp.syncml.client.SyncManager;
+import net.cp.syncml.client.SyncMetrics;
+import net.cp.syncml.client.Transport;
+import net.cp.syncml.client.devinfo.Device;
+import net.cp.syncml.client.store.RecordStore;
+import net.cp.syncml.client.test.store.DesktopVcardStore;
+import net.cp.syncml.client.util.Logger;
+import net.cp.syncml.client.util.TaskExecutor;
+
+
+/**
+ * A class which generates load on a SyncML server by syncing many virtual devices concurrently. <br/><br/>
+ *
+ * Each virtual device has its own device ID, {@link SyncManager} and directory of generated vCards, which
+ * are synced using a {@link DesktopVcardStore}. The devices are started evenly over the ramp-up period and
+ * each device runs the configured number of sessions, waiting for the think time between sessions and
+ * modifying some of its vCards before each subsequent session. Each device uses its own
+ * {@link TestSyncListener}, so the configured suspend/resume points apply to every device. <br/><br/>
+ *
+ * Once all devices have completed, the duration of the sessions (including any time spent suspended), the
+ * message rate and the failures are reported for each type of sync actually performed.
+ *
+ * @author Denis Evoy
+ */
+public class LoadGenerator
+{
+    /**
+     * An interface defining a factory which creates the device information and transport of each virtual device.
+     */
+    public interface DeviceFactory
+    {
+        /**
+         * Called to create the device information of the virtual device with the specified ID.
+         *
+         * @param deviceId the ID of the virtual device. Will not be null or empty.
+         * @return The device information. Must not be null.
+         */
+        public Device createDevice(String deviceId);
+
+        /**
+         * Called to create the transport used by the virtual device with the specified ID.
+         *
+         * @param deviceId the ID of the virtual device. Will not be null or empty.
+         * @return The transport. Must not be null.
+         * @throws IOException if the transport couldn't be created.
+         */
+        public Transport createTransport(String deviceId)
+            throws IOException;
+    }
+
+
+    //the interval (in milliseconds) at which a device checks if its last session has finished before starting the next one
+    private static final long RESTART_INTERVAL = 100;
+
+    //the name of the directory (in the temporary directory) in which the vCards are generated by default
+    private static final String DEFAULT_DATA_DIRECTORY = "syncml-load";
+
+    private static final String LOG_PREFIX =        "LOAD: ";
+
+
+    private DeviceFactory deviceFactory;            //the factory used to create each virtual device
+    private Logger log;                             //the logger used to log the progress of the test
+    private Logger sessionLogger;                   //the logger used by the sessions (if any)
+    private String deviceIdPrefix;                  //the prefix of the ID of each virtual device
+    private int deviceCount;                        //the number of virtual devices
+    private long rampUpTime;                        //the time (in milliseconds) over which the devices are started
+    private int sessionCount;                       //the number of sessions run by each device
+    private long thinkTime;                         //the time (in milliseconds) each device waits between sessions
+    private int contactCount;                       //the number of vCards generated for each device
+    private int changeCount;                        //the number of vCards modified before each subsequent session
+    private File dataDirectory;                     //the directory containing the vCards of each device
+    private int syncType;                           //the type of sync requested by each device
+    private String conflictResolution;              //the conflict resolution requested by each device
+    private String username;                        //the username used by each device ("{n}" is replaced by the device number)
+    private String password;                        //the password used by each device
+    private int suspendSendCount;                   //the message after which each session is suspended when sending
+    private int suspendReceiveCount;                //the message after which each session is suspended when receiving
+    private int resumeDelay;                        //the number of seconds after which a suspended session is resumed
+    private TaskExecutor sessionExecutor;           //the executor used to run the sessions (if any)
+
+    private Timer timer;                            //the timer used to start sessions
+    private Hashtable syncTypeStats;                //the statistics of each type of sync - a collection of SyncTypeStats objects keyed by sync type
+    private int activeDeviceCount;                  //the number of devices which haven't yet completed all their sessions
+    private long startTime;                         //the time at which the test started
+    private long endTime;                           //the time at which the test completed
+
+
+    /**
+     * Creates a new load generator using the specified factory to create the virtual devices.
+     *
+     * @param factory   the factory used to create the device information and transport of each virtual device. Must not be null.
+     * @param logger    the logger used to log the progress and results of the test. May be null.
+     */
+    public LoadGenerator(DeviceFactory factory, Logger logger)
+    {
+        if (factory == null)
+            throw new IllegalArgumentException("no device factory specified");
+
+        deviceFactory = factory;
+        log = logger;
+        deviceIdPrefix = "load";
+        deviceCount = 1;
+        sessionCount = 1;
+        contactCount = 20;
+        changeCount = 2;
+        dataDirectory = new File(System.getProperty("java.io.tmpdir"), DEFAULT_DATA_DIRECTORY);
+        syncType = SyncML.SYNC_TYPE_TWO_WAY;
+        conflictResolution = RecordStore.EMI_CONFLICT_RES_CLIENT_WINS;
+        syncTypeStats = new Hashtable();
+    }
+
+
+    /**
+     * Sets the number of virtual devices and the prefix of their IDs. <br/><br/>
+     *
+     * The ID of each device is formed by appending the device number (starting at 1) to the prefix.
+     *
+     * @param count     the number of virtual devices. Must be positive.
+     * @param idPrefix  the prefix of the ID of each device. Must not be null or empty.
+     */
+    public void setDevices(int count, String idPrefix)
+    {
+        if (count <= 0)
+            throw new IllegalArgumentException("invalid device count specified: " + count);
+        if ( (idPrefix == null) || (idPrefix.length() <= 0) )
+            throw new IllegalArgumentException("no device ID prefix specified");
+
+        deviceCount = count;
+        deviceIdPrefix = idPrefix;
+    }
+
+    /**
+     * Sets the schedule followed by each virtual device.
+     *
+     * @param rampUp    the time (in milliseconds) over which the devices are started evenly, or 0 to start them all at once.
+     * @param sessions  the number of sessions run by each device. Must be positive.
+     * @param think     the time (in milliseconds) each device waits between the end of a session and the start of the next.
+     */
+    public void setSchedule(long rampUp, int sessions, long think)
+    {
+        if (sessions <= 0)
+            throw new IllegalArgumentException("invalid session count specified: " + sessions);
+
+        rampUpTime = Math.max(rampUp, 0);
+        sessionCount = sessions;
+        thinkTime = Math.max(think, 0);
+    }
+
+    /**
+     * Sets the data synced by each virtual device.
+     *
+     * @param directory the directory in which the vCards of each device are generated, or null to use the temporary directory.
+     * @param contacts  the number of vCards generated for each device (if the device has none yet).
+     * @param changes   the number of vCards modified by each device before each subsequent session.
+     */
+    public void setDataSet(String directory, int contacts, int changes)
+    {
+        if ( (directory != null) && (directory.length() > 0) )
+            dataDirectory = new File(directory);
+        contactCount = Math.max(contacts, 0);
+        changeCount = Math.max(changes, 0);
+    }
+
+    /**
+     * Sets the type of sync and conflict resolution requested by each virtual device.
+     *
+     * @param type          the type of sync (one of the SyncML.SYNC_TYPE_XXX constants).
+     * @param conflictRes   the conflict resolution (one of the RecordStore.EMI_CONFLICT_RES_XXX constants). May be null.
+     */
+    public void setSyncType(int type, String conflictRes)
+    {
+        syncType = type;
+        conflictResolution = conflictRes;
+    }
+
+    /**
+     * Sets the credentials used by each virtual device. <br/><br/>
+     *
+     * Any occurrence of "{n}" in the username is replaced by the device number, so that each device can use a
+     * different account.
+     *
+     * @param user  the username. Must not be null or empty.
+     * @param pass  the password. Must not be null or empty.
+     */
+    public void setCredentials(String user, String pass)
+    {
+        username = user;
+        password = pass;
+    }
+
+    /**
+     * Sets the points at which the session of each virtual device is suspended, and when it is resumed.
+     *
+     * @param sendCount     suspend each session after sending this number of messages (or 0 to not suspend).
+     * @param receiveCount  suspend each session after receiving this number of messages (or 0 to not suspend).
+     * @param resumeSeconds the number of seconds after which a suspended session is resumed (or 0 to fail the session).
+     */
+    public void setFaults(int sendCount, int receiveCount, int resumeSeconds)
+    {
+        suspendSendCount = sendCount;
+        suspendReceiveCount = receiveCount;
+        resumeDelay = resumeSeconds;
+    }
+
+    /**
+     * Sets the executor used to run the sessions of all virtual devices. <br/><br/>
+     *
+     * If not set, each session is run by a thread of its own.
+     *
+     * @param executor the executor used to run the sessions. May be null.
+     *
+     * @see SyncManager#setSessionExecutor(TaskExecutor)
+     */
+    public void setSessionExecutor(TaskExecutor executor)
+    {
+        sessionExecutor = executor;
+    }
+
+    /**
+     * Sets the logger used by the sessions of the virtual devices. <br/><br/>
+     *
+     * By default, session activity isn't logged as the logs of many concurrent sessions are of little use.
+     *
+     * @param logger the logger used by the sessions. May be null.
+     */
+    public void setSessionLogger(Logger logger)
+    {
+        sessionLogger = logger;
+    }
+
+
+    /**
+     * Runs all virtual devices and waits until they have completed all their sessions.
+     *
+     * @return <code>true</code> if all sessions were successful.
+     * @throws IOException if the data of the devices couldn't be generated or a transport couldn't be created.
+     * @throws InterruptedException if interrupted while waiting for the devices to complete.
+     */
+    public boolean run()
+        throws IOException, InterruptedException
+    {
+        if ( (username == null) || (username.length() <= 0) || (password == null) || (password.length() <= 0) )
+            throw new IllegalStateException("no credentials specified");
+
+        //create the virtual devices and their data
+        VirtualDevice[] devices = new VirtualDevice[deviceCount];
+        for (int i = 0; i < deviceCount; i++)
+            devices[i] = createDevice(i + 1);
+
+        //start the devices evenly over the ramp-up period
+        logInfo("Starting " + deviceCount + " devices over " + rampUpTime + "ms, each running " + sessionCount + " sessions");
+        synchronized (this)
+        {
+            syncTypeStats.clear();
+            activeDeviceCount = deviceCount;
+            startTime = System.currentTimeMillis();
+            timer = new Timer(true);
+            for (int i = 0; i < deviceCount; i++)
+                scheduleSession(devices[i], (rampUpTime * i) / deviceCount);
+
+            //wait for all devices to complete
+            try
+            {
+                while (activeDeviceCount > 0)
+                    wait();
+            }
+            finally
+            {
+                timer.cancel();
+                timer = null;
+                endTime = System.currentTimeMillis();
+            }
+        }
+
+        logReport();
+        return (getFailureCount() == 0);
+    }
+
+    /**
+     * Returns the number of sessions which have completed (successfully or not).
+     *
+     * @return The number of completed sessions.
+     */
+    public synchronized int getSessionCount()
+    {
+        int count = 0;
+        for (Enumeration e = syncTypeStats.elements(); e.hasMoreElements(); )
+            count += ((SyncTypeStats)e.nextElement()).durations.size();
+
+        return count;
+    }
+
+    /**
+     * Returns the number of sessions which have failed.
+     *
+     * @return The number of failed sessions.
+     */
+    public synchronized int getFailureCount()
+    {
+        int count = 0;
+        for (Enumeration e = syncTypeStats.elements(); e.hasMoreElements(); )
+            count += ((SyncTypeStats)e.nextElement()).failureCount;
+
+        return count;
+    }
+
+
+    /* Creates the virtual device with the specified number, generating its vCards if necessary. */
+    private VirtualDevice createDevice(int number)
+        throws IOException
+    {
+        VirtualDevice device = new VirtualDevice();
+        device.number = number;
+        device.deviceId = deviceIdPrefix + number;
+        device.random = new Random(number);
+
+        device.directory = new File(dataDirectory, device.deviceId);
+        if ( (! device.directory.isDirectory()) && (! device.directory.mkdirs()) )
+            throw new IOException("failed to create data directory '" + device.directory + "'");
+        if (getContactFiles(device).length <= 0)
+        {
+            for (int i = 1; i <= contactCount; i++)
+                writeContact(device, new File(device.directory, "contact" + i + ".vcf"), i, 0);
+        }
+
+        device.listener = new DeviceListener(device);
+        String user = TestSyncListener.replaceAll(username, "{n}", Integer.toString(number));
+        device.manager = new SyncManager(deviceFactory.createDevice(device.deviceId), deviceFactory.createTransport(device.deviceId), user, password, device.listener, sessionLogger);
+        device.manager.setSessionExecutor(sessionExecutor);
+        device.listener.setSyncManager(device.manager);
+
+        return device;
+    }
+
+    /* Schedules the next session of the specified device to start after the specified delay. */
+    private synchronized void scheduleSession(final VirtualDevice device, long delay)
+    {
+        if (timer == null)
+            return;
+
+        timer.schedule(new TimerTask()
+        {
+            public void run()
+            {
+                startSession(device);
+            }
+        }, delay);
+    }
+
+    /* Starts the next session of the specified device. */
+    private void startSession(VirtualDevice device)
+    {
+        //the previous session may still be finishing - a session left suspended is abandoned
+        if (device.manager.isSyncSuspended())
+        {
+            device.manager.stopSync();
+        }
+        else if (device.manager.isSyncRunning())
+        {
+            scheduleSession(device, RESTART_INTERVAL);
+            return;
+        }
+
+        try
+        {
+            //emulate the user changing some contacts between sessions
+            if (device.sessionNumber > 0)
+                modifyContacts(device);
+
+            device.store = new DesktopVcardStore(device.directory.getPath(), sessionLogger, conflictResolution, syncType, false, 0, null);
+            synchronized (device)
+            {
+                device.sessionNumber++;
+                device.sessionActive = true;
+                device.sessionStartTime = System.currentTimeMillis();
+            }
+            if (! device.manager.startSync(new RecordStore[] { device.store }, Long.toString(System.currentTimeMillis())))
+                sessionEnded(device, false, SyncML.STATUS_COMMAND_FAILED);
+        }
+        catch (Throwable e)
+        {
+            if (log != null)
+                log.error(LOG_PREFIX + "Failed to start session " + device.sessionNumber + " of device '" + device.deviceId + "'", e);
+            synchronized (device)
+            {
+                device.sessionActive = true;
+            }
+            sessionEnded(device, false, SyncML.STATUS_COMMAND_FAILED);
+        }
+    }
+
+    /* Records the result of the current session of the specified device and schedules its next session (if any). */
+    private void sessionEnded(VirtualDevice device, boolean success, int statusCode)
+    {
+        long duration;
+        synchronized (device)
+        {
+            //a session abandoned while suspended may be reported twice
+            if (! device.sessionActive)
+                return;
+            device.sessionActive = false;
+            duration = System.currentTimeMillis() - device.sessionStartTime;
+        }
+
+        int type = (device.store != null) ? device.store.getSyncType() : syncType;
+        int messageCount = device.listener.getOutgoingMessageCount() + device.listener.getIncomingMessageCount();
+        SyncMetrics metrics = device.manager.getSyncMetrics();
+        if ( (! success) && (log != null) )
+            log.warn(LOG_PREFIX + "Session " + device.sessionNumber + " of device '" + device.deviceId + "' failed - status '" + statusCode + "'");
+
+        synchronized (this)
+        {
+            Integer key = new Integer(type);
+            SyncTypeStats stats = (SyncTypeStats)syncTypeStats.get(key);
+            if (stats == null)
+            {
+                stats = new SyncTypeStats();
+                syncTypeStats.put(key, stats);
+            }
+            stats.durations.addElement( new Long(duration) );
+            stats.messageCount += messageCount;
+            if (metrics != null)
+            {
+                for (int i = 0; i < SyncMetrics.PHASE_COUNT; i++)
+                    stats.phaseTimes[i] += metrics.getPhaseTime(i);
+                stats.bytesSent += metrics.getBytesSent();
+                stats.bytesReceived += metrics.getBytesReceived();
+            }
+            if (! success)
+            {
+                stats.failureCount++;
+                Integer status = new Integer(statusCode);
+                Integer count = (Integer)stats.failureStatuses.get(status);
+                stats.failureStatuses.put(status, new Integer( (count != null) ? count.intValue() + 1 : 1 ));
+            }
+
+            if (device.sessionNumber < sessionCount)
+            {
+                scheduleSession(device, thinkTime);
+            }
+            else
+            {
+                activeDeviceCount--;
+                notifyAll();
+            }
+        }
+    }
+
+    /* Modifies some of the vCards of the specified device. */
+    private void modifyContacts(VirtualDevice device)
+        throws IOException
+    {
+        File[] files = getContactFiles(device);
+        for (int i = 0; (i < changeCount) && (files.length > 0); i++)
+        {
+            int index = device.random.nextInt(files.length);
+            writeContact(device, files[index], index + 1, device.sessionNumber);
+        }
+    }
+
+    /* Returns the vCard files of the specified device. */
+    private static File[] getContactFiles(VirtualDevice device)
+    {
+        Vector result = new Vector();
+        File[] files = device.directory.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            if (files[i].getName().endsWith(".vcf"))
+                result.addElement(files[i]);
+        }
+
+        File[] contactFiles = new File[result.size()];
+        result.copyInto(contactFiles);
+        return contactFiles;
+    }
+
+    /* Writes a generated vCard for the specified device to the specified file. */
+    private static void writeContact(VirtualDevice device, File file, int contactNumber, int revision)
+        throws IOException
+    {
+        Random random = device.random;
+        StringBuffer vcard = new StringBuffer(256);
+        vcard.append("BEGIN:VCARD\r\n");
+        vcard.append("VERSION:2.1\r\n");
+        vcard.append("N:Contact").append(contactNumber).append(";Device").append(device.number).append("\r\n");
+        vcard.append("FN:Device").append(device.number).append(" Contact").append(contactNumber).append("\r\n");
+        vcard.append("TEL;CELL:+1555").append(1000000 + random.nextInt(9000000)).append("\r\n");
+        vcard.append("EMAIL;INTERNET:contact").append(contactNumber).append("@device").append(device.number).append(".example.com\r\n");
+        vcard.append("NOTE:Revision ").append(revision);
+        int noteLength = random.nextInt(200);
+        for (int i = 0; i < noteLength; i++)
+            vcard.append( (char)('a' + random.nextInt(26)) );
+        vcard.append("\r\n");
+        vcard.append("END:VCARD\r\n");
+
+        OutputStream outputStream = new FileOutputStream(file);
+        try
+        {
+            outputStream.write( vcard.toString().getBytes("UTF-8") );
+        }
+        finally
+        {
+            outputStream.close();
+        }
+    }
+
+    /* Logs the results of the test. */
+    private synchronized void logReport()
+    {
+        long elapsedTime = Math.max(endTime - startTime, 1);
+        int totalMessages = 0;
+        for (Enumeration e = syncTypeStats.elements(); e.hasMoreElements(); )
+            totalMessages += ((SyncTypeStats)e.nextElement()).messageCount;
+
+        logInfo("Completed " + getSessionCount() + " sessions on " + deviceCount + " devices in " + elapsedTime + "ms with " + getFailureCount() + " failures");
+        logInfo("Throughput: " + ((getSessionCount() * 1000L) / elapsedTime) + " sessions/sec, " + ((totalMessages * 1000L) / elapsedTime) + " messages/sec");
+
+        for (Enumeration e = syncTypeStats.keys(); e.hasMoreElements(); )
+        {
+            Integer type = (Integer)e.nextElement();
+            SyncTypeStats stats = (SyncTypeStats)syncTypeStats.get(type);
+            long[] durations = new long[stats.durations.size()];
+            for (int i = 0; i < durations.length; i++)
+                durations[i] = ((Long)stats.durations.elementAt(i)).longValue();
+            Arrays.sort(durations);
+
+            logInfo("Sync type '" + getSyncTypeName(type.intValue()) + "': " + durations.length + " sessions, " + stats.failureCount + " failures, " + stats.messageCount + " messages");
+            logInfo("    Session duration (ms): p50=" + getPercentile(durations, 50) + " p90=" + getPercentile(durations, 90) + " p99=" + getPercentile(durations, 99) + " max=" + getPercentile(durations, 100));
+
+            StringBuffer phases = new StringBuffer("    Average per session (ms):");
+            for (int i = 0; i < SyncMetrics.PHASE_COUNT; i++)
+                phases.append(" ").append(SyncMetrics.getPhaseName(i)).append("=").append(stats.phaseTimes[i] / durations.length);
+            logInfo(phases.toString());
+            logInfo("    Average per session (bytes): sent=" + (stats.bytesSent / durations.length) + " received=" + (stats.bytesReceived / durations.length));
+            for (Enumeration f = stats.failureStatuses.keys(); f.hasMoreElements(); )
+            {
+                Integer status = (Integer)f.nextElement();
+                logInfo("    Failures with status '" + status + "': " + stats.failureStatuses.get(status));
+            }
+        }
+    }
+
+    /* Returns the specified percentile of the specified sorted values. */
+    private static long getPercentile(long[] sortedValues, int percentile)
+    {
+        if (sortedValues.length <= 0)
+            return 0;
+
+        int index = ((sortedValues.length * percentile) + 99) / 100 - 1;
+        return sortedValues[ Math.max(0, Math.min(index, sortedValues.length - 1)) ];
+    }
+
+    /* Returns the name of the specified sync type. */
+    private static String getSyncTypeName(int type)
+    {
+        if (type == SyncML.SYNC_TYPE_TWO_WAY)
+            return "two-way";
+        else if (type == SyncML.SYNC_TYPE_TWO_WAY_SLOW)
+            return "two-way slow";
+        else if (type == SyncML.SYNC_TYPE_ONE_WAY_CLIENT)
+            return "one-way from client";
+        else if (type == SyncML.SYNC_TYPE_REFRESH_CLIENT)
+            return "refresh from client";
+        else if (type == SyncML.SYNC_TYPE_ONE_WAY_SERVER)
+            return "one-way from server";
+        else if (type == SyncML.SYNC_TYPE_REFRESH_SERVER)
+            return "refresh from server";
+        else if (type == SyncML.SYNC_TYPE_SERVER_ALERTED)
+            return "server alerted";
+
+        return Integer.toString(type);
+    }
+
+    private void logInfo(String message)
+    {
+        if (log != null)
+            log.info(LOG_PREFIX + message);
+    }
+
+
+    /**
+     * A class containing the state of a virtual device.
+     */
+    private static class VirtualDevice
+    {
+        private int number;                         //the number of the device (starting at 1)
+        private String deviceId;                    //the ID of the device
+        private File directory;                     //the directory containing the vCards of the device
+        private Random random;                      //the generator used to generate and modify the vCards of the device
+        private SyncManager manager;                //the sync manager of the device
+        private DeviceListener listener;            //the listener of the device
+        private DesktopVcardStore store;            //the store synced by the current session
+        private int sessionNumber;                  //the number of sessions started so far
+        private boolean sessionActive;              //indicates if the result of the current session is still to be recorded
+        private long sessionStartTime;              //the time at which the current session started
+    }
+
+
+    /**
+     * A class containing the statistics of the sessions which performed a particular type of sync.
+     */
+    private static class SyncTypeStats
+    {
+        private Vector durations;                   //the duration (in milliseconds) of each session - a collection of Long objects
+        private int messageCount;                   //the number of messages exchanged by the sessions
+        private int failureCount;                   //the number of sessions which failed
+        private Hashtable failureStatuses;          //the number of failures with each status code - a collection of Integer objects keyed by status code
+        private long[] phaseTimes;                  //the time (in milliseconds) the sessions spent in each phase (SyncMetrics.PHASE_XXX)
+        private long bytesSent;                     //the number of bytes sent by the sessions
+        private long bytesReceived;                 //the number of bytes received by the sessions
+
+
+        private SyncTypeStats()
+        {
+            durations = new Vector();
+            failureStatuses = new Hashtable();
+            phaseTimes = new long[SyncMetrics.PHASE_COUNT];
+        }
+    }
+
+
+    /**
+     * A class implementing the listener of a virtual device, which records the result of each session.
+     */
+    private class DeviceListener extends TestSyncListener
+    {
+        private VirtualDevice device;
+
+
+        private DeviceListener(VirtualDevice virtualDevice)
+        {
+            super(sessionLogger, suspendSendCount, suspendReceiveCount, resumeDelay, SyncML.STATUS_OK, 0);
+            device = virtualDevice;
+        }
+
+
+        public void onSyncSuspend()
+        {
+            super.onSyncSuspend();
+
+            //a session which isn't going to be resumed has failed
+            if (resumeDelay <= 0)
+                sessionEnded(device, false, SyncML.STATUS_OPERATION_CANCELLED);
+        }
+
+        public void onSyncEnd(boolean success, int statusCode, String statusData)
+        {
+            super.onSyncEnd(success, statusCode, statusData);
+            sessionEnded(device, success, statusCode);
+        }
+    }
+}
@@ -0,0 +1,860 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.test;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Vector;
+
+
+/**
+ * A class implementing a minimal non-blocking HTTP/1.1 client. <br/><br/>
+ *
+ * All connections are handled by a single I/O thread using a selector, so any number of requests may be
+ * outstanding at the same time without a thread being used for each of them. Connections are kept alive
+ * and reused for later requests to the same server, unless they have been idle for longer than
+ * {@link #IDLE_TIMEOUT} milliseconds. <br/><br/>
+ *
+ * Only plain HTTP POST requests are supported. Responses may use a content length, chunked transfer encoding
+ * or be terminated by the server closing the connection.
+ *
+ * @author Denis Evoy
+ */
+public class NioHttpClient
+{
+    /** The default time (in milliseconds) after which a request is failed if no data has been sent or received. */
+    public static final long DEFAULT_TIMEOUT = 60000;
+
+    /** The time (in milliseconds) after which an idle connection is closed rather than reused. */
+    public static final long IDLE_TIMEOUT = 15000;
+
+    //the size of the buffer used to read responses
+    private static final int BUFFER_SIZE = 8192;
+
+    //the interval (in milliseconds) at which timeouts are checked
+    private static final long SELECT_INTERVAL = 1000;
+
+    //the character encoding used for the HTTP request line and headers
+    private static final String ENCODING_HEADERS = "ISO-8859-1";
+
+
+    private Selector selector;
+    private Thread ioThread;
+    private Vector pendingExchanges;
+    private Hashtable idleConnections;
+    private long requestTimeout;
+    private boolean shutdown;
+
+    private int connectCount;
+    private int reuseCount;
+
+
+    public NioHttpClient()
+        throws IOException
+    {
+        this(DEFAULT_TIMEOUT);
+    }
+
+    public NioHttpClient(long timeout)
+        throws IOException
+    {
+        selector = Selector.open();
+        pendingExchanges = new Vector();
+        idleConnections = new Hashtable();
+        requestTimeout = timeout;
+
+        ioThread = new Thread("NioHttpClient")
+        {
+            public void run()
+            {
+                runSelector();
+            }
+        };
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+
+    /**
+     * Sends the specified POST request to the specified server. <br/><br/>
+     *
+     * The method returns immediately and the result is reported to the specified handler from the I/O thread
+     * of the client, so the handler must not block.
+     *
+     * @param host      the host name of the server. Must not be null or empty.
+     * @param port      the port of the server.
+     * @param path      the path of the request. Must not be null or empty.
+     * @param headers   any additional request headers (name -> value). May be null.
+     * @param body      the body of the request. May be null.
+     * @param handler   the handler to notify of the result. Must not be null.
+     * @throws IllegalStateException if the client has been shut down.
+     */
+    public void post(String host, int port, String path, Hashtable headers, byte[] body, ResponseHandler handler)
+    {
+        if (handler == null)
+            throw new IllegalArgumentException("no response handler specified");
+
+        if (body == null)
+            body = new byte[0];
+
+        //build the request
+        StringBuffer header = new StringBuffer();
+        header.append("POST ").append(path).append(" HTTP/1.1\r\n");
+        header.append("Host: ").append(host).append(':').append(port).append("\r\n");
+        header.append("Content-Length: ").append(body.length).append("\r\n");
+        if (headers != null)
+        {
+            for (Enumeration e = headers.keys(); e.hasMoreElements(); )
+            {
+                String name = (String)e.nextElement();
+                header.append(name).append(": ").append(headers.get(name)).append("\r\n");
+            }
+        }
+        header.append("\r\n");
+
+        byte[] headerBytes;
+        try
+        {
+            headerBytes = header.toString().getBytes(ENCODING_HEADERS);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            headerBytes = header.toString().getBytes();
+        }
+
+        ByteBuffer request = ByteBuffer.allocate(headerBytes.length + body.length);
+        request.put(headerBytes);
+        request.put(body);
+        request.flip();
+
+        //hand the request over to the I/O thread
+        synchronized (this)
+        {
+            if (shutdown)
+                throw new IllegalStateException("the HTTP client has been shut down");
+
+            pendingExchanges.addElement( new Exchange(host, port, request, handler) );
+        }
+        selector.wakeup();
+    }
+
+    public synchronized int getConnectCount()
+    {
+        return connectCount;
+    }
+
+    public synchronized int getReuseCount()
+    {
+        return reuseCount;
+    }
+
+    /**
+     * Closes all connections and stops the I/O thread. Any outstanding requests are failed.
+     */
+    public void shutdown()
+    {
+        synchronized (this)
+        {
+            shutdown = true;
+        }
+        selector.wakeup();
+    }
+
+
+    /* Handles all connections until the client is shut down (called from the I/O thread). */
+    private void runSelector()
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (shutdown)
+                    break;
+            }
+
+            try
+            {
+                selector.select(SELECT_INTERVAL);
+            }
+            catch (IOException e)
+            {
+                break;
+            }
+
+            startPendingExchanges();
+
+            for (Iterator i = selector.selectedKeys().iterator(); i.hasNext(); )
+            {
+                SelectionKey key = (SelectionKey)i.next();
+                i.remove();
+                handleKey(key);
+            }
+
+            checkTimeouts();
+        }
+
+        //fail any outstanding requests and close all connections
+        IOException error = new IOException("the HTTP client has been shut down");
+        synchronized (this)
+        {
+            shutdown = true;
+            for (int i = 0; i < pendingExchanges.size(); i++)
+                ((Exchange)pendingExchanges.elementAt(i)).fail(error);
+            pendingExchanges.removeAllElements();
+        }
+        for (Iterator i = selector.keys().iterator(); i.hasNext(); )
+        {
+            Connection connection = (Connection)((SelectionKey)i.next()).attachment();
+            failConnection(connection, error);
+        }
+        idleConnections.clear();
+
+        try
+        {
+            selector.close();
+        }
+        catch (IOException e)
+        {
+            //ignore
+        }
+    }
+
+    /* Starts the requests which were submitted since the last time (called from the I/O thread). */
+    private void startPendingExchanges()
+    {
+        Vector exchanges;
+        synchronized (this)
+        {
+            if (pendingExchanges.size() <= 0)
+                return;
+
+            exchanges = pendingExchanges;
+            pendingExchanges = new Vector();
+        }
+
+        for (int i = 0; i < exchanges.size(); i++)
+            startExchange( (Exchange)exchanges.elementAt(i), true );
+    }
+
+    /* Starts the specified request, reusing an idle connection to the server if allowed and one is available. */
+    private void startExchange(Exchange exchange, boolean allowReuse)
+    {
+        //use an idle connection to the server if possible
+        Connection connection = allowReuse ? takeIdleConnection(exchange.serverKey) : null;
+        if (connection != null)
+        {
+            synchronized (this)
+            {
+                reuseCount++;
+            }
+            connection.start(exchange, true);
+            connection.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        //otherwise open a new connection
+        SocketChannel channel = null;
+        try
+        {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            boolean connected = channel.connect( new InetSocketAddress(exchange.host, exchange.port) );
+
+            connection = new Connection(channel, exchange.serverKey);
+            connection.key = channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, connection);
+            connection.start(exchange, false);
+            synchronized (this)
+            {
+                connectCount++;
+            }
+        }
+        catch (IOException e)
+        {
+            closeChannel(channel);
+            exchange.fail(e);
+        }
+    }
+
+    /* Handles the specified connection which is ready for I/O. */
+    private void handleKey(SelectionKey key)
+    {
+        Connection connection = (Connection)key.attachment();
+        try
+        {
+            if (! key.isValid())
+                return;
+
+            if (key.isConnectable())
+            {
+                if (connection.channel.finishConnect())
+                    key.interestOps(SelectionKey.OP_WRITE);
+                connection.lastActive = System.currentTimeMillis();
+            }
+            else if (key.isWritable())
+            {
+                writeRequest(connection);
+            }
+            else if (key.isReadable())
+            {
+                readResponse(connection);
+            }
+        }
+        catch (IOException e)
+        {
+            retryOrFail(connection, e);
+        }
+    }
+
+    /* Writes as much of the request as possible to the specified connection. */
+    private void writeRequest(Connection connection)
+        throws IOException
+    {
+        Exchange exchange = connection.exchange;
+        if (exchange == null)
+        {
+            connection.key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+
+        connection.channel.write(exchange.request);
+        connection.lastActive = System.currentTimeMillis();
+
+        //wait for the response once the whole request has been written
+        if (! exchange.request.hasRemaining())
+            connection.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /* Reads whatever response data is available from the specified connection. */
+    private void readResponse(Connection connection)
+        throws IOException
+    {
+        ByteBuffer buffer = connection.buffer;
+        buffer.clear();
+        int readCount = connection.channel.read(buffer);
+
+        //an idle connection should never receive data - it has either been closed by the server or is unusable
+        Exchange exchange = connection.exchange;
+        if (exchange == null)
+        {
+            idleConnectionClosed(connection);
+            return;
+        }
+
+        if (readCount < 0)
+        {
+            //a response without a content length is terminated by the server closing the connection
+            if ( (exchange.bodyStart >= 0) && (exchange.contentLength < 0) && (! exchange.chunked) )
+            {
+                exchange.keepAlive = false;
+                completeExchange(connection, exchange.getData(exchange.bodyStart, exchange.dataLength));
+                return;
+            }
+
+            throw new IOException("connection closed by the server");
+        }
+
+        connection.lastActive = System.currentTimeMillis();
+        if (readCount == 0)
+            return;
+
+        buffer.flip();
+        exchange.append(buffer);
+
+        //parse the status line and headers once they have been received
+        if ( (exchange.bodyStart < 0) && (! exchange.parseHeaders()) )
+            return;
+
+        //check if the body has been received
+        byte[] body = exchange.getBody();
+        if (body != null)
+            completeExchange(connection, body);
+    }
+
+    /* Reports the specified response body and returns the connection to the idle pool (or closes it). */
+    private void completeExchange(Connection connection, byte[] body)
+    {
+        Exchange exchange = connection.exchange;
+        connection.exchange = null;
+
+        if (exchange.keepAlive)
+        {
+            //watch the idle connection for being closed by the server
+            connection.lastActive = System.currentTimeMillis();
+            connection.key.interestOps(SelectionKey.OP_READ);
+            Vector connections = (Vector)idleConnections.get(connection.serverKey);
+            if (connections == null)
+            {
+                connections = new Vector();
+                idleConnections.put(connection.serverKey, connections);
+            }
+            connections.addElement(connection);
+        }
+        else
+        {
+            connection.close();
+        }
+
+        exchange.complete(body);
+    }
+
+    /* Retries the request of the specified failed connection on a new connection if the failure was caused by reusing a stale connection, or fails the request otherwise. */
+    private void retryOrFail(Connection connection, IOException error)
+    {
+        Exchange exchange = connection.exchange;
+        if ( (exchange != null) && (connection.reused) && (exchange.receivedCount <= 0) && (! exchange.retried) )
+        {
+            connection.exchange = null;
+            connection.close();
+
+            exchange.retried = true;
+            exchange.request.rewind();
+            startExchange(exchange, false);
+            return;
+        }
+
+        failConnection(connection, error);
+    }
+
+    /* Closes the specified connection and fails its request (if any). */
+    private void failConnection(Connection connection, IOException error)
+    {
+        Exchange exchange = connection.exchange;
+        connection.exchange = null;
+        removeIdleConnection(connection);
+        connection.close();
+
+        if (exchange != null)
+            exchange.fail(error);
+    }
+
+    /* Fails requests which have been inactive for too long and closes connections which have been idle for too long. */
+    private void checkTimeouts()
+    {
+        long now = System.currentTimeMillis();
+        Vector expired = new Vector();
+        for (Iterator i = selector.keys().iterator(); i.hasNext(); )
+        {
+            Connection connection = (Connection)((SelectionKey)i.next()).attachment();
+            long timeout = (connection.exchange != null) ? requestTimeout : IDLE_TIMEOUT;
+            if ( (now - connection.lastActive) > timeout )
+                expired.addElement(connection);
+        }
+
+        for (int i = 0; i < expired.size(); i++)
+        {
+            Connection connection = (Connection)expired.elementAt(i);
+            if (connection.exchange != null)
+                failConnection(connection, new SocketTimeoutException("no response received from the server within " + requestTimeout + "ms"));
+            else
+                idleConnectionClosed(connection);
+        }
+    }
+
+    /* Returns an idle connection to the specified server, or null if there is none. */
+    private Connection takeIdleConnection(String serverKey)
+    {
+        Vector connections = (Vector)idleConnections.get(serverKey);
+        while ( (connections != null) && (connections.size() > 0) )
+        {
+            //prefer the most recently used connection
+            Connection connection = (Connection)connections.lastElement();
+            connections.removeElementAt(connections.size() - 1);
+            if ( (connection.key.isValid()) && (connection.channel.isOpen()) )
+                return connection;
+        }
+
+        return null;
+    }
+
+    /* Closes the specified idle connection and removes it from the idle pool. */
+    private void idleConnectionClosed(Connection connection)
+    {
+        removeIdleConnection(connection);
+        connection.close();
+    }
+
+    /* Removes the specified connection from the idle pool (if present). */
+    private void removeIdleConnection(Connection connection)
+    {
+        Vector connections = (Vector)idleConnections.get(connection.serverKey);
+        if (connections != null)
+            connections.removeElement(connection);
+    }
+
+    /* Closes the specified channel, ignoring any errors. */
+    private static void closeChannel(SocketChannel channel)
+    {
+        if (channel == null)
+            return;
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            //ignore
+        }
+    }
+
+
+    /**
+     * An interface defining a handler which is notified of the result of a request.
+     */
+    public interface ResponseHandler
+    {
+        /**
+         * Called when the response has been received.
+         *
+         * @param statusCode    the HTTP status code of the response.
+         * @param statusText    the reason phrase of the response.
+         * @param headers       the response headers (lower case name -> value).
+         * @param body          the body of the response. Will not be null.
+         */
+        public void onResponse(int statusCode, String statusText, Hashtable headers, byte[] body);
+
+        /**
+         * Called when the request failed.
+         *
+         * @param error the error that occurred.
+         */
+        public void onError(IOException error);
+    }
+
+
+    /**
+     * A class representing a connection to a server.
+     */
+    private static class Connection
+    {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private String serverKey;
+        private ByteBuffer buffer;
+        private Exchange exchange;
+        private boolean reused;
+        private long lastActive;
+
+
+        private Connection(SocketChannel socketChannel, String server)
+        {
+            channel = socketChannel;
+            serverKey = server;
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            lastActive = System.currentTimeMillis();
+        }
+
+
+        /* Starts the specified request on the connection. */
+        private void start(Exchange newExchange, boolean reusedConnection)
+        {
+            exchange = newExchange;
+            reused = reusedConnection;
+            lastActive = System.currentTimeMillis();
+        }
+
+        /* Closes the connection. */
+        private void close()
+        {
+            if (key != null)
+                key.cancel();
+            closeChannel(channel);
+        }
+    }
+
+
+    /**
+     * A class representing a request and the state of its response.
+     */
+    private static class Exchange
+    {
+        private String host;
+        private int port;
+        private String serverKey;
+        private ByteBuffer request;
+        private ResponseHandler handler;
+        private boolean retried;
+
+        private byte[] data;
+        private int dataLength;
+        private int receivedCount;
+        private int parsePos;
+        private int bodyStart;
+        private int statusCode;
+        private String statusText;
+        private Hashtable headers;
+        private int contentLength;
+        private boolean chunked;
+        private int chunkRemaining;
+        private boolean lastChunk;
+        private ByteArrayOutputStream chunkedBody;
+        private boolean keepAlive;
+        private boolean done;
+
+
+        private Exchange(String serverHost, int serverPort, ByteBuffer requestData, ResponseHandler responseHandler)
+        {
+            host = serverHost;
+            port = serverPort;
+            serverKey = host + ":" + port;
+            request = requestData;
+            handler = responseHandler;
+            data = new byte[BUFFER_SIZE];
+            bodyStart = -1;
+        }
+
+
+        /* Appends the data in the specified buffer to the response data received so far. */
+        private void append(ByteBuffer buffer)
+        {
+            int count = buffer.remaining();
+            ensureCapacity(dataLength + count);
+            buffer.get(data, dataLength, count);
+            dataLength += count;
+            receivedCount += count;
+        }
+
+        /* Makes sure the response data can hold at least the specified number of bytes. */
+        private void ensureCapacity(int capacity)
+        {
+            if (capacity <= data.length)
+                return;
+
+            byte[] newData = new byte[Math.max(capacity, data.length * 2)];
+            System.arraycopy(data, 0, newData, 0, dataLength);
+            data = newData;
+        }
+
+        /* Parses the status line and headers if they have been received - returns FALSE if more data is required. */
+        private boolean parseHeaders()
+            throws IOException
+        {
+            //only the data received since the last time needs to be searched (allowing for a partly received separator)
+            int headerEnd = indexOf(data, parsePos, dataLength, "\r\n\r\n");
+            if (headerEnd < 0)
+            {
+                parsePos = Math.max(dataLength - 3, 0);
+                return false;
+            }
+
+            String headerText = new String(data, 0, headerEnd, ENCODING_HEADERS);
+            int lineEnd = headerText.indexOf("\r\n");
+            String statusLine = (lineEnd >= 0) ? headerText.substring(0, lineEnd) : headerText;
+
+            //parse the status line (e.g. "HTTP/1.1 200 OK")
+            int codeStart = statusLine.indexOf(' ');
+            if ( (! statusLine.startsWith("HTTP/")) || (codeStart < 0) )
+                throw new IOException("invalid HTTP status line: " + statusLine);
+            int codeEnd = statusLine.indexOf(' ', codeStart + 1);
+            if (codeEnd < 0)
+                codeEnd = statusLine.length();
+            try
+            {
+                statusCode = Integer.parseInt(statusLine.substring(codeStart + 1, codeEnd));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException("invalid HTTP status line: " + statusLine);
+            }
+            statusText = (codeEnd < statusLine.length()) ? statusLine.substring(codeEnd + 1) : "";
+
+            //parse the headers
+            headers = new Hashtable();
+            while (lineEnd >= 0)
+            {
+                int nextEnd = headerText.indexOf("\r\n", lineEnd + 2);
+                String line = headerText.substring(lineEnd + 2, (nextEnd >= 0) ? nextEnd : headerText.length());
+                lineEnd = nextEnd;
+
+                int separator = line.indexOf(':');
+                if (separator > 0)
+                    headers.put(line.substring(0, separator).trim().toLowerCase(), line.substring(separator + 1).trim());
+            }
+
+            //determine how the end of the body is indicated
+            bodyStart = headerEnd + 4;
+            parsePos = bodyStart;
+            contentLength = -1;
+            String lengthHeader = (String)headers.get("content-length");
+            String encodingHeader = (String)headers.get("transfer-encoding");
+            if ( (statusCode == 204) || (statusCode == 304) )
+            {
+                contentLength = 0;
+            }
+            else if ( (encodingHeader != null) && (encodingHeader.toLowerCase().indexOf("chunked") >= 0) )
+            {
+                chunked = true;
+                chunkRemaining = -1;
+                chunkedBody = new ByteArrayOutputStream(BUFFER_SIZE);
+            }
+            else if (lengthHeader != null)
+            {
+                try
+                {
+                    contentLength = Integer.parseInt(lengthHeader);
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IOException("invalid HTTP content length: " + lengthHeader);
+                }
+                
+                //make room for the whole body up front
+                ensureCapacity(bodyStart + contentLength);
+            }
+
+            //HTTP/1.1 connections are persistent unless either side says otherwise
+            String connectionHeader = (String)headers.get("connection");
+            keepAlive = ( (statusLine.startsWith("HTTP/1.1")) && ((connectionHeader == null) || (! connectionHeader.equalsIgnoreCase("close"))) );
+            if ( (contentLength < 0) && (! chunked) )
+                keepAlive = false;
+
+            return true;
+        }
+
+        /* Returns the body of the response if it has been received completely, or null if more data is required. */
+        private byte[] getBody()
+            throws IOException
+        {
+            if (chunked)
+                return decodeChunks();
+
+            if ( (contentLength >= 0) && ((dataLength - bodyStart) >= contentLength) )
+                return getData(bodyStart, bodyStart + contentLength);
+
+            return null;
+        }
+
+        /* Decodes the chunks of a chunked response received since the last time - returns the body if all its chunks have been received, or null if more data is required. */
+        private byte[] decodeChunks()
+            throws IOException
+        {
+            while (true)
+            {
+                //the last chunk is followed by optional trailers and an empty line
+                if (lastChunk)
+                {
+                    int lineEnd = indexOf(data, parsePos, dataLength, "\r\n");
+                    if (lineEnd < 0)
+                        break;
+                    if (lineEnd == parsePos)
+                        return chunkedBody.toByteArray();
+                    parsePos = lineEnd + 2;
+                    continue;
+                }
+
+                if (chunkRemaining < 0)
+                {
+                    //read the size of the next chunk (ignoring any extensions)
+                    int lineEnd = indexOf(data, parsePos, dataLength, "\r\n");
+                    if (lineEnd < 0)
+                        break;
+                    String sizeLine = new String(data, parsePos, lineEnd - parsePos, ENCODING_HEADERS);
+                    int extension = sizeLine.indexOf(';');
+                    if (extension >= 0)
+                        sizeLine = sizeLine.substring(0, extension);
+                    try
+                    {
+                        chunkRemaining = Integer.parseInt(sizeLine.trim(), 16);
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        throw new IOException("invalid HTTP chunk size: " + sizeLine);
+                    }
+                    parsePos = lineEnd + 2;
+
+                    if (chunkRemaining == 0)
+                    {
+                        lastChunk = true;
+                        continue;
+                    }
+                }
+
+                //copy whatever has been received of the chunk - the chunk is followed by a line break
+                int count = Math.min(chunkRemaining, dataLength - parsePos);
+                chunkedBody.write(data, parsePos, count);
+                parsePos += count;
+                chunkRemaining -= count;
+                if ( (chunkRemaining > 0) || ((dataLength - parsePos) < 2) )
+                    break;
+                parsePos += 2;
+                chunkRemaining = -1;
+            }
+
+            //the decoded data is no longer needed, so only keep what hasn't been parsed yet
+            dataLength -= parsePos;
+            System.arraycopy(data, parsePos, data, 0, dataLength);
+            parsePos = 0;
+            return null;
+        }
+
+        /* Returns the specified range of the response data. */
+        private byte[] getData(int start, int end)
+        {
+            byte[] result = new byte[end - start];
+            System.arraycopy(data, start, result, 0, result.length);
+            return result;
+        }
+
+        /* Reports the specified response body to the handler. */
+        private void complete(byte[] body)
+        {
+            if (done)
+                return;
+            done = true;
+
+            try
+            {
+                handler.onResponse(statusCode, statusText, headers, body);
+            }
+            catch (Throwable e)
+            {
+                //ignore - the handler is responsible for its own errors
+            }
+        }
+
+        /* Reports the specified error to the handler. */
+        private void fail(IOException error)
+        {
+            if (done)
+                return;
+            done = true;
+
+            try
+            {
+                handler.onError(error);
+            }
+            catch (Throwable e)
+            {
+                //ignore - the handler is responsible for its own errors
+            }
+        }
+
+        /* Returns the position of the specified ASCII string in the specified range of data, or -1 if not found. */
+        private static int indexOf(byte[] data, int start, int end, String value)
+        {
+            int length = value.length();
+            for (int i = Math.max(start, 0); i <= (end - length); i++)
+            {
+                int j = 0;
+                while ( (j < length) && (data[i + j] == value.charAt(j)) )
+                    j++;
+                if (j == length)
+                    return i;
+            }
+
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.test;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.cp.syncml.client.*;
+
+
+/**
+ * A class implementing a transport which records the messages exchanged by another transport. <br/><br/>
+ *
+ * Each request sent to the server and the response received (along with its content type) is written to
+ * the specified file, so that the session can later be replayed without a server using a {@link ReplayTransport}.
+ * The recording file has the following format (as written by <code>DataOutputStream</code>):
+ * <pre>
+ *      int     magic number ({@link #FILE_MAGIC})
+ *      int     file version ({@link #FILE_VERSION})
+ *      UTF     target URI
+ *      int     maximum message size
+ *      ...     for each message exchange:
+ *          boolean true
+ *          int     request length, followed by the request data
+ *          UTF     response content type (empty if unknown)
+ *          int     response length, followed by the response data
+ *      boolean false
+ * </pre>
+ *
+ * @author Denis Evoy
+ */
+public class RecordingTransport implements PreparableTransport, RedirectableTransport
+{
+    /** The magic number identifying a recording file. */
+    public static final int FILE_MAGIC =    0x534d4c52;
+
+    /** The version of the recording file format. */
+    public static final int FILE_VERSION =  1;
+
+    //the size of the buffer used to read responses
+    private static final int BUFFER_SIZE = 8192;
+
+
+    private Transport transport;
+    private DataOutputStream recording;
+    private ByteArrayOutputStream request;
+    private int exchangeCount;
+
+
+    public RecordingTransport(Transport recordedTransport, String fileName)
+        throws IOException
+    {
+        if (recordedTransport == null)
+            throw new IllegalArgumentException("no transport specified");
+        if ( (fileName == null) || (fileName.length() <= 0) )
+            throw new IllegalArgumentException("no recording file specified");
+
+        transport = recordedTransport;
+        request = new ByteArrayOutputStream(Math.max(transport.getMaxMsgSize(), BUFFER_SIZE));
+
+        recording = new DataOutputStream( new BufferedOutputStream(new FileOutputStream(fileName), BUFFER_SIZE) );
+        recording.writeInt(FILE_MAGIC);
+        recording.writeInt(FILE_VERSION);
+        recording.writeUTF(transport.getTargetURI());
+        recording.writeInt(transport.getMaxMsgSize());
+    }
+
+    public String getTargetURI()
+    {
+        return transport.getTargetURI();
+    }
+
+    public int getMaxMsgSize()
+    {
+        return transport.getMaxMsgSize();
+    }
+
+    public void prepare()
+    {
+        if (transport instanceof PreparableTransport)
+            ((PreparableTransport)transport).prepare();
+    }
+
+    public void setResponseURI(String uri)
+    {
+        if (transport instanceof RedirectableTransport)
+            ((RedirectableTransport)transport).setResponseURI(uri);
+    }
+
+    public OutputStream getOutputStream()
+        throws SyncException, IOException
+    {
+        //copy the request as it's written to the recorded transport
+        final OutputStream outputStream = transport.getOutputStream();
+        request.reset();
+        return new OutputStream()
+        {
+            public void write(int b)
+                throws IOException
+            {
+                outputStream.write(b);
+                request.write(b);
+            }
+
+            public void write(byte[] b, int off, int len)
+                throws IOException
+            {
+                outputStream.write(b, off, len);
+                request.write(b, off, len);
+            }
+
+            public void flush()
+                throws IOException
+            {
+                outputStream.flush();
+            }
+
+            public void close()
+                throws IOException
+            {
+                outputStream.close();
+            }
+        };
+    }
+
+    public InputStream getInputStream()
+        throws SyncException, IOException
+    {
+        //read the whole response so that it can be recorded
+        InputStream inputStream = transport.getInputStream();
+        if (inputStream == null)
+            return null;
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int readCount;
+        while ((readCount = inputStream.read(buffer)) >= 0)
+            response.write(buffer, 0, readCount);
+        byte[] responseData = response.toByteArray();
+
+        String contentType = transport.getContentType();
+        synchronized (this)
+        {
+            if (recording != null)
+            {
+                recording.writeBoolean(true);
+                recording.writeInt(request.size());
+                request.writeTo(recording);
+                recording.writeUTF( (contentType != null) ? contentType : "" );
+                recording.writeInt(responseData.length);
+                recording.write(responseData);
+                recording.flush();
+                exchangeCount++;
+            }
+        }
+
+        return new ByteArrayInputStream(responseData);
+    }
+
+    public String getContentType()
+    {
+        return transport.getContentType();
+    }
+
+    public void cleanup()
+    {
+        request.reset();
+        transport.cleanup();
+    }
+
+    public synchronized int getExchangeCount()
+    {
+        return exchangeCount;
+    }
+
+    /**
+     * Completes and closes the recording file. No more message exchanges are recorded once the file is closed.
+     *
+     * @throws IOException if the recording file couldn't be written.
+     */
+    public synchronized void close()
+        throws IOException
+    {
+        if (recording == null)
+            return;
+
+        try
+        {
+            recording.writeBoolean(false);
+        }
+        finally
+        {
+            recording.close();
+            recording = null;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.test;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Vector;
+
+import net.cp.syncml.client.*;
+import net.cp.syncml.client.util.Logger;
+import net.cp.syncml.client.util.wbxml.WbxmlDecoder;
+import net.cp.syncml.client.util.wbxml.WbxmlException;
+
+
+/**
+ * A class implementing a transport which replays the server responses recorded by a {@link RecordingTransport}. <br/><br/>
+ *
+ * The recorded responses are returned in order, regardless of the requests sent by the client, so that a
+ * session can be repeated without a server (e.g. to measure the cost of encoding, parsing and applying the
+ * messages). Each request is compared with the recorded request - as the data of the messages (anchors,
+ * nonces, etc) typically differs from run to run, only the structure of the messages is compared (i.e.
+ * the elements of the message, ignoring their content). Any differences are logged and can be retrieved
+ * using {@link #getDivergences()}. In strict mode, the session is ended at the first difference.
+ *
+ * @author Denis Evoy
+ */
+public class ReplayTransport implements Transport
+{
+    //the number of WBXML codepages used by SyncML messages (SyncML and MetInf)
+    private static final int CODEPAGE_COUNT = 2;
+
+    //the size of the buffer used to read the recording file
+    private static final int BUFFER_SIZE = 8192;
+
+
+    private String targetUri;
+    private int maxMessageSize;
+    private Vector exchanges;
+    private int exchangeIndex;
+    private ByteArrayOutputStream outputStream;
+    private String contentType;
+    private boolean strict;
+    private Vector divergences;
+    private Logger log;
+
+
+    public ReplayTransport(String fileName, Logger logger)
+        throws IOException
+    {
+        if ( (fileName == null) || (fileName.length() <= 0) )
+            throw new IllegalArgumentException("no recording file specified");
+
+        log = logger;
+        exchanges = new Vector();
+        divergences = new Vector();
+
+        DataInputStream recording = new DataInputStream( new BufferedInputStream(new FileInputStream(fileName), BUFFER_SIZE) );
+        try
+        {
+            if (recording.readInt() != RecordingTransport.FILE_MAGIC)
+                throw new IOException("'" + fileName + "' is not a recording file");
+            int version = recording.readInt();
+            if (version != RecordingTransport.FILE_VERSION)
+                throw new IOException("unsupported recording file version: " + version);
+
+            targetUri = recording.readUTF();
+            maxMessageSize = recording.readInt();
+
+            //a recording which wasn't closed properly simply ends after the last complete exchange
+            while (true)
+            {
+                RecordedExchange exchange = new RecordedExchange();
+                try
+                {
+                    if (! recording.readBoolean())
+                        break;
+                    exchange.request = readData(recording);
+                    exchange.contentType = recording.readUTF();
+                    exchange.response = readData(recording);
+                }
+                catch (IOException e)
+                {
+                    if (log != null)
+                        log.warn("ReplayTransport: recording '" + fileName + "' is incomplete - replaying the first " + exchanges.size() + " exchanges only");
+                    break;
+                }
+                exchanges.addElement(exchange);
+            }
+        }
+        finally
+        {
+            recording.close();
+        }
+
+        outputStream = new ByteArrayOutputStream( Math.max(maxMessageSize, BUFFER_SIZE) );
+    }
+
+    public String getTargetURI()
+    {
+        return targetUri;
+    }
+
+    public int getMaxMsgSize()
+    {
+        return maxMessageSize;
+    }
+
+    /**
+     * Sets whether or not the session should be ended as soon as a request differs from the recorded request.
+     *
+     * @param enabled <code>true</code> to end the session at the first difference.
+     */
+    public void setStrict(boolean enabled)
+    {
+        strict = enabled;
+    }
+
+    public OutputStream getOutputStream()
+        throws SyncException, IOException
+    {
+        outputStream.reset();
+        return outputStream;
+    }
+
+    public InputStream getInputStream()
+        throws SyncException, IOException
+    {
+        int messageNumber = exchangeIndex + 1;
+        if (exchangeIndex >= exchanges.size())
+        {
+            addDivergence("message " + messageNumber + " was sent but the recording only contains " + exchanges.size() + " messages");
+            throw new SyncException("no more recorded responses to replay");
+        }
+
+        //compare the request with the recorded request
+        RecordedExchange exchange = (RecordedExchange)exchanges.elementAt(exchangeIndex++);
+        String difference = compareRequests(exchange.request, outputStream.toByteArray());
+        if (difference != null)
+        {
+            addDivergence("message " + messageNumber + ": " + difference);
+            if (strict)
+                throw new SyncException("request " + messageNumber + " differs from the recorded request - " + difference);
+        }
+
+        contentType = (exchange.contentType.length() > 0) ? exchange.contentType : null;
+        return new ByteArrayInputStream(exchange.response);
+    }
+
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    public void cleanup()
+    {
+        outputStream.reset();
+    }
+
+    /**
+     * Returns the number of message exchanges contained in the recording.
+     *
+     * @return The number of recorded exchanges.
+     */
+    public int getRecordedCount()
+    {
+        return exchanges.size();
+    }
+
+    /**
+     * Returns the number of recorded responses which have been replayed.
+     *
+     * @return The number of replayed exchanges.
+     */
+    public int getReplayedCount()
+    {
+        return exchangeIndex;
+    }
+
+    /**
+     * Returns a description of each point at which the client diverged from the recorded session.
+     *
+     * @return The differences found, in the order in which they were found. Will not be null.
+     */
+    public synchronized String[] getDivergences()
+    {
+        String[] result = new String[divergences.size()];
+        divergences.copyInto(result);
+        return result;
+    }
+
+
+    /* Records the specified difference between the replayed and the recorded session. */
+    private synchronized void addDivergence(String difference)
+    {
+        divergences.addElement(difference);
+        if (log != null)
+            log.warn("ReplayTransport: client diverged from the recorded session at " + difference);
+    }
+
+    /* Returns a description of the first structural difference between the specified requests, or null if they have the same structure. */
+    private static String compareRequests(byte[] recordedRequest, byte[] request)
+    {
+        Vector recordedElements;
+        Vector elements;
+        try
+        {
+            recordedElements = getElements(recordedRequest);
+            elements = getElements(request);
+        }
+        catch (Exception e)
+        {
+            //fall back to comparing the data of messages which can't be decoded
+            if (isEqual(recordedRequest, request))
+                return null;
+            return "request couldn't be decoded and differs from the recorded request (" + e + ")";
+        }
+
+        int count = Math.min(recordedElements.size(), elements.size());
+        for (int i = 0; i < count; i++)
+        {
+            if (! recordedElements.elementAt(i).equals(elements.elementAt(i)))
+                return "element " + (i + 1) + " is " + elements.elementAt(i) + " instead of " + recordedElements.elementAt(i);
+        }
+
+        if (elements.size() > count)
+            return "unexpected element " + elements.elementAt(count) + " after " + count + " matching elements";
+        if (recordedElements.size() > count)
+            return "missing element " + recordedElements.elementAt(count) + " after " + count + " matching elements";
+
+        return null;
+    }
+
+    /* Returns TRUE if the specified data is identical. */
+    private static boolean isEqual(byte[] data1, byte[] data2)
+    {
+        if (data1.length != data2.length)
+            return false;
+
+        for (int i = 0; i < data1.length; i++)
+        {
+            if (data1[i] != data2[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /* Returns the path of each element of the specified WBXML message, in document order (e.g. "/0:2D/0:2C/1:07"). */
+    private static Vector getElements(byte[] message)
+        throws WbxmlException, IOException
+    {
+        Vector elements = new Vector();
+        Vector path = new Vector();
+        WbxmlDecoder decoder = new WbxmlDecoder();
+        decoder.start(new ByteArrayInputStream(message), CODEPAGE_COUNT);
+
+        int event;
+        while ((event = decoder.next()) != WbxmlDecoder.EVENT_END_DOCUMENT)
+        {
+            if (event == WbxmlDecoder.EVENT_TAG_START)
+            {
+                String tag = decoder.getCodepageIndex() + ":" + Integer.toHexString(decoder.getTagId()).toUpperCase();
+                String parent = (path.size() > 0) ? (String)path.lastElement() : "";
+                String element = parent + "/" + tag;
+                elements.addElement(element);
+                path.addElement(element);
+            }
+            else if ( (event == WbxmlDecoder.EVENT_TAG_END) && (path.size() > 0) )
+            {
+                path.removeElementAt(path.size() - 1);
+            }
+        }
+        decoder.reset();
+
+        return elements;
+    }
+
+    /* Reads a length-prefixed block of data from the specified recording. */
+    private static byte[] readData(DataInputStream recording)
+        throws IOException
+    {
+        int length = recording.readInt();
+        if (length < 0)
+            throw new IOException("invalid data length in recording: " + length);
+
+        byte[] data = new byte[length];
+        recording.readFully(data);
+        return data;
+    }
+
+
+    /**
+     * A class representing a recorded message exchange.
+     */
+    private static class RecordedExchange
+    {
+        private byte[] request;
+        private String contentType;
+        private byte[] response;
+    }
+}
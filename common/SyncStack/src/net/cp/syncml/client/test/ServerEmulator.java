@@ -0,0 +1,1400 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.test;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+import net.cp.syncml.client.SyncException;
+import net.cp.syncml.client.SyncML;
+import net.cp.syncml.client.engine.*;
+import net.cp.syncml.client.util.CountingOutputStream;
+import net.cp.syncml.client.util.Logger;
+import net.cp.syncml.client.util.wbxml.Codepage;
+import net.cp.syncml.client.util.wbxml.Wbxml;
+import net.cp.syncml.client.util.wbxml.WbxmlException;
+import net.cp.syncml.client.util.wbxml.WbxmlWriter;
+
+
+/**
+ * A class implementing an in-process SyncML server which can be used to test the client without a remote server. <br/><br/>
+ *
+ * The emulator holds a data store for each server URI added using {@link #addDataStore(String)}, which is shared
+ * by all devices syncing with the emulator. Client messages are parsed and server messages are written using the
+ * same WBXML codepages as the client, and messages are exchanged using an {@link EmulatorTransport}. <br/><br/>
+ *
+ * The emulator supports two-way, slow, one-way and refresh syncs, chunking of large records in both directions
+ * and suspending/resuming sessions. The anchors and the mapping of client IDs to server IDs of each device are
+ * remembered between sessions, so that subsequent two-way syncs only exchange the changes made since the last
+ * session. Conflicts are always resolved in favour of the client. Authentication isn't supported (credentials
+ * are ignored). <br/><br/>
+ *
+ * The network can be emulated by setting the {@link #setLatency(long) latency} and {@link #setBandwidth(long) bandwidth}
+ * used by the transports when exchanging messages. The emulator may be used by many sessions (on different devices)
+ * concurrently.
+ *
+ * @author Denis Evoy
+ */
+public class ServerEmulator
+{
+    /** The default maximum size of the messages sent by the emulator. */
+    public static final int DEFAULT_MAX_MSG_SIZE =  65536;
+
+    //the space (in bytes) reserved at the end of each message for the end of the message
+    private static final int MSG_END_SIZE =         64;
+
+    //the session states
+    private static final int STATE_CLIENT_INIT =    1;
+    private static final int STATE_CLIENT_UPDATES = 2;
+    private static final int STATE_SERVER_UPDATES = 3;
+    private static final int STATE_CLIENT_MAPS =    4;
+
+    private static final String LOG_PREFIX =        "ServerEmulator: ";
+
+
+    private String targetUri;                   //the URI used by clients to identify the emulator
+    private Logger log;                         //the logger used to log activity
+    private Hashtable dataStores;               //the data stores of the emulator - a collection of DataStore objects keyed by server URI
+    private Hashtable syncStates;               //the sync state of each device and data store - a collection of DeviceSyncState objects
+    private Hashtable sessions;                 //the active or suspended session of each device - a collection of ServerSession objects keyed by device ID
+    private int maxMsgSize;                     //the maximum size of the messages sent by the emulator
+    private long latency;                       //the round-trip time (in milliseconds) of each message exchange
+    private long bandwidth;                     //the number of bytes per second that can be exchanged (or 0 if unlimited)
+    private Timer timer;                        //the timer used to delay asynchronous responses
+    private int messageCount;                   //the number of messages received by the emulator
+    private int completedSessionCount;          //the number of sessions which have completed successfully
+
+
+    /**
+     * Creates a new emulator with no data stores.
+     *
+     * @param uri       the URI used by clients to identify the emulator. Must not be null or empty.
+     * @param logger    the logger used to log activity. May be null.
+     */
+    public ServerEmulator(String uri, Logger logger)
+    {
+        if ( (uri == null) || (uri.length() <= 0) )
+            throw new IllegalArgumentException("no target URI specified");
+
+        targetUri = uri;
+        log = logger;
+        dataStores = new Hashtable();
+        syncStates = new Hashtable();
+        sessions = new Hashtable();
+        maxMsgSize = DEFAULT_MAX_MSG_SIZE;
+    }
+
+
+    public String getTargetURI()
+    {
+        return targetUri;
+    }
+
+    /**
+     * Sets the maximum size of the messages sent by the emulator. <br/><br/>
+     *
+     * The smaller of this size and the maximum message size of the client is used. Records which don't fit in a
+     * single message are sent in chunks.
+     *
+     * @param size the maximum message size (in bytes). Must be positive.
+     */
+    public synchronized void setMaxMsgSize(int size)
+    {
+        if (size <= MSG_END_SIZE)
+            throw new IllegalArgumentException("invalid maximum message size specified: " + size);
+
+        maxMsgSize = size;
+    }
+
+    public synchronized int getMaxMsgSize()
+    {
+        return maxMsgSize;
+    }
+
+    /**
+     * Sets the time taken by each message exchange, regardless of the size of the messages.
+     *
+     * @param millis the round-trip time (in milliseconds) or 0 for no latency.
+     */
+    public synchronized void setLatency(long millis)
+    {
+        latency = Math.max(millis, 0);
+    }
+
+    public synchronized long getLatency()
+    {
+        return latency;
+    }
+
+    /**
+     * Sets the rate at which the messages are exchanged.
+     *
+     * @param bytesPerSecond the number of bytes which can be exchanged per second or 0 if unlimited.
+     */
+    public synchronized void setBandwidth(long bytesPerSecond)
+    {
+        bandwidth = Math.max(bytesPerSecond, 0);
+    }
+
+    public synchronized long getBandwidth()
+    {
+        return bandwidth;
+    }
+
+    /**
+     * Returns the number of messages received by the emulator.
+     *
+     * @return The number of messages received.
+     */
+    public synchronized int getMessageCount()
+    {
+        return messageCount;
+    }
+
+    /**
+     * Returns the number of sessions which have completed successfully.
+     *
+     * @return The number of completed sessions.
+     */
+    public synchronized int getCompletedSessionCount()
+    {
+        return completedSessionCount;
+    }
+
+
+    /**
+     * Adds an empty data store with the specified URI. Nothing happens if the data store already exists.
+     *
+     * @param serverUri the URI of the data store. Must not be null or empty.
+     */
+    public void addDataStore(String serverUri)
+    {
+        if ( (serverUri == null) || (serverUri.length() <= 0) )
+            throw new IllegalArgumentException("no server URI specified");
+
+        synchronized (dataStores)
+        {
+            if (dataStores.get(serverUri) == null)
+                dataStores.put(serverUri, new DataStore());
+        }
+    }
+
+    /**
+     * Adds a record to the specified data store.
+     *
+     * @param serverUri     the URI of the data store. Must not be null or empty.
+     * @param contentType   the content type of the record. Must not be null or empty.
+     * @param data          the data of the record. Must not be null or empty.
+     * @return The ID of the new record.
+     */
+    public String addRecord(String serverUri, String contentType, byte[] data)
+    {
+        if ( (contentType == null) || (contentType.length() <= 0) )
+            throw new IllegalArgumentException("no content type specified");
+        if ( (data == null) || (data.length <= 0) )
+            throw new IllegalArgumentException("no data specified");
+
+        return getExistingDataStore(serverUri).add(contentType, data);
+    }
+
+    /**
+     * Replaces the data of the specified record.
+     *
+     * @param serverUri the URI of the data store. Must not be null or empty.
+     * @param recordId  the ID of the record to replace.
+     * @param data      the new data of the record. Must not be null or empty.
+     * @return <code>true</code> if the record was replaced or <code>false</code> if it doesn't exist.
+     */
+    public boolean replaceRecord(String serverUri, String recordId, byte[] data)
+    {
+        if ( (data == null) || (data.length <= 0) )
+            throw new IllegalArgumentException("no data specified");
+
+        return getExistingDataStore(serverUri).replace(recordId, null, data);
+    }
+
+    /**
+     * Deletes the specified record.
+     *
+     * @param serverUri the URI of the data store. Must not be null or empty.
+     * @param recordId  the ID of the record to delete.
+     * @return <code>true</code> if the record was deleted or <code>false</code> if it doesn't exist.
+     */
+    public boolean deleteRecord(String serverUri, String recordId)
+    {
+        return getExistingDataStore(serverUri).delete(recordId);
+    }
+
+    /**
+     * Returns the data of the specified record.
+     *
+     * @param serverUri the URI of the data store. Must not be null or empty.
+     * @param recordId  the ID of the record.
+     * @return The data of the record or null if it doesn't exist.
+     */
+    public byte[] getRecordData(String serverUri, String recordId)
+    {
+        ServerRecord record = getExistingDataStore(serverUri).get(recordId);
+        if ( (record == null) || (record.deleted) )
+            return null;
+
+        return record.data;
+    }
+
+    /**
+     * Returns the IDs of all records in the specified data store.
+     *
+     * @param serverUri the URI of the data store. Must not be null or empty.
+     * @return The IDs of the records. Will not be null.
+     */
+    public String[] getRecordIds(String serverUri)
+    {
+        ServerRecord[] records = getExistingDataStore(serverUri).getRecords();
+        Vector ids = new Vector();
+        for (int i = 0; i < records.length; i++)
+        {
+            if (! records[i].deleted)
+                ids.addElement(records[i].id);
+        }
+
+        String[] result = new String[ids.size()];
+        ids.copyInto(result);
+        return result;
+    }
+
+    /**
+     * Returns the number of records in the specified data store.
+     *
+     * @param serverUri the URI of the data store. Must not be null or empty.
+     * @return The number of records.
+     */
+    public int getRecordCount(String serverUri)
+    {
+        return getRecordIds(serverUri).length;
+    }
+
+
+    /**
+     * Processes the specified message from a client and returns the response.
+     *
+     * @param request the WBXML encoded SyncML message received from the client. Must not be null.
+     * @return The WBXML encoded SyncML response. Will not be null.
+     * @throws SyncException if the message couldn't be processed.
+     */
+    public byte[] processMessage(byte[] request)
+        throws SyncException
+    {
+        //parse the message - the WBXML isn't logged as it would be mixed up with that of the client
+        ClientMessage message = new ClientMessage();
+        try
+        {
+            MetInfCodepage cpMetinf = new MetInfCodepage(null, message);
+            SyncMLCodepage cpSyncml = new SyncMLCodepage(null, message, cpMetinf);
+            Wbxml.parse(new ByteArrayInputStream(request), new Codepage[] { cpSyncml, cpMetinf } );
+        }
+        catch (WbxmlException e)
+        {
+            throw new SyncException("failed to parse WBXML message from the client", e);
+        }
+        catch (IOException e)
+        {
+            throw new SyncException("failed to read message from the client", e);
+        }
+
+        if ( (message.header == null) || (message.header.sourceUri == null) || (message.header.sessionId == null) )
+            throw new SyncException("missing or invalid SyncML header received from the client");
+
+        synchronized (this)
+        {
+            messageCount++;
+        }
+
+        //process the message in the session of the device
+        ServerSession session = getSession(message);
+        try
+        {
+            synchronized (session)
+            {
+                return session.processMessage(message);
+            }
+        }
+        catch (WbxmlException e)
+        {
+            throw new SyncException("failed to format WBXML message to the client", e);
+        }
+        catch (IOException e)
+        {
+            throw new SyncException("failed to write message to the client", e);
+        }
+    }
+
+    /**
+     * Stops the timer used to delay asynchronous responses. Any pending responses will not be delivered.
+     */
+    public synchronized void shutdown()
+    {
+        if (timer != null)
+            timer.cancel();
+        timer = null;
+    }
+
+
+    /* Returns the time (in milliseconds) taken to exchange the specified number of bytes. */
+    synchronized long getExchangeTime(long byteCount)
+    {
+        long time = latency;
+        if (bandwidth > 0)
+            time += (byteCount * 1000) / bandwidth;
+
+        return time;
+    }
+
+    /* Runs the specified task after the specified delay (in milliseconds). */
+    synchronized void schedule(TimerTask task, long delay)
+    {
+        if (timer == null)
+            timer = new Timer(true);
+
+        timer.schedule(task, delay);
+    }
+
+    /* Returns the data store with the specified URI, or null if it doesn't exist. */
+    private DataStore getDataStore(String serverUri)
+    {
+        if (serverUri == null)
+            return null;
+
+        synchronized (dataStores)
+        {
+            return (DataStore)dataStores.get(serverUri);
+        }
+    }
+
+    /* Returns the data store with the specified URI, throwing an exception if it doesn't exist. */
+    private DataStore getExistingDataStore(String serverUri)
+    {
+        DataStore dataStore = getDataStore(serverUri);
+        if (dataStore == null)
+            throw new IllegalArgumentException("unknown data store '" + serverUri + "'");
+
+        return dataStore;
+    }
+
+    /* Returns the sync state of the specified device and data store, creating it if necessary. */
+    private DeviceSyncState getSyncState(String deviceId, String serverUri)
+    {
+        String key = deviceId + " " + serverUri;
+        synchronized (syncStates)
+        {
+            DeviceSyncState syncState = (DeviceSyncState)syncStates.get(key);
+            if (syncState == null)
+            {
+                syncState = new DeviceSyncState();
+                syncStates.put(key, syncState);
+            }
+
+            return syncState;
+        }
+    }
+
+    /* Returns the session to which the specified message belongs, starting or resuming a session if necessary. */
+    private ServerSession getSession(ClientMessage message)
+    {
+        String deviceId = message.header.sourceUri;
+        String sessionId = message.header.sessionId;
+        synchronized (sessions)
+        {
+            ServerSession session = (ServerSession)sessions.get(deviceId);
+            if ( (session != null) && (sessionId.equals(session.sessionId)) )
+                return session;
+
+            //a suspended (or interrupted) session is resumed using a new session ID - otherwise a new session is started
+            if ( (session != null) && (message.isResume()) )
+            {
+                if (log != null)
+                    log.info(LOG_PREFIX + "Resuming session of device '" + deviceId + "' with new ID '" + sessionId + "'");
+                session.resume(sessionId);
+                return session;
+            }
+
+            if (log != null)
+                log.info(LOG_PREFIX + "Starting session '" + sessionId + "' with device '" + deviceId + "'");
+            session = new ServerSession(deviceId, sessionId);
+            sessions.put(deviceId, session);
+            return session;
+        }
+    }
+
+    /* Removes the specified session once it has ended. */
+    private void sessionEnded(ServerSession session, boolean success)
+    {
+        synchronized (sessions)
+        {
+            if (sessions.get(session.deviceId) == session)
+                sessions.remove(session.deviceId);
+        }
+
+        if (success)
+        {
+            synchronized (this)
+            {
+                completedSessionCount++;
+            }
+        }
+    }
+
+
+    /**
+     * A class collecting the contents of a message received from a client.
+     */
+    private static class ClientMessage implements MessageHandler
+    {
+        private SyncHdr header;                     //the header of the message
+        private Vector statuses;                    //the Status commands of the message - a collection of Status objects
+        private Vector commands;                    //the other commands of the message (including child commands) - a collection of Cmd objects
+        private boolean finalMsg;                   //indicates if the message is the last of its package
+        private Cmd syncCmd;                        //the Sync command whose child commands are being parsed
+
+
+        private ClientMessage()
+        {
+            statuses = new Vector();
+            commands = new Vector();
+        }
+
+
+        public void onSyncPkgEnd()
+        {
+            finalMsg = true;
+        }
+
+        public void onSyncHeader(SyncHdr syncHeader)
+        {
+            header = syncHeader;
+        }
+
+        public void onSyncStatus(Status status)
+        {
+            statuses.addElement(status);
+        }
+
+        public void onSyncCommand(Cmd command)
+        {
+            command.parentCmd = syncCmd;
+            commands.addElement(command);
+            if (command.command.equals(Cmd.CMD_SYNC))
+                syncCmd = command;
+        }
+
+        public void onSyncCommandEnd(Cmd command)
+        {
+            if (command == syncCmd)
+                syncCmd = null;
+        }
+
+
+        /* Returns TRUE if the message requests that a suspended session be resumed. */
+        private boolean isResume()
+        {
+            for (int i = 0; i < commands.size(); i++)
+            {
+                Cmd command = (Cmd)commands.elementAt(i);
+                if ( (command.command.equals(Cmd.CMD_ALERT)) && (command.alertCode == SyncML.ALERT_RESUME) )
+                    return true;
+            }
+
+            return false;
+        }
+    }
+
+
+    /**
+     * A class representing a record of a data store. Records are never modified - a new record is created instead.
+     */
+    private static class ServerRecord
+    {
+        private String id;                          //the ID of the record
+        private String contentType;                 //the content type of the record
+        private byte[] data;                        //the data of the record
+        private long version;                       //the version of the data store in which the record was last changed
+        private boolean deleted;                    //indicates if the record has been deleted
+
+
+        private ServerRecord(String recordId, String type, byte[] recordData, long recordVersion, boolean isDeleted)
+        {
+            id = recordId;
+            contentType = type;
+            data = recordData;
+            version = recordVersion;
+            deleted = isDeleted;
+        }
+    }
+
+
+    /**
+     * A class representing a data store of the emulator, shared by all devices.
+     */
+    private static class DataStore
+    {
+        private Hashtable records;                  //the records (including deleted records) - a collection of ServerRecord objects keyed by ID
+        private long version;                       //the version of the data store - incremented each time a record is changed
+        private int lastId;                         //the last record ID assigned
+
+
+        private DataStore()
+        {
+            records = new Hashtable();
+        }
+
+
+        private synchronized String add(String contentType, byte[] data)
+        {
+            String id = Integer.toString(++lastId);
+            records.put(id, new ServerRecord(id, contentType, data, ++version, false));
+            return id;
+        }
+
+        private synchronized boolean replace(String id, String contentType, byte[] data)
+        {
+            ServerRecord record = get(id);
+            if ( (record == null) || (record.deleted) )
+                return false;
+
+            if (contentType == null)
+                contentType = record.contentType;
+            records.put(id, new ServerRecord(id, contentType, data, ++version, false));
+            return true;
+        }
+
+        private synchronized boolean delete(String id)
+        {
+            ServerRecord record = get(id);
+            if ( (record == null) || (record.deleted) )
+                return false;
+
+            //keep the deleted record so that the delete can be sent to other devices
+            records.put(id, new ServerRecord(id, record.contentType, null, ++version, true));
+            return true;
+        }
+
+        private synchronized ServerRecord get(String id)
+        {
+            if (id == null)
+                return null;
+
+            return (ServerRecord)records.get(id);
+        }
+
+        private synchronized ServerRecord[] getRecords()
+        {
+            ServerRecord[] result = new ServerRecord[records.size()];
+            int index = 0;
+            for (Enumeration e = records.elements(); e.hasMoreElements(); )
+                result[index++] = (ServerRecord)e.nextElement();
+
+            return result;
+        }
+
+        private synchronized long getVersion()
+        {
+            return version;
+        }
+    }
+
+
+    /**
+     * A class containing the state of a device which is kept between sessions for a particular data store.
+     */
+    private static class DeviceSyncState
+    {
+        private String lastAnchor;                  //the anchor sent by the client in the last successful session
+        private long syncedVersion;                 //the version of the data store which the client had after the last successful session
+        private Hashtable localToGlobalIds;         //the ID of the server record for each client ID - a collection of String objects
+        private Hashtable globalToLocalIds;         //the client ID for each server record ID - a collection of String objects
+
+
+        private DeviceSyncState()
+        {
+            localToGlobalIds = new Hashtable();
+            globalToLocalIds = new Hashtable();
+        }
+
+
+        private void map(String localId, String globalId)
+        {
+            unmapGlobalId(globalId);
+            localToGlobalIds.put(localId, globalId);
+            globalToLocalIds.put(globalId, localId);
+        }
+
+        private void unmapGlobalId(String globalId)
+        {
+            String localId = (String)globalToLocalIds.remove(globalId);
+            if (localId != null)
+                localToGlobalIds.remove(localId);
+        }
+
+        private String getGlobalId(String localId)
+        {
+            return (String)localToGlobalIds.get(localId);
+        }
+
+        private String getLocalId(String globalId)
+        {
+            return (String)globalToLocalIds.get(globalId);
+        }
+
+        private void clear()
+        {
+            localToGlobalIds.clear();
+            globalToLocalIds.clear();
+        }
+    }
+
+
+    /**
+     * A class representing a change to be sent to the client.
+     */
+    private static class ServerChange
+    {
+        private String command;                     //the command used to send the change (Add, Replace or Delete)
+        private ServerRecord record;                //the record that was changed
+        private String localId;                     //the client ID of the record (if any)
+        private int bytesSent;                      //the number of bytes of the record sent in chunks so far
+        private int bytesAccepted;                  //the number of bytes of the record accepted by the client so far
+        private boolean resumed;                    //indicates that the remaining size must be sent with the next chunk
+
+
+        private ServerChange(String cmd, ServerRecord changedRecord, String id)
+        {
+            command = cmd;
+            record = changedRecord;
+            localId = id;
+        }
+    }
+
+
+    /**
+     * A class containing the state of a session for a particular data store.
+     */
+    private class StoreSession
+    {
+        private String clientUri;                   //the URI of the client store
+        private String serverUri;                   //the URI of the data store
+        private int alertCode;                      //the alert code identifying the type of sync
+        private String nextAnchor;                  //the anchor sent by the client for this session
+        private DataStore dataStore;                //the data store being synced
+        private DeviceSyncState syncState;          //the sync state of the device for the data store
+        private Hashtable receivedIds;              //the IDs of the records changed by the client in this session
+        private String chunkedLocalId;              //the client ID of the record being received in chunks (if any)
+        private String chunkedContentType;          //the content type of the record being received in chunks
+        private long chunkedSize;                   //the total size of the record being received in chunks
+        private ByteArrayOutputStream chunkedData;  //the data of the record being received in chunks
+        private boolean changesPrepared;            //indicates if the changes to send to the client have been determined
+        private long preparedVersion;               //the version of the data store when the changes were determined
+        private Vector pendingChanges;              //the changes still to be sent to the client - a collection of ServerChange objects
+        private Hashtable sentChanges;              //the changes sent but not yet acknowledged by the client - keyed by message and command ID
+
+
+        private StoreSession(String clientStoreUri, String serverStoreUri, int alert, String anchor, DataStore store, DeviceSyncState state)
+        {
+            clientUri = clientStoreUri;
+            serverUri = serverStoreUri;
+            alertCode = alert;
+            nextAnchor = anchor;
+            dataStore = store;
+            syncState = state;
+            receivedIds = new Hashtable();
+            chunkedData = new ByteArrayOutputStream();
+            pendingChanges = new Vector();
+            sentChanges = new Hashtable();
+        }
+
+
+        /* Handles the specified Add or Replace command (or chunk) received from the client, returning the status code. */
+        private int onUpdate(Cmd command, SyncItem item)
+        {
+            String localId = item.sourceUri;
+            if ( (localId == null) || (localId.length() <= 0) )
+                localId = item.targetUri;
+            if ( (localId == null) || (localId.length() <= 0) || (item.data == null) )
+                return SyncML.STATUS_BAD_REQUEST;
+
+            long size = (command.metinf != null) ? command.metinf.size : 0;
+            String contentType = (command.metinf != null) ? command.metinf.contentType : null;
+
+            //check if this is the next chunk of the record being received in chunks - when resuming the session,
+            //the client sends the remaining size with the next chunk
+            if ( (chunkedLocalId != null) && (chunkedLocalId.equals(localId)) )
+            {
+                if (size == chunkedSize)
+                    chunkedData.reset();
+                else if ( (size > 0) && (size != chunkedSize - chunkedData.size()) )
+                    return chunkFailed(SyncML.STATUS_DATA_CHUNK_SIZE_MISMATCH);
+            }
+            else if (item.moreData)
+            {
+                //this is the first chunk - the total size must be specified
+                if (size <= 0)
+                    return chunkFailed(SyncML.STATUS_SIZE_REQUIRED);
+
+                chunkedLocalId = localId;
+                chunkedContentType = contentType;
+                chunkedSize = size;
+                chunkedData.reset();
+            }
+            else
+            {
+                //the record was sent in one piece
+                chunkedLocalId = null;
+                return applyUpdate(command.command, localId, contentType, item.data);
+            }
+
+            chunkedData.write(item.data, 0, item.data.length);
+            if (item.moreData)
+                return SyncML.STATUS_DATA_CHUNK_ACCEPTED;
+
+            //the last chunk has been received
+            if (chunkedData.size() != chunkedSize)
+                return chunkFailed(SyncML.STATUS_DATA_CHUNK_SIZE_MISMATCH);
+            byte[] data = chunkedData.toByteArray();
+            contentType = chunkedContentType;
+            chunkFailed(0);
+            return applyUpdate(command.command, localId, contentType, data);
+        }
+
+        /* Discards the record being received in chunks and returns the specified status code. */
+        private int chunkFailed(int statusCode)
+        {
+            chunkedLocalId = null;
+            chunkedContentType = null;
+            chunkedSize = 0;
+            chunkedData.reset();
+            return statusCode;
+        }
+
+        /* Applies the specified record received from the client to the data store, returning the status code. */
+        private int applyUpdate(String command, String localId, String contentType, byte[] data)
+        {
+            //a record which is already known is replaced (this may be an Add resent after the session was resumed)
+            String globalId = syncState.getGlobalId(localId);
+            if ( (globalId != null) && (dataStore.replace(globalId, contentType, data)) )
+            {
+                receivedIds.put(globalId, localId);
+                return (command.equals(Cmd.CMD_ADD)) ? SyncML.STATUS_ITEM_ADDED : SyncML.STATUS_OK;
+            }
+
+            if ( (contentType == null) || (contentType.length() <= 0) )
+                return SyncML.STATUS_BAD_REQUEST;
+
+            globalId = dataStore.add(contentType, data);
+            syncState.map(localId, globalId);
+            receivedIds.put(globalId, localId);
+            return SyncML.STATUS_ITEM_ADDED;
+        }
+
+        /* Handles the specified Delete command received from the client, returning the status code. */
+        private int onDelete(SyncItem item)
+        {
+            String localId = item.getUri();
+            String globalId = (localId != null) ? syncState.getGlobalId(localId) : null;
+            if ( (globalId == null) || (! dataStore.delete(globalId)) )
+                return SyncML.STATUS_ITEM_NOT_DELETED;
+
+            syncState.unmapGlobalId(globalId);
+            receivedIds.put(globalId, localId);
+            return SyncML.STATUS_OK;
+        }
+
+        /* Determines the changes to send to the client once all client updates have been received. */
+        private void prepareChanges()
+        {
+            if (changesPrepared)
+                return;
+            changesPrepared = true;
+            chunkFailed(0);
+
+            //a refresh from the client replaces all records with those sent by the client
+            if (alertCode == SyncML.ALERT_SYNC_CLIENT_REFRESH_TO_SERVER)
+            {
+                ServerRecord[] records = dataStore.getRecords();
+                for (int i = 0; i < records.length; i++)
+                {
+                    if ( (! records[i].deleted) && (receivedIds.get(records[i].id) == null) )
+                    {
+                        dataStore.delete(records[i].id);
+                        syncState.unmapGlobalId(records[i].id);
+                    }
+                }
+            }
+
+            //note the version of the data store that the client will have once the changes have been sent
+            preparedVersion = dataStore.getVersion();
+            if ( (alertCode == SyncML.ALERT_SYNC_CLIENT_ONE_WAY_TO_SERVER) || (alertCode == SyncML.ALERT_SYNC_CLIENT_REFRESH_TO_SERVER) )
+                return;
+
+            //a refresh from the server replaces all records on the client
+            boolean allRecords = ( (alertCode == SyncML.ALERT_SYNC_CLIENT_TWO_WAY_SLOW) || (alertCode == SyncML.ALERT_SYNC_CLIENT_REFRESH_FROM_SERVER) );
+            if (alertCode == SyncML.ALERT_SYNC_CLIENT_REFRESH_FROM_SERVER)
+                syncState.clear();
+
+            ServerRecord[] records = dataStore.getRecords();
+            for (int i = 0; i < records.length; i++)
+            {
+                ServerRecord record = records[i];
+                if ( (receivedIds.get(record.id) != null) || (record.version > preparedVersion) )
+                    continue;
+
+                String localId = syncState.getLocalId(record.id);
+                if (allRecords)
+                {
+                    //during a slow sync, the client sends all its records - any others must be added to the client
+                    if (! record.deleted)
+                    {
+                        syncState.unmapGlobalId(record.id);
+                        pendingChanges.addElement( new ServerChange(Cmd.CMD_ADD, record, null) );
+                    }
+                }
+                else if (record.version > syncState.syncedVersion)
+                {
+                    if ( (record.deleted) && (localId != null) )
+                        pendingChanges.addElement( new ServerChange(Cmd.CMD_DELETE, record, localId) );
+                    else if ( (! record.deleted) && (localId != null) )
+                        pendingChanges.addElement( new ServerChange(Cmd.CMD_REPLACE, record, localId) );
+                    else if (! record.deleted)
+                        pendingChanges.addElement( new ServerChange(Cmd.CMD_ADD, record, null) );
+                }
+            }
+
+            if (log != null)
+                log.debug(LOG_PREFIX + "Sending " + pendingChanges.size() + " changes to '" + clientUri + "'");
+        }
+
+        /* Handles the status of a change sent to the client. */
+        private void onChangeResult(ServerChange change, int statusCode)
+        {
+            if (statusCode == SyncML.STATUS_DATA_CHUNK_ACCEPTED)
+            {
+                change.bytesAccepted = change.bytesSent;
+                return;
+            }
+
+            //the change is complete (or has failed) - the client ID of an added record will arrive in a Map
+            pendingChanges.removeElement(change);
+            if ( (change.command.equals(Cmd.CMD_DELETE)) && (SyncML.isSuccessStatus(statusCode)) )
+                syncState.unmapGlobalId(change.record.id);
+        }
+
+        /* Prepares to resend the changes which weren't acknowledged before the session was suspended - a record being received in chunks is kept. */
+        private void onResume()
+        {
+            for (Enumeration e = sentChanges.elements(); e.hasMoreElements(); )
+            {
+                ServerChange change = (ServerChange)e.nextElement();
+                if (! pendingChanges.contains(change))
+                    pendingChanges.insertElementAt(change, 0);
+            }
+            sentChanges.clear();
+
+            //a record being sent in chunks is continued from the last chunk accepted by the client
+            for (int i = 0; i < pendingChanges.size(); i++)
+            {
+                ServerChange change = (ServerChange)pendingChanges.elementAt(i);
+                change.bytesSent = change.bytesAccepted;
+                change.resumed = (change.bytesAccepted > 0);
+            }
+        }
+
+        /* Records the successful completion of the session. */
+        private void onComplete()
+        {
+            syncState.lastAnchor = nextAnchor;
+            syncState.syncedVersion = preparedVersion;
+        }
+    }
+
+
+    /**
+     * A class containing the state of a session with a particular device.
+     */
+    private class ServerSession
+    {
+        private String deviceId;                    //the ID of the device
+        private String sessionId;                   //the current ID of the session
+        private int state;                          //the state of the session
+        private boolean suspended;                  //indicates if the session is suspended
+        private int outMessageId;                   //the ID of the next message to send to the client
+        private int outCommandId;                   //the ID of the next command to send to the client
+        private long clientMaxMsgSize;              //the maximum message size accepted by the client (or 0 if unknown)
+        private Vector storeSessions;               //the state of each data store being synced - a collection of StoreSession objects
+        private Vector outStatuses;                 //the statuses to send in the next message - a collection of Status objects
+        private Vector outCommands;                 //the commands to send in the next message - a collection of Cmd objects
+        private WbxmlWriter outWriter;              //the writer used to encode messages
+
+
+        private ServerSession(String device, String id)
+        {
+            deviceId = device;
+            sessionId = id;
+            state = STATE_CLIENT_INIT;
+            outMessageId = 1;
+            storeSessions = new Vector();
+            outStatuses = new Vector();
+            outCommands = new Vector();
+            outWriter = new WbxmlWriter();
+        }
+
+
+        /* Resumes the suspended session using the specified session ID. */
+        private synchronized void resume(String id)
+        {
+            sessionId = id;
+            suspended = false;
+            state = STATE_CLIENT_INIT;
+            outMessageId = 1;
+            for (int i = 0; i < storeSessions.size(); i++)
+                ((StoreSession)storeSessions.elementAt(i)).onResume();
+        }
+
+        /* Processes the specified message and returns the response. */
+        private byte[] processMessage(ClientMessage message)
+            throws WbxmlException, IOException
+        {
+            SyncHdr header = message.header;
+            if ( (header.metinf != null) && (header.metinf.maxMsgSize > 0) )
+                clientMaxMsgSize = header.metinf.maxMsgSize;
+            outStatuses.removeAllElements();
+            outCommands.removeAllElements();
+
+            //a new session must start with an initialization package
+            Status headerStatus = new Status();
+            headerStatus.refMessageId = header.messageId;
+            headerStatus.refCommandId = 0;
+            headerStatus.refCommand = "SyncHdr";
+            headerStatus.refItemSourceUris.addElement(header.sourceUri);
+            headerStatus.refItemTargetUris.addElement(header.targetUri);
+            headerStatus.statusCode = SyncML.STATUS_OK;
+            outStatuses.addElement(headerStatus);
+            if ( (state == STATE_CLIENT_INIT) && (! hasSyncAlert(message)) )
+            {
+                if (log != null)
+                    log.warn(LOG_PREFIX + "Unknown session '" + sessionId + "' for device '" + deviceId + "'");
+                headerStatus.statusCode = SyncML.STATUS_BAD_REQUEST;
+                sessionEnded(this, false);
+                return writeMessage(header, false);
+            }
+
+            //handle the statuses of the changes sent in the previous message
+            for (int i = 0; i < message.statuses.size(); i++)
+                onStatus( (Status)message.statuses.elementAt(i) );
+
+            //handle the commands
+            boolean suspendRequested = false;
+            for (int i = 0; i < message.commands.size(); i++)
+            {
+                Cmd command = (Cmd)message.commands.elementAt(i);
+                Status status = newStatus(header, command);
+                if (command.command.equals(Cmd.CMD_ALERT))
+                {
+                    status.statusCode = onAlert(command);
+                    if (command.alertCode == SyncML.ALERT_SUSPEND)
+                        suspendRequested = true;
+                }
+                else if (command.command.equals(Cmd.CMD_PUT))
+                {
+                    status.statusCode = SyncML.STATUS_OK;
+                }
+                else if (command.command.equals(Cmd.CMD_SYNC))
+                {
+                    status.refItemSourceUris.addElement(command.sourceUri);
+                    status.refItemTargetUris.addElement(command.targetUri);
+                    status.statusCode = (getStoreSession(command) != null) ? SyncML.STATUS_OK : SyncML.STATUS_NOT_FOUND;
+                }
+                else if ( (command.command.equals(Cmd.CMD_ADD)) || (command.command.equals(Cmd.CMD_REPLACE)) || (command.command.equals(Cmd.CMD_DELETE)) )
+                {
+                    status.statusCode = onUpdate(command);
+                }
+                else if (command.command.equals(Cmd.CMD_MAP))
+                {
+                    status.refItemSourceUris.addElement(command.sourceUri);
+                    status.refItemTargetUris.addElement(command.targetUri);
+                    status.statusCode = onMap(command);
+                }
+                else
+                {
+                    status.statusCode = SyncML.STATUS_NOT_SUPPORTED;
+                }
+                outStatuses.addElement(status);
+            }
+
+            //the response to a suspend request only contains the statuses
+            if (suspendRequested)
+            {
+                if (log != null)
+                    log.info(LOG_PREFIX + "Session '" + sessionId + "' of device '" + deviceId + "' suspended");
+                suspended = true;
+                return writeMessage(header, false);
+            }
+
+            //respond based on the state of the session
+            if (state == STATE_CLIENT_INIT)
+            {
+                state = STATE_CLIENT_UPDATES;
+                return writeMessage(header, true);
+            }
+
+            if (state == STATE_CLIENT_UPDATES)
+            {
+                //wait for all client updates before sending the server updates
+                if (! message.finalMsg)
+                    return writeMessage(header, false);
+
+                for (int i = 0; i < storeSessions.size(); i++)
+                    ((StoreSession)storeSessions.elementAt(i)).prepareChanges();
+                state = STATE_SERVER_UPDATES;
+            }
+
+            if (state == STATE_SERVER_UPDATES)
+                return writeMessage(header, true);
+
+            //the maps have been received - the session is complete
+            if (message.finalMsg)
+            {
+                for (int i = 0; i < storeSessions.size(); i++)
+                    ((StoreSession)storeSessions.elementAt(i)).onComplete();
+                if (log != null)
+                    log.info(LOG_PREFIX + "Session '" + sessionId + "' of device '" + deviceId + "' completed");
+                sessionEnded(this, true);
+            }
+            return writeMessage(header, message.finalMsg);
+        }
+
+        /* Returns TRUE if the specified message contains an Alert which starts or resumes the sync of a data store. */
+        private boolean hasSyncAlert(ClientMessage message)
+        {
+            for (int i = 0; i < message.commands.size(); i++)
+            {
+                Cmd command = (Cmd)message.commands.elementAt(i);
+                if ( (command.command.equals(Cmd.CMD_ALERT)) && (command.alertCode >= SyncML.ALERT_SYNC_CLIENT_TWO_WAY) &&
+                     ( (command.alertCode <= SyncML.ALERT_SYNC_CLIENT_REFRESH_FROM_SERVER) || (command.alertCode == SyncML.ALERT_RESUME) ) )
+                    return true;
+            }
+
+            return false;
+        }
+
+        /* Creates the status of the specified command. */
+        private Status newStatus(SyncHdr header, Cmd command)
+        {
+            Status status = new Status();
+            status.refMessageId = header.messageId;
+            status.refCommandId = command.commandId;
+            status.refCommand = command.command;
+            if (command.items.size() == 1)
+            {
+                SyncItem item = (SyncItem)command.items.elementAt(0);
+                if (item.sourceUri != null)
+                    status.refItemSourceUris.addElement(item.sourceUri);
+                if (item.targetUri != null)
+                    status.refItemTargetUris.addElement(item.targetUri);
+            }
+
+            return status;
+        }
+
+        /* Returns the session of the data store referred to by the specified Sync command (or a child of it). */
+        private StoreSession getStoreSession(Cmd command)
+        {
+            if (! command.command.equals(Cmd.CMD_SYNC))
+                command = command.parentCmd;
+            if (command == null)
+                return null;
+
+            return getStoreSession(command.sourceUri);
+        }
+
+        /* Returns the session of the data store with the specified client URI. */
+        private StoreSession getStoreSession(String clientUri)
+        {
+            for (int i = 0; i < storeSessions.size(); i++)
+            {
+                StoreSession storeSession = (StoreSession)storeSessions.elementAt(i);
+                if (storeSession.clientUri.equals(clientUri))
+                    return storeSession;
+            }
+
+            return null;
+        }
+
+        /* Handles the specified status received from the client. */
+        private void onStatus(Status status)
+        {
+            if ( (! status.refCommand.equals(Cmd.CMD_ADD)) && (! status.refCommand.equals(Cmd.CMD_REPLACE)) && (! status.refCommand.equals(Cmd.CMD_DELETE)) )
+                return;
+
+            String key = status.refMessageId + "/" + status.refCommandId;
+            for (int i = 0; i < storeSessions.size(); i++)
+            {
+                StoreSession storeSession = (StoreSession)storeSessions.elementAt(i);
+                ServerChange change = (ServerChange)storeSession.sentChanges.remove(key);
+                if (change != null)
+                {
+                    storeSession.onChangeResult(change, status.statusCode);
+                    return;
+                }
+            }
+        }
+
+        /* Handles the specified Alert received from the client, returning the status code. */
+        private int onAlert(Cmd command)
+        {
+            if (command.items.size() != 1)
+                return SyncML.STATUS_BAD_REQUEST;
+            SyncItem item = (SyncItem)command.items.elementAt(0);
+
+            int alertCode = command.alertCode;
+            if ( (alertCode == SyncML.ALERT_SUSPEND) || (alertCode == SyncML.ALERT_NEXT_MESSAGE) )
+                return SyncML.STATUS_OK;
+
+            if (alertCode == SyncML.ALERT_NO_END_OF_DATA)
+            {
+                for (int i = 0; i < storeSessions.size(); i++)
+                    ((StoreSession)storeSessions.elementAt(i)).chunkFailed(0);
+                return SyncML.STATUS_OK;
+            }
+
+            if (alertCode == SyncML.ALERT_RESUME)
+            {
+                //the session can't be resumed if the emulator doesn't know about it
+                StoreSession storeSession = getStoreSession(item.sourceUri);
+                if (storeSession == null)
+                    return SyncML.STATUS_REFRESH_REQUIRED;
+
+                //the client may use a new anchor for the resumed session
+                if ( (item.metinf != null) && (item.metinf.nextAnchor != null) )
+                    storeSession.nextAnchor = item.metinf.nextAnchor;
+                addAlert(storeSession);
+                return SyncML.STATUS_OK;
+            }
+
+            if ( (alertCode < SyncML.ALERT_SYNC_CLIENT_TWO_WAY) || (alertCode > SyncML.ALERT_SYNC_CLIENT_REFRESH_FROM_SERVER) )
+                return SyncML.STATUS_NOT_SUPPORTED;
+
+            DataStore dataStore = getDataStore(item.targetUri);
+            if ( (dataStore == null) || (item.sourceUri == null) )
+                return SyncML.STATUS_NOT_FOUND;
+
+            //a slow sync is required if the anchors don't match those of the last successful session
+            int statusCode = SyncML.STATUS_OK;
+            DeviceSyncState syncState = getSyncState(deviceId, item.targetUri);
+            String lastAnchor = (item.metinf != null) ? item.metinf.lastAnchor : null;
+            String nextAnchor = (item.metinf != null) ? item.metinf.nextAnchor : null;
+            if ( (alertCode == SyncML.ALERT_SYNC_CLIENT_TWO_WAY) || (alertCode == SyncML.ALERT_SYNC_CLIENT_ONE_WAY_TO_SERVER) || (alertCode == SyncML.ALERT_SYNC_CLIENT_ONE_WAY_FROM_SERVER) )
+            {
+                if ( (lastAnchor == null) || (! lastAnchor.equals(syncState.lastAnchor)) )
+                {
+                    if (log != null)
+                        log.info(LOG_PREFIX + "Anchors of '" + item.sourceUri + "' on device '" + deviceId + "' don't match - requesting a slow sync");
+                    statusCode = SyncML.STATUS_REFRESH_REQUIRED;
+                    alertCode = SyncML.ALERT_SYNC_CLIENT_TWO_WAY_SLOW;
+                }
+            }
+
+            StoreSession storeSession = new StoreSession(item.sourceUri, item.targetUri, alertCode, nextAnchor, dataStore, syncState);
+            storeSessions.addElement(storeSession);
+            addAlert(storeSession);
+            return statusCode;
+        }
+
+        /* Adds an Alert to the next message informing the client of the type of sync to perform for the specified store. */
+        private void addAlert(StoreSession storeSession)
+        {
+            Cmd alertCmd = new Cmd(Cmd.CMD_ALERT);
+            alertCmd.alertCode = storeSession.alertCode;
+            SyncItem alertItem = new SyncItem();
+            alertItem.sourceUri = storeSession.serverUri;
+            alertItem.targetUri = storeSession.clientUri;
+            alertItem.metinf = new Metinf();
+            alertItem.metinf.nextAnchor = Long.toString(storeSession.dataStore.getVersion());
+            alertCmd.items.addElement(alertItem);
+            outCommands.addElement(alertCmd);
+        }
+
+        /* Handles the specified Add, Replace or Delete received from the client, returning the status code. */
+        private int onUpdate(Cmd command)
+        {
+            StoreSession storeSession = getStoreSession(command);
+            if ( (storeSession == null) || (command.items.size() != 1) || (state != STATE_CLIENT_UPDATES) )
+                return SyncML.STATUS_BAD_REQUEST;
+
+            SyncItem item = (SyncItem)command.items.elementAt(0);
+            if (command.command.equals(Cmd.CMD_DELETE))
+                return storeSession.onDelete(item);
+
+            return storeSession.onUpdate(command, item);
+        }
+
+        /* Handles the specified Map received from the client, returning the status code. */
+        private int onMap(Cmd command)
+        {
+            StoreSession storeSession = getStoreSession(command.sourceUri);
+            if (storeSession == null)
+                return SyncML.STATUS_NOT_FOUND;
+
+            for (int i = 0; i < command.mapItems.size(); i++)
+            {
+                MapItem mapItem = (MapItem)command.mapItems.elementAt(i);
+                if ( (mapItem.sourceUri != null) && (mapItem.targetUri != null) )
+                    storeSession.syncState.map(mapItem.sourceUri, mapItem.targetUri);
+            }
+
+            return SyncML.STATUS_OK;
+        }
+
+        /* Writes the next message to the client, containing the pending statuses and commands (and the server updates if required). */
+        private byte[] writeMessage(SyncHdr clientHeader, boolean finalMsg)
+            throws WbxmlException, IOException
+        {
+            MetInfCodepage cpMetinf = new MetInfCodepage(null, null);
+            SyncMLCodepage cpSyncml = new SyncMLCodepage(null, null, cpMetinf);
+            cpMetinf.setWriter(outWriter);
+            cpSyncml.setWriter(outWriter);
+
+            long msgSize = getMaxMsgSize();
+            if ( (clientMaxMsgSize > 0) && (clientMaxMsgSize < msgSize) )
+                msgSize = clientMaxMsgSize;
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream( (int)msgSize );
+            CountingOutputStream outputStream = new CountingOutputStream(buffer);
+
+            SyncHdr header = new SyncHdr();
+            header.dtdVersion = SyncMLCodepage.VER_DTD_1_2;
+            header.protocolVersion = SyncMLCodepage.VER_PROTO_1_2;
+            header.sessionId = sessionId;
+            header.messageId = outMessageId++;
+            header.sourceUri = clientHeader.targetUri;
+            header.targetUri = deviceId;
+            header.metinf = new Metinf();
+            header.metinf.maxMsgSize = getMaxMsgSize();
+            cpSyncml.writeHeader(outputStream, header);
+
+            outCommandId = 1;
+            for (int i = 0; i < outStatuses.size(); i++)
+            {
+                Status status = (Status)outStatuses.elementAt(i);
+                status.commandId = outCommandId++;
+                cpSyncml.writeStatus(outputStream, status);
+            }
+            for (int i = 0; i < outCommands.size(); i++)
+            {
+                Cmd command = (Cmd)outCommands.elementAt(i);
+                command.commandId = outCommandId++;
+                cpSyncml.writeCommand(outputStream, command);
+            }
+            outStatuses.removeAllElements();
+            outCommands.removeAllElements();
+
+            //the server update package is complete once all changes have been sent
+            if ( (state == STATE_SERVER_UPDATES) && (! suspended) )
+            {
+                finalMsg = writeServerUpdates(outputStream, cpSyncml, header.messageId, msgSize);
+                if (finalMsg)
+                    state = STATE_CLIENT_MAPS;
+            }
+
+            cpSyncml.writeFooter(outputStream, finalMsg);
+            return buffer.toByteArray();
+        }
+
+        /* Writes the next server updates to the specified output stream - returns TRUE if all updates have been sent. */
+        private boolean writeServerUpdates(CountingOutputStream outputStream, SyncMLCodepage cpSyncml, int messageId, long msgSize)
+            throws WbxmlException, IOException
+        {
+            //note the space already used in the message - records which would fit in a message of their own aren't split
+            long msgBaseSize = outputStream.getByteCount();
+
+            boolean complete = true;
+            for (int i = 0; i < storeSessions.size(); i++)
+            {
+                StoreSession storeSession = (StoreSession)storeSessions.elementAt(i);
+                Cmd syncCmd = new Cmd(Cmd.CMD_SYNC);
+                syncCmd.commandId = outCommandId++;
+                syncCmd.sourceUri = storeSession.serverUri;
+                syncCmd.targetUri = storeSession.clientUri;
+                cpSyncml.writeCommand(outputStream, syncCmd);
+
+                while ( (complete) && (storeSession.pendingChanges.size() > 0) )
+                {
+                    long freeSpace = msgSize - MSG_END_SIZE - outputStream.getByteCount();
+                    if (freeSpace <= 0)
+                    {
+                        complete = false;
+                        break;
+                    }
+
+                    ServerChange change = (ServerChange)storeSession.pendingChanges.elementAt(0);
+                    Cmd updateCmd = new Cmd(change.command);
+                    updateCmd.commandId = outCommandId++;
+                    SyncItem updateItem = new SyncItem();
+                    updateItem.sourceUri = change.record.id;
+                    updateItem.targetUri = change.localId;
+                    if (! change.command.equals(Cmd.CMD_DELETE))
+                    {
+                        //determine if the record must be sent in chunks
+                        int dataSize = change.record.data.length;
+                        int remainingSize = dataSize - change.bytesAccepted;
+                        int chunkSize = remainingSize;
+                        if (remainingSize > freeSpace)
+                        {
+                            if ( (change.bytesAccepted <= 0) && (dataSize <= msgSize - MSG_END_SIZE - msgBaseSize) && (outputStream.getByteCount() > msgBaseSize) )
+                            {
+                                //send the record in the next message instead of splitting it
+                                complete = false;
+                                break;
+                            }
+                            chunkSize = (int)freeSpace;
+                            updateItem.moreData = true;
+                        }
+
+                        updateCmd.metinf = new Metinf();
+                        updateCmd.metinf.contentType = change.record.contentType;
+                        if (change.resumed)
+                            updateCmd.metinf.size = remainingSize;
+                        else if ( (updateItem.moreData) && (change.bytesAccepted <= 0) )
+                            updateCmd.metinf.size = dataSize;
+                        change.resumed = false;
+
+                        updateItem.data = change.record.data;
+                        updateItem.dataOffset = change.bytesAccepted;
+                        updateItem.dataLength = chunkSize;
+                        change.bytesSent = change.bytesAccepted + chunkSize;
+                    }
+                    updateCmd.items.addElement(updateItem);
+                    cpSyncml.writeCommand(outputStream, updateCmd);
+                    storeSession.sentChanges.put(messageId + "/" + updateCmd.commandId, change);
+
+                    //nothing more to send until the client has accepted the chunk
+                    if (updateItem.moreData)
+                    {
+                        complete = false;
+                        break;
+                    }
+                    storeSession.pendingChanges.removeElementAt(0);
+                }
+
+                cpSyncml.writeCommandEnd(outputStream, syncCmd);
+                if (! complete)
+                    break;
+            }
+
+            return complete;
+        }
+    }
+}
@@ -4,6 +4,7 @@
 package net.cp.syncml.client.test;
 
 
+import java.io.IOException;
 import java.util.*;
 
 import net.cp.syncml.client.SyncML;
@@ -13,6 +14,7 @@ import net.cp.syncml.client.devinfo.*;
 import net.cp.syncml.client.store.*;
 import net.cp.syncml.client.test.store.*;
 import net.cp.syncml.client.util.Logger;
+import net.cp.syncml.client.util.TaskExecutor;
 
 
 
@@ -30,6 +32,9 @@ public class SyncClientApp
 	private static int EXIT_CODE_SYNC_HUNG	= 4;
 	private static int EXIT_CODE_SYNC_INTERRUPT	= 5;
 	
+	//the URI of the address book synced by the desktop vCard store
+	private static final String ADDRESS_BOOK_URI = "./address_book";
+
 	private TestSyncListener listener = null;
 	
 	
@@ -73,6 +78,35 @@ public class SyncClientApp
         System.out.println();
         System.out.println("     -server-uri <uri> : defines the server URI to use in SyncML requests. Default value is /syncml");        
         System.out.println("     -http-headers <header=value,..., header-value> : defines HTTP header(s) to add in the HTTP requests");
+        System.out.println("     -string-table : encode outgoing messages using WBXML string tables. Default is false (string tables are disabled)");
+        System.out.println("     -compact-status : omit item references from Status commands where they aren't required. Default is false (full references are sent)");
+        System.out.println("     -parse-pipeline <N> : parse server messages in the background, holding at most N parsed commands waiting to be processed.");
+        System.out.println("                           Default is 0 (messages are parsed on the session thread)");
+        System.out.println("     -update-scheduling <Policy> : how the record stores share the space in each message containing client updates.");
+        System.out.println("                                   One of 'sequential' or 'round-robin'. Default is 'sequential' (each store in turn)");
+        System.out.println("     -http-streaming : stream outgoing messages using chunked transfer encoding. Default is false (messages are buffered)");
+        System.out.println("     -http-compression : compress messages using gzip/deflate if the server supports it. Default is false (messages are not compressed)");
+        System.out.println("     -record <File> : record the messages exchanged with the SyncML server in the specified file.");
+        System.out.println("     -replay <File> : replay the server responses recorded in the specified file instead of contacting a SyncML server.");
+        System.out.println("                      The hostname of the SyncML server isn't required in this case.");
+        System.out.println("     -replay-strict : end the replayed session as soon as a message differs from the recorded message. Default is false");
+        System.out.println("     -emulator : sync with an in-process SyncML server emulator instead of contacting a SyncML server.");
+        System.out.println("                 The hostname of the SyncML server isn't required in this case.");
+        System.out.println();
+        System.out.println("Load options include:");
+        System.out.println("     -load-devices <N> : sync N virtual devices concurrently instead of a single device. The device ID is used as the prefix");
+        System.out.println("                         of the ID of each device and any '{n}' in the username is replaced by the device number.");
+        System.out.println("                         The suspend and error options apply to each device. Default is 0 (load mode disabled).");
+        System.out.println("     -load-ramp-up <Seconds> : start the devices evenly over the specified number of seconds. Default is 0.");
+        System.out.println("     -load-sessions <N> : the number of sessions run by each device. Default is 1.");
+        System.out.println("     -load-think-time <Seconds> : the number of seconds each device waits between sessions. Default is 0.");
+        System.out.println("     -load-contacts <N> : the number of vCards generated for each device. Default is 20.");
+        System.out.println("     -load-changes <N> : the number of vCards modified by each device before each subsequent session. Default is 2.");
+        System.out.println("     -load-dir <Directory> : the directory in which the vCards of each device are generated. Default is 'syncml-load'");
+        System.out.println("                             in the temporary directory.");
+        System.out.println("     -load-threads <N> : run the sessions using N shared threads and non-blocking transports. The error options");
+        System.out.println("                         aren't supported in this case. Default is 0 (each session runs in a thread of its own).");
+        System.out.println("     -load-log-sessions : log the activity of each session. Default is false (only the results are logged).");
         System.out.println();
         System.out.println("Contact options include:");
         System.out.println("     -contact-dir <ContactsDirectory> : the directory containing the vCard files to");
@@ -170,6 +204,26 @@ public class SyncClientApp
         String displayAlertDelay = pCmdLine.getArgument("display-alert-delay");
         String serverUri = pCmdLine.getArgument("server-uri");
         String httpHeaders = pCmdLine.getArgument("http-headers");
+        boolean stringTable = pCmdLine.isOption("string-table");
+        boolean compactStatus = pCmdLine.isOption("compact-status");
+        String parsePipeline = pCmdLine.getArgument("parse-pipeline");
+        String updateScheduling = pCmdLine.getArgument("update-scheduling");
+        boolean httpStreaming = pCmdLine.isOption("http-streaming");
+        boolean httpCompression = pCmdLine.isOption("http-compression");
+        String recordFile = pCmdLine.getArgument("record");
+        String replayFile = pCmdLine.getArgument("replay");
+        boolean replayStrict = pCmdLine.isOption("replay-strict");
+        boolean emulator = pCmdLine.isOption("emulator");
+
+        String loadDevices = pCmdLine.getArgument("load-devices");
+        String loadRampUp = pCmdLine.getArgument("load-ramp-up");
+        String loadSessions = pCmdLine.getArgument("load-sessions");
+        String loadThinkTime = pCmdLine.getArgument("load-think-time");
+        String loadContacts = pCmdLine.getArgument("load-contacts");
+        String loadChanges = pCmdLine.getArgument("load-changes");
+        String loadDir = pCmdLine.getArgument("load-dir");
+        String loadThreads = pCmdLine.getArgument("load-threads");
+        boolean loadLogSessions = pCmdLine.isOption("load-log-sessions");
         
         String contactDir = pCmdLine.getArgument("contact-dir");
         String contactCr = pCmdLine.getArgument("contact-cr");
@@ -195,7 +249,7 @@ public class SyncClientApp
         	logger.error("The unique ID of the desktop device must be specified");
             return EXIT_CODE_USAGE_ERR;
         }
-        if ( (hostname == null) || (hostname.length() <= 0) )
+        if ( ((hostname == null) || (hostname.length() <= 0)) && ((replayFile == null) || (replayFile.length() <= 0)) && (! emulator) )
         {
             logger.error("The hostname of the sync server must be specified");
             return EXIT_CODE_USAGE_ERR;
@@ -242,6 +296,10 @@ public class SyncClientApp
             errorInputCount = "0";
         if ( (resumeDelay == null) || (resumeDelay.length() <= 0) )
             resumeDelay = "0";
+        if ( (parsePipeline == null) || (parsePipeline.length() <= 0) )
+            parsePipeline = "0";
+        if ( (updateScheduling == null) || (updateScheduling.length() <= 0) )
+            updateScheduling = "sequential";
         
         if ( (displayAlertStatus == null) || (displayAlertStatus.length() <= 0) )
         	displayAlertStatus = "200"; // success
@@ -289,11 +347,93 @@ public class SyncClientApp
 	        }
 	    }
 
+        //sync many virtual devices instead of a single device if required
+        if ( (loadDevices != null) && (loadDevices.length() > 0) && (Integer.parseInt(loadDevices) > 0) )
+        {
+            if (getConflictResolution(contactCr) == null)
+            {
+                logger.error("Invalid contact conflict resolution specified: " + contactCr);
+                return EXIT_CODE_USAGE_ERR;
+            }
+
+            LoadDeviceFactory factory = new LoadDeviceFactory();
+            factory.deviceType = deviceType;
+            factory.deviceManufacturer = deviceManufacturer;
+            factory.deviceModel = deviceModel;
+            factory.applicationName = applicationName;
+            factory.applicationVersion = applicationVersion;
+            factory.softwareVersion = softwareVersion;
+            factory.applicationCapabilityId = applicationCapabilityId;
+            factory.hostname = hostname;
+            factory.port = Integer.parseInt(port);
+            factory.proxyHostname = proxyHostname;
+            factory.proxyPort = Integer.parseInt(proxyPort);
+            factory.serverUri = serverUri;
+            factory.maxMsgSize = Integer.parseInt(maxMsgSize);
+            factory.errorOutputCount = Integer.parseInt(errorOutputCount);
+            factory.errorInputCount = Integer.parseInt(errorInputCount);
+            factory.httpHeaders = httpHeaders;
+            factory.httpStreaming = httpStreaming;
+            factory.httpCompression = httpCompression;
+
+            LoadGenerator generator = new LoadGenerator(factory, logger);
+            generator.setDevices(Integer.parseInt(loadDevices), deviceId);
+            generator.setSchedule(getLoadArgument(loadRampUp, 0) * 1000L, getLoadArgument(loadSessions, 1), getLoadArgument(loadThinkTime, 0) * 1000L);
+            generator.setDataSet(loadDir, getLoadArgument(loadContacts, 20), getLoadArgument(loadChanges, 2));
+            generator.setSyncType(contactSyncMode, getConflictResolution(contactCr));
+            generator.setCredentials(username, password);
+            generator.setFaults(Integer.parseInt(suspendSendCount), Integer.parseInt(suspendRecvCount), Integer.parseInt(resumeDelay));
+            if (loadLogSessions)
+                generator.setSessionLogger(logger);
+            return runLoad(generator, factory, emulator, getLoadArgument(loadThreads, 0), logger);
+        }
+
         //create the sync manager
         listener = new TestSyncListener(logger, Integer.parseInt(suspendSendCount), Integer.parseInt(suspendRecvCount), Integer.parseInt(resumeDelay), Integer.parseInt(displayAlertStatus), Integer.parseInt(displayAlertDelay));
         Device desktopDevice = new DesktopDevice(deviceId, deviceType, deviceManufacturer, deviceModel, applicationName, applicationVersion, softwareVersion, applicationCapabilityId, mcardId);
-        Transport httpTransport = new HTTPTransport(hostname, Integer.parseInt(port), proxyHostname, Integer.parseInt(proxyPort), serverUri, Integer.parseInt(maxMsgSize), Integer.parseInt(errorOutputCount), Integer.parseInt(errorInputCount), httpHeaders);
-        SyncManager manager = new SyncManager(desktopDevice, httpTransport, username, password, listener, logger);
+        Transport transport;
+        ReplayTransport replayTransport = null;
+        RecordingTransport recordingTransport = null;
+        try
+        {
+            if (emulator)
+            {
+                //sync with a server emulator containing an empty address book
+                ServerEmulator server = new ServerEmulator(serverUri, logger);
+                server.addDataStore(ADDRESS_BOOK_URI);
+                transport = new EmulatorTransport(server, Integer.parseInt(maxMsgSize));
+            }
+            else if ( (replayFile != null) && (replayFile.length() > 0) )
+            {
+                //replay a recorded session instead of contacting the server
+                replayTransport = new ReplayTransport(replayFile, logger);
+                replayTransport.setStrict(replayStrict);
+                transport = replayTransport;
+            }
+            else
+            {
+                HTTPTransport httpTransport = new HTTPTransport(hostname, Integer.parseInt(port), proxyHostname, Integer.parseInt(proxyPort), serverUri, Integer.parseInt(maxMsgSize), Integer.parseInt(errorOutputCount), Integer.parseInt(errorInputCount), httpHeaders);
+                httpTransport.setStreamingEnabled(httpStreaming);
+                httpTransport.setCompressionEnabled(httpCompression);
+                transport = httpTransport;
+            }
+            
+            if ( (recordFile != null) && (recordFile.length() > 0) )
+            {
+                recordingTransport = new RecordingTransport(transport, recordFile);
+                transport = recordingTransport;
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Transport initialization exception", e);
+            return EXIT_CODE_INIT_ERR;
+        }
+        SyncManager manager = new SyncManager(desktopDevice, transport, username, password, listener, logger);
+        manager.setStringTableEnabled(stringTable);
+        manager.setCompactStatusEnabled(compactStatus);
+        manager.setParsePipelineSize(Integer.parseInt(parsePipeline));
+        manager.setUpdateScheduling( (updateScheduling.equalsIgnoreCase("round-robin")) ? SyncManager.SCHEDULE_ROUND_ROBIN : SyncManager.SCHEDULE_SEQUENTIAL );
         listener.setSyncManager(manager);        
         
         //create the stores to be synced 
@@ -325,6 +465,7 @@ public class SyncClientApp
 
         //start the session
         Date now = new Date();
+        long startTime = System.currentTimeMillis();
         manager.startSync(stores, Long.toString(now.getTime()));
         
         //wait for it to complete
@@ -353,6 +494,27 @@ public class SyncClientApp
         if ( (retCode == EXIT_CODE_SUCCESS) && (! listener.isSyncSuccess()) )
         	retCode = EXIT_CODE_SYNC_ERR;
         
+        //complete the recording (if any) and report the result of the replay (if any)
+        if (recordingTransport != null)
+        {
+            try
+            {
+                recordingTransport.close();
+                logger.info("Recorded " + recordingTransport.getExchangeCount() + " message exchanges in '" + recordFile + "'");
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to complete the recording '" + recordFile + "'", e);
+            }
+        }
+        if (replayTransport != null)
+        {
+            String[] divergences = replayTransport.getDivergences();
+            logger.info("Replayed " + replayTransport.getReplayedCount() + " of " + replayTransport.getRecordedCount() + " recorded message exchanges in " + (System.currentTimeMillis() - startTime) + "ms with " + divergences.length + " divergences");
+            for (int i = 0; i < divergences.length; i++)
+                logger.warn("    " + divergences[i]);
+        }
+        
         return retCode;
     }
     
@@ -360,6 +522,54 @@ public class SyncClientApp
     {
     	return listener;
     }
+
+    /** Runs the specified load generator using the specified transports and returns the application exit status. */
+    private static int runLoad(LoadGenerator generator, LoadDeviceFactory factory, boolean emulator, int threadCount, Logger logger)
+    {
+        TaskExecutor executor = null;
+        try
+        {
+            if (emulator)
+                factory.servers = new Vector();
+            if (threadCount > 0)
+            {
+                if ( (factory.errorOutputCount > 0) || (factory.errorInputCount > 0) )
+                    logger.warn("The error options are ignored when the sessions are run by shared threads");
+                if (! emulator)
+                    factory.httpClient = new NioHttpClient();
+                executor = new TaskExecutor(threadCount, null);
+                generator.setSessionExecutor(executor);
+            }
+
+            return generator.run() ? EXIT_CODE_SUCCESS : EXIT_CODE_SYNC_ERR;
+        }
+        catch (IOException e)
+        {
+            logger.error("Load generator initialization exception", e);
+            return EXIT_CODE_INIT_ERR;
+        }
+        catch (InterruptedException e)
+        {
+            return EXIT_CODE_SYNC_INTERRUPT;
+        }
+        finally
+        {
+            if (executor != null)
+                executor.shutdown();
+            if (factory.httpClient != null)
+                factory.httpClient.shutdown();
+            for (int i = 0; (factory.servers != null) && (i < factory.servers.size()); i++)
+                ((ServerEmulator)factory.servers.elementAt(i)).shutdown();
+        }
+    }
+
+    private static int getLoadArgument(String value, int defaultValue)
+    {
+        if ( (value == null) || (value.length() <= 0) )
+            return defaultValue;
+
+        return Integer.parseInt(value);
+    }
     
     private static int getSyncType(String type)
     {
@@ -397,4 +607,59 @@ public class SyncClientApp
         
         return null;
     }
+
+
+    /**
+     * A class creating the device information and transport of each virtual device used by the load generator.
+     */
+    private static class LoadDeviceFactory implements LoadGenerator.DeviceFactory
+    {
+        private String deviceType;
+        private String deviceManufacturer;
+        private String deviceModel;
+        private String applicationName;
+        private String applicationVersion;
+        private String softwareVersion;
+        private String applicationCapabilityId;
+        private String hostname;
+        private int port;
+        private String proxyHostname;
+        private int proxyPort;
+        private String serverUri;
+        private int maxMsgSize;
+        private int errorOutputCount;
+        private int errorInputCount;
+        private String httpHeaders;
+        private boolean httpStreaming;
+        private boolean httpCompression;
+        private Vector servers;
+        private NioHttpClient httpClient;
+
+
+        public Device createDevice(String deviceId)
+        {
+            return new DesktopDevice(deviceId, deviceType, deviceManufacturer, deviceModel, applicationName, applicationVersion, softwareVersion, applicationCapabilityId, null);
+        }
+
+        public Transport createTransport(String deviceId)
+            throws IOException
+        {
+            //each device syncs with its own emulator, as each device would normally use its own account
+            if (servers != null)
+            {
+                ServerEmulator server = new ServerEmulator(serverUri, null);
+                server.addDataStore(ADDRESS_BOOK_URI);
+                servers.addElement(server);
+                return new EmulatorTransport(server, maxMsgSize);
+            }
+
+            if (httpClient != null)
+                return new AsyncHTTPTransport(httpClient, hostname, port, serverUri, maxMsgSize);
+
+            HTTPTransport transport = new HTTPTransport(hostname, port, proxyHostname, proxyPort, serverUri, maxMsgSize, errorOutputCount, errorInputCount, httpHeaders);
+            transport.setStreamingEnabled(httpStreaming);
+            transport.setCompressionEnabled(httpCompression);
+            return transport;
+        }
+    }
 }
@@ -516,6 +516,16 @@ public class TestSyncListener implements SyncListener
         }
     }
     
+    public void onMaxMsgSizeChange(long maxMsgSize, long roundTripTime, long throughput)
+    {
+        logInfo("Maximum message size changed to " + maxMsgSize + " (round-trip time " + roundTripTime + "ms, throughput " + throughput + " bytes/s)");
+    }
+    
+    public void onSyncMetrics(SyncMetrics metrics)
+    {
+        logInfo("Session metrics: " + metrics);
+    }
+    
 
     public void setSyncManager(SyncManager manager)
     {
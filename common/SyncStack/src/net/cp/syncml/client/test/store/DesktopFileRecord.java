@@ -165,7 +165,7 @@ public class DesktopFileRecord implements Record
         return itsWbxmlFile.length();
     }
     
-    public int getData(byte[] buffer, int length) 
+    public int getData(byte[] buffer, int offset, int length) 
         throws StoreException
     {
         if (itsWbxmlFile == null)
@@ -174,7 +174,7 @@ public class DesktopFileRecord implements Record
         try
         {
             //read the WBXML encoded data
-            int bytesRead = itsWbxmlInputStream.read(buffer, 0, length);
+            int bytesRead = itsWbxmlInputStream.read(buffer, offset, length);
             itsWbxmlBytesRead += bytesRead;
             
             return bytesRead;
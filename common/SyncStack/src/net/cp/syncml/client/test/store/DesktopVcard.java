@@ -116,7 +116,7 @@ public class DesktopVcard implements Record
         return tempVcardFile.length();
     }
     
-    public int getData(byte[] buffer, int length) 
+    public int getData(byte[] buffer, int offset, int length) 
         throws StoreException
     {
         if (tempVcardFile == null)
@@ -129,7 +129,7 @@ public class DesktopVcard implements Record
                 tempVcardStream = new FileInputStream(tempVcardFile);
 
             //read the data
-            int readCount = tempVcardStream.read(buffer, 0, length);
+            int readCount = tempVcardStream.read(buffer, offset, length);
             if (readCount > 0)
                 bytesRead += readCount;
             
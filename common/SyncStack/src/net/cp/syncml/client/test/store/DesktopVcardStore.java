@@ -15,11 +15,14 @@ import net.cp.syncml.client.util.*;
 
 
 /**
- * A class implementing a record store containing contacts in VCard format.
+ * A class implementing a record store containing contacts in VCard format. <br/><br/>
+ *
+ * Complete records received from the server are applied in batches, with the vCard directory only
+ * being listed once per batch.
  *
  * @author Denis Evoy
  */
-public class DesktopVcardStore implements RecordStore
+public class DesktopVcardStore implements BatchRecordStore
 {
     private static final String PROP_SERVER_URI =                   "./address_book";
     private static final String PROP_CLIENT_URI =                   "contacts";
@@ -603,6 +606,95 @@ public class DesktopVcardStore implements RecordStore
     }
 
     
+    public void applyUpdates(RecordUpdate[] updates)
+        throws StoreException
+    {
+        //generate an error if required
+        if ( (inErrorStatusCode > 0) || (inErrorStatusData != null) )
+            throw new StoreException("Generating dummy error", inErrorStatusCode, inErrorStatusData);
+        
+        //note the names of the existing vCard files so that new names can be generated without listing the directory again 
+        Hashtable vcardFilenames = new Hashtable();
+        File[] vcardFiles = vcardDirectory.listFiles();
+        for (int i = 0; i < vcardFiles.length; i++)
+            vcardFilenames.put(vcardFiles[i].getName().toUpperCase(), vcardFiles[i].getName());
+        
+        int nextFileNumber = 1;
+        for (int i = 0; i < updates.length; i++)
+        {
+            RecordUpdate update = updates[i];
+            try
+            {
+                if (update.getChangeType() == Record.CHANGE_TYPE_ADD)
+                {
+                    //generate a new name for the vCard file
+                    String newVcardFilename;
+                    do
+                    {
+                        newVcardFilename = "CONTACT_" + nextFileNumber++ + ".vcf";
+                    }
+                    while (vcardFilenames.containsKey(newVcardFilename.toUpperCase()));
+                    
+                    writeVcard(new File(vcardDirectory + File.separator + newVcardFilename), update.getData());
+                    vcardFilenames.put(newVcardFilename.toUpperCase(), newVcardFilename);
+                    update.setResult(newVcardFilename);
+                }
+                else if (update.getChangeType() == Record.CHANGE_TYPE_REPLACE)
+                {
+                    if (update.isFieldLevelReplace())    
+                        throw new StoreException("Field level replace is not supported");
+                    
+                    File vcardFile = new File(vcardDirectory + File.separator + update.getLocalId());
+                    if (! vcardFile.exists())
+                        throw new NoSuchRecordException("The specified record doesn't exist: " + update.getLocalId());
+                    
+                    writeVcard(vcardFile, update.getData());
+                    update.setResult(null);
+                }
+                else
+                {
+                    deleteRecord(update.getLocalId());
+                    vcardFilenames.remove(update.getLocalId().toUpperCase());
+                    update.setResult(null);
+                }
+            }
+            catch (StoreException e)
+            {
+                update.setError(e);
+            }
+        }
+    }
+
+    
+    /* Writes the specified data to the specified vCard file. */
+    private void writeVcard(File vcardFile, byte[] data)
+        throws StoreException
+    {
+        OutputStream outFileStream = null;
+        try
+        {
+            outFileStream = new FileOutputStream(vcardFile);
+            if (data != null)
+                outFileStream.write(data);
+        }
+        catch (IOException e)
+        {
+            throw new StoreException("Failed to write record data", e);
+        }
+        finally
+        {
+            try
+            {
+                if (outFileStream != null)
+                    outFileStream.close();
+            }
+            catch (IOException e)
+            {
+                //ignore
+            }
+        }
+    }
+    
     /* Called to cleanup temporary data from a previous Add or Replace request. */
     private void cleanupRequest()
     {
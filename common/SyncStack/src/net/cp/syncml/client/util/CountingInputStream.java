@@ -0,0 +1,94 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.util;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * A class representing an input stream that tracks the amount of data read from it.  
+ *
+ * @author  Denis Evoy
+ */
+public class CountingInputStream extends InputStream
+{
+    private InputStream stream;                 //the stream to track
+    private long byteCount;                     //the number of bytes read from the stream
+
+    
+    /**
+     * Creates a new stream on top of the specified stream.
+     * 
+     * @param inputStream the input stream to track. Must not be null.
+     */
+    public CountingInputStream(InputStream inputStream)
+    {
+        if (inputStream == null)
+            throw new IllegalArgumentException("no input stream specified");
+        
+        stream = inputStream;
+    }
+
+    
+    /**
+     * Returns the number of bytes that have been read from the stream.
+     * 
+     * @return The number of bytes that have been read from the stream.
+     */
+    public long getByteCount()
+    {
+        return byteCount;
+    }
+
+    
+    public int read() 
+        throws IOException
+    {
+        int data = stream.read();
+        if (data >= 0)
+            byteCount++;
+        
+        return data;
+    }
+
+    public int read(byte[] data) 
+        throws IOException
+    {
+        return read(data, 0, data.length);
+    }
+
+    public int read(byte[] data, int offset, int length) 
+        throws IOException
+    {
+        int readCount = stream.read(data, offset, length);
+        if (readCount > 0)
+            byteCount += readCount;
+        
+        return readCount;
+    }
+
+    public long skip(long count) 
+        throws IOException
+    {
+        long skipCount = stream.skip(count);
+        if (skipCount > 0)
+            byteCount += skipCount;
+        
+        return skipCount;
+    }
+
+    public int available() 
+        throws IOException
+    {
+        return stream.available();
+    }
+
+    public void close() 
+        throws IOException
+    {
+        stream.close();
+    }
+}
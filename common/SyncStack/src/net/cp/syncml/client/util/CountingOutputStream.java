@@ -62,7 +62,7 @@ public class CountingOutputStream extends OutputStream
         throws IOException
     {
         stream.write(data, offset, length);
-        byteCount += (length - offset);
+        byteCount += length;
     }
 
     public void close() 
@@ -0,0 +1,47 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.util;
+
+
+import java.io.*;
+
+
+/**
+ * An interface defining temporary storage to which large amounts of data can be spilled. <br/><br/>
+ *
+ * The SyncML client makes no assumptions about where the data is stored. Typically, implementations
+ * will store the data in a temporary file (or some other persistent storage) so that it doesn't
+ * need to be held in memory. A spool holds a single block of data at a time.
+ *
+ * @see SpoolBuffer
+ *
+ * @author Denis Evoy
+ */
+public interface DataSpool
+{
+    /**
+     * Opens a stream which can be used to write data to the spool. <br/><br/>
+     *
+     * Any data previously stored in the spool is discarded.
+     *
+     * @return The stream to which data can be written. Must not be null.
+     * @throws IOException if the spool couldn't be opened.
+     */
+    public OutputStream openOutputStream()
+        throws IOException;
+
+    /**
+     * Opens a stream which can be used to read the data that was last written to the spool.
+     *
+     * @return The stream from which data can be read. Must not be null.
+     * @throws IOException if the spool couldn't be opened.
+     */
+    public InputStream openInputStream()
+        throws IOException;
+
+    /**
+     * Discards any data stored in the spool and releases any associated resources.
+     */
+    public void delete();
+}
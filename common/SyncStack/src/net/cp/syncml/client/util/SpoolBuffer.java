@@ -0,0 +1,305 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.util;
+
+
+import java.io.*;
+
+
+/**
+ * A class providing an output stream which holds a bounded amount of data in memory. <br/><br/>
+ *
+ * Data written to the stream is held in memory until the specified memory limit is reached. At
+ * that point, all data (including any subsequent data) is spilled to the specified {@link DataSpool}.
+ * If no spool is specified, the data is always held in memory. <br/><br/>
+ *
+ * This is useful when accumulating the data of large objects which are received in multiple
+ * chunks (possibly spanning several SyncML messages), as only a bounded amount of the data
+ * needs to be held in memory while the object is being received. Once all the data has been
+ * written, it can be read back using {@link #getInputStream()}, {@link #toByteArray()} or
+ * {@link #toString(String)}. The buffer can be reused by calling {@link #reset()}.
+ *
+ * @author Denis Evoy
+ */
+public class SpoolBuffer extends OutputStream
+{
+    //the initial size of the memory buffer
+    private static final int DEFAULT_BUFFER_SIZE =  1024;
+
+
+    private DataSpool dataSpool;            //the spool to which data is spilled (if any)
+    private int memoryLimit;                //the maximum amount of data to hold in memory
+    private byte[] buffer;                  //the buffer holding the data in memory
+    private int count;                      //the number of bytes of data held in memory
+    private OutputStream spoolStream;       //the stream used to write data to the spool (if spilling)
+    private boolean spooled;                //indicates whether or not the data has been spilled to the spool
+    private long spooledCount;              //the number of bytes of data written to the spool
+    private IOException spoolError;         //the error that occurred when the spool was closed for writing (if any) - the spooled data is incomplete
+
+
+    /**
+     * Creates a new buffer with the specified memory limit.
+     *
+     * @param limit the maximum number of bytes to hold in memory before spilling the data to the spool. Must be positive.
+     * @param spool the spool to which data should be spilled. May be null if data should always be held in memory.
+     */
+    public SpoolBuffer(int limit, DataSpool spool)
+    {
+        if (limit <= 0)
+            throw new IllegalArgumentException("invalid memory limit specified: " + limit);
+
+        memoryLimit = limit;
+        dataSpool = spool;
+        buffer = new byte[Math.min(limit, DEFAULT_BUFFER_SIZE)];
+    }
+
+
+    /**
+     * Returns the number of bytes of data that have been written to the buffer.
+     *
+     * @return The total size (in bytes) of the data.
+     */
+    public long size()
+    {
+        if (spooled)
+            return spooledCount;
+
+        return count;
+    }
+
+    /**
+     * Returns whether or not the data has been spilled to the spool.
+     *
+     * @return <code>true</code> if the data is no longer held in memory.
+     */
+    public boolean isSpooled()
+    {
+        return spooled;
+    }
+
+
+    public void write(int b)
+        throws IOException
+    {
+        if ( (! spooled) && (count >= memoryLimit) && (dataSpool != null) )
+            startSpooling();
+
+        if (spooled)
+        {
+            getSpoolStream().write(b);
+            spooledCount++;
+            return;
+        }
+
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte)b;
+    }
+
+    public void write(byte[] data, int offset, int length)
+        throws IOException
+    {
+        if ( (! spooled) && ((count + length) > memoryLimit) && (dataSpool != null) )
+            startSpooling();
+
+        if (spooled)
+        {
+            getSpoolStream().write(data, offset, length);
+            spooledCount += length;
+            return;
+        }
+
+        ensureCapacity(count + length);
+        System.arraycopy(data, offset, buffer, count, length);
+        count += length;
+    }
+
+    public void flush()
+        throws IOException
+    {
+        if (spoolStream != null)
+            spoolStream.flush();
+    }
+
+    /**
+     * Discards all data and releases the spool (if used). The buffer can then be reused.
+     */
+    public void close()
+    {
+        reset();
+    }
+
+
+    /**
+     * Returns a stream from which the data written to the buffer can be read. <br/><br/>
+     *
+     * If the data has been spilled to the spool, the spool is closed for writing and no more data
+     * can be written to the buffer until it has been {@link #reset() reset}.
+     *
+     * @return The stream containing the data. Will not be null.
+     * @throws IOException if the data couldn't be completely written to or read from the spool.
+     */
+    public InputStream getInputStream()
+        throws IOException
+    {
+        if (! spooled)
+            return new ByteArrayInputStream(buffer, 0, count);
+
+        closeSpoolStream();
+        if (spoolError != null)
+            throw spoolError;
+        return dataSpool.openInputStream();
+    }
+
+    /**
+     * Returns the data written to the buffer as a new byte array.
+     *
+     * @return The data. Will not be null.
+     * @throws IOException if the data couldn't be completely written to or read from the spool.
+     */
+    public byte[] toByteArray()
+        throws IOException
+    {
+        if (! spooled)
+        {
+            byte[] data = new byte[count];
+            System.arraycopy(buffer, 0, data, 0, count);
+            return data;
+        }
+
+        if (spooledCount > Integer.MAX_VALUE)
+            throw new IOException("spooled data is too large: " + spooledCount);
+
+        //read the data back from the spool
+        byte[] data = new byte[(int)spooledCount];
+        InputStream inputStream = getInputStream();
+        try
+        {
+            int pos = 0;
+            while (pos < data.length)
+            {
+                int readSize = inputStream.read(data, pos, data.length - pos);
+                if (readSize < 0)
+                    throw new IOException("unexpected end of spooled data - read " + pos + " bytes, expected " + data.length + " bytes");
+
+                pos += readSize;
+            }
+        }
+        finally
+        {
+            inputStream.close();
+        }
+
+        return data;
+    }
+
+    /**
+     * Returns the data written to the buffer decoded using the specified character encoding. <br/><br/>
+     *
+     * If the data is held in memory, it is decoded directly from the memory buffer without being copied.
+     *
+     * @param encoding the character encoding of the data. Must not be null or empty.
+     * @return The decoded data. Will not be null.
+     * @throws IOException if the data couldn't be read from the spool or decoded.
+     */
+    public String toString(String encoding)
+        throws IOException
+    {
+        if (! spooled)
+            return new String(buffer, 0, count, encoding);
+
+        return new String(toByteArray(), encoding);
+    }
+
+    /**
+     * Discards all data written to the buffer, releasing the spool (if used).
+     */
+    public void reset()
+    {
+        discardSpoolStream();
+        if (spooled)
+            dataSpool.delete();
+
+        spooled = false;
+        spooledCount = 0;
+        spoolError = null;
+        count = 0;
+
+        //release the memory buffer if it has grown beyond the limit (can only happen without a spool)
+        if (buffer.length > memoryLimit)
+            buffer = new byte[Math.min(memoryLimit, DEFAULT_BUFFER_SIZE)];
+    }
+
+
+    /* Moves the data held in memory to the spool - all subsequent data will be written to the spool. */
+    private void startSpooling()
+        throws IOException
+    {
+        spoolStream = dataSpool.openOutputStream();
+        spooled = true;
+        spoolStream.write(buffer, 0, count);
+        spooledCount = count;
+        count = 0;
+    }
+
+    /* Returns the stream used to write to the spool. */
+    private OutputStream getSpoolStream()
+    {
+        //the spool was closed when it was last read - it can't be reopened without copying all the spooled data
+        if (spoolStream == null)
+            throw new IllegalStateException("spooled data can't be written once it has been read");
+
+        return spoolStream;
+    }
+
+    /* Closes the stream used to write to the spool (if open) - the spooled data is incomplete if this fails. */
+    private void closeSpoolStream()
+        throws IOException
+    {
+        if (spoolStream == null)
+            return;
+
+        OutputStream stream = spoolStream;
+        spoolStream = null;
+        try
+        {
+            stream.close();
+        }
+        catch (IOException e)
+        {
+            //remember the error so that the incomplete data is never read back
+            spoolError = e;
+            throw e;
+        }
+    }
+
+    /* Closes the stream used to write to the spool (if open), ignoring any errors as the spooled data is being discarded. */
+    private void discardSpoolStream()
+    {
+        try
+        {
+            closeSpoolStream();
+        }
+        catch (IOException e)
+        {
+            //ignore
+        }
+    }
+
+    /* Makes sure that the memory buffer can hold at least the specified number of bytes. */
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity <= buffer.length)
+            return;
+
+        int newCapacity = buffer.length * 2;
+        if (newCapacity < capacity)
+            newCapacity = capacity;
+        if ( (dataSpool != null) && (newCapacity > memoryLimit) && (capacity <= memoryLimit) )
+            newCapacity = memoryLimit;
+
+        byte[] newBuffer = new byte[newCapacity];
+        System.arraycopy(buffer, 0, newBuffer, 0, count);
+        buffer = newBuffer;
+    }
+}
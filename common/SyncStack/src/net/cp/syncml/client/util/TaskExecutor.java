@@ -0,0 +1,133 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.util;
+
+
+import java.util.Vector;
+
+
+/**
+ * A class which runs tasks using a fixed number of threads. <br/><br/>
+ *
+ * Tasks are run in the order in which they were submitted, by whichever thread becomes available first.
+ * An executor may be shared by any number of sync managers, in which case their sessions are run by the
+ * threads of the executor rather than by a thread each (see
+ * {@link net.cp.syncml.client.SyncManager#setSessionExecutor(TaskExecutor)}).
+ *
+ * @author Denis Evoy
+ */
+public class TaskExecutor
+{
+    private Vector tasks;                       //the tasks waiting to be run
+    private Logger log;                         //the logger to use (if any)
+    private boolean shutdown;                   //indicates whether or not the executor has been shut down
+
+
+    /**
+     * Creates a new executor and starts its threads.
+     *
+     * @param threadCount   the number of threads to use. Must be positive.
+     * @param logger        the logger to use. May be null.
+     */
+    public TaskExecutor(int threadCount, Logger logger)
+    {
+        if (threadCount <= 0)
+            throw new IllegalArgumentException("invalid thread count specified: " + threadCount);
+
+        tasks = new Vector();
+        log = logger;
+
+        for (int i = 0; i < threadCount; i++)
+        {
+            Thread worker = new Thread()
+            {
+                public void run()
+                {
+                    runTasks();
+                }
+            };
+            worker.start();
+        }
+    }
+
+
+    /**
+     * Submits the specified task to be run by one of the threads of the executor.
+     *
+     * @param task the task to run. Must not be null.
+     * @throws IllegalStateException if the executor has been shut down.
+     */
+    public synchronized void execute(Runnable task)
+    {
+        if (task == null)
+            throw new IllegalArgumentException("no task specified");
+        if (shutdown)
+            throw new IllegalStateException("the executor has been shut down");
+
+        tasks.addElement(task);
+        notify();
+    }
+
+    /**
+     * Returns the number of tasks waiting to be run.
+     *
+     * @return The number of waiting tasks.
+     */
+    public synchronized int getPendingTaskCount()
+    {
+        return tasks.size();
+    }
+
+    /**
+     * Stops the threads of the executor once all the submitted tasks have been run. <br/><br/>
+     *
+     * No more tasks may be submitted once the executor has been shut down.
+     */
+    public synchronized void shutdown()
+    {
+        shutdown = true;
+        notifyAll();
+    }
+
+
+    /* Runs the submitted tasks until the executor is shut down (called from each thread of the executor). */
+    private void runTasks()
+    {
+        while (true)
+        {
+            Runnable task;
+            synchronized (this)
+            {
+                while ( (tasks.size() <= 0) && (! shutdown) )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        //ignore
+                    }
+                }
+
+                if (tasks.size() <= 0)
+                    return;
+
+                task = (Runnable)tasks.elementAt(0);
+                tasks.removeElementAt(0);
+            }
+
+            //run the task outside the lock so that other threads can run tasks at the same time
+            try
+            {
+                task.run();
+            }
+            catch (Throwable e)
+            {
+                if (log != null)
+                    log.error("TaskExecutor: task failed", e);
+            }
+        }
+    }
+}
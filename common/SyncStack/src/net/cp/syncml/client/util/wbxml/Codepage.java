@@ -4,7 +4,6 @@
 package net.cp.syncml.client.util.wbxml;
 
 import java.io.*;
-import java.util.Stack;
 
 import net.cp.syncml.client.util.Logger;
 
@@ -25,10 +24,12 @@ public abstract class Codepage
     private String[] tagNames;              //the names of the tags
 
     //state information when parsing WBXML data
-    private Stack inTagStack;               //the stack containing nested tag IDs
+    private WbxmlDecoder inDecoder;         //the decoder containing the stack of nested tag IDs
+    private byte[] inOpaqueBuffer;          //the buffer used to pass opaque data to legacy handlers
 
     //state information when writing WBXML data
     private int nestingLevel;               //the current nesting level when writing tags
+    private WbxmlWriter outWriter;          //the writer used to encode tags and data
     
     
     /**
@@ -44,13 +45,40 @@ public abstract class Codepage
     
     
     /**
-     * Sets the stack which will contain the IDs of nested tags as they are parsed.
+     * Sets the decoder which will track the IDs of nested tags as they are parsed.
      *  
-     * @param stack the stack containing the IDs of nested tags.
+     * @param decoder the decoder parsing the document. May be null if no document is being parsed.
      */
-    public void setTagStack(Stack stack)
+    void setDecoder(WbxmlDecoder decoder)
     {
-        inTagStack = stack;
+        inDecoder = decoder;
+    }
+    
+
+    /**
+     * Sets the writer which will be used to encode tags and data. <br/><br/>
+     * 
+     * Codepages writing to the same document may share the same writer so that its buffers 
+     * are reused. If no writer is set, the codepage creates its own when first needed.
+     *  
+     * @param writer the writer to use. May be null.
+     */
+    public void setWriter(WbxmlWriter writer)
+    {
+        outWriter = writer;
+    }
+    
+    /**
+     * Returns the writer which is used to encode tags and data.
+     *  
+     * @return The writer used by the codepage. Will not be null.
+     */
+    protected WbxmlWriter getWriter()
+    {
+        if (outWriter == null)
+            outWriter = new WbxmlWriter();
+        
+        return outWriter;
     }
     
 
@@ -93,12 +121,10 @@ public abstract class Codepage
      */
     public int getAncestorId(int index)
     {
-        int ancestorIndex = inTagStack.size() - index - 2;
-        if ( (ancestorIndex < 0) || (ancestorIndex >= inTagStack.size()) )
+        if (inDecoder == null)
             return 0;
         
-        Wbxml.Tag tag = (Wbxml.Tag)inTagStack.elementAt(ancestorIndex);
-        return tag.tagId;
+        return inDecoder.getAncestorId(index);
     }
     
     
@@ -141,6 +167,25 @@ public abstract class Codepage
     }
     
     
+    /**
+     * Called when in-line string data is encountered in the WBXML document. <br/><br/>
+     * 
+     * The specified view is reused for all string data so its content must not be retained 
+     * after this method returns. By default, this method creates a <code>String</code> from
+     * the data and calls {@link #onStringData(int, String)}. Codepages which can handle the
+     * raw data directly (numeric values for example) should override this method to avoid 
+     * creating the <code>String</code>.
+     * 
+     * @param tagId the ID of the element that the in-line string data belongs to. Will be non-zero and positive.
+     * @param data  the string data that has been encountered. Will not be null but may be empty.
+     * @throws WbxmlException if the event couldn't be handled.
+     */
+    public void onStringData(int tagId, WbxmlString data) 
+        throws WbxmlException
+    {
+        onStringData(tagId, data.toString());
+    }
+
     /**
      * Called when in-line string data is encountered in the WBXML document.
      * 
@@ -151,8 +196,7 @@ public abstract class Codepage
     public void onStringData(int tagId, String data) 
         throws WbxmlException
     {
-        if (log != null)
-            log.debug("WBXML: IN: " + getInIndent(1) + data);
+        logStringData(data);
     }
 
     
@@ -173,6 +217,39 @@ public abstract class Codepage
             log.debug("WBXML: IN: " + getInIndent(1) + "Data Start [Length=" + length + "]");
     }
 
+    /**
+     * Called when opaque data is encountered in a tag in the WBXML document. <br/><br/>
+     * 
+     * Note that this method may be called multiple times (especially when dealing with large 
+     * amounts of data). This method will be followed by a call to {@link #onOpaqueDataEnd(int, boolean)}.
+     * The specified data should be cached and not acted upon until {@link #onOpaqueDataEnd(int, boolean)}
+     * is called. <br/><br/>
+     * 
+     * The specified buffer is owned by the parser and must not be retained after this method returns. 
+     * By default, this method copies the data to the start of a reusable buffer and calls 
+     * {@link #onOpaqueData(int, byte[], int)}. Codepages should override this method to avoid the copy.
+     * 
+     * @param tagId     the ID of the tag that the opaque data belongs to. Will be non-zero and positive.
+     * @param data      the buffer containing the data that was read. Will not be null or empty.
+     * @param offset    the offset of the data in the buffer. Will be zero or positive.
+     * @param length    the number of bytes that were read. Will be zero or positive.
+     * @throws WbxmlException if the event couldn't be handled.
+     */
+    public void onOpaqueData(int tagId, byte[] data, int offset, int length) 
+        throws WbxmlException
+    {
+        if (offset != 0)
+        {
+            if ( (inOpaqueBuffer == null) || (inOpaqueBuffer.length < length) )
+                inOpaqueBuffer = new byte[data.length];
+            
+            System.arraycopy(data, offset, inOpaqueBuffer, 0, length);
+            data = inOpaqueBuffer;
+        }
+        
+        onOpaqueData(tagId, data, length);
+    }
+
     /**
      * Called when opaque data is encountered in a tag in the WBXML document. <br/><br/>
      * 
@@ -189,8 +266,7 @@ public abstract class Codepage
     public void onOpaqueData(int tagId, byte[] data, int length) 
         throws WbxmlException
     {
-        if (log != null)
-            log.debug("WBXML: IN: " + getInIndent(1) + "data[" + length + "]");
+        logOpaqueData(length);
     }
 
     /**
@@ -232,7 +308,7 @@ public abstract class Codepage
                 log.debug("WBXML: OUT: " + getIndent(nestingLevel) + "<" + getTagName(tagId) + "/>");
         }
         
-        Wbxml.writeTag(outputStream, tagId, hasContent);
+        getWriter().writeTag(outputStream, tagId, false, hasContent);
         
         if (hasContent)
             nestingLevel++;
@@ -257,7 +333,7 @@ public abstract class Codepage
             log.debug("WBXML: OUT: " + getIndent(nestingLevel) + "</" + getTagName(tagId) + ">");
         }
         
-        Wbxml.writeTag(outputStream, tagId, content);
+        getWriter().writeTag(outputStream, tagId, content);
     }
     
     
@@ -272,15 +348,32 @@ public abstract class Codepage
      */
     protected void writeTag(OutputStream outputStream, byte tagId, byte[] content)
         throws WbxmlException, IOException
+    {
+        writeTag(outputStream, tagId, content, 0, content.length);
+    }
+    
+    /**
+     * Writes a tag with the specified ID and the specified slice of binary content to the specified output stream.
+     * 
+     * @param outputStream  the output stream to write the tag to. 
+     * @param tagId         the ID of the tag to write. Must be zero or positive.
+     * @param content       the buffer containing the binary content of the tag (which will be written as opaque data).
+     * @param offset        the offset of the content in the buffer.
+     * @param length        the number of bytes of content to write.
+     * @throws WbxmlException   if the tag or content is invalid in some way.
+     * @throws IOException      if the tag or content couldn't be written to the output stream.
+     */
+    protected void writeTag(OutputStream outputStream, byte tagId, byte[] content, int offset, int length)
+        throws WbxmlException, IOException
     {
         if (log != null)
         {
             log.debug("WBXML: OUT: " + getIndent(nestingLevel) + "<" + getTagName(tagId) + ">");
-            log.debug("WBXML: OUT: " + getIndent(nestingLevel + 1) + "data[" + content.length + "]");
+            log.debug("WBXML: OUT: " + getIndent(nestingLevel + 1) + "data[" + length + "]");
             log.debug("WBXML: OUT: " + getIndent(nestingLevel) + "</" + getTagName(tagId) + ">");
         }
         
-        Wbxml.writeTag(outputStream, tagId, content);
+        getWriter().writeTag(outputStream, tagId, content, offset, length);
     }
     
     
@@ -300,7 +393,7 @@ public abstract class Codepage
         if (log != null)
             log.debug("WBXML: OUT: " + getIndent(nestingLevel) + "</" + getTagName(tagId) + ">");
         
-        Wbxml.writeTagEnd(outputStream);
+        getWriter().writeTagEnd(outputStream);
     }
     
     
@@ -321,7 +414,7 @@ public abstract class Codepage
         if (log != null)
             log.debug("WBXML: OUT: " + getIndent(nestingLevel) + "Data Start [Length=" + length + "]");
 
-        Wbxml.writeOpaqueDataBegin(outputStream, length);
+        getWriter().writeOpaqueDataBegin(outputStream, length);
     }
     
     /**
@@ -337,18 +430,65 @@ public abstract class Codepage
      */
     protected void writeOpaqueData(OutputStream outputStream, byte[] data, int length)
         throws WbxmlException, IOException
+    {
+        writeOpaqueData(outputStream, data, 0, length);
+    }
+    
+    /**
+     * Writes the specified slice of opaque data to the specified output stream. <br/><br/>
+     * 
+     * This method can be called one or more times. This allows a large amount of opaque data to be written in multiple chunks. 
+     * 
+     * @param outputStream  the output stream to write the opaque data to. 
+     * @param data          the buffer containing the data to write.
+     * @param offset        the offset of the data in the buffer.
+     * @param length        the number of bytes to write to the output stream. Must be non-zero and positive.
+     * @throws WbxmlException   if writing opaque data is invalid in some way.
+     * @throws IOException      if the opaque data couldn't be written to the output stream.
+     */
+    protected void writeOpaqueData(OutputStream outputStream, byte[] data, int offset, int length)
+        throws WbxmlException, IOException
     {
         if (log != null)
             log.debug("WBXML: OUT: " + getIndent(nestingLevel) + "data[" + length + "]");
 
-        Wbxml.writeOpaqueData(outputStream, data, length);
+        getWriter().writeOpaqueData(outputStream, data, offset, length);
+    }
+    
+    
+    /**
+     * Logs the specified in-line string data that has been encountered in the WBXML document. <br/><br/>
+     * 
+     * Codepages which handle string data without calling {@link #onStringData(int, String)}
+     * should call this method so that the data still appears in the log.
+     * 
+     * @param data the string data that has been encountered. May be null.
+     */
+    protected void logStringData(Object data)
+    {
+        if (log != null)
+            log.debug("WBXML: IN: " + getInIndent(1) + data);
+    }
+    
+    /**
+     * Logs the length of a block of opaque data that has been encountered in the WBXML document. <br/><br/>
+     * 
+     * Codepages which handle opaque data without calling {@link #onOpaqueData(int, byte[], int)}
+     * should call this method so that the data still appears in the log.
+     * 
+     * @param length the number of bytes of opaque data that were read.
+     */
+    protected void logOpaqueData(int length)
+    {
+        if (log != null)
+            log.debug("WBXML: IN: " + getInIndent(1) + "data[" + length + "]");
     }
     
     
     private String getInIndent(int additional)
     {
-        if (inTagStack != null)
-            return getIndent(inTagStack.size() + additional - 1);
+        if (inDecoder != null)
+            return getIndent(inDecoder.getDepth() + additional - 1);
         
         return "";
     }
@@ -94,18 +94,9 @@ public class Wbxml
     private static final String ENCODING_UTF8 =     "UTF-8";
 
     
-    //a class containing state information used when parsing tags
-    static class Tag
-    {
-        public byte tagId;
-        public Codepage codepage;
-
-        public Tag(byte id, Codepage cp)
-        {
-            tagId = id;
-            codepage = cp;
-        }
-    }
+    //decoders (and their buffers) that can be reused by subsequent parses
+    private static final int MAX_POOLED_DECODERS =  2;
+    private static final Stack decoderPool =        new Stack();
     
     //useful bit-masks
     private static final byte MASK_TAG_ELEMENT_ID =     (byte)0x3F; //00111111 - reveals the identity of a tag (encoded in bits 0-5) 
@@ -285,61 +276,6 @@ public class Wbxml
     }
 
     
-    /**
-     * Reads a byte from the specified input stream.
-     * 
-     * @param inputStream the stream to read the data from.
-     * @return The byte that was read.
-     * @throws IOException if the byte couldn't be read from the stream.
-     */
-    private static int readByte(InputStream inputStream) 
-        throws IOException
-    {
-        //read the data
-        int data = inputStream.read();
-        if (data == -1)
-            throw new IOException("unexpected end of stream while reading byte data");
-        
-        return data;
-    }
-
-    
-    /**
-     * Reads a multi-byte integer from the specified input stream. <br/><br/>
-     * 
-     * A single integer value is encoded into a sequence of N bytes. The first N-1 bytes 
-     * have the continuation flag set to 1 while the final byte in the series has a 
-     * continuation flag value of 0.
-     * 
-     * @param inputStream the stream to read the data from.
-     * @return The integer that was read.
-     * @throws IOException if the integer couldn't be read from the stream.
-     */
-    private static long readInt(InputStream inputStream) 
-        throws IOException
-    {
-        long result = 0;
-        while (true)
-        {
-            //read the data
-            int data = inputStream.read();
-            if (data == -1)
-                throw new IOException("unexpected end of stream while reading multi-byte integer");
-
-            //get the scalar value (i.e. bits 0-7) and append it to our result 
-            result = result | (data & MASK_INT_DATA);
-            
-            //nothing more to do if the continuation bit (i.e. bit 8) is not set
-            if ((data & MASK_INT_CONTINUATION) == 0)
-                break;
-
-            //need to read more data so shift it up for the next value
-            result = (result << 7);
-        }
-
-        return result;
-    }
-
     /**
      * Writes the specified data to the specified output stream as a multi-byte integer. <br/><br/>
      * 
@@ -354,61 +290,22 @@ public class Wbxml
     private static void writeInt(OutputStream outputStream, long data)
         throws IOException
     {
-        //convert the data to a multi-byte array (which will be in the reverse order)
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        while (data != 0)
-        {
-            //write the data part of the integer (bits 0-6)
-            output.write((int)(data & MASK_INT_DATA));
+        //determine the number of 7-bit groups needed (at least one, even for zero)
+        int groups = 1;
+        for (long remaining = (data >>> 7); remaining != 0; remaining = (remaining >>> 7))
+            groups++;
 
-            //get the next set of bits
-            data = (data >> 7);
-        }
-        byte[] reversedBits = output.toByteArray();
-        int reversedBitsLen = reversedBits.length;
-
-        //reorder the bits and set the continuation bit as necessary
-        byte[] result = new byte[reversedBitsLen];
-        for (int i = 0; i < reversedBitsLen; i++)
+        //write the groups with the most significant first, setting the continuation bit on all but the last
+        for (int i = groups - 1; i >= 0; i--)
         {
-            //only set the continuation bit if this isn't the last byte.
-            if (i != (reversedBitsLen - 1)) 
-                result[i] = (byte)(reversedBits[reversedBitsLen - i - 1] | MASK_INT_CONTINUATION);
-            else
-                result[i] = reversedBits[0];
-        }
-        
-        //write the data
-        outputStream.write(result);
-    }
-
-    
-    /**
-     * Reads an in-line UTF-8 string from the specified input stream.
-     * 
-     * @param inputStream   the stream to read the data from.
-     * @param buffer        the temporary buffer to use when reading the data.
-     * @return The string that was read.
-     * @throws IOException if the string couldn't be read from the stream.
-     */
-    private static String readInlineString(InputStream inputStream, ByteArrayOutputStream buffer) 
-        throws IOException
-    {
-        //reset the buffer
-        buffer.reset();
-
-        int data;
-        while ((data = inputStream.read()) != 0x00)
-        {
-            if (data == -1)
-                throw new IOException("unexpected end of stream while reading string literal");
+            int value = (int)((data >>> (i * 7)) & MASK_INT_DATA);
+            if (i > 0)
+                value |= MASK_INT_CONTINUATION;
             
-            buffer.write(data);
+            outputStream.write(value);
         }
-        
-        //convert to a string (assumes UTF-8 encoding)
-        return new String(buffer.toByteArray(), ENCODING_UTF8);
     }
+
     
     /** 
      * Writes the specified string to the specified output stream as an in-line UTF-8 string.
@@ -479,7 +376,7 @@ public class Wbxml
      * <ul>
      *      <li> Only WBXML v1.2 is supported.
      *      <li> Only UTF-8 encoded strings are supported.
-     *      <li> String table references are not supported.
+     *      <li> String table references are only supported in content (they are reported as string data).
      *      <li> Elements with attributes are not supported.
      * </ul>
      * 
@@ -494,145 +391,80 @@ public class Wbxml
         if ( (codepages == null) || (codepages.length <= 0) )
             throw new IllegalArgumentException("no codepages specified");
         
-        //initialize the codepages
-        Stack tagStack = new Stack();
-        for (int i = 0; i < codepages.length; i++)
-            codepages[i].setTagStack(tagStack);
-        Codepage currentCodepage = codepages[0];
-        
-        //read the WBXML version and ensure it's v1.2
-        int wbxmlVersion = readByte(inputStream);
-        if (wbxmlVersion != VERSION_1_2)
-            throw new WbxmlException("unsupported WBXML version: " + Integer.toHexString(wbxmlVersion));
-
-        //read the document public identifier
-        int docId = (int)readInt(inputStream);
-        if (docId == 0)
+        WbxmlDecoder decoder = acquireDecoder();
+        try
         {
-            //no document ID specified - instead, ID is given as an index into the string table - not used in SyncML so ignore
-            readInt(inputStream);
-        }
-
-        //read the character set and ensure it's UTF8 (i.e. MIBenum code 106 as defined by IANA)
-        long charset = readInt(inputStream);
-        if (charset != CHARSET_UTF8)
-            throw new WbxmlException("unsupported character encoding: " + charset);
-
-        //read the string table length
-        int stringTableLen = (int)readInt(inputStream);
-        if (stringTableLen > 0)
-        {
-            //read the string table
-            byte[] stringTableData = new byte[stringTableLen];
-            if (inputStream.read(stringTableData, 0, stringTableLen) < stringTableLen)
-                throw new WbxmlException("unexpected end of stream while reading string table");
-        }
+            //initialize the codepages
+            for (int i = 0; i < codepages.length; i++)
+                codepages[i].setDecoder(decoder);
+            
+            //read the WBXML header
+            decoder.start(inputStream, codepages.length);
 
-        //create buffers so that they can be reused while parsing
-        byte[] opaqueDataBuffer = new byte[256];
-        ByteArrayOutputStream stringDataBuffer = new ByteArrayOutputStream(256);
-        
-        //all static data has now been read - now read the rest of the document
-        int data;
-        while ((data = inputStream.read()) != -1)
-        {
-            switch((byte)data)
+            //read the rest of the document, notifying the codepage of the current tag of each event
+            int event;
+            while ((event = decoder.next()) != WbxmlDecoder.EVENT_END_DOCUMENT)
             {
-                case TOKEN_SWITCH_PAGE:
-                {
-                    //codepage switch with page index following - read the index of the new codepage
-                    int codepageIndex = readByte(inputStream);
-                    if ( (codepageIndex < 0) || (codepageIndex > codepages.length) )
-                        throw new WbxmlException("invalid codepage switch found: " + codepageIndex);
-
-                    //switch to the new codepage
-                    currentCodepage = codepages[codepageIndex];
-                    break;
-                }
-                case TOKEN_END:
+                Codepage codepage = codepages[decoder.getCodepageIndex()];
+                int tagId = decoder.getTagId();
+                switch (event)
                 {
-                    //end of an element tag - notify the current codepage
-                    Tag tag = (Tag)tagStack.peek();
-                    tag.codepage.onTagEnd(tag.tagId);
-                    tagStack.pop();
-                    break;
-                }
-                case TOKEN_INLINE_STRING:
-                {
-                    //in-line string with null-terminated string following - read the string and notify the current codepage
-                    Tag tag = (Tag)tagStack.peek();
-                    tag.codepage.onStringData(tag.tagId, readInlineString(inputStream, stringDataBuffer));
-                    break;
-                }
-                case TOKEN_OPAQUE_DATA:
-                {
-                    //opaque data with data length and actual data following - read the data and add it to the current tag
-                    long opaqueDataLen = readInt(inputStream);
-                    Tag tag = (Tag)tagStack.peek();
-                    tag.codepage.onOpaqueDataBegin(tag.tagId, opaqueDataLen);
-                    
-                    //read the opaque data in chunks
-                    for (int dataRead = 0; dataRead < opaqueDataLen; )
-                    {
-                        //determine how much data to read
-                        int requestDataSize;
-                        long remainingLen = opaqueDataLen - dataRead;
-                        if (remainingLen < opaqueDataBuffer.length)
-                            requestDataSize = (int)remainingLen;
-                        else
-                            requestDataSize = opaqueDataBuffer.length;
+                    case WbxmlDecoder.EVENT_TAG_START:
+                        codepage.onTagStart(tagId, decoder.hasContent());
+                        break;
                         
-                        int readSize = inputStream.read(opaqueDataBuffer, 0, requestDataSize);
-                        if (readSize == -1)
-                        {
-                            tag.codepage.onOpaqueDataEnd(tag.tagId, false);
-                            throw new IOException("unexpected end of stream while reading opaque data");
-                        }
+                    case WbxmlDecoder.EVENT_TAG_END:
+                        codepage.onTagEnd(tagId);
+                        break;
                         
-                        tag.codepage.onOpaqueData(tag.tagId, opaqueDataBuffer, readSize);
-                        dataRead += readSize;
-                    }
-                    tag.codepage.onOpaqueDataEnd(tag.tagId, true);
-                    break;
-                }
-                case TOKEN_CHAR_ENTITY:
-                {
-                    //character entity with entity value following - ignore
-                    readInt(inputStream);
-                    break;
-                }
-                case TOKEN_LITERAL:
-                {
-                    //unknown tag or attribute name with string table index following - ignore 
-                    readInt(inputStream);
-                    break;
-                }
-                case TOKEN_STR_TABLE_REF:
-                {
-                    //string table reference with string table index following - ignore 
-                    readInt(inputStream);
-                    break;
-                }
-                default:
-                {
-                    //a token referring to a tag in the current code-page - parse the token to determine the tag details
-                    byte tagId = (byte)(data & MASK_TAG_ELEMENT_ID);
-                    boolean tagHasContent = ((data & MASK_TAG_HAS_CONTENT) > 0);
-
-                    //add it to the list of tags
-                    tagStack.push( new Tag(tagId, currentCodepage) );
-                    
-                    //notify the codepage that the tag is starting
-                    currentCodepage.onTagStart(tagId, tagHasContent);
-
-                    //end the tag now if it has no content 
-                    if (! tagHasContent)
-                    {
-                        currentCodepage.onTagEnd(tagId);
-                        tagStack.pop();
-                    }
+                    case WbxmlDecoder.EVENT_STRING:
+                        codepage.onStringData(tagId, decoder.getString());
+                        break;
+                        
+                    case WbxmlDecoder.EVENT_OPAQUE_BEGIN:
+                        codepage.onOpaqueDataBegin(tagId, decoder.getOpaqueLength());
+                        break;
+                        
+                    case WbxmlDecoder.EVENT_OPAQUE_DATA:
+                        codepage.onOpaqueData(tagId, decoder.getData(), decoder.getDataOffset(), decoder.getDataLength());
+                        break;
+                        
+                    case WbxmlDecoder.EVENT_OPAQUE_END:
+                        codepage.onOpaqueDataEnd(tagId, decoder.isOpaqueComplete());
+                        break;
                 }
             }
         }
+        finally
+        {
+            for (int i = 0; i < codepages.length; i++)
+                codepages[i].setDecoder(null);
+
+            releaseDecoder(decoder);
+        }
+    }
+    
+    
+    /* Returns a decoder from the pool (or a new decoder if the pool is empty). */
+    private static WbxmlDecoder acquireDecoder()
+    {
+        synchronized (decoderPool)
+        {
+            if (! decoderPool.empty())
+                return (WbxmlDecoder)decoderPool.pop();
+        }
+        
+        return new WbxmlDecoder();
+    }
+    
+    /* Returns the specified decoder to the pool so that it (and its buffers) can be reused. */
+    private static void releaseDecoder(WbxmlDecoder decoder)
+    {
+        decoder.reset();
+        synchronized (decoderPool)
+        {
+            if (decoderPool.size() < MAX_POOLED_DECODERS)
+                decoderPool.push(decoder);
+        }
     }
 }
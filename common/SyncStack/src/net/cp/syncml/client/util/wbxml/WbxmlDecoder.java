@@ -0,0 +1,590 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.util.wbxml;
+
+
+import java.io.*;
+
+
+/**
+ * A class providing a pull-style decoder of WBXML documents. <br/><br/>
+ *
+ * The decoder reads the document from the input stream in blocks and reports each token
+ * found in the document as an event when {@link #next()} is called. The decoder has been
+ * designed to create as little garbage as possible while parsing:
+ * <ul>
+ *      <li> Nested tags are tracked using a stack of integers rather than objects.
+ *      <li> In-line strings are made available via a reusable {@link WbxmlString} view and
+ *           a <code>String</code> is only created if explicitly requested.
+ *      <li> Opaque data is made available directly from the input buffer.
+ *      <li> String table references are reported as in-line strings using the same view.
+ * </ul>
+ *
+ * A decoder (and its buffers) can be reused to parse any number of documents by calling
+ * {@link #start(InputStream, int)} for each document. Note that the decoder may read more
+ * data from the input stream than is required to parse the document. <br/><br/>
+ *
+ * This decoder has the same limitations as {@link Wbxml#parse(InputStream, Codepage[])}.
+ *
+ * @author Denis Evoy
+ */
+public class WbxmlDecoder
+{
+    /** An event indicating that the end of the document has been reached. */
+    public static final int EVENT_END_DOCUMENT =    0;
+
+    /** An event indicating the start of a tag. See {@link #getTagId()} and {@link #hasContent()}. */
+    public static final int EVENT_TAG_START =       1;
+
+    /** An event indicating the end of a tag. See {@link #getTagId()}. */
+    public static final int EVENT_TAG_END =         2;
+
+    /** An event indicating in-line string data. See {@link #getString()}. */
+    public static final int EVENT_STRING =          3;
+
+    /** An event indicating the start of opaque data. See {@link #getOpaqueLength()}. */
+    public static final int EVENT_OPAQUE_BEGIN =    4;
+
+    /** An event indicating a block of opaque data. See {@link #getData()}, {@link #getDataOffset()} and {@link #getDataLength()}. */
+    public static final int EVENT_OPAQUE_DATA =     5;
+
+    /** An event indicating the end of opaque data. See {@link #isOpaqueComplete()}. */
+    public static final int EVENT_OPAQUE_END =      6;
+
+
+    //the default sizes of the buffers used while decoding
+    private static final int DEFAULT_BUFFER_SIZE =  4096;
+    private static final int DEFAULT_STRING_SIZE =  256;
+    private static final int DEFAULT_STACK_SIZE =   16;
+
+    //useful bit-masks
+    private static final int MASK_TAG_ELEMENT_ID =      0x3F;   //00111111 - reveals the identity of a tag (encoded in bits 0-5)
+    private static final int MASK_TAG_HAS_CONTENT =     0x40;   //01000000 - reveals whether or not a tag contains content (bit 6)
+    private static final int MASK_INT_DATA =            0x7F;   //01111111 - reveals the data part of a multi-byte integer (bits 0-6)
+    private static final int MASK_INT_CONTINUATION =    0x80;   //10000000 - reveals whether or not there is more data to read for a multi-byte integer (bit 7)
+    private static final int SHIFT_STACK_PAGE =         8;      //the number of bits that the codepage index is shifted by in a stack entry
+
+    //the states of the decoder
+    private static final int STATE_CONTENT =        0;          //reading tags and content
+    private static final int STATE_EMPTY_TAG =      1;          //a tag without content has been started and must be ended
+    private static final int STATE_OPAQUE =         2;          //reading opaque data
+    private static final int STATE_OPAQUE_FAILED =  3;          //opaque data was truncated
+    private static final int STATE_END =            4;          //the end of the document has been reached
+
+
+    private InputStream inputStream;        //the stream the document is being read from
+    private int pageCount;                  //the number of codepages that may be used by the document
+    private int currentPage;                //the index of the current codepage
+
+    private byte[] buffer;                  //the buffer containing data read from the stream
+    private int bufferPos;                  //the position of the next byte to read from the buffer
+    private int bufferLimit;                //the number of valid bytes in the buffer
+
+    private int[] tagStack;                 //the codepage index and ID of each open tag
+    private int tagDepth;                   //the number of open tags
+    private boolean popPending;             //indicates that the top tag should be removed before reading the next token
+
+    private int state;                      //the current state of the decoder
+    private boolean tagHasContent;          //indicates whether or not the current tag has content
+    private WbxmlString stringData;         //the current in-line string data
+    private long opaqueLength;              //the total length of the current opaque data
+    private long opaqueRemaining;           //the amount of opaque data still to be read
+    private int dataOffset;                 //the offset of the current block of opaque data in the buffer
+    private int dataLength;                 //the length of the current block of opaque data
+
+    private byte[] stringTable;             //the string table of the document
+    private int stringTableLength;          //the number of valid bytes in the string table
+
+
+    /**
+     * Creates a new decoder with buffers of the default size.
+     */
+    public WbxmlDecoder()
+    {
+        buffer = new byte[DEFAULT_BUFFER_SIZE];
+        tagStack = new int[DEFAULT_STACK_SIZE];
+        stringData = new WbxmlString(DEFAULT_STRING_SIZE);
+        stringTable = new byte[DEFAULT_STRING_SIZE];
+        state = STATE_END;
+    }
+
+
+    /**
+     * Starts decoding the WBXML document from the specified input stream. <br/><br/>
+     *
+     * The WBXML header is read and validated before this method returns.
+     *
+     * @param stream    the input stream to read the document from. Must not be null.
+     * @param pages     the number of codepages that the document may refer to. Must be positive.
+     * @throws WbxmlException if the WBXML header is invalid or unsupported.
+     * @throws IOException  if the input stream could not be read.
+     */
+    public void start(InputStream stream, int pages)
+        throws WbxmlException, IOException
+    {
+        if (stream == null)
+            throw new IllegalArgumentException("no input stream specified");
+        if (pages <= 0)
+            throw new IllegalArgumentException("invalid number of codepages specified: " + pages);
+
+        //reset the state
+        inputStream = stream;
+        pageCount = pages;
+        currentPage = 0;
+        bufferPos = 0;
+        bufferLimit = 0;
+        tagDepth = 0;
+        popPending = false;
+        state = STATE_CONTENT;
+        stringData.clear();
+        stringTableLength = 0;
+
+        //read the WBXML version and ensure it's v1.2
+        int wbxmlVersion = readByte();
+        if (wbxmlVersion != Wbxml.VERSION_1_2)
+            throw new WbxmlException("unsupported WBXML version: " + Integer.toHexString(wbxmlVersion));
+
+        //read the document public identifier
+        int docId = (int)readInt();
+        if (docId == 0)
+        {
+            //no document ID specified - instead, ID is given as an index into the string table - not used in SyncML so ignore
+            readInt();
+        }
+
+        //read the character set and ensure it's UTF8 (i.e. MIBenum code 106 as defined by IANA)
+        long charset = readInt();
+        if (charset != Wbxml.CHARSET_UTF8)
+            throw new WbxmlException("unsupported character encoding: " + charset);
+
+        //read the string table length and the string table itself so that references to it can be resolved
+        long stringTableLen = readInt();
+        if ( (stringTableLen < 0) || (stringTableLen > Integer.MAX_VALUE) )
+            throw new WbxmlException("invalid string table length: " + stringTableLen);
+
+        if (stringTable.length < stringTableLen)
+            stringTable = new byte[(int)stringTableLen];
+        while (stringTableLength < stringTableLen)
+        {
+            if ( (bufferPos >= bufferLimit) && (! fillBuffer()) )
+                throw new WbxmlException("unexpected end of stream while reading string table");
+
+            int copyLen = (int)Math.min(stringTableLen - stringTableLength, bufferLimit - bufferPos);
+            System.arraycopy(buffer, bufferPos, stringTable, stringTableLength, copyLen);
+            bufferPos += copyLen;
+            stringTableLength += copyLen;
+        }
+    }
+
+    /**
+     * Releases the input stream and any buffers that have grown unusually large while decoding. <br/><br/>
+     *
+     * The decoder can be reused by calling {@link #start(InputStream, int)}.
+     */
+    public void reset()
+    {
+        inputStream = null;
+        state = STATE_END;
+        tagDepth = 0;
+        popPending = false;
+
+        if (tagStack.length > (DEFAULT_STACK_SIZE * 4))
+            tagStack = new int[DEFAULT_STACK_SIZE];
+        stringData.trim(DEFAULT_BUFFER_SIZE);
+        if (stringTable.length > DEFAULT_BUFFER_SIZE)
+            stringTable = new byte[DEFAULT_STRING_SIZE];
+        stringTableLength = 0;
+    }
+
+
+    /**
+     * Reads the next token from the document and returns the associated event.
+     *
+     * @return The {@link #EVENT_TAG_START event} that was read.
+     * @throws WbxmlException if invalid data is found in the document.
+     * @throws IOException  if the input stream could not be read.
+     */
+    public int next()
+        throws WbxmlException, IOException
+    {
+        //remove the tag that was ended by the last event (if any)
+        if (popPending)
+        {
+            tagDepth--;
+            popPending = false;
+        }
+
+        if (state == STATE_EMPTY_TAG)
+        {
+            //tags without content are ended immediately
+            state = STATE_CONTENT;
+            popPending = true;
+            return EVENT_TAG_END;
+        }
+
+        if (state == STATE_OPAQUE)
+            return nextOpaqueData();
+
+        if (state == STATE_OPAQUE_FAILED)
+        {
+            state = STATE_END;
+            throw new IOException("unexpected end of stream while reading opaque data");
+        }
+
+        if (state == STATE_END)
+            return EVENT_END_DOCUMENT;
+
+        while (true)
+        {
+            //all static data has now been read - now read the rest of the document
+            if ( (bufferPos >= bufferLimit) && (! fillBuffer()) )
+            {
+                state = STATE_END;
+                return EVENT_END_DOCUMENT;
+            }
+
+            int data = buffer[bufferPos++] & 0xFF;
+            switch ((byte)data)
+            {
+                case Wbxml.TOKEN_SWITCH_PAGE:
+                {
+                    //codepage switch with page index following - read the index of the new codepage
+                    int pageIndex = readByte();
+                    if ( (pageIndex < 0) || (pageIndex >= pageCount) )
+                        throw new WbxmlException("invalid codepage switch found: " + pageIndex);
+
+                    //switch to the new codepage
+                    currentPage = pageIndex;
+                    break;
+                }
+                case Wbxml.TOKEN_END:
+                {
+                    //end of an element tag
+                    if (tagDepth <= 0)
+                        throw new WbxmlException("unexpected end tag found");
+
+                    popPending = true;
+                    return EVENT_TAG_END;
+                }
+                case Wbxml.TOKEN_INLINE_STRING:
+                {
+                    //in-line string with null-terminated string following
+                    checkInTag();
+                    readInlineString();
+                    return EVENT_STRING;
+                }
+                case Wbxml.TOKEN_OPAQUE_DATA:
+                {
+                    //opaque data with data length and actual data following
+                    checkInTag();
+                    opaqueLength = readInt();
+                    opaqueRemaining = opaqueLength;
+                    dataLength = 0;
+                    state = STATE_OPAQUE;
+                    return EVENT_OPAQUE_BEGIN;
+                }
+                case Wbxml.TOKEN_CHAR_ENTITY:
+                {
+                    //character entity with entity value following - ignore
+                    readInt();
+                    break;
+                }
+                case Wbxml.TOKEN_LITERAL:
+                {
+                    //unknown tag or attribute name with string table index following - ignore
+                    readInt();
+                    break;
+                }
+                case Wbxml.TOKEN_STR_TABLE_REF:
+                {
+                    //string table reference with string table offset following - report it as string data
+                    checkInTag();
+                    readTableString(readInt());
+                    return EVENT_STRING;
+                }
+                default:
+                {
+                    //a token referring to a tag in the current code-page - parse the token to determine the tag details
+                    int tagId = data & MASK_TAG_ELEMENT_ID;
+                    tagHasContent = ((data & MASK_TAG_HAS_CONTENT) != 0);
+
+                    //add it to the stack of tags
+                    pushTag((currentPage << SHIFT_STACK_PAGE) | tagId);
+
+                    if (! tagHasContent)
+                        state = STATE_EMPTY_TAG;
+
+                    return EVENT_TAG_START;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns the ID of the current tag. <br/><br/>
+     *
+     * For {@link #EVENT_TAG_START} and {@link #EVENT_TAG_END} events, this is the tag that was started
+     * or ended. For data events, this is the tag that the data belongs to.
+     *
+     * @return The ID of the current tag or 0 if there is no current tag.
+     */
+    public int getTagId()
+    {
+        return getAncestorId(-1);
+    }
+
+    /**
+     * Returns the index of the codepage that defines the current tag.
+     *
+     * @return The index of the codepage of the current tag or 0 if there is no current tag.
+     */
+    public int getCodepageIndex()
+    {
+        if (tagDepth <= 0)
+            return 0;
+
+        return (tagStack[tagDepth - 1] >>> SHIFT_STACK_PAGE);
+    }
+
+    /**
+     * Returns the ID of the tag which is the specified ancestor of the current tag.
+     *
+     * @param index the index of the ancestor whose ID should be returned (0 for the parent, 1 for the grandparent, etc).
+     * @return The ID of the ancestor tag or 0 if the tag has no such ancestor.
+     */
+    public int getAncestorId(int index)
+    {
+        int ancestorIndex = tagDepth - index - 2;
+        if ( (ancestorIndex < 0) || (ancestorIndex >= tagDepth) )
+            return 0;
+
+        return (tagStack[ancestorIndex] & MASK_TAG_ELEMENT_ID);
+    }
+
+    /**
+     * Returns the number of tags which are currently open (including the current tag).
+     *
+     * @return The current nesting level.
+     */
+    public int getDepth()
+    {
+        return tagDepth;
+    }
+
+    /**
+     * Returns whether or not the tag that was just started has content.
+     *
+     * @return <code>true</code> if the tag reported by the last {@link #EVENT_TAG_START} event contains content.
+     */
+    public boolean hasContent()
+    {
+        return tagHasContent;
+    }
+
+    /**
+     * Returns the in-line string data that was just read. <br/><br/>
+     *
+     * The same instance is reused for all string data, so its content is only valid until
+     * {@link #next()} is called again.
+     *
+     * @return The string data reported by the last {@link #EVENT_STRING} event.
+     */
+    public WbxmlString getString()
+    {
+        return stringData;
+    }
+
+    /**
+     * Returns the total length of the opaque data that is being read.
+     *
+     * @return The total size (in bytes) of the opaque data reported by the last {@link #EVENT_OPAQUE_BEGIN} event.
+     */
+    public long getOpaqueLength()
+    {
+        return opaqueLength;
+    }
+
+    /**
+     * Returns whether or not all opaque data was read successfully.
+     *
+     * @return <code>true</code> if all the opaque data was read or <code>false</code> if the stream ended prematurely.
+     */
+    public boolean isOpaqueComplete()
+    {
+        return (opaqueRemaining <= 0);
+    }
+
+    /**
+     * Returns the buffer containing the block of opaque data that was just read. <br/><br/>
+     *
+     * The buffer is reused and its content is only valid until {@link #next()} is called again.
+     *
+     * @return The buffer containing the data reported by the last {@link #EVENT_OPAQUE_DATA} event.
+     */
+    public byte[] getData()
+    {
+        return buffer;
+    }
+
+    /**
+     * Returns the offset of the block of opaque data that was just read.
+     *
+     * @return The offset of the data in the buffer returned by {@link #getData()}.
+     */
+    public int getDataOffset()
+    {
+        return dataOffset;
+    }
+
+    /**
+     * Returns the length of the block of opaque data that was just read.
+     *
+     * @return The number of bytes of data in the buffer returned by {@link #getData()}.
+     */
+    public int getDataLength()
+    {
+        return dataLength;
+    }
+
+
+    /* Returns the next block of opaque data (or the end of the data). */
+    private int nextOpaqueData()
+        throws IOException
+    {
+        if (opaqueRemaining <= 0)
+        {
+            state = STATE_CONTENT;
+            return EVENT_OPAQUE_END;
+        }
+
+        if ( (bufferPos >= bufferLimit) && (! fillBuffer()) )
+        {
+            //the stream ended prematurely - report the end of the data and fail on the next read
+            state = STATE_OPAQUE_FAILED;
+            return EVENT_OPAQUE_END;
+        }
+
+        //return as much of the data as is available in the buffer
+        dataOffset = bufferPos;
+        dataLength = (int)Math.min(opaqueRemaining, bufferLimit - bufferPos);
+        bufferPos += dataLength;
+        opaqueRemaining -= dataLength;
+        return EVENT_OPAQUE_DATA;
+    }
+
+    /* Reads a null-terminated in-line string into the string view. */
+    private void readInlineString()
+        throws IOException
+    {
+        stringData.clear();
+        while (true)
+        {
+            if ( (bufferPos >= bufferLimit) && (! fillBuffer()) )
+                throw new IOException("unexpected end of stream while reading string literal");
+
+            //look for the terminator in the buffered data
+            int end = bufferPos;
+            while ( (end < bufferLimit) && (buffer[end] != 0x00) )
+                end++;
+
+            stringData.append(buffer, bufferPos, end - bufferPos);
+            if (end < bufferLimit)
+            {
+                //skip the terminator
+                bufferPos = end + 1;
+                return;
+            }
+
+            bufferPos = end;
+        }
+    }
+
+    /* Sets the string view to the null-terminated string found at the specified offset of the string table. */
+    private void readTableString(long offset)
+        throws WbxmlException
+    {
+        if ( (offset < 0) || (offset >= stringTableLength) )
+            throw new WbxmlException("invalid string table reference found: " + offset);
+
+        //the string runs up to the terminator (or the end of the table if there is none)
+        int start = (int)offset;
+        int end = start;
+        while ( (end < stringTableLength) && (stringTable[end] != 0x00) )
+            end++;
+
+        stringData.set(stringTable, start, end - start);
+    }
+
+    /* Reads a single byte from the stream. */
+    private int readByte()
+        throws IOException
+    {
+        if ( (bufferPos >= bufferLimit) && (! fillBuffer()) )
+            throw new IOException("unexpected end of stream while reading byte data");
+
+        return buffer[bufferPos++] & 0xFF;
+    }
+
+    /* Reads a multi-byte integer from the stream. */
+    private long readInt()
+        throws IOException
+    {
+        long result = 0;
+        while (true)
+        {
+            if ( (bufferPos >= bufferLimit) && (! fillBuffer()) )
+                throw new IOException("unexpected end of stream while reading multi-byte integer");
+
+            //get the scalar value (i.e. bits 0-6) and append it to our result
+            int data = buffer[bufferPos++] & 0xFF;
+            result = (result << 7) | (data & MASK_INT_DATA);
+
+            //nothing more to do if the continuation bit (i.e. bit 7) is not set
+            if ((data & MASK_INT_CONTINUATION) == 0)
+                return result;
+        }
+    }
+
+    /* Refills the (empty) buffer from the stream. Returns FALSE if the end of the stream has been reached. */
+    private boolean fillBuffer()
+        throws IOException
+    {
+        bufferPos = 0;
+        bufferLimit = 0;
+
+        int readSize;
+        while ((readSize = inputStream.read(buffer, 0, buffer.length)) == 0)
+        {
+            //no data available yet - try again
+        }
+
+        if (readSize < 0)
+            return false;
+
+        bufferLimit = readSize;
+        return true;
+    }
+
+    /* Adds the specified entry to the tag stack, growing it if necessary. */
+    private void pushTag(int entry)
+    {
+        if (tagDepth >= tagStack.length)
+        {
+            int[] newStack = new int[tagStack.length * 2];
+            System.arraycopy(tagStack, 0, newStack, 0, tagDepth);
+            tagStack = newStack;
+        }
+
+        tagStack[tagDepth++] = entry;
+    }
+
+    /* Makes sure that there is a tag that data can belong to. */
+    private void checkInTag()
+        throws WbxmlException
+    {
+        if (tagDepth <= 0)
+            throw new WbxmlException("data found outside of a tag");
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.util.wbxml;
+
+
+/**
+ * A class providing a reusable view of the UTF-8 string data found in a WBXML document. <br/><br/>
+ *
+ * The same instance is used for every in-line string that is parsed, so the content of the
+ * view is only valid for the duration of the {@link Codepage#onStringData(int, WbxmlString)}
+ * callback. Codepages which need to retain the data should call {@link #toString()}, which
+ * creates (and caches) a <code>String</code> containing the decoded characters. Numeric
+ * content can be parsed directly from the raw bytes using {@link #parseInt()} or
+ * {@link #parseLong()} without creating a <code>String</code> at all.
+ *
+ * @see WbxmlDecoder
+ *
+ * @author Denis Evoy
+ */
+public class WbxmlString
+{
+    //the replacement character used for malformed UTF-8 sequences
+    private static final char CHAR_REPLACEMENT =    '\uFFFD';
+
+    private byte[] bytes;                   //the raw UTF-8 bytes of the string
+    private int byteCount;                  //the number of valid bytes
+    private char[] chars;                   //the decoded characters of the string
+    private int charCount;                  //the number of valid characters (or -1 if not decoded yet)
+    private String string;                  //the string created from the characters (if any)
+
+
+    /**
+     * Creates a new empty string view with the specified initial capacity.
+     *
+     * @param capacity the initial size (in bytes) of the buffer used to hold the string data. Must be positive.
+     */
+    public WbxmlString(int capacity)
+    {
+        bytes = new byte[capacity];
+        chars = new char[capacity];
+        clear();
+    }
+
+
+    /**
+     * Returns the buffer containing the raw UTF-8 bytes of the string. <br/><br/>
+     *
+     * Only the first {@link #getByteCount()} bytes of the buffer are valid. The buffer is
+     * reused and must not be modified or retained by the caller.
+     *
+     * @return The buffer containing the raw bytes of the string.
+     */
+    public byte[] getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of raw UTF-8 bytes in the string.
+     *
+     * @return The number of valid bytes in the buffer returned by {@link #getBytes()}.
+     */
+    public int getByteCount()
+    {
+        return byteCount;
+    }
+
+    /**
+     * Returns the buffer containing the decoded characters of the string. <br/><br/>
+     *
+     * Only the first {@link #getCharCount()} characters of the buffer are valid. The buffer is
+     * reused and must not be modified or retained by the caller.
+     *
+     * @return The buffer containing the characters of the string.
+     */
+    public char[] getChars()
+    {
+        decode();
+        return chars;
+    }
+
+    /**
+     * Returns the number of decoded characters in the string.
+     *
+     * @return The number of valid characters in the buffer returned by {@link #getChars()}.
+     */
+    public int getCharCount()
+    {
+        decode();
+        return charCount;
+    }
+
+    /**
+     * Returns whether or not the string is empty.
+     *
+     * @return <code>true</code> if the string contains no data.
+     */
+    public boolean isEmpty()
+    {
+        return (byteCount <= 0);
+    }
+
+
+    /**
+     * Parses the string as a signed decimal integer. <br/><br/>
+     *
+     * Leading and trailing white space is ignored.
+     *
+     * @return The integer value of the string.
+     * @throws NumberFormatException if the string doesn't contain a valid integer.
+     */
+    public int parseInt()
+        throws NumberFormatException
+    {
+        long value = parseLong();
+        if ( (value < Integer.MIN_VALUE) || (value > Integer.MAX_VALUE) )
+            throw new NumberFormatException(toString());
+
+        return (int)value;
+    }
+
+    /**
+     * Parses the string as a signed decimal long integer. <br/><br/>
+     *
+     * Leading and trailing white space is ignored.
+     *
+     * @return The long integer value of the string.
+     * @throws NumberFormatException if the string doesn't contain a valid long integer.
+     */
+    public long parseLong()
+        throws NumberFormatException
+    {
+        //skip any leading and trailing white space
+        int start = 0;
+        int end = byteCount;
+        while ( (start < end) && (bytes[start] <= ' ') && (bytes[start] >= 0) )
+            start++;
+        while ( (end > start) && (bytes[end - 1] <= ' ') && (bytes[end - 1] >= 0) )
+            end--;
+
+        //check for a sign
+        boolean negative = false;
+        if ( (start < end) && ((bytes[start] == '-') || (bytes[start] == '+')) )
+        {
+            negative = (bytes[start] == '-');
+            start++;
+        }
+
+        //there must be at least one digit and not more than will fit in a long
+        if ( (start >= end) || ((end - start) > 18) )
+            throw new NumberFormatException(toString());
+
+        long result = 0;
+        for (int i = start; i < end; i++)
+        {
+            int digit = bytes[i] - '0';
+            if ( (digit < 0) || (digit > 9) )
+                throw new NumberFormatException(toString());
+
+            result = (result * 10) + digit;
+        }
+
+        return (negative) ? -result : result;
+    }
+
+
+    /**
+     * Returns the string data as a <code>String</code>. <br/><br/>
+     *
+     * The <code>String</code> is only created the first time this method is called for the
+     * current string data - subsequent calls return the same instance.
+     *
+     * @return The string data. Will not be null.
+     */
+    public String toString()
+    {
+        if (string == null)
+        {
+            decode();
+            string = new String(chars, 0, charCount);
+        }
+
+        return string;
+    }
+
+
+    /* Removes all data from the string. */
+    void clear()
+    {
+        byteCount = 0;
+        charCount = -1;
+        string = null;
+    }
+
+    /* Appends the specified bytes to the string. */
+    void append(byte[] data, int offset, int length)
+    {
+        ensureCapacity(byteCount + length);
+        System.arraycopy(data, offset, bytes, byteCount, length);
+        byteCount += length;
+        charCount = -1;
+        string = null;
+    }
+
+    /* Sets the string to be the specified bytes. */
+    void set(byte[] data, int offset, int length)
+    {
+        clear();
+        append(data, offset, length);
+    }
+
+    /* Releases the buffers if they have grown larger than the specified size. */
+    void trim(int maxCapacity)
+    {
+        if (bytes.length > maxCapacity)
+            bytes = new byte[maxCapacity];
+        if (chars.length > maxCapacity)
+            chars = new char[maxCapacity];
+
+        clear();
+    }
+
+
+    /* Makes sure that the byte buffer can hold at least the specified number of bytes. */
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity <= bytes.length)
+            return;
+
+        int newCapacity = bytes.length * 2;
+        if (newCapacity < capacity)
+            newCapacity = capacity;
+
+        byte[] newBytes = new byte[newCapacity];
+        System.arraycopy(bytes, 0, newBytes, 0, byteCount);
+        bytes = newBytes;
+    }
+
+    /* Decodes the UTF-8 bytes into the character buffer (if not done already). */
+    private void decode()
+    {
+        if (charCount >= 0)
+            return;
+
+        //the number of characters can never exceed the number of bytes
+        if (chars.length < byteCount)
+            chars = new char[bytes.length];
+
+        int count = 0;
+        int i = 0;
+        while (i < byteCount)
+        {
+            int b = bytes[i++] & 0xFF;
+            if (b < 0x80)
+            {
+                //single byte (ASCII) character
+                chars[count++] = (char)b;
+                continue;
+            }
+
+            //determine the number of continuation bytes and the initial bits of the code point
+            int extra;
+            int codePoint;
+            if ( (b >= 0xC2) && (b <= 0xDF) )
+            {
+                extra = 1;
+                codePoint = b & 0x1F;
+            }
+            else if ( (b >= 0xE0) && (b <= 0xEF) )
+            {
+                extra = 2;
+                codePoint = b & 0x0F;
+            }
+            else if ( (b >= 0xF0) && (b <= 0xF4) )
+            {
+                extra = 3;
+                codePoint = b & 0x07;
+            }
+            else
+            {
+                //invalid leading byte
+                chars[count++] = CHAR_REPLACEMENT;
+                continue;
+            }
+
+            //read the continuation bytes
+            int j = 0;
+            for (; (j < extra) && (i < byteCount); j++, i++)
+            {
+                int c = bytes[i] & 0xFF;
+                if ((c & 0xC0) != 0x80)
+                    break;
+
+                codePoint = (codePoint << 6) | (c & 0x3F);
+            }
+
+            if ( (j < extra) || ((extra == 2) && (codePoint < 0x800)) || ((extra == 3) && ((codePoint < 0x10000) || (codePoint > 0x10FFFF))) )
+            {
+                //truncated or overlong sequence
+                chars[count++] = CHAR_REPLACEMENT;
+            }
+            else if (codePoint >= 0x10000)
+            {
+                //supplementary character - encode as a surrogate pair
+                codePoint -= 0x10000;
+                chars[count++] = (char)(0xD800 + (codePoint >> 10));
+                chars[count++] = (char)(0xDC00 + (codePoint & 0x3FF));
+            }
+            else
+            {
+                chars[count++] = (char)codePoint;
+            }
+        }
+
+        charCount = count;
+    }
+}
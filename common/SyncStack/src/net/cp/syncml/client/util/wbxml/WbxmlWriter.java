@@ -0,0 +1,500 @@
+/**
+ * Copyright  2004-2007 Critical Path, Inc. All Rights Reserved.
+ */
+package net.cp.syncml.client.util.wbxml;
+
+
+import java.io.*;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+
+/**
+ * A class providing WBXML encoding functionality which avoids creating temporary objects. <br/><br/>
+ *
+ * Unlike the static methods provided by {@link Wbxml}, a writer encodes multi-byte integers and
+ * UTF-8 strings into a scratch buffer which is reused for every call, and writes each token to
+ * the output stream in a single call. Opaque data can be written from any slice of an existing
+ * array so that the data doesn't need to be copied into an array of its own. <br/><br/>
+ *
+ * A writer can also (optionally) build a string table for each document it writes. When enabled
+ * using {@link #setStringTableEnabled(boolean)}, the writer counts how often each string is written
+ * and stores the strings that were repeated in one document in the string table of the next document
+ * written using {@link #writeHeader(OutputStream, int, int, String)}. Those strings are then encoded
+ * as string table references rather than in-line strings. As consecutive SyncML messages tend to
+ * repeat the same URIs, content types and IDs, this can considerably reduce the size of each message. <br/><br/>
+ *
+ * A writer is not thread safe but may be shared by any number of codepages which are writing to
+ * the same document.
+ *
+ * @see Codepage#setWriter(WbxmlWriter)
+ *
+ * @author Denis Evoy
+ */
+public class WbxmlWriter
+{
+    //the default size of the scratch buffer
+    private static final int DEFAULT_BUFFER_SIZE =      256;
+
+    //the maximum number of bytes needed to encode a multi-byte integer (64 bits in groups of 7)
+    private static final int MAX_INT_SIZE =             10;
+
+    //the limits used when building a string table
+    private static final int MIN_TABLE_STRING_LENGTH =  8;      //the minimum number of characters in a string worth storing in the table
+    private static final int MAX_TABLE_STRING_LENGTH =  256;    //the maximum number of characters in a string worth storing in the table
+    private static final int MAX_TABLE_SIZE =           2048;   //the maximum size (in bytes) of the string table
+    private static final int MAX_COUNTED_STRINGS =      128;    //the maximum number of different strings counted per document
+
+    //useful bit-masks
+    private static final int MASK_TAG_HAS_CONTENT =     0x40;   //01000000 - indicates that a tag contains content (bit 6)
+    private static final int MASK_TAG_HAS_ATTRS =       0x80;   //10000000 - indicates that a tag contains attributes (bit 7)
+    private static final int MASK_INT_DATA =            0x7F;   //01111111 - the data part of a multi-byte integer (bits 0-6)
+    private static final int MASK_INT_CONTINUATION =    0x80;   //10000000 - indicates that there is more data to read for a multi-byte integer (bit 7)
+
+
+    private byte[] buffer;                  //the scratch buffer used to encode data
+
+    private boolean tableEnabled;           //indicates whether or not a string table should be built
+    private Hashtable tableStrings;         //the offset and UTF-8 length of each string in the table of the current document (or null if there is no table)
+    private Hashtable stringCounts;         //the number of times each string was written in the current document
+    private byte[] tableBuffer;             //the buffer used to build the string table
+    private int tableRefCount;              //the number of string table references written
+    private long tableBytesSaved;           //the number of bytes saved by using string tables
+
+
+    /**
+     * Creates a new writer.
+     */
+    public WbxmlWriter()
+    {
+        buffer = new byte[DEFAULT_BUFFER_SIZE];
+        stringCounts = new Hashtable();
+    }
+
+
+    /**
+     * Sets whether or not a string table should be built for the documents written. <br/><br/>
+     *
+     * The change takes effect from the next call to {@link #writeHeader(OutputStream, int, int, String)}.
+     * String tables are disabled by default.
+     *
+     * @param enabled <code>true</code> if string tables should be used.
+     */
+    public void setStringTableEnabled(boolean enabled)
+    {
+        tableEnabled = enabled;
+        if (! enabled)
+            stringCounts.clear();
+    }
+
+    /**
+     * Returns whether or not a string table is built for the documents written.
+     *
+     * @return <code>true</code> if string tables are used.
+     */
+    public boolean isStringTableEnabled()
+    {
+        return tableEnabled;
+    }
+
+    /**
+     * Returns the number of string table references written so far.
+     *
+     * @return The total number of strings that were encoded as string table references.
+     */
+    public int getStringTableRefCount()
+    {
+        return tableRefCount;
+    }
+
+    /**
+     * Returns the number of bytes saved by using string tables so far. <br/><br/>
+     *
+     * This is the size of the in-line strings that were replaced with string table references, less
+     * the size of the references themselves and of the string table entries they refer to.
+     *
+     * @return The total number of bytes saved. May be negative if the string tables didn't pay for themselves.
+     */
+    public long getStringTableBytesSaved()
+    {
+        return tableBytesSaved;
+    }
+
+
+    /**
+     * Writes a WBXML header containing the specified information to the specified output stream. <br/><br/>
+     *
+     * If string tables are enabled, the string table written in the header contains the document
+     * ID as well as any strings that were repeated in the previous document written. Otherwise, the
+     * header is identical to that written by {@link Wbxml#writeHeader(OutputStream, int, int, String)}.
+     *
+     * @param outputStream  the stream to write the header to.
+     * @param version       the {@link Wbxml#VERSION_1_1 version number} to write.
+     * @param charset       the {@link Wbxml#CHARSET_UTF8 character set} to write. Must be UTF-8 if string tables are enabled.
+     * @param docId         the public identifier of the XML document being encoded. May be null or empty.
+     * @throws IOException if the header couldn't be written to the stream.
+     */
+    public void writeHeader(OutputStream outputStream, int version, int charset, String docId)
+        throws IOException
+    {
+        if (! tableEnabled)
+        {
+            tableStrings = null;
+            Wbxml.writeHeader(outputStream, version, charset, docId);
+            return;
+        }
+
+        //the document ID is always the first entry in the string table
+        if (tableBuffer == null)
+            tableBuffer = new byte[DEFAULT_BUFFER_SIZE];
+        int tableLength = 0;
+        if (docId != null)
+            tableLength = appendTableString(docId, 0);
+        tableBuffer[tableLength++] = 0x00;
+
+        //add the strings that were repeated in the previous document (as long as they fit)
+        if (tableStrings == null)
+            tableStrings = new Hashtable();
+        tableStrings.clear();
+        for (Enumeration e = stringCounts.keys(); e.hasMoreElements(); )
+        {
+            String string = (String)e.nextElement();
+            int[] count = (int[])stringCounts.get(string);
+            if (count[0] < 2)
+                continue;
+
+            int stringLen = string.length();
+            if ((tableLength + (stringLen * 3) + 1) > MAX_TABLE_SIZE)
+                continue;
+
+            int end = appendTableString(string, tableLength);
+            tableStrings.put(string, new int[] { tableLength, end - tableLength });
+            tableBytesSaved -= (end - tableLength + 1);
+
+            tableBuffer[end++] = 0x00;
+            tableLength = end;
+        }
+        stringCounts.clear();
+
+        //write the WBXML version and the document ID as an index into the string table
+        int pos = 0;
+        ensureCapacity(4 + (MAX_INT_SIZE * 2));
+        buffer[pos++] = (byte)version;
+        buffer[pos++] = 0x00;
+        buffer[pos++] = 0x00;
+
+        //write the character set and the string table
+        pos = encodeInt(charset, pos);
+        pos = encodeInt(tableLength, pos);
+        outputStream.write(buffer, 0, pos);
+        outputStream.write(tableBuffer, 0, tableLength);
+    }
+
+
+    /**
+     * Writes data that encodes the specified tag to the specified output stream.
+     *
+     * @param outputStream  the stream to write the tag to.
+     * @param tagId         the identity of the tag (as defined by some codepage).
+     * @param hasAttributes indicates whether or not the element has attributes.
+     * @param hasContent    indicates whether or not the element has content.
+     * @throws IOException if the tag couldn't be written to the stream.
+     */
+    public void writeTag(OutputStream outputStream, byte tagId, boolean hasAttributes, boolean hasContent)
+        throws IOException
+    {
+        outputStream.write(getTagToken(tagId, hasAttributes, hasContent));
+    }
+
+    /**
+     * Writes data that encodes the specified tag and string content to the specified output stream. <br/><br/>
+     *
+     * The start tag, the in-line string and the end tag are written to the stream in a single call.
+     *
+     * @param outputStream  the stream to write the tag to.
+     * @param tagId         the identity of the tag (as defined by some codepage).
+     * @param content       the content of the tag to write. Must not be null.
+     * @throws IOException if the tag couldn't be written to the stream.
+     */
+    public void writeTag(OutputStream outputStream, byte tagId, String content)
+        throws IOException
+    {
+        //use a reference to the string table if possible
+        int[] tableString = lookupString(content);
+        if (tableString != null)
+        {
+            int pos = 0;
+            buffer[pos++] = (byte)getTagToken(tagId, false, true);
+            pos = encodeTableRef(tableString, pos);
+            buffer[pos++] = Wbxml.TOKEN_END;
+
+            outputStream.write(buffer, 0, pos);
+            return;
+        }
+
+        //make sure there is enough room for the tag, the string (3 bytes per UTF-16 character at most) and the terminators
+        int contentLen = content.length();
+        ensureCapacity((contentLen * 3) + 4);
+
+        int pos = 0;
+        buffer[pos++] = (byte)getTagToken(tagId, false, true);
+        buffer[pos++] = Wbxml.TOKEN_INLINE_STRING;
+        pos = encodeString(content, contentLen, pos);
+        buffer[pos++] = 0x00;
+        buffer[pos++] = Wbxml.TOKEN_END;
+
+        outputStream.write(buffer, 0, pos);
+    }
+
+    /**
+     * Writes data that encodes the specified tag and binary content to the specified output stream.
+     *
+     * @param outputStream  the stream to write the tag to.
+     * @param tagId         the identity of the tag (as defined by some codepage).
+     * @param content       the buffer containing the content of the tag to write. Must not be null.
+     * @param offset        the offset of the content in the buffer.
+     * @param length        the number of bytes of content to write.
+     * @throws IOException if the tag couldn't be written to the stream.
+     */
+    public void writeTag(OutputStream outputStream, byte tagId, byte[] content, int offset, int length)
+        throws IOException
+    {
+        //write the start tag and the opaque data header together
+        int pos = 0;
+        buffer[pos++] = (byte)getTagToken(tagId, false, true);
+        buffer[pos++] = Wbxml.TOKEN_OPAQUE_DATA;
+        pos = encodeInt(length, pos);
+        outputStream.write(buffer, 0, pos);
+
+        //write the data itself straight from the caller's buffer
+        outputStream.write(content, offset, length);
+        outputStream.write(Wbxml.TOKEN_END);
+    }
+
+    /**
+     * Writes data that encodes the end of a tag to the specified output stream.
+     *
+     * @param outputStream  the stream to write the tag to.
+     * @throws IOException if the end tag couldn't be written to the stream.
+     */
+    public void writeTagEnd(OutputStream outputStream)
+        throws IOException
+    {
+        outputStream.write(Wbxml.TOKEN_END);
+    }
+
+
+    /**
+     * Writes the specified data to the specified output stream as a multi-byte integer.
+     *
+     * @param outputStream  the stream to write the data to.
+     * @param data          the data to write. Must be zero or positive.
+     * @throws IOException if the integer couldn't be written to the stream.
+     */
+    public void writeInt(OutputStream outputStream, long data)
+        throws IOException
+    {
+        outputStream.write(buffer, 0, encodeInt(data, 0));
+    }
+
+    /**
+     * Writes the specified string to the specified output stream as an in-line UTF-8 string.
+     *
+     * @param outputStream  the output stream that the string should be written to.
+     * @param string        the string to be written. Must not be null.
+     * @throws IOException if the string couldn't be written.
+     */
+    public void writeInlineString(OutputStream outputStream, String string)
+        throws IOException
+    {
+        //use a reference to the string table if possible
+        int[] tableString = lookupString(string);
+        if (tableString != null)
+        {
+            outputStream.write(buffer, 0, encodeTableRef(tableString, 0));
+            return;
+        }
+
+        int stringLen = string.length();
+        ensureCapacity((stringLen * 3) + 2);
+
+        int pos = 0;
+        buffer[pos++] = Wbxml.TOKEN_INLINE_STRING;
+        pos = encodeString(string, stringLen, pos);
+        buffer[pos++] = 0x00;
+
+        outputStream.write(buffer, 0, pos);
+    }
+
+
+    /**
+     * Begin writing the specified opaque data to the specified output stream. <br/><br/>
+     *
+     * This method should be followed by one or more calls to {@link #writeOpaqueData(OutputStream, byte[], int, int)}
+     * to write the actual data to the stream.
+     *
+     * @param outputStream  the output stream that the data should be written to.
+     * @param length        the total number of bytes of opaque data that will be written.
+     * @throws IOException if the data couldn't be written.
+     */
+    public void writeOpaqueDataBegin(OutputStream outputStream, long length)
+        throws IOException
+    {
+        buffer[0] = Wbxml.TOKEN_OPAQUE_DATA;
+        outputStream.write(buffer, 0, encodeInt(length, 1));
+    }
+
+    /**
+     * Writes the specified slice of opaque data to the specified output stream. <br/><br/>
+     *
+     * This method may be called multiple times (which is useful when dealing with large
+     * amounts of data). A call to this method must be preceded by a call to {@link #writeOpaqueDataBegin(OutputStream, long)}.
+     *
+     * @param outputStream  the output stream that the data should be written to.
+     * @param data          the buffer containing the data to be written.
+     * @param offset        the offset of the data in the buffer.
+     * @param length        the number of bytes that should be written.
+     * @throws IOException if the data couldn't be written.
+     */
+    public void writeOpaqueData(OutputStream outputStream, byte[] data, int offset, int length)
+        throws IOException
+    {
+        outputStream.write(data, offset, length);
+    }
+
+
+    /* Returns the token that encodes the specified tag. */
+    private static int getTagToken(byte tagId, boolean hasAttributes, boolean hasContent)
+    {
+        int token = tagId & 0xFF;
+        if (hasAttributes)
+            token |= MASK_TAG_HAS_ATTRS;
+        if (hasContent)
+            token |= MASK_TAG_HAS_CONTENT;
+
+        return token;
+    }
+
+    /* Counts the specified string and returns its offset and length in the string table (or null if it isn't in the table). */
+    private int[] lookupString(String string)
+    {
+        if (! tableEnabled)
+            return null;
+
+        int stringLen = string.length();
+        if ( (stringLen < MIN_TABLE_STRING_LENGTH) || (stringLen > MAX_TABLE_STRING_LENGTH) )
+            return null;
+
+        //count the string so that it can be added to the string table of the next document if it's repeated
+        int[] count = (int[])stringCounts.get(string);
+        if (count != null)
+            count[0]++;
+        else if (stringCounts.size() < MAX_COUNTED_STRINGS)
+            stringCounts.put(string, new int[] { 1 });
+
+        if (tableStrings == null)
+            return null;
+
+        return (int[])tableStrings.get(string);
+    }
+
+    /* Encodes a reference to the specified string table entry into the buffer at the specified position - returns the new position. */
+    private int encodeTableRef(int[] tableString, int pos)
+    {
+        ensureCapacity(pos + MAX_INT_SIZE + 2);
+
+        int start = pos;
+        buffer[pos++] = Wbxml.TOKEN_STR_TABLE_REF;
+        pos = encodeInt(tableString[0], pos);
+
+        //the in-line string would have needed a token, the string itself and a terminator
+        tableRefCount++;
+        tableBytesSaved += (tableString[1] + 2) - (pos - start);
+
+        return pos;
+    }
+
+    /* Encodes the specified string as UTF-8 into the string table buffer at the specified position - returns the new position. */
+    private int appendTableString(String string, int pos)
+    {
+        int stringLen = string.length();
+        ensureCapacity((stringLen * 3) + 1);
+        int end = encodeString(string, stringLen, 0);
+
+        //make sure there is room for the string and its terminator
+        if ((pos + end + 1) > tableBuffer.length)
+        {
+            byte[] newBuffer = new byte[Math.max(pos + end + 1, tableBuffer.length * 2)];
+            System.arraycopy(tableBuffer, 0, newBuffer, 0, pos);
+            tableBuffer = newBuffer;
+        }
+
+        System.arraycopy(buffer, 0, tableBuffer, pos, end);
+        return pos + end;
+    }
+
+    /* Encodes the specified data as a multi-byte integer into the buffer at the specified position - returns the new position. */
+    private int encodeInt(long data, int pos)
+    {
+        ensureCapacity(pos + MAX_INT_SIZE);
+
+        //determine the number of 7-bit groups needed (at least one, even for zero)
+        int groups = 1;
+        for (long remaining = (data >>> 7); remaining != 0; remaining = (remaining >>> 7))
+            groups++;
+
+        //write the groups with the most significant first, setting the continuation bit on all but the last
+        for (int i = groups - 1; i >= 0; i--)
+        {
+            int value = (int)((data >>> (i * 7)) & MASK_INT_DATA);
+            if (i > 0)
+                value |= MASK_INT_CONTINUATION;
+
+            buffer[pos++] = (byte)value;
+        }
+
+        return pos;
+    }
+
+    /* Encodes the specified string as UTF-8 into the buffer at the specified position - returns the new position. */
+    private int encodeString(String string, int length, int pos)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            int c = string.charAt(i);
+            if (c < 0x80)
+            {
+                buffer[pos++] = (byte)c;
+            }
+            else if (c < 0x800)
+            {
+                buffer[pos++] = (byte)(0xC0 | (c >> 6));
+                buffer[pos++] = (byte)(0x80 | (c & 0x3F));
+            }
+            else if ( (c >= 0xD800) && (c <= 0xDBFF) && ((i + 1) < length) && (string.charAt(i + 1) >= 0xDC00) && (string.charAt(i + 1) <= 0xDFFF) )
+            {
+                //surrogate pair - encode the supplementary character in 4 bytes
+                int codePoint = 0x10000 + ((c - 0xD800) << 10) + (string.charAt(++i) - 0xDC00);
+                buffer[pos++] = (byte)(0xF0 | (codePoint >> 18));
+                buffer[pos++] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[pos++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[pos++] = (byte)(0x80 | (codePoint & 0x3F));
+            }
+            else
+            {
+                buffer[pos++] = (byte)(0xE0 | (c >> 12));
+                buffer[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                buffer[pos++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+
+        return pos;
+    }
+
+    /* Makes sure that the scratch buffer can hold at least the specified number of bytes. */
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > buffer.length)
+            buffer = new byte[Math.max(capacity, buffer.length * 2)];
+    }
+}
@@ -4,11 +4,24 @@
 
 package net.cp.ac.core;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import net.cp.syncml.client.PreparableTransport;
+import net.cp.syncml.client.RedirectableTransport;
 import net.cp.syncml.client.SyncException;
 import net.cp.syncml.client.SyncML;
 import net.cp.syncml.client.Transport;
@@ -16,38 +29,89 @@ import net.cp.syncml.client.util.Logger;
 
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
 
 /**
  * A class implementing a HTTP transport for SyncML on Android.
  *
  * @author James O'Connor
  */
-public class HTTPTransport implements Transport {
+public class HTTPTransport implements PreparableTransport, RedirectableTransport {
     // defines the HTTP headers that we use
     public static final String HEADER_CONNECTION = "Connection";
     public static final String HEADER_CONTENT_TYPE = "Content-Type";
     public static final String HEADER_CONTENT_LENGTH = "Content-Length";
     public static final String HEADER_CONTENT_DISP = "Content-Disposition";
     public static final String HEADER_USER_AGENT = "User-Agent";
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    // defines the content encodings that we support
+    public static final String ENCODING_GZIP = "gzip";
+    public static final String ENCODING_DEFLATE = "deflate";
+
+    /** The default size (in bytes) below which messages aren't compressed. */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
+    // the time (in milliseconds) after which an idle persistent connection is closed rather than reused - most
+    // servers close idle connections after 15-30 seconds
+    private static final long CONNECTION_IDLE_TIMEOUT = 15000;
+
+    // the size of the buffer used when streaming messages to the server
+    private static final int STREAMING_BUFFER_SIZE = 8192;
 
     private final String server, urlpath;
+    private final HttpHost targetHost;
+    private final boolean secure;
     private String targetUrl;
+    private String responseUrl; // the URL to which the rest of the session's messages are sent (or null if they are sent to the target URL)
     private DefaultHttpClient httpClient;
     private final ByteArrayOutputStream outputStream;
 
     HttpParams httpParams;
     private HttpPost postRequest;
+    private HttpResponse postResponse;
     private final int maxMessageSize;
 
+    private long lastExchangeTime;
+    private int connectCount;
+    private int reuseCount;
+
+    private boolean streamingEnabled;
+    private boolean streamingVerified;
+    private StreamingRequest streamingRequest;
+
+    private Thread prepareThread;
+    private boolean routePrepared;
+
+    private boolean compressionEnabled;
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private String requestEncoding; // the encoding used to compress requests (or null if the server isn't known to support compression)
+    private long uncompressedBytesSent;
+    private long compressedBytesSent;
+    private long uncompressedBytesReceived;
+    private long compressedBytesReceived;
+    private long compressionTime;
+
     private Logger logger;
 
     private int connectionType;
@@ -78,7 +142,138 @@ public class HTTPTransport implements Transport {
      */
     public void setConnectionTimeout(int timeout) {
         connectionTimeout = timeout;
-        httpClient = null; // make sure we create a new client that uses the new timeout value
+        shutdown(); // make sure we create a new client that uses the new timeout value
+    }
+
+    /**
+     * Sets whether or not messages should be streamed to the server. <br/><br/>
+     *
+     * When enabled, the request is started as soon as the output stream is requested and the message is sent using chunked
+     * transfer encoding while it is being written, rather than being buffered until the input stream is requested. Until the
+     * server has accepted a chunked request, each message is also buffered so that it can be sent again with a Content-Length
+     * if the server rejects it, in which case streaming is disabled. Streaming is disabled by default.
+     *
+     * @param enabled true if messages should be streamed to the server.
+     */
+    public void setStreamingEnabled(boolean enabled) {
+        streamingEnabled = enabled;
+        streamingVerified = false;
+    }
+
+    /**
+     * Returns whether or not messages are streamed to the server.
+     *
+     * @return true if messages are streamed to the server.
+     */
+    public boolean isStreamingEnabled() {
+        return streamingEnabled;
+    }
+
+    /**
+     * Sets whether or not messages should be compressed. <br/><br/>
+     *
+     * When enabled, the server is told that compressed (gzip or deflate) responses are accepted and compressed responses
+     * are decompressed transparently. Once a response shows that the server supports compression, messages larger than
+     * the {@link #setCompressionThreshold(int) threshold} are also compressed before being sent (and are no longer
+     * {@link #setStreamingEnabled(boolean) streamed}, as their size must be known). Request compression is disabled again
+     * if the server rejects a compressed request. Compression is disabled by default.
+     *
+     * @param enabled true if messages should be compressed.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        compressionEnabled = enabled;
+        requestEncoding = null;
+    }
+
+    /**
+     * Returns whether or not messages are compressed.
+     *
+     * @return true if messages are compressed.
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Sets the size below which messages aren't compressed, as compressing tiny messages costs more than it saves.
+     *
+     * @param threshold the size (in bytes) below which messages aren't compressed.
+     */
+    public void setCompressionThreshold(int threshold) {
+        compressionThreshold = threshold;
+    }
+
+    /**
+     * Returns the size of the messages which were sent compressed, before they were compressed.
+     *
+     * @return the number of uncompressed bytes.
+     */
+    public long getUncompressedBytesSent() {
+        return uncompressedBytesSent;
+    }
+
+    /**
+     * Returns the size of the messages which were sent compressed, after they were compressed.
+     *
+     * @return the number of compressed bytes.
+     */
+    public long getCompressedBytesSent() {
+        return compressedBytesSent;
+    }
+
+    /**
+     * Returns the size of the compressed responses which were received, after they were decompressed.
+     *
+     * @return the number of uncompressed bytes.
+     */
+    public long getUncompressedBytesReceived() {
+        return uncompressedBytesReceived;
+    }
+
+    /**
+     * Returns the size of the compressed responses which were received, before they were decompressed.
+     *
+     * @return the number of compressed bytes.
+     */
+    public long getCompressedBytesReceived() {
+        return compressedBytesReceived;
+    }
+
+    /**
+     * Returns the time spent compressing messages and decompressing responses.
+     *
+     * @return the time in milliseconds.
+     */
+    public long getCompressionTime() {
+        return compressionTime / 1000000;
+    }
+
+    /**
+     * Returns the number of message exchanges which required a new connection to the server.
+     *
+     * @return the number of new connections.
+     */
+    public int getConnectCount() {
+        return connectCount;
+    }
+
+    /**
+     * Returns the number of message exchanges which reused the persistent connection to the server.
+     *
+     * @return the number of reused connections.
+     */
+    public int getReuseCount() {
+        return reuseCount;
+    }
+
+    /**
+     * Closes the persistent connection to the server (if any). A new connection is created for the next message exchange.
+     */
+    public void shutdown() {
+        awaitPreparation();
+        if (httpClient != null) httpClient.getConnectionManager().shutdown();
+
+        httpClient = null;
     }
 
     /**
@@ -119,6 +314,9 @@ public class HTTPTransport implements Transport {
         else
             targetUrl = "http://" + server + ":" + port + urlpath;
 
+        targetHost = new HttpHost(host, port, ssl ? "https" : "http");
+        secure = ssl;
+
         maxMessageSize = maxMsgSize;
 
         httpParams = new BasicHttpParams();
@@ -139,6 +337,26 @@ public class HTTPTransport implements Transport {
         return targetUrl;
     }
 
+    /*
+     * (non-Javadoc)
+     * @see net.cp.syncml.client.RedirectableTransport#setResponseURI(java.lang.String)
+     */
+    @Override
+    public void setResponseURI(String uri) {
+        // a relative URI refers to the same server as the target URL
+        if ((uri != null) && (uri.startsWith("/"))) uri = targetHost.toURI() + uri;
+
+        if (logger != null) logger.info("HTTPTransport: responseUrl " + uri);
+        responseUrl = uri;
+    }
+
+    /* Returns the URL to which the next message should be sent. */
+    private String getRequestUrl() {
+        if (responseUrl != null) return responseUrl;
+
+        return targetUrl;
+    }
+
     /*
      * (non-Javadoc)
      * @see net.cp.syncml.client.Transport#getMaxMsgSize()
@@ -153,81 +371,89 @@ public class HTTPTransport implements Transport {
         try {
             long start = System.currentTimeMillis();
 
-            if (logger != null) logger.info("HTTPTransport: start doing to POST targetUrl " + targetUrl);
-
-            // get whatever data we have buffered to send
-            byte[] outputData = outputStream.toByteArray();
-            if ((outputData == null) || (outputData.length <= 0)) throw new IllegalStateException("no data buffered to send");
-
-            // send it
-            postRequest = new HttpPost(targetUrl);
-            postRequest.setHeader("Content-Type", Transport.CONTENT_TYPE_WBXML);
-
-            postRequest.setEntity(new ByteArrayEntity(outputData));
-
-            long startCT = System.currentTimeMillis();
-
-            boolean success = AndroidConnectionState.setConnectionType(connectionType, server);
-
-            if (logger != null) logger.info("HTTPTransport: set connection time (time=" + (System.currentTimeMillis() - startCT) + ")");
-
-            if (!success) throw new IOException("Unable to set the connection type to: " + connectionType + " with server: " + server);
-
-            // try to reuse http connection if possible
-            if (httpClient == null) {
-
-                long startHttpClient = System.currentTimeMillis();
-
-                // set the timeout
-                if (connectionTimeout > 0) {
-                    HttpConnectionParams.setConnectionTimeout(httpParams, connectionTimeout);
-                    HttpConnectionParams.setSoTimeout(httpParams, connectionTimeout);
-
-                    // hacks
-                    // HttpConnectionParams.setStaleCheckingEnabled(httpParams, false);
-                    HttpProtocolParams.setVersion(httpParams, HttpVersion.HTTP_1_1);
-                    HttpProtocolParams.setUseExpectContinue(httpParams, false);
-
-                    // create the client with the params
-                    httpClient = new DefaultHttpClient(httpParams);
-
-                    // java.util.logging.Logger.getLogger("org.apache.http.wire").setLevel(java.util.logging.Level.FINEST);
-                    // java.util.logging.Logger.getLogger("org.apache.http.headers").setLevel(java.util.logging.Level.FINEST);
-                    //
-                    // System.setProperty("org.apache.commons.logging.Log", "org.apache.commons.logging.impl.SimpleLog");
-                    // System.setProperty("org.apache.commons.logging.simplelog.showdatetime", "true");
-                    // System.setProperty("org.apache.commons.logging.simplelog.log.httpclient.wire", "debug");
-                    // System.setProperty("org.apache.commons.logging.simplelog.log.org.apache.http", "debug");
-                    // System.setProperty("org.apache.commons.logging.simplelog.log.org.apache.http.headers", "debug");
-
-                    if (logger != null)
-                        logger.info("HTTPTransport: Creating HTTPClient with connectionTimeout=" + connectionTimeout + "(time="
-                                + (System.currentTimeMillis() - startHttpClient) + ")");
+            if (logger != null) logger.info("HTTPTransport: start doing to POST targetUrl " + getRequestUrl());
 
+            long startExecuting = System.currentTimeMillis();
+            HttpContext context = null;
+            HttpResponse response = null;
+            long size = 0;
+
+            // finish sending the streamed message (if any) and wait for the response
+            if (streamingRequest != null) {
+                StreamingRequest request = streamingRequest;
+                streamingRequest = null;
+                postRequest = request.request;
+
+                // make sure the server accepts chunked requests before relying on streaming - the buffered copy of the
+                // message is only sent if the server can't have received the streamed message
+                response = request.finish();
+                if (response != null) {
+                    streamingVerified = true;
+                    context = request.context;
+                    size = request.byteCount;
                 } else {
-                    httpClient = new DefaultHttpClient();
-
-                    if (logger != null)
-                        logger.info("HTTPTransport: Creating HTTPClient without connectionTimeout+  (time=" + (System.currentTimeMillis() - startHttpClient)
-                                + ")");
+                    // send the buffered copy of the message in the normal way from now on
+                    if (logger != null) logger.warn("HTTPTransport: streaming not supported by the server - using buffered messages");
+                    postRequest.abort();
+                    streamingEnabled = false;
                 }
             }
 
-            long startExecuting = System.currentTimeMillis();
+            if (response == null) {
+                // get whatever data we have buffered to send
+                byte[] outputData = outputStream.toByteArray();
+                if ((outputData == null) || (outputData.length <= 0)) throw new IllegalStateException("no data buffered to send");
+
+                // compress it if the server is known to accept compressed requests
+                String contentEncoding = null;
+                byte[] requestData = outputData;
+                if ((requestEncoding != null) && (outputData.length >= compressionThreshold)) {
+                    requestData = compress(outputData, requestEncoding);
+                    if (requestData != outputData) contentEncoding = requestEncoding;
+                }
+
+                // send it
+                postRequest = createRequest(requestData, contentEncoding);
+                prepareClient();
+
+                startExecuting = System.currentTimeMillis();
+
+                // execute the request
+                context = new BasicHttpContext();
+                response = httpClient.execute(postRequest, context);
+
+                // send the message again without compression if the server doesn't accept the compressed request after all
+                if ((contentEncoding != null) && (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE)) {
+                    if (logger != null) logger.warn("HTTPTransport: server rejected compressed request - disabling request compression");
+                    requestEncoding = null;
+                    postRequest.abort();
+                    requestData = outputData;
+                    postRequest = createRequest(requestData, null);
+                    context = new BasicHttpContext();
+                    response = httpClient.execute(postRequest, context);
+                }
+                size = requestData.length;
+                requestData = null;
+                outputData = null;
+            }
+            postResponse = response;
 
-            // execute the request
-            HttpResponse response = httpClient.execute(postRequest);
+            // keep track of whether the persistent connection was reused (i.e. it has carried more than one request)
+            HttpConnection connection = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+            boolean reused = ((connection != null) && (connection.getMetrics().getRequestCount() > 1));
+            if (reused)
+                reuseCount++;
+            else
+                connectCount++;
+            if (logger != null) logger.info("HTTPTransport: " + (reused ? "reused" : "opened") + " connection (connects=" + connectCount + ", reuses=" + reuseCount + ")");
 
             if (logger != null) {
                 long time = (System.currentTimeMillis() - startExecuting);
-                long size = outputData.length;
                 long speed = size > 0 && time > 1000 ? (size / 1024) / (time / 1000) : -1;
-                logger.info("HTTPTransport: executing POST (time=" + time + ") - size=" + outputData.length + " - speed= "
+                logger.info("HTTPTransport: executing POST (time=" + time + ") - size=" + size + " - speed= "
                         + (speed != -1 ? speed + "kps" : "NaN"));
             }
 
-            outputData = null;
-
             // check the response
 
             int requestStatus = response.getStatusLine().getStatusCode();
@@ -236,12 +462,12 @@ public class HTTPTransport implements Transport {
 
             long startInput = System.currentTimeMillis();
 
-            InputStream stream = response.getEntity().getContent();
+            InputStream stream = decodeResponse(response);
 
             if (logger != null) logger.info("HTTPTransport: getting Input POST (time=" + (System.currentTimeMillis() - startInput) + ")");
 
             if (logger != null)
-                logger.info("HTTPTransport: end doing POST to targetUrl " + targetUrl + " (time=" + (System.currentTimeMillis() - start) + ")");
+                logger.info("HTTPTransport: end doing POST to targetUrl " + getRequestUrl() + " (time=" + (System.currentTimeMillis() - start) + ")");
 
             return stream;
         } catch (Throwable e) {
@@ -266,8 +492,15 @@ public class HTTPTransport implements Transport {
     public OutputStream getOutputStream() throws IOException {
         // buffer all output until an input stream is required
         outputStream.reset();
+        if ((!streamingEnabled) || (requestEncoding != null)) return outputStream;
+
+        // start sending the message while it's being written - the message is also buffered until the server
+        // has been seen to accept chunked requests, so that it can be sent again in the normal way if necessary
+        prepareClient();
+        streamingRequest = new StreamingRequest(streamingVerified ? null : outputStream);
+        streamingRequest.start();
 
-        return outputStream;
+        return streamingRequest.output;
     }
 
     /*
@@ -302,8 +535,223 @@ public class HTTPTransport implements Transport {
      */
     @Override
     public void cleanup() {
+        lastExchangeTime = System.currentTimeMillis();
+
+        // abandon any message which was being streamed but was never completed
+        if (streamingRequest != null) {
+            streamingRequest.cancel();
+            streamingRequest = null;
+        }
+
+        // consume the rest of the response so that the connection can be reused for the next message exchange
+        if ((postResponse != null) && (!abort_sync)) {
+            try {
+                HttpEntity entity = postResponse.getEntity();
+                if (entity != null) entity.consumeContent();
+                postResponse = null;
+                return;
+            } catch (IOException e) {
+                if (logger != null) logger.warn("HTTPTransport: failed to consume the response - closing the connection");
+            }
+        }
+
+        // the connection can't be reused
+        postResponse = null;
         if (postRequest != null) postRequest.abort();
+    }
 
+    /*
+     * (non-Javadoc)
+     * @see net.cp.syncml.client.PreparableTransport#prepare()
+     */
+    @Override
+    public void prepare() {
+        if ((prepareThread != null) && (prepareThread.isAlive())) return;
+
+        // select the route and open the connection in the background while the session is initializing
+        prepareThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+
+                    selectRoute();
+                    routePrepared = true;
+                    createClient();
+                    openConnection();
+
+                    if (logger != null) logger.info("HTTPTransport: prepared connection to " + server + " (time=" + (System.currentTimeMillis() - start) + ")");
+                } catch (Throwable e) {
+                    if (logger != null) logger.error("HTTPTransport: failed to prepare connection - connecting when the first message is sent", e);
+                }
+            }
+        };
+        prepareThread.start();
+    }
+
+    /* Waits until the connection being prepared in advance (if any) is ready. */
+    private void awaitPreparation() {
+        Thread thread = prepareThread;
+        if (thread == null) return;
+
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+        prepareThread = null;
+    }
+
+    /* Opens a connection to the server and returns it to the connection pool, ready to be used by the first request. */
+    private void openConnection() throws IOException, InterruptedException {
+        ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+        HttpRoute route = new HttpRoute(targetHost, null, secure);
+        ManagedClientConnection connection = connectionManager.requestConnection(route, null).getConnection(connectionTimeout, TimeUnit.MILLISECONDS);
+        try {
+            if (!connection.isOpen()) connection.open(route, new BasicHttpContext(), httpClient.getParams());
+            connection.markReusable();
+        } finally {
+            connectionManager.releaseConnection(connection, CONNECTION_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        // make sure the connection isn't considered idle when the first message is sent
+        lastExchangeTime = System.currentTimeMillis();
+    }
+
+    /* Selects the route to the server and creates the HTTP client (if necessary) ready for the next request. */
+    private void prepareClient() throws IOException {
+        // the route may already have been selected when the connection was prepared
+        awaitPreparation();
+        if (routePrepared)
+            routePrepared = false;
+        else
+            selectRoute();
+
+        createClient();
+
+        // don't reuse a persistent connection which has been idle for too long as the server has probably closed it
+        httpClient.getConnectionManager().closeExpiredConnections();
+        if ((lastExchangeTime > 0) && ((System.currentTimeMillis() - lastExchangeTime) > CONNECTION_IDLE_TIMEOUT)) {
+            if (logger != null) logger.info("HTTPTransport: closing idle connection");
+            httpClient.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /* Selects the network route to the server according to the connection type. */
+    private void selectRoute() throws IOException {
+        long startCT = System.currentTimeMillis();
+
+        boolean success = AndroidConnectionState.setConnectionType(connectionType, server);
+
+        if (logger != null) logger.info("HTTPTransport: set connection time (time=" + (System.currentTimeMillis() - startCT) + ")");
+
+        if (!success) throw new IOException("Unable to set the connection type to: " + connectionType + " with server: " + server);
+    }
+
+    /* Creates the HTTP client (if necessary) - the same client is used for all requests so that its persistent connection can be reused. */
+    private void createClient() {
+        if (httpClient == null) {
+
+            long startHttpClient = System.currentTimeMillis();
+
+            // check that a persistent connection hasn't been closed by the server before reusing it - this
+            // applies whether or not a timeout is set, as the connection is always kept alive
+            HttpConnectionParams.setStaleCheckingEnabled(httpParams, true);
+            HttpProtocolParams.setVersion(httpParams, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setUseExpectContinue(httpParams, false);
+
+            // set the timeout
+            if (connectionTimeout > 0) {
+                HttpConnectionParams.setConnectionTimeout(httpParams, connectionTimeout);
+                HttpConnectionParams.setSoTimeout(httpParams, connectionTimeout);
+
+                // create the client with the params
+                httpClient = new DefaultHttpClient(httpParams);
+
+                // java.util.logging.Logger.getLogger("org.apache.http.wire").setLevel(java.util.logging.Level.FINEST);
+                // java.util.logging.Logger.getLogger("org.apache.http.headers").setLevel(java.util.logging.Level.FINEST);
+                //
+                // System.setProperty("org.apache.commons.logging.Log", "org.apache.commons.logging.impl.SimpleLog");
+                // System.setProperty("org.apache.commons.logging.simplelog.showdatetime", "true");
+                // System.setProperty("org.apache.commons.logging.simplelog.log.httpclient.wire", "debug");
+                // System.setProperty("org.apache.commons.logging.simplelog.log.org.apache.http", "debug");
+                // System.setProperty("org.apache.commons.logging.simplelog.log.org.apache.http.headers", "debug");
+
+                if (logger != null)
+                    logger.info("HTTPTransport: Creating HTTPClient with connectionTimeout=" + connectionTimeout + "(time="
+                            + (System.currentTimeMillis() - startHttpClient) + ")");
+
+            } else {
+                httpClient = new DefaultHttpClient(httpParams);
+
+                if (logger != null)
+                    logger.info("HTTPTransport: Creating HTTPClient without connectionTimeout+  (time=" + (System.currentTimeMillis() - startHttpClient)
+                            + ")");
+            }
+        }
+    }
+
+    /* Creates a POST request carrying the specified message which has been compressed using the specified content encoding (if any). */
+    private HttpPost createRequest(byte[] outputData, String contentEncoding) {
+        HttpPost request = new HttpPost(getRequestUrl());
+        request.setHeader("Content-Type", Transport.CONTENT_TYPE_WBXML);
+        if (compressionEnabled) request.setHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP + ", " + ENCODING_DEFLATE);
+        if (contentEncoding != null) request.setHeader(HEADER_CONTENT_ENCODING, contentEncoding);
+        request.setEntity(new ByteArrayEntity(outputData));
+
+        return request;
+    }
+
+    /* Returns the specified message compressed using the specified content encoding, or the message itself if compression doesn't make it smaller. */
+    private byte[] compress(byte[] data, String contentEncoding) throws IOException {
+        long start = System.nanoTime();
+
+        ByteArrayOutputStream compressedStream = new ByteArrayOutputStream(data.length / 2);
+        DeflaterOutputStream deflaterStream;
+        if (ENCODING_GZIP.equals(contentEncoding))
+            deflaterStream = new GZIPOutputStream(compressedStream);
+        else
+            deflaterStream = new DeflaterOutputStream(compressedStream);
+        deflaterStream.write(data);
+        deflaterStream.close();
+        byte[] compressedData = compressedStream.toByteArray();
+
+        compressionTime += (System.nanoTime() - start);
+        if (compressedData.length >= data.length) return data;
+
+        uncompressedBytesSent += data.length;
+        compressedBytesSent += compressedData.length;
+        if (logger != null) logger.info("HTTPTransport: compressed message from " + data.length + " to " + compressedData.length + " bytes");
+
+        return compressedData;
+    }
+
+    /* Returns a stream from which the (decompressed) content of the specified response can be read. */
+    private InputStream decodeResponse(HttpResponse response) throws IOException {
+        InputStream content = response.getEntity().getContent();
+        if (!compressionEnabled) return content;
+
+        String contentEncoding = null;
+        Header encodingHeader = response.getFirstHeader(HEADER_CONTENT_ENCODING);
+        if (encodingHeader != null) contentEncoding = encodingHeader.getValue().trim().toLowerCase();
+
+        // the server supports compression, so compress requests from now on
+        if (requestEncoding == null) {
+            Header acceptHeader = response.getFirstHeader(HEADER_ACCEPT_ENCODING);
+            String acceptEncoding = (acceptHeader != null) ? acceptHeader.getValue().toLowerCase() : "";
+            if ((ENCODING_GZIP.equals(contentEncoding)) || (acceptEncoding.indexOf(ENCODING_GZIP) >= 0))
+                requestEncoding = ENCODING_GZIP;
+            else if ((ENCODING_DEFLATE.equals(contentEncoding)) || (acceptEncoding.indexOf(ENCODING_DEFLATE) >= 0))
+                requestEncoding = ENCODING_DEFLATE;
+            if ((requestEncoding != null) && (logger != null)) logger.info("HTTPTransport: server supports '" + requestEncoding + "' compression");
+        }
+
+        if (ENCODING_GZIP.equals(contentEncoding)) return new DecompressingInputStream(content, true);
+        if (ENCODING_DEFLATE.equals(contentEncoding)) return new DecompressingInputStream(content, false);
+
+        return content;
     }
 
     /**
@@ -313,4 +761,303 @@ public class HTTPTransport implements Transport {
         abort_sync = true;
     }
 
+    /* Returns whether or not the specified status code indicates that the server doesn't accept chunked requests. */
+    private static boolean isStreamingRejected(int statusCode) {
+        return ((statusCode == HttpStatus.SC_LENGTH_REQUIRED) || (statusCode == HttpStatus.SC_NOT_IMPLEMENTED)
+                || (statusCode == HttpStatus.SC_HTTP_VERSION_NOT_SUPPORTED));
+    }
+
+    /**
+     * A thread which sends a message to the server using chunked transfer encoding while the message is being written.
+     */
+    private class StreamingRequest extends Thread {
+        private final DefaultHttpClient client;
+        private final HttpPost request;
+        private final HttpContext context;
+        private final PipedInputStream pipeInput;
+        private final OutputStream output;
+        private long byteCount;
+
+        private boolean messageRead; // whether or not the HTTP client has read the whole message
+
+        private HttpResponse response;
+        private Throwable error;
+        private IOException pipeError;
+
+        /**
+         * @param copyStream the stream to which a copy of the message should be written, or null if no copy is needed
+         */
+        private StreamingRequest(final ByteArrayOutputStream copyStream) throws IOException {
+            client = httpClient;
+            context = new BasicHttpContext();
+
+            pipeInput = new PipedInputStream(STREAMING_BUFFER_SIZE);
+            final PipedOutputStream pipeOutput = new PipedOutputStream(pipeInput);
+            OutputStream teeOutput = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    // the copy is written first so that the whole message can still be resent if the server rejects the stream early
+                    if (copyStream != null) copyStream.write(b, off, len);
+                    byteCount += len;
+                    if (pipeError != null) return;
+
+                    try {
+                        pipeOutput.write(b, off, len);
+                    } catch (IOException e) {
+                        // until streaming has been confirmed, keep buffering the copy and report the failure when the message ends
+                        if (copyStream == null) throw e;
+                        pipeError = e;
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        pipeOutput.close();
+                    } catch (IOException e) {
+                        if (copyStream == null) throw e;
+                        if (pipeError == null) pipeError = e;
+                    }
+                }
+            };
+            output = new BufferedOutputStream(teeOutput, STREAMING_BUFFER_SIZE);
+
+            // a negative content length results in chunked transfer encoding
+            request = new HttpPost(getRequestUrl());
+            request.setHeader("Content-Type", Transport.CONTENT_TYPE_WBXML);
+            if (compressionEnabled) request.setHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP + ", " + ENCODING_DEFLATE);
+            InputStream messageInput = new FilterInputStream(pipeInput) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b < 0) messageRead = true;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int count = super.read(b, off, len);
+                    if (count < 0) messageRead = true;
+                    return count;
+                }
+            };
+            request.setEntity(new InputStreamEntity(messageInput, -1));
+        }
+
+        @Override
+        public void run() {
+            try {
+                response = client.execute(request, context);
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                // make sure the writer doesn't block if the request failed
+                try {
+                    pipeInput.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        /*
+         * Ends the message and waits for the response from the server. Returns null if the server didn't accept the chunked
+         * request and can't have received the whole message, so the buffered copy of the message should be sent instead.
+         */
+        private HttpResponse finish() throws Throwable {
+            IOException closeError = null;
+            try {
+                output.close();
+            } catch (IOException e) {
+                // the request has probably failed - the cause is reported below
+                closeError = e;
+            }
+
+            while (isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            if (error != null) {
+                // any failure after the whole message was sent is reported as it is - the server may already have processed
+                // the message, so it mustn't be sent again (the session is suspended and resumed instead)
+                if ((streamingVerified) || (messageRead)) throw error;
+
+                if (logger != null) logger.error("HTTPTransport: failed to stream message to the server", error);
+                return null;
+            }
+
+            // the server may have rejected the chunked request before the whole message was written
+            int statusCode = response.getStatusLine().getStatusCode();
+            if ((!streamingVerified) && (isStreamingRejected(statusCode))) {
+                if (logger != null) logger.warn("HTTPTransport: server rejected chunked request (status=" + statusCode + ")");
+                return null;
+            }
+            if (closeError != null) throw closeError;
+            if (pipeError != null) throw pipeError;
+
+            return response;
+        }
+
+        /* Abandons the request. */
+        private void cancel() {
+            request.abort();
+            try {
+                pipeInput.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * An input stream which decompresses a response and keeps track of the amount of data and time involved.
+     */
+    private class DecompressingInputStream extends InputStream {
+        private final InputStream compressedInput;
+        private final Inflater inflater;
+        private final CRC32 crc;
+        private final byte[] compressedBuffer;
+        private int compressedPos;
+        private int compressedLength;
+        private boolean finished;
+
+        private DecompressingInputStream(InputStream content, boolean gzip) throws IOException {
+            compressedInput = content;
+            compressedBuffer = new byte[STREAMING_BUFFER_SIZE];
+
+            // gzip wraps raw deflate data in a header and trailer, which are handled here
+            inflater = new Inflater(gzip);
+            crc = gzip ? new CRC32() : null;
+            if (gzip) readGzipHeader();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] data = new byte[1];
+            if (read(data, 0, 1) <= 0) return -1;
+
+            return (data[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length <= 0) return 0;
+
+            while (!finished) {
+                if (inflater.needsInput()) {
+                    fillBuffer();
+                    inflater.setInput(compressedBuffer, 0, compressedLength);
+                }
+
+                // only the decompression itself is timed, not the time spent waiting for the data to arrive
+                int count;
+                long start = System.nanoTime();
+                try {
+                    count = inflater.inflate(buffer, offset, length);
+                } catch (DataFormatException e) {
+                    throw new IOException("invalid compressed response: " + e.getMessage());
+                } finally {
+                    compressionTime += (System.nanoTime() - start);
+                }
+
+                if (count > 0) {
+                    if (crc != null) crc.update(buffer, offset, count);
+                    uncompressedBytesReceived += count;
+                }
+
+                if (inflater.finished()) {
+                    finished = true;
+                    compressedPos = compressedLength - inflater.getRemaining();
+                    if (crc != null) readGzipTrailer();
+                } else if (inflater.needsDictionary()) {
+                    throw new IOException("compressed response requires a preset dictionary");
+                }
+
+                if (count > 0) return count;
+            }
+
+            return -1;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            compressedInput.close();
+        }
+
+        /* Reads the next block of compressed data into the buffer. */
+        private void fillBuffer() throws IOException {
+            int count = compressedInput.read(compressedBuffer, 0, compressedBuffer.length);
+            if (count < 0) throw new EOFException("unexpected end of compressed response");
+
+            compressedBytesReceived += count;
+            compressedPos = 0;
+            compressedLength = count;
+        }
+
+        /* Reads the next byte of compressed data which isn't part of the deflate data. */
+        private int readByte() throws IOException {
+            while (compressedPos >= compressedLength)
+                fillBuffer();
+
+            return (compressedBuffer[compressedPos++] & 0xFF);
+        }
+
+        /* Reads a little-endian integer of the specified number of bytes which isn't part of the deflate data. */
+        private long readNumber(int byteCount) throws IOException {
+            long value = 0;
+            for (int i = 0; i < byteCount; i++)
+                value |= ((long) readByte() << (i * 8));
+
+            return value;
+        }
+
+        /* Reads the gzip header which precedes the deflate data. */
+        private void readGzipHeader() throws IOException {
+            if (readNumber(2) != 0x8B1F) throw new IOException("compressed response isn't in gzip format");
+            if (readByte() != 8) throw new IOException("unsupported gzip compression method");
+
+            // skip the modification time, extra flags and OS, and any optional fields
+            int flags = readByte();
+            readNumber(6);
+            if ((flags & 0x04) != 0) readNumber((int) readNumber(2));
+            if ((flags & 0x08) != 0) skipString();
+            if ((flags & 0x10) != 0) skipString();
+            if ((flags & 0x02) != 0) readNumber(2);
+
+            // the rest of the buffer holds the start of the deflate data
+            int remaining = compressedLength - compressedPos;
+            System.arraycopy(compressedBuffer, compressedPos, compressedBuffer, 0, remaining);
+            compressedPos = 0;
+            compressedLength = remaining;
+            inflater.setInput(compressedBuffer, 0, compressedLength);
+        }
+
+        /* Skips a zero-terminated string in the gzip header. */
+        private void skipString() throws IOException {
+            while (readByte() != 0) {
+                // skip the character
+            }
+        }
+
+        /* Reads and checks the gzip trailer which follows the deflate data. */
+        private void readGzipTrailer() throws IOException {
+            if (readNumber(4) != crc.getValue()) throw new IOException("corrupt gzip response (CRC mismatch)");
+            if (readNumber(4) != (inflater.getBytesWritten() & 0xFFFFFFFFL)) throw new IOException("corrupt gzip response (size mismatch)");
+        }
+    }
 }
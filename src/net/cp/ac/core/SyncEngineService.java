@@ -11,6 +11,7 @@ import net.cp.ac.test.logic.DefaultBusinessLogic;
 import net.cp.ac.ui.UICallbackInterface;
 import net.cp.engine.ConnectionState;
 import net.cp.engine.EngineSettings;
+import net.cp.engine.FileDataSpool;
 import net.cp.engine.MobileDevice;
 import net.cp.engine.StatusCodes;
 import net.cp.engine.SyncError;
@@ -22,6 +23,7 @@ import net.cp.syncml.client.SyncException;
 import net.cp.syncml.client.SyncListener;
 import net.cp.syncml.client.SyncML;
 import net.cp.syncml.client.SyncManager;
+import net.cp.syncml.client.SyncMetrics;
 import net.cp.syncml.client.store.RecordStore;
 import net.cp.syncml.client.util.ConsumableStack;
 import net.cp.syncml.client.util.Logger;
@@ -43,6 +45,9 @@ import android.util.Log;
  *
  */
 public class SyncEngineService extends Service implements UIInterface, SyncListener {
+    // the largest message size used on fast connections
+    private static final int ADAPTIVE_MAX_MSG_SIZE = 64 * 1024;
+
     private final SyncEngineBinder binder = new SyncEngineBinder(this);
     private EngineSettings settings;
     private Logger logger;
@@ -56,6 +61,7 @@ public class SyncEngineService extends Service implements UIInterface, SyncListe
     private boolean initialized;
     private AndroidPersistentStoreManager storeManager;
     private SyncProgress lastSyncProgress;
+    private SyncMetrics lastSyncMetrics;
     private SyncProgress currentSyncProgress;
     private BusinessLogic businessLogic;
     private SisHandler sisHandler;
@@ -315,10 +321,13 @@ public class SyncEngineService extends Service implements UIInterface, SyncListe
                 transport.setLogger(logger);
                 transport.setConnectionTimeout(settings.httpConnectionTimeout);
                 transport.setConnectionType(connectionType);
+                transport.setStreamingEnabled(true);
+                transport.setCompressionEnabled(true);
 
                 // create the record stores to sync
                 if (contactStore == null && settings.isFlagSet(syncMediaTypes, EngineSettings.MEDIA_TYPE_CONTACTS)) {
                     contactStore = new ContactStore(settings, this, logger);
+                    contactStore.setDataSpool(new FileDataSpool(getCacheDir(), "contact_data.spool"));
                     AndroidContactList contactList = AndroidContactList.getInstance(contactStore, getContentResolver(), this, logger);
                     contactStore.initialize(contactList);
                 }
@@ -344,7 +353,33 @@ public class SyncEngineService extends Service implements UIInterface, SyncListe
 
                 // create the sync manager and start the sync
                 syncManager = new SyncManager(device, transport, settings.userName, password, this, logger);
-                syncManager.startSync(stores, sessionID);
+
+                // save checkpoints of the session so that it can be resumed even if the application is terminated
+                if (settings.suspendResumeAllowed) syncManager.setCheckpointSpool(new FileDataSpool(getFilesDir(), "session.checkpoint"));
+
+                // encode the contacts to be sent while the previous message is waiting for the server - a single thread is
+                // used as the contact state manager serializes access to the contacts anyway
+                syncManager.setRecordPrefetch(1, SyncManager.DEFAULT_PREFETCH_LIMIT);
+
+                // check the contacts for changes while the server is processing the initialization package
+                syncManager.setEarlyChangeDetection(true);
+
+                // fill each message with contacts rather than splitting a contact that doesn't fit into chunks
+                syncManager.setPackingWindow(SyncManager.DEFAULT_PACKING_WINDOW);
+
+                // grow the messages on fast connections (and shrink them again on slow ones)
+                syncManager.setAdaptiveMsgSize(transport.getMaxMsgSize(), ADAPTIVE_MAX_MSG_SIZE);
+
+                // resume the session that was interrupted when the application was last terminated (if any)
+                resumingSync = syncManager.resumeSync(stores, sessionID);
+                if (resumingSync) {
+                    if (logger != null) logger.info("Resuming the sync session interrupted by the termination of the application");
+
+                    currentSyncProgress.set(StatusCodes.SYNC_RESUMING, StatusCodes.NONE, 0, 0, null, 0, 0);
+                    updateSyncProgress(currentSyncProgress);
+                } else {
+                    syncManager.startSync(stores, sessionID);
+                }
 
                 if (logger != null) logger.info("end startSync()");
 
@@ -598,6 +633,15 @@ public class SyncEngineService extends Service implements UIInterface, SyncListe
 
     }
 
+    /*
+     * (non-Javadoc)
+     * @see net.cp.syncml.client.SyncListener#onMaxMsgSizeChange(long, long, long)
+     */
+    @Override
+    public void onMaxMsgSizeChange(long maxMsgSize, long roundTripTime, long throughput) {
+        if (logger != null) logger.info("Maximum message size changed to " + maxMsgSize + " (round-trip time " + roundTripTime + "ms, throughput " + throughput + " bytes/s)");
+    }
+
     /*
      * (non-Javadoc)
      * @see net.cp.syncml.client.SyncListener#onMoveResult(int, java.lang.String)
@@ -636,6 +680,17 @@ public class SyncEngineService extends Service implements UIInterface, SyncListe
         suspended = false;
         resumingSync = false;
 
+        // close the persistent connection to the server - a new one is opened for the next session
+        if (syncManager != null) {
+            HTTPTransport transport = (HTTPTransport) syncManager.getTransport();
+            if (logger != null) {
+                logger.info("HTTP connections: opened " + transport.getConnectCount() + ", reused " + transport.getReuseCount());
+                logger.info("HTTP compression: sent " + transport.getUncompressedBytesSent() + " -> " + transport.getCompressedBytesSent() + " bytes, received "
+                        + transport.getCompressedBytesReceived() + " -> " + transport.getUncompressedBytesReceived() + " bytes (time=" + transport.getCompressionTime() + ")");
+            }
+            transport.shutdown();
+        }
+
         // TODO make sure this is the correct thing to do
         syncManager = null;
 
@@ -661,6 +716,17 @@ public class SyncEngineService extends Service implements UIInterface, SyncListe
         if (logger != null) logger.info("onSyncEnd complete");
     }
 
+    /*
+     * (non-Javadoc)
+     * @see net.cp.syncml.client.SyncListener#onSyncMetrics(net.cp.syncml.client.SyncMetrics)
+     */
+    @Override
+    public void onSyncMetrics(SyncMetrics metrics) {
+        // keep the metrics of the session once it has ended (the sync manager is discarded)
+        lastSyncMetrics = metrics;
+        if (logger != null) logger.info("Sync metrics: " + metrics);
+    }
+
     /*
      * (non-Javadoc)
      * @see net.cp.syncml.client.SyncListener#onSyncResume(boolean)
@@ -944,6 +1010,20 @@ public class SyncEngineService extends Service implements UIInterface, SyncListe
         return lastSyncProgress;
     }
 
+    /**
+     *
+     * @return the timing and volume metrics of the current sync, or of the last sync if we are not currently syncing. null if there has been no sync.
+     */
+    public SyncMetrics getLastSyncMetrics() {
+        SyncManager manager = syncManager;
+        if (manager != null) {
+            SyncMetrics metrics = manager.getSyncMetrics();
+            if (metrics != null) return metrics;
+        }
+
+        return lastSyncMetrics;
+    }
+
     /**
      * @param uiInterface The RPC/remote server alert consumer. Remove the existing consumer by passing null.
      */
@@ -1285,6 +1365,15 @@ public class SyncEngineService extends Service implements UIInterface, SyncListe
             return new ParcelableSyncProgress(progress);
         }
 
+        @Override
+        public String getLastSyncMetrics() {
+            SyncMetrics metrics = service.getLastSyncMetrics();
+
+            if (metrics == null) return null;
+
+            return metrics.toString();
+        }
+
         @Override
         public void registerCallback(UICallbackInterface uiInterface) throws RemoteException {
             service.addCallbackUI(uiInterface);
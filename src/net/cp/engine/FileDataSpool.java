@@ -0,0 +1,56 @@
+/**
+ * Copyright 2004-2012 Critical Path, Inc. All Rights Reserved.
+ */
+
+package net.cp.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.cp.syncml.client.util.DataSpool;
+
+/**
+ * A data spool which stores the spilled data in a temporary file. <br/><br/>
+ *
+ * The file is created in the specified directory (typically the application cache directory) when
+ * data is first spilled, and is deleted when the spool is no longer needed.
+ */
+public class FileDataSpool implements DataSpool {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File spoolFile;
+
+    /**
+     * Creates a new spool which stores its data in the specified file.
+     *
+     * @param directory the directory in which the spool file should be created. Must not be null.
+     * @param name the name of the spool file. Must not be null or empty.
+     */
+    public FileDataSpool(File directory, String name) {
+        if (directory == null) throw new IllegalArgumentException("no spool directory specified");
+        if ((name == null) || (name.length() <= 0)) throw new IllegalArgumentException("no spool name specified");
+
+        spoolFile = new File(directory, name);
+    }
+
+    @Override
+    public OutputStream openOutputStream() throws IOException {
+        return new BufferedOutputStream(new FileOutputStream(spoolFile, false), BUFFER_SIZE);
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+        return new BufferedInputStream(new FileInputStream(spoolFile), BUFFER_SIZE);
+    }
+
+    @Override
+    public void delete() {
+        if (spoolFile.exists()) spoolFile.delete();
+    }
+}
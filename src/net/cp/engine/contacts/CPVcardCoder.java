@@ -4,8 +4,13 @@
 
 package net.cp.engine.contacts;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PushbackReader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Map;
@@ -147,7 +152,7 @@ public class CPVcardCoder extends VcardCoder {
         try {
             if (logger != null) logger.info("VCARD_DECODER: Looking for vCard identity");
 
-            return decode(vcardString, null, true);
+            return decode(new PushbackReader(new StringReader(vcardString)), null, true);
         } catch (Throwable e) {
             if (logger != null) logger.error("VCARD_DECODER: Failed to determine the contact identifier - ignoring", e);
 
@@ -188,7 +193,7 @@ public class CPVcardCoder extends VcardCoder {
         try {
             // create an empty contact in the contact list and populate it from the vCard data
             Contact contact = contactList.createContact();
-            decode(vcardString, contact, false);
+            decode(new PushbackReader(new StringReader(vcardString)), contact, false);
 
             vcardString = null;
             // System.gc();
@@ -201,9 +206,24 @@ public class CPVcardCoder extends VcardCoder {
         }
     }
 
-    /** Reads the specified vCard string, populates the specified contact and returns the identity of the contact. */
+    @Override
+    public Contact decode(ContactList contactList, InputStream vcardStream) throws StoreException {
+        try {
+            // create an empty contact in the contact list and populate it from the vCard data as it's read from the stream
+            Contact contact = contactList.createContact();
+            decode(new PushbackReader(new BufferedReader(new InputStreamReader(vcardStream, charset))), contact, false);
+
+            return contact;
+        } catch (Throwable e) {
+            if (logger != null) logger.error("VCARD_DECODER: Failed to decode vCard data", e);
+
+            throw new StoreException("Failed to decode vCard data", e);
+        }
+    }
+
+    /** Reads the specified vCard data, populates the specified contact and returns the identity of the contact. */
     // TODO this can be optimized
-    protected String decode(String vcardString, Contact contact, boolean identityOnly) throws StoreException {
+    protected String decode(PushbackReader vcardReader, Contact contact, boolean identityOnly) throws StoreException, IOException {
         if (logger != null) logger.debug("VCARD_DECODER: Decoding vCard data");
 
         // reset state
@@ -212,13 +232,12 @@ public class CPVcardCoder extends VcardCoder {
         // read and parse each vCard property
         boolean inVcard = false;
         StringBuffer vcardProperty = new StringBuffer();
-        int strLen = vcardString.length();
         ContactList contacts = contact.getContactList();
 
-        for (int vcardIndex = 0; vcardIndex < strLen;) {
+        while (true) {
             // read the property from the vCard data
             vcardProperty.setLength(0);
-            vcardIndex = readProperty(vcardString, vcardIndex, vcardProperty);
+            if (!readProperty(vcardReader, vcardProperty)) break;
             if (vcardProperty.length() <= 0) continue;
             String property = vcardProperty.toString();
 
@@ -737,33 +756,38 @@ public class CPVcardCoder extends VcardCoder {
     }
 
     /** Reads the next property from the specified vCard data. */
-    private int readProperty(String vcardString, int vcardIndex, StringBuffer property) {
-        int vcardLen = vcardString.length();
-        for (; vcardIndex < vcardLen; vcardIndex++) {
+    private boolean readProperty(PushbackReader vcardReader, StringBuffer property) throws IOException {
+        int c = vcardReader.read();
+        if (c < 0) return false;
+
+        for (; c >= 0; c = vcardReader.read()) {
             // check for end-of-line (CR or CRLF)
-            char c = vcardString.charAt(vcardIndex);
             if ((c == '\r') || (c == '\n')) {
                 // skip past the new line (CR or CRLF)
-                if ((c == '\r') && ((vcardIndex + 1) < vcardLen) && (vcardString.charAt(vcardIndex + 1) == '\n')) vcardIndex++;
-                vcardIndex++;
+                int next = vcardReader.read();
+                if ((c == '\r') && (next == '\n')) next = vcardReader.read();
 
                 // check for folded lines (CR or CRLF followed by space or tab)
-                if ((vcardIndex < vcardLen) && ((vcardString.charAt(vcardIndex) == ' ') || (vcardString.charAt(vcardIndex) == '\t'))) continue;
+                if ((next == ' ') || (next == '\t')) continue;
 
                 // end of line found
+                if (next >= 0) vcardReader.unread(next);
                 break;
             }
 
             // replace "\n" or "\N" with new-line (CRLF) characters
-            if ((c == '\\') && ((vcardIndex + 1) < vcardLen) && ((vcardString.charAt(vcardIndex + 1) == 'n') || ((vcardString.charAt(vcardIndex + 1) == 'N')))) {
-                property.append("\r\n");
-                vcardIndex++;
-                continue;
+            if (c == '\\') {
+                int next = vcardReader.read();
+                if ((next == 'n') || (next == 'N')) {
+                    property.append("\r\n");
+                    continue;
+                }
+                if (next >= 0) vcardReader.unread(next);
             }
 
-            property.append(c);
+            property.append((char) c);
         }
 
-        return vcardIndex;
+        return true;
     }
 }
@@ -139,9 +139,9 @@ public abstract class ContactRecord implements Record
     }
 
     /* (non-Javadoc)
-     * @see net.cp.syncml.client.store.Record#getData(byte[], int)
+     * @see net.cp.syncml.client.store.Record#getData(byte[], int, int)
      */
-    public int getData(byte[] buffer, int length) 
+    public int getData(byte[] buffer, int offset, int length) 
         throws StoreException
     {
         boolean finished = false;
@@ -152,7 +152,7 @@ public abstract class ContactRecord implements Record
                 vcardData = getVcardData();
             
             //copy the required amount of data
-            System.arraycopy(vcardData, vcardBytesRead, buffer, 0, length);
+            System.arraycopy(vcardData, vcardBytesRead, buffer, offset, length);
             vcardBytesRead += length;
 
             //check if we have finished reading all the data
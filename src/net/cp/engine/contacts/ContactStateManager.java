@@ -97,6 +97,12 @@ public abstract class ContactStateManager {
 
     public abstract Contact getMinContact(String localId) throws StoreException;
 
+    /** Returns the record associated with the specified local ID (so that its data can be sent again).
+     *
+     *  @return the record associated to the specified local ID or null if such a record does not exist
+     */
+    public abstract Record getRecord(String localId) throws StoreException;
+
     /** 
      * Initializes the state manager for the specified contact list.
      *  
@@ -4,8 +4,8 @@
 
 package net.cp.engine.contacts;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 
 import net.cp.ac.core.AndroidContactAPI5;
@@ -26,21 +26,29 @@ import net.cp.syncml.client.store.NoSuchRecordException;
 import net.cp.syncml.client.store.Record;
 import net.cp.syncml.client.store.RecordStore;
 import net.cp.syncml.client.store.RecordStoreCapabilities;
+import net.cp.syncml.client.store.ResumableRecordStore;
 import net.cp.syncml.client.store.StoreException;
 import net.cp.syncml.client.util.ConsumableStack;
+import net.cp.syncml.client.util.DataSpool;
 import net.cp.syncml.client.util.Logger;
+import net.cp.syncml.client.util.SpoolBuffer;
 
 /**
  * A class implementing a simple record store containing PIM contacts. <br/><br/>
  *
  * @author James O'Connor
  */
-public class ContactStore implements RecordStore {
+public class ContactStore implements ResumableRecordStore {
     /**
      * The character encoding the use.
      */
     protected static final String ENCODING = "UTF-8";
 
+    /**
+     * the maximum amount of incoming contact data held in memory before it is spilled to the data spool
+     */
+    protected static final int MAX_CONTACT_DATA_IN_MEMORY = 64 * 1024;
+
     private static final int[] SYNC_CAP = { SyncML.SYNC_TYPE_TWO_WAY, SyncML.SYNC_TYPE_TWO_WAY_SLOW, SyncML.SYNC_TYPE_ONE_WAY_CLIENT,
             SyncML.SYNC_TYPE_REFRESH_CLIENT, SyncML.SYNC_TYPE_ONE_WAY_SERVER };
     private static final int[] SYNC_CAP_SIS = { SyncML.SYNC_TYPE_TWO_WAY, SyncML.SYNC_TYPE_TWO_WAY_SLOW, SyncML.SYNC_TYPE_ONE_WAY_CLIENT,
@@ -115,7 +123,17 @@ public class ContactStore implements RecordStore {
      *
      * the data of the contact currently being added/replaced on the client
      */
-    protected ByteArrayOutputStream inContactData;
+    protected SpoolBuffer inContactData;
+
+    /**
+     * the first chunk of data of the contact currently being added/replaced (if no other data has been received)
+     */
+    protected byte[] inFirstContactData;
+
+    /**
+     * the spool to which large incoming contacts are spilled (if any)
+     */
+    protected DataSpool dataSpool;
 
     /**
      * the local ID of the contact currently being replaced on the client
@@ -166,6 +184,11 @@ public class ContactStore implements RecordStore {
 
     private boolean mHasAlertSlowSync = false;
 
+    /**
+     * indicates whether or not the current sync session was restored after the application was restarted
+     */
+    private boolean restoredSession;
+
     /**
      *
      * Creates a new contact store that uses the vCard encoder/decoder
@@ -409,10 +432,34 @@ public class ContactStore implements RecordStore {
      */
     @Override
     public void onSyncStart() throws StoreException {
+        startSyncSession(false, 0, null);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see net.cp.syncml.client.store.ResumableRecordStore#onSyncRestore(int, java.lang.String)
+     */
+    @Override
+    public void onSyncRestore(int restoredSyncType, String restoredLastAnchor) throws StoreException {
+        if (logger != null) logger.debug("Sync session is being restored");
+
+        startSyncSession(true, restoredSyncType, restoredLastAnchor);
+    }
+
+    /**
+     * Prepares the store for a new sync session or for a sync session which is being restored.
+     *
+     * @param restoring true if a session interrupted by the termination of the application is being restored.
+     * @param restoredSyncType the type of sync performed by the restored session (if restoring).
+     * @param restoredLastAnchor the last anchor used by the restored session (if restoring).
+     * @throws StoreException if the sync session couldn't be started.
+     */
+    private void startSyncSession(boolean restoring, int restoredSyncType, String restoredLastAnchor) throws StoreException {
         // update the sync progress in the UI
         updateProgress(StatusCodes.SYNC_STARTING, StatusCodes.SYNC_INITIALIZING, -1, -1);
 
         mHasAlertSlowSync = false;
+        restoredSession = restoring;
 
         // reset the sync counters
         syncCounters = new SyncCounters(EngineSettings.MEDIA_TYPE_CONTACTS);
@@ -431,7 +478,12 @@ public class ContactStore implements RecordStore {
             syncLog = SyncLog.open(contacts.getName(), logger);
             SyncCounters[] lastSyncCounters = syncLog.getLastSyncCounters();
 
-            if ((lastSyncCounters != null) && (lastSyncCounters.length > 0)) {
+            if (restoring) {
+                // the anchor in RMS was already wiped out when the session was first started, and remains so until
+                // the session ends - we just continue with the anchor and sync type the session was using
+                lastAnchor = restoredLastAnchor;
+                syncType = restoredSyncType;
+            } else if ((lastSyncCounters != null) && (lastSyncCounters.length > 0)) {
                 // read last anchor
                 lastAnchor = lastSyncCounters[0].lastSyncAnchor;
 
@@ -444,8 +496,8 @@ public class ContactStore implements RecordStore {
 
             if (logger != null) logger.info("lastAnchor: " + lastAnchor);
 
-            // remove all log messages from the last sync
-            syncLog.removeLogError(EngineSettings.MEDIA_TYPE_CONTACTS, 0);
+            // remove all log messages from the last sync (keeping those of the session being restored)
+            if (!restoring) syncLog.removeLogError(EngineSettings.MEDIA_TYPE_CONTACTS, 0);
 
             // determine the number of contacts in the list and check if the max number of contacts has been reached
             contactsSize = getContactSize();
@@ -458,8 +510,9 @@ public class ContactStore implements RecordStore {
             // generate the new anchor for the current sync
             nextAnchor = Long.toString(syncCounters.lastSyncDate);
 
-            // if any of our state information is missing, we have to perform a slow sync
-            if ((lastAnchor == null) || (lastAnchor.length() <= 0) || (!stateManager.isStateValid())) {
+            // if any of our state information is missing, we have to perform a slow sync (a restored session has
+            // already agreed the sync type with the server)
+            if ((!restoring) && ((lastAnchor == null) || (lastAnchor.length() <= 0) || (!stateManager.isStateValid()))) {
                 // we only switch to a slow sync if not already performing a refresh
                 if ((syncType != SyncML.SYNC_TYPE_REFRESH_CLIENT) && (syncType != SyncML.SYNC_TYPE_REFRESH_SERVER)) syncType = SyncML.SYNC_TYPE_TWO_WAY_SLOW;
 
@@ -467,7 +520,8 @@ public class ContactStore implements RecordStore {
             }
 
             // open any necessary streams
-            inContactData = new ByteArrayOutputStream();
+            inContactData = new SpoolBuffer(MAX_CONTACT_DATA_IN_MEMORY, dataSpool);
+            inFirstContactData = null;
         } catch (Throwable e) {
             if (logger != null) logger.error("Failed to start sync session for contacts", e);
 
@@ -527,7 +581,8 @@ public class ContactStore implements RecordStore {
                 // depending on when the session ended, keep the same sync anchor as before
                 // or reset the anchor to force a slow sync (required to avoid the server sending
                 // duplicates for contact adds that were not acknowledged by the client
-                if (inContactsTotal > 0)
+                // (a restored session may have received contact adds before the application was terminated)
+                if ((inContactsTotal > 0) || (restoredSession))
                     syncCounters.lastSyncAnchor = null;
                 else
                     syncCounters.lastSyncAnchor = lastAnchor;
@@ -570,6 +625,7 @@ public class ContactStore implements RecordStore {
             }
 
             inContactData = null;
+            inFirstContactData = null;
         }
 
         // remove any outgoing changes
@@ -886,7 +942,7 @@ public class ContactStore implements RecordStore {
         if (logger != null) logger.info("Starting to add a new contact with global ID '" + globalId + "' and content type '" + contentType.toString() + "'");
 
         // reset the input stream
-        inContactData.reset();
+        resetContactData();
     }
 
     /*
@@ -899,7 +955,7 @@ public class ContactStore implements RecordStore {
 
         try {
             // add the data to what we have already
-            inContactData.write(data);
+            appendContactData(data);
         } catch (IOException e) {
             if (logger != null) logger.error("Failed to write incoming data for new contact being added", e);
 
@@ -924,7 +980,7 @@ public class ContactStore implements RecordStore {
 
         // nothing more to do if the contact should not be committed
         if (!commit) {
-            inContactData.reset();
+            resetContactData();
             return null;
         }
 
@@ -933,11 +989,9 @@ public class ContactStore implements RecordStore {
         String contactIdentifier = null;
         boolean contactComitted = false;
         try {
-            // convert data to a vCard string
-            vcardString = new String(inContactData.toByteArray(), ContactStore.ENCODING);
-
-            // decode the vCard data
-            newContact = vcardCoder.decode(contacts, vcardString);
+            // convert data to a vCard string (unless it has been spooled) and decode it
+            vcardString = getContactDataString();
+            newContact = decodeContactData(vcardString);
 
             vcardString = null; // save memory
             // System.gc();
@@ -994,6 +1048,77 @@ public class ContactStore implements RecordStore {
         }
     }
 
+    /*
+     * (non-Javadoc)
+     * @see net.cp.syncml.client.store.ResumableRecordStore#getRecord(java.lang.String)
+     */
+    @Override
+    public Record getRecord(String localId) throws StoreException {
+        return stateManager.getRecord(localId);
+    }
+
+    /**
+     * Sets the spool to which the data of large incoming contacts is spilled. <br/><br/>
+     *
+     * The spool takes effect from the start of the next sync session.
+     *
+     * @param spool the spool to use. May be null if incoming contacts should always be held in memory.
+     */
+    public void setDataSpool(DataSpool spool) {
+        dataSpool = spool;
+    }
+
+    /** Adds the specified chunk of data to the data of the contact currently being added/replaced. */
+    private void appendContactData(byte[] data) throws IOException {
+        // most contacts are received in a single chunk which can be used as is (the array isn't reused by the sync client)
+        if ((inFirstContactData == null) && (inContactData.size() <= 0)) {
+            inFirstContactData = data;
+            return;
+        }
+
+        // the contact has been chunked - accumulate the data
+        if (inFirstContactData != null) {
+            inContactData.write(inFirstContactData, 0, inFirstContactData.length);
+            inFirstContactData = null;
+        }
+        inContactData.write(data, 0, data.length);
+    }
+
+    /** Returns the data of the contact currently being added/replaced as a vCard string, or null if the data has been spooled. */
+    private String getContactDataString() throws IOException {
+        if (inFirstContactData != null) return new String(inFirstContactData, ContactStore.ENCODING);
+        if (inContactData.isSpooled()) return null;
+
+        return inContactData.toString(ContactStore.ENCODING);
+    }
+
+    /**
+     * Decodes the data of the contact currently being added/replaced and discards the data. <br/><br/>
+     *
+     * Spooled data is decoded as it's read back from the spool so that the whole contact is never held in memory.
+     */
+    private Contact decodeContactData(String vcardString) throws IOException, StoreException {
+        if (vcardString != null) {
+            resetContactData();
+            return vcardCoder.decode(contacts, vcardString);
+        }
+
+        InputStream vcardStream = null;
+        try {
+            vcardStream = inContactData.getInputStream();
+            return vcardCoder.decode(contacts, vcardStream);
+        } finally {
+            if (vcardStream != null) vcardStream.close();
+            resetContactData();
+        }
+    }
+
+    /** Discards the data of the contact currently being added/replaced. */
+    private void resetContactData() {
+        inContactData.reset();
+        inFirstContactData = null;
+    }
+
     /** Called to commit the specified contact to the PIM.
      *
      * @param contact
@@ -1022,7 +1147,7 @@ public class ContactStore implements RecordStore {
         if (logger != null) logger.info("Starting to replace contact with local ID '" + localId + "' and content type '" + contentType.toString() + "'");
 
         // reset the input stream
-        inContactData.reset();
+        resetContactData();
 
         // store the local ID so we can refer to it later
         inLocalId = localId;
@@ -1034,7 +1159,7 @@ public class ContactStore implements RecordStore {
 
         try {
             // add the data to what we have already
-            inContactData.write(data);
+            appendContactData(data);
         } catch (IOException e) {
             if (logger != null) logger.error("Failed to write incoming data for contact being replaced", e);
 
@@ -1042,7 +1167,7 @@ public class ContactStore implements RecordStore {
             onStoreError(true, StatusCodes.SYNC_UPDATE, "", e);
 
             // cleanup
-            inContactData.reset();
+            resetContactData();
             inLocalId = null;
 
             throw new StoreException("Failed to write incoming data for contact being replaced", e);
@@ -1059,7 +1184,7 @@ public class ContactStore implements RecordStore {
 
         // nothing more to do if the contact should not be committed
         if (!commit) {
-            inContactData.reset();
+            resetContactData();
             return null;
         }
 
@@ -1068,11 +1193,9 @@ public class ContactStore implements RecordStore {
         String contactIdentifier = null;
         boolean contactComitted = false;
         try {
-            // convert data to a vCard string
-            vcardString = new String(inContactData.toByteArray(), ContactStore.ENCODING);
-
-            // decode the vCard data
-            newContact = vcardCoder.decode(contacts, vcardString);
+            // convert data to a vCard string (unless it has been spooled) and decode it
+            vcardString = getContactDataString();
+            newContact = decodeContactData(vcardString);
 
             // retrieve the contact with the specified local ID
             Contact oldContact = stateManager.getContact(inLocalId);
@@ -1154,7 +1277,7 @@ public class ContactStore implements RecordStore {
             throw new StoreException("Failed to replace contact '" + contactIdentifier + "' with local ID '" + inLocalId + "'", e);
         } finally {
             // cleanup
-            inContactData.reset();
+            resetContactData();
             inLocalId = null;
         }
     }
@@ -248,12 +248,14 @@ public class UidContactStateManager extends ContactStateManager {
         return null;
     }
 
+    // records are retrieved and encoded on the SyncML client's prefetch thread while the session thread reports sync
+    // results, so the methods using the contact cache, the sync state enumeration or the vCard buffer are synchronized
     private static final int CACHE_SIZE = EngineSettings.getInstance().getContactCacheSize();
     private final Map<String, Contact> mCachedContacts = new HashMap<String, Contact>();
     private final List<Record> mCachedRecords = new LinkedList<Record>();
 
     @Override
-    public Record getNextRecord(boolean changesOnly) {
+    public synchronized Record getNextRecord(boolean changesOnly) {
         if (mCachedRecords.size() == 0) {
             for (int i = 0; i < CACHE_SIZE; i++) {
                 Record nextRecord = getNextRecordInternal(changesOnly);
@@ -571,7 +573,7 @@ public class UidContactStateManager extends ContactStateManager {
      * @see net.cp.engine.contacts.ContactStateManager#setSyncResult(java.lang.String, boolean)
      */
     @Override
-    public void setSyncResult(String localId, boolean syncSuccess) throws StoreException {
+    public synchronized void setSyncResult(String localId, boolean syncSuccess) throws StoreException {
         // nothing more to do if the sync failed - we leave the state unchanged so that the record will
         // be re-sent during the next sync
         if (!syncSuccess) return;
@@ -736,6 +738,14 @@ public class UidContactStateManager extends ContactStateManager {
         return getContactByUid(syncState.uid);
     }
 
+    @Override
+    public Record getRecord(String localId) throws StoreException {
+        // read the sync state record associated with the specified record ID - it refers to the contact data
+        int recordId = getRmsId(localId);
+        UidContactRecord syncState = new UidContactRecord(contactStore);
+        return readSyncState(syncState, recordId, false);
+    }
+
     @Override
     public Contact getMinContact(String localId) throws StoreException {
         // read the sync state record associated with the specified record ID
@@ -753,7 +763,7 @@ public class UidContactStateManager extends ContactStateManager {
      * @return the Contact associated with the specified UID or null if no such Contact exists.
      * @throws StoreException
      */
-    protected Contact getContactByUid(String uid) throws StoreException {
+    protected synchronized Contact getContactByUid(String uid) throws StoreException {
         if (mCachedContacts.containsKey(uid)) {
             return mCachedContacts.remove(uid);
         }
@@ -768,7 +778,7 @@ public class UidContactStateManager extends ContactStateManager {
      * @return the Contact associated with the specified UID or null if no such Contact exists.
      * @throws StoreException
      */
-    protected Contact getMinContactByUid(String uid) throws StoreException {
+    protected synchronized Contact getMinContactByUid(String uid) throws StoreException {
         if (mCachedContacts.containsKey(uid)) {
             return mCachedContacts.remove(uid);
         }
@@ -782,7 +792,7 @@ public class UidContactStateManager extends ContactStateManager {
      * @return The vcard as bytes
      * @throws StoreException
      */
-    protected byte[] getVCardByUID(String uid) throws StoreException {
+    protected synchronized byte[] getVCardByUID(String uid) throws StoreException {
 
         Contact contact = getContactByUid(uid);
         if (contact != null) {
@@ -824,7 +834,7 @@ public class UidContactStateManager extends ContactStateManager {
 
     /** Returns the MD5 hash of the specified contact. */
     @Override
-    public byte[] getContactHash(Contact contact) throws StoreException {
+    public synchronized byte[] getContactHash(Contact contact) throws StoreException {
         try {
             // encode the contact as a vCard
             vcardOutputStream = resetStream(vcardOutputStream);
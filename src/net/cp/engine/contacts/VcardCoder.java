@@ -102,6 +102,10 @@ public abstract class VcardCoder
     public abstract Contact decode(ContactList contactList, String vcardString)
         throws StoreException;
         
+    /** Reads the vCard data from the specified stream and returns it in a contact. */
+    public abstract Contact decode(ContactList contactList, InputStream vcardStream)
+        throws StoreException;
+        
     /** Writes the specified contact as a vCard to the specified output stream. */
     public abstract void encode(Contact contact, OutputStream stream)
         throws StoreException;